@@ -0,0 +1,283 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.datamodel;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import com.cerema.cloud.db.DbHandler;
+import com.cerema.cloud.lib.common.utils.Log_OC;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Keeps SHA-1 hashes of the contents of files, to find out if a local copy modified according
+ * to its timestamp really has a content different to the one in the server.
+ *
+ * Two hashes are kept per file, in the local database:
+ *
+ * - The hash of the content last synchronized with the server, saved after every upload and
+ *   download.
+ * - The hash of the local copy, saved with the size and the modification time it was computed
+ *   for. It's computed again only when any of them changes, so files are not read again and
+ *   again in every synchronization.
+ *
+ * Transfers that can hash the content while it's written or sent provide the hash when the
+ * content is synchronized; otherwise, the content is not read then, but when a comparison
+ * needs its hash, as long as the local copy didn't change meanwhile.
+ *
+ * Files are hashed through memory-mapped segments, without copies to the Java heap.
+ */
+public class ContentHashStore {
+
+    private static final String TAG = ContentHashStore.class.getSimpleName();
+
+    private static final String HASH_ALGORITHM = "SHA-1";
+
+    /** Size of the segments of a file mapped in memory at the same time to hash it */
+    private static final long MAP_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    /** Hash of content synchronized but not hashed yet; it's the content of the local copy
+     *  while its size and modification time don't change */
+    private static final String PENDING_HASH = "";
+
+
+    private ContentHashStore() {
+        // utility class, not instantiable
+    }
+
+
+    /**
+     * Computes the hash of the content of a file.
+     *
+     * @param file      Local file to hash.
+     * @return          SHA-1 hash of the content, in lower case hexadecimal.
+     * @throws IOException  If the file could not be read.
+     */
+    public static String computeHash(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        updateDigest(digest, file);
+        return toHash(digest);
+    }
+
+
+    /**
+     * @return      New digest computing hashes as kept by this store, to hash content while
+     *              it's transferred.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(HASH_ALGORITHM + " not supported", e);
+        }
+    }
+
+
+    /**
+     * @param digest    Digest fed with all the content to hash; it's reset.
+     * @return          Hash of the content, in lower case hexadecimal.
+     */
+    public static String toHash(MessageDigest digest) {
+        return toHex(digest.digest());
+    }
+
+
+    /**
+     * Feeds a digest with the content of a file.
+     *
+     * @param digest    Digest to update.
+     * @param file      Local file to read.
+     * @throws IOException  If the file could not be read.
+     */
+    public static void updateDigest(MessageDigest digest, File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                long length = Math.min(MAP_SEGMENT_SIZE, size - position);
+                MappedByteBuffer segment =
+                        channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                digest.update(segment);
+                position += length;
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    /**
+     * Gets the hash of the local copy of a file, computing it only if the copy changed since
+     * the last time it was hashed.
+     *
+     * @param context       Android context.
+     * @param accountName   Name of the ownCloud account holding the file.
+     * @param remotePath    Remote path of the file.
+     * @param localFile     Local copy of the file.
+     * @return              SHA-1 hash of the local copy, or null if it could not be read.
+     */
+    public static String getLocalHash(Context context, String accountName, String remotePath,
+                                      File localFile) {
+        long length = localFile.length();
+        long timestamp = localFile.lastModified();
+        DbHandler db = new DbHandler(context);
+        try {
+            String syncedHash = null;
+            String localHash = null;
+            boolean unchanged = false;
+            Cursor c = db.getContentHashes(accountName, remotePath);
+            try {
+                if (c.moveToFirst()) {
+                    syncedHash = c.getString(c.getColumnIndex("synced_hash"));
+                    localHash = c.getString(c.getColumnIndex("local_hash"));
+                    unchanged = (c.getLong(c.getColumnIndex("file_length")) == length &&
+                            c.getLong(c.getColumnIndex("file_timestamp")) == timestamp);
+                }
+            } finally {
+                c.close();
+            }
+            if (unchanged && localHash != null && !PENDING_HASH.equals(localHash)) {
+                return localHash;
+            }
+
+            localHash = computeHash(localFile);
+            if (PENDING_HASH.equals(syncedHash)) {
+                if (unchanged) {
+                    // content synchronized, hashed only now that it's needed
+                    db.saveSyncedContentHash(accountName, remotePath, localHash, length,
+                            timestamp);
+                    return localHash;
+                }
+                // the synchronized content is not available anymore
+                db.removeContentHashes(accountName, remotePath);
+            }
+            db.saveLocalContentHash(accountName, remotePath, localHash, length, timestamp);
+            return localHash;
+
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Could not hash " + localFile + ": " + e.getMessage());
+            return null;
+
+        } finally {
+            db.close();
+        }
+    }
+
+
+    /**
+     * @param context       Android context.
+     * @param accountName   Name of the ownCloud account holding the file.
+     * @param remotePath    Remote path of the file.
+     * @param localFile     Local copy of the file.
+     * @return              SHA-1 hash of the content of the file last synchronized with the
+     *                      server, or null if unknown.
+     */
+    public static String getSyncedHash(Context context, String accountName, String remotePath,
+                                       File localFile) {
+        String syncedHash = readSyncedHash(context, accountName, remotePath);
+        if (PENDING_HASH.equals(syncedHash)) {
+            // hashed now if the local copy still has the synchronized content
+            getLocalHash(context, accountName, remotePath, localFile);
+            syncedHash = readSyncedHash(context, accountName, remotePath);
+        }
+        return PENDING_HASH.equals(syncedHash) ? null : syncedHash;
+    }
+
+
+    private static String readSyncedHash(Context context, String accountName,
+                                         String remotePath) {
+        DbHandler db = new DbHandler(context);
+        Cursor c = db.getContentHashes(accountName, remotePath);
+        try {
+            return (c.moveToFirst()) ? c.getString(c.getColumnIndex("synced_hash")) : null;
+        } finally {
+            c.close();
+            db.close();
+        }
+    }
+
+
+    /**
+     * Saves the content of a local copy as the content last synchronized with the server,
+     * after an upload or a download.
+     *
+     * @param context       Android context.
+     * @param accountName   Name of the ownCloud account holding the file.
+     * @param remotePath    Remote path of the file.
+     * @param localFile     Local copy of the file, with the same content than in the server.
+     * @param hash          Hash of the content computed while it was transferred, or null to
+     *                      hash it later, only if needed.
+     */
+    public static void onContentSynced(Context context, String accountName, String remotePath,
+                                       File localFile, String hash) {
+        DbHandler db = new DbHandler(context);
+        try {
+            db.saveSyncedContentHash(accountName, remotePath,
+                    (hash != null) ? hash : PENDING_HASH, localFile.length(),
+                    localFile.lastModified());
+        } finally {
+            db.close();
+        }
+    }
+
+
+    /**
+     * Forgets the hashes kept for a file, or for all the files in a folder, when removed or
+     * moved.
+     *
+     * @param context       Android context.
+     * @param accountName   Name of the ownCloud account holding the file.
+     * @param remotePath    Remote path of the file or folder.
+     * @param isFolder      'True' if remotePath is a folder.
+     */
+    public static void forget(Context context, String accountName, String remotePath,
+                              boolean isFolder) {
+        DbHandler db = new DbHandler(context);
+        try {
+            if (isFolder) {
+                db.removeContentHashesInFolder(accountName, remotePath);
+            } else {
+                db.removeContentHashes(accountName, remotePath);
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+}
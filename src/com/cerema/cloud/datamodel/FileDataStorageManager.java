@@ -52,9 +52,11 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
 
@@ -62,6 +64,9 @@ public class FileDataStorageManager {
 
     public static final int ROOT_PARENT_ID = 0;
 
+    /** Upper bound to the arguments in a single query; SQLite accepts up to 999 */
+    private static final int MAX_IDS_PER_QUERY = 500;
+
     private ContentResolver mContentResolver;
     private ContentProviderClient mContentProviderClient;
     private Account mAccount;
@@ -123,6 +128,49 @@ public class FileDataStorageManager {
         return file;
     }
 
+    /**
+     * Retrieves several files of the current account in a few queries, instead of one per file.
+     *
+     * @param ids       Identifiers of the files in the local database.
+     * @return          Files found; identifiers not found are skipped.
+     */
+    public List<OCFile> getFilesByIds(long[] ids) {
+        List<OCFile> files = new ArrayList<OCFile>(ids.length);
+        for (int start = 0; start < ids.length; start += MAX_IDS_PER_QUERY) {
+            int end = Math.min(start + MAX_IDS_PER_QUERY, ids.length);
+            StringBuilder where = new StringBuilder(ProviderTableMeta._ID).append(" IN (");
+            String[] whereArgs = new String[end - start + 1];
+            for (int i = start; i < end; i++) {
+                where.append(i > start ? ",?" : "?");
+                whereArgs[i - start] = String.valueOf(ids[i]);
+            }
+            where.append(") AND ").append(ProviderTableMeta.FILE_ACCOUNT_OWNER).append("=?");
+            whereArgs[end - start] = mAccount.name;
+
+            Cursor c = null;
+            if (getContentResolver() != null) {
+                c = getContentResolver().query(ProviderTableMeta.CONTENT_URI, null,
+                        where.toString(), whereArgs, null);
+            } else {
+                try {
+                    c = getContentProviderClient().query(ProviderTableMeta.CONTENT_URI, null,
+                            where.toString(), whereArgs, null);
+                } catch (RemoteException e) {
+                    Log_OC.e(TAG, "Could not get details of files: " + e.getMessage());
+                }
+            }
+            if (c != null) {
+                if (c.moveToFirst()) {
+                    do {
+                        files.add(createFileInstance(c));
+                    } while (c.moveToNext());
+                }
+                c.close();
+            }
+        }
+        return files;
+    }
+
     public OCFile getFileByLocalPath(String path) {
         Cursor c = getFileCursorForValue(ProviderTableMeta.FILE_STORAGE_PATH, path);
         OCFile file = null;
@@ -436,6 +484,8 @@ public class FileDataStorageManager {
                 success = removeFolder(file, removeDBData, removeLocalCopy);
 
             } else {
+                ContentHashStore.forget(MainApp.getAppContext(), mAccount.name,
+                        file.getRemotePath(), false);
                 if (removeDBData) {
                     //Uri file_uri = Uri.withAppendedPath(ProviderTableMeta.CONTENT_URI_FILE,
                     // ""+file.getFileId());
@@ -478,8 +528,11 @@ public class FileDataStorageManager {
     public boolean removeFolder(OCFile folder, boolean removeDBData, boolean removeLocalContent) {
         boolean success = true;
         if (folder != null && folder.isFolder()) {
+            ContentHashStore.forget(MainApp.getAppContext(), mAccount.name,
+                    folder.getRemotePath(), true);
             if (removeDBData && folder.getFileId() != -1) {
                 success = removeFolderInDb(folder);
+                KnownRemoteFolders.invalidate(mAccount.name, folder.getRemotePath());
             }
             if (removeLocalContent && success) {
                 success = removeLocalFolder(folder);
@@ -569,6 +622,12 @@ public class FileDataStorageManager {
 
         if (file != null && file.fileExists() && !OCFile.ROOT_PATH.equals(file.getFileName())) {
 
+            if (file.isFolder()) {
+                KnownRemoteFolders.invalidate(mAccount.name, file.getRemotePath());
+            }
+            ContentHashStore.forget(MainApp.getAppContext(), mAccount.name, file.getRemotePath(),
+                    file.isFolder());
+
             OCFile targetParent = getFileByPath(targetParentPath);
             if (targetParent == null) {
                 throw new IllegalStateException(
@@ -1663,6 +1722,173 @@ public class FileDataStorageManager {
         return shares;
     }
 
+    /**
+     * Replaces the shares stored for the account with a complete list of them, as returned by
+     * the server, writing only the differences.
+     *
+     * Only files whose shares were added, changed or removed are touched; the shares of the
+     * rest of files, and their sharing flags, are left as they are.
+     *
+     * @param shares        All the shares in the account.
+     * @return              Number of files whose shares changed.
+     */
+    public int applyAllShares(Collection<OCShare> shares) {
+        Map<Long, OCShare> storedShares = new HashMap<Long, OCShare>();
+        for (OCShare stored : getAllShares()) {
+            storedShares.put(stored.getRemoteId(), stored);
+        }
+
+        Map<String, ArrayList<OCShare>> sharesByPath = new HashMap<String, ArrayList<OCShare>>();
+        Set<String> changedPaths = new HashSet<String>();
+        for (OCShare share : shares) {
+            ArrayList<OCShare> sharesInPath = sharesByPath.get(share.getPath());
+            if (sharesInPath == null) {
+                sharesInPath = new ArrayList<OCShare>();
+                sharesByPath.put(share.getPath(), sharesInPath);
+            }
+            sharesInPath.add(share);
+
+            OCShare stored = storedShares.remove(share.getRemoteId());
+            if (stored == null || !isSameShare(stored, share)) {
+                changedPaths.add(share.getPath());
+                if (stored != null) {
+                    changedPaths.add(stored.getPath());
+                }
+            }
+        }
+        for (OCShare removed : storedShares.values()) {
+            changedPaths.add(removed.getPath());
+        }
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (String path : changedPaths) {
+            resetShareFlagInAFile(path);
+            operations = prepareRemoveSharesInFile(path, operations);
+            operations = prepareInsertShares(sharesByPath.get(path), operations);
+        }
+
+        // apply operations in batch
+        if (operations.size() > 0) {
+            Log_OC.d(TAG, "Sending " + operations.size() + " operations to FileContentProvider");
+            try {
+                if (getContentResolver() != null) {
+                    getContentResolver().applyBatch(MainApp.getAuthority(), operations);
+
+                } else {
+                    getContentProviderClient().applyBatch(operations);
+                }
+
+            } catch (OperationApplicationException e) {
+                Log_OC.e(TAG, "Exception in batch of operations " + e.getMessage());
+
+            } catch (RemoteException e) {
+                Log_OC.e(TAG, "Exception in batch of operations  " + e.getMessage());
+            }
+        }
+        return changedPaths.size();
+    }
+
+    /**
+     * Sets the sharing flags of the files in a folder according to the shares already stored
+     * for them, such as files just discovered in the server whose shares are known from the
+     * index of shares of the account.
+     *
+     * @param folder        Folder whose children will be updated.
+     */
+    public void updateShareFlagsInFolder(OCFile folder) {
+        Set<String> sharedViaLink = new HashSet<String>();
+        Set<String> sharedWithSharee = new HashSet<String>();
+        for (OCShare share : getAllShares()) {
+            if (share.getShareType() == ShareType.PUBLIC_LINK) {
+                sharedViaLink.add(share.getPath());
+            } else if (share.getShareType() == ShareType.USER ||
+                    share.getShareType() == ShareType.GROUP ||
+                    share.getShareType() == ShareType.FEDERATED) {
+                sharedWithSharee.add(share.getPath());
+            }
+        }
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (OCFile child : getFolderContent(folder)) {
+            boolean viaLink = sharedViaLink.contains(child.getRemotePath());
+            boolean withSharee = sharedWithSharee.contains(child.getRemotePath());
+            if (viaLink != child.isSharedViaLink() || withSharee != child.isSharedWithSharee()) {
+                ContentValues cv = new ContentValues();
+                cv.put(ProviderTableMeta.FILE_SHARED_VIA_LINK, viaLink ? 1 : 0);
+                cv.put(ProviderTableMeta.FILE_SHARED_WITH_SHAREE, withSharee ? 1 : 0);
+                operations.add(
+                        ContentProviderOperation.newUpdate(ProviderTableMeta.CONTENT_URI).
+                                withValues(cv).
+                                withSelection(ProviderTableMeta._ID + "=?",
+                                        new String[]{String.valueOf(child.getFileId())})
+                                .build());
+            }
+        }
+
+        if (operations.size() > 0) {
+            Log_OC.d(TAG, "Sending " + operations.size() + " operations to FileContentProvider");
+            try {
+                if (getContentResolver() != null) {
+                    getContentResolver().applyBatch(MainApp.getAuthority(), operations);
+
+                } else {
+                    getContentProviderClient().applyBatch(operations);
+                }
+
+            } catch (OperationApplicationException e) {
+                Log_OC.e(TAG, "Exception in batch of operations " + e.getMessage());
+
+            } catch (RemoteException e) {
+                Log_OC.e(TAG, "Exception in batch of operations  " + e.getMessage());
+            }
+        }
+    }
+
+    private ArrayList<OCShare> getAllShares() {
+        String where = ProviderTableMeta.OCSHARES_ACCOUNT_OWNER + "=?";
+        String[] whereArgs = new String[]{mAccount.name};
+        Cursor c = null;
+        if (getContentResolver() != null) {
+            c = getContentResolver().query(
+                    ProviderTableMeta.CONTENT_URI_SHARE, null, where, whereArgs, null);
+        } else {
+            try {
+                c = getContentProviderClient().query(
+                        ProviderTableMeta.CONTENT_URI_SHARE, null, where, whereArgs, null);
+
+            } catch (RemoteException e) {
+                Log_OC.e(TAG, "Could not get list of shares: " + e.getMessage());
+                c = null;
+            }
+        }
+        ArrayList<OCShare> shares = new ArrayList<OCShare>();
+        if (c != null) {
+            if (c.moveToFirst()) {
+                do {
+                    shares.add(createShareInstance(c));
+                } while (c.moveToNext());
+            }
+            c.close();
+        }
+        return shares;
+    }
+
+    private static boolean isSameShare(OCShare a, OCShare b) {
+        return (a.getShareType() == b.getShareType() &&
+                a.getPermissions() == b.getPermissions() &&
+                a.getExpirationDate() == b.getExpirationDate() &&
+                a.getFileSource() == b.getFileSource() &&
+                equalsOrBothNull(a.getPath(), b.getPath()) &&
+                equalsOrBothNull(a.getShareWith(), b.getShareWith()) &&
+                equalsOrBothNull(a.getToken(), b.getToken()) &&
+                equalsOrBothNull(a.getSharedWithDisplayName(), b.getSharedWithDisplayName())
+        );
+    }
+
+    private static boolean equalsOrBothNull(String a, String b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+
     public static void triggerMediaScan(String path) {
         if (path != null) {
             Intent intent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
@@ -1899,6 +2125,11 @@ public class FileDataStorageManager {
         cv.put(ProviderTableMeta.CAPABILITIES_FILES_BIGFILECHUNKING, capability.getFilesBigFileChuncking().getValue());
         cv.put(ProviderTableMeta.CAPABILITIES_FILES_UNDELETE, capability.getFilesUndelete().getValue());
         cv.put(ProviderTableMeta.CAPABILITIES_FILES_VERSIONING, capability.getFilesVersioning().getValue());
+        // the server may have been updated; check support of sync-collection reports again
+        if (getSyncCollectionSupport() == CapabilityBooleanType.FALSE) {
+            cv.put(ProviderTableMeta.CAPABILITIES_DAV_SYNC_COLLECTION,
+                    CapabilityBooleanType.UNKNOWN.getValue());
+        }
 
         if (capabilityExists(mAccount.name)) {
             if (getContentResolver() != null) {
@@ -2043,4 +2274,72 @@ public class FileDataStorageManager {
         }
         return capability;
     }
+
+    /**
+     * Gets whether the server of the account supports WebDAV sync-collection reports, as
+     * stored with the capabilities of the account.
+     *
+     * @return      {@link CapabilityBooleanType#UNKNOWN} if not checked yet or if there are no
+     *              capabilities stored for the account.
+     */
+    public CapabilityBooleanType getSyncCollectionSupport() {
+        CapabilityBooleanType support = CapabilityBooleanType.UNKNOWN;
+        Cursor c = getCapabilityCursorForAccount(mAccount.name);
+        if (c != null) {
+            if (c.moveToFirst()) {
+                support = CapabilityBooleanType.fromValue(c.getInt(
+                        c.getColumnIndex(ProviderTableMeta.CAPABILITIES_DAV_SYNC_COLLECTION)));
+            }
+            c.close();
+        }
+        return support;
+    }
+
+    /**
+     * @return      Sync-token returned by the last sync-collection report in the server of the
+     *              account, or null if there is none.
+     */
+    public String getSyncToken() {
+        String token = null;
+        Cursor c = getCapabilityCursorForAccount(mAccount.name);
+        if (c != null) {
+            if (c.moveToFirst()) {
+                token = c.getString(
+                        c.getColumnIndex(ProviderTableMeta.CAPABILITIES_DAV_SYNC_TOKEN));
+            }
+            c.close();
+        }
+        return token;
+    }
+
+    /**
+     * Saves the support of sync-collection reports and the last sync-token with the
+     * capabilities of the account. Not saved when capabilities were never stored for the
+     * account, since servers without capabilities API don't support the reports either.
+     *
+     * @param support       Support of sync-collection reports in the server.
+     * @param syncToken     Last sync-token received, or null to start from scratch.
+     * @return              'True' if the state was saved.
+     */
+    public boolean saveSyncCollectionState(CapabilityBooleanType support, String syncToken) {
+        ContentValues cv = new ContentValues();
+        cv.put(ProviderTableMeta.CAPABILITIES_DAV_SYNC_COLLECTION, support.getValue());
+        cv.put(ProviderTableMeta.CAPABILITIES_DAV_SYNC_TOKEN, syncToken);
+        int updated = 0;
+        if (getContentResolver() != null) {
+            updated = getContentResolver().update(ProviderTableMeta.CONTENT_URI_CAPABILITIES, cv,
+                    ProviderTableMeta.CAPABILITIES_ACCOUNT_NAME + "=?",
+                    new String[]{mAccount.name});
+        } else {
+            try {
+                updated = getContentProviderClient().update(
+                        ProviderTableMeta.CONTENT_URI_CAPABILITIES, cv,
+                        ProviderTableMeta.CAPABILITIES_ACCOUNT_NAME + "=?",
+                        new String[]{mAccount.name});
+            } catch (RemoteException e) {
+                Log_OC.e(TAG, "Fail to save sync-collection state: " + e.getMessage());
+            }
+        }
+        return updated > 0;
+    }
 }
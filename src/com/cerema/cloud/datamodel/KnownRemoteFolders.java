@@ -0,0 +1,121 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.datamodel;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remote folders known to exist in the server, per account, so that uploads don't need to
+ * check again and again the existence of the folder where they go.
+ *
+ * Folders are added when they are created or found in the server, or when they are read from
+ * the local database after a synchronization. They are removed when they are removed, moved
+ * or renamed, with all their descendants.
+ */
+public class KnownRemoteFolders {
+
+    /** Known folder paths, ending in '/', per account name */
+    private static final Map<String, Set<String>> mFolders = new HashMap<String, Set<String>>();
+
+
+    private KnownRemoteFolders() {
+        // utility class, not instantiable
+    }
+
+
+    /**
+     * @param accountName   Name of the ownCloud account.
+     * @param folderPath    Remote path of the folder.
+     * @return              'True' if the folder is known to exist in the server.
+     */
+    public static boolean contains(String accountName, String folderPath) {
+        synchronized (mFolders) {
+            Set<String> folders = mFolders.get(accountName);
+            return (folders != null && folders.contains(normalize(folderPath)));
+        }
+    }
+
+
+    /**
+     * Takes note of a folder existing in the server, and all its ancestors.
+     *
+     * @param accountName   Name of the ownCloud account.
+     * @param folderPath    Remote path of the folder.
+     */
+    public static void add(String accountName, String folderPath) {
+        synchronized (mFolders) {
+            Set<String> folders = mFolders.get(accountName);
+            if (folders == null) {
+                folders = new HashSet<String>();
+                mFolders.put(accountName, folders);
+            }
+            String path = normalize(folderPath);
+            while (path.length() > 0 && folders.add(path)) {
+                path = path.substring(0, path.lastIndexOf(OCFile.PATH_SEPARATOR,
+                        path.length() - 2) + 1);
+            }
+        }
+    }
+
+
+    /**
+     * Forgets a folder and all its descendants, after it was removed, moved or renamed.
+     *
+     * @param accountName   Name of the ownCloud account.
+     * @param folderPath    Remote path of the folder.
+     */
+    public static void invalidate(String accountName, String folderPath) {
+        synchronized (mFolders) {
+            Set<String> folders = mFolders.get(accountName);
+            if (folders != null) {
+                String path = normalize(folderPath);
+                Iterator<String> it = folders.iterator();
+                while (it.hasNext()) {
+                    if (it.next().startsWith(path)) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Forgets all the folders of an account.
+     *
+     * @param accountName   Name of the ownCloud account.
+     */
+    public static void clear(String accountName) {
+        synchronized (mFolders) {
+            mFolders.remove(accountName);
+        }
+    }
+
+
+    private static String normalize(String folderPath) {
+        return folderPath.endsWith(OCFile.PATH_SEPARATOR) ?
+                folderPath : folderPath + OCFile.PATH_SEPARATOR;
+    }
+
+}
@@ -36,9 +36,14 @@ public class DbHandler {
     private SQLiteDatabase mDB;
     private OpenerHelper mHelper;
     private final String mDatabaseName;
-    private final int mDatabaseVersion = 3;
+    private final int mDatabaseVersion = 8;
 
     private final String TABLE_INSTANT_UPLOAD = "instant_upload";
+    private final String TABLE_FOLDER_SYNC_STATS = "folder_sync_stats";
+    private final String TABLE_SYNC_RUNS = "sync_runs";
+    private final String TABLE_CHUNKED_UPLOADS = "chunked_uploads";
+    private final String TABLE_CONTENT_HASHES = "content_hashes";
+    private final String TABLE_TRANSFER_JOURNAL = "transfer_journal";
 
     public static final int UPLOAD_STATUS_UPLOAD_LATER = 0;
     public static final int UPLOAD_STATUS_UPLOAD_FAILED = 1;
@@ -97,6 +102,338 @@ public class DbHandler {
 
     }
 
+    /**
+     * Gets the history of changes of every folder in an account known by the synchronization
+     * scheduler.
+     *
+     * @param account       Name of the ownCloud account.
+     * @return              Cursor with columns path, last_check, last_change and interval;
+     *                      must be closed by the caller.
+     */
+    public Cursor getFolderSyncStats(String account) {
+        return mDB.query(TABLE_FOLDER_SYNC_STATS,
+                new String[] { "path", "last_check", "last_change", "interval" },
+                "account=?", new String[] { account }, null, null, null);
+    }
+
+    /**
+     * Saves the history of changes of a folder, replacing any previous one.
+     *
+     * @param account       Name of the ownCloud account.
+     * @param path          Remote path of the folder.
+     * @param lastCheck     Time of the last check of the folder ETag, in milliseconds.
+     * @param lastChange    Time of the last change observed in the folder ETag, in milliseconds.
+     * @param interval      Interval between checks of the folder, in milliseconds.
+     */
+    public void saveFolderSyncStats(String account, String path, long lastCheck, long lastChange,
+                                    long interval) {
+        ContentValues cv = new ContentValues();
+        cv.put("account", account);
+        cv.put("path", path);
+        cv.put("last_check", lastCheck);
+        cv.put("last_change", lastChange);
+        cv.put("interval", interval);
+        mDB.insertWithOnConflict(TABLE_FOLDER_SYNC_STATS, null, cv,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Saves the measures of a synchronization run, keeping only the most recent ones.
+     *
+     * @param account       Name of the ownCloud account synchronized.
+     * @param start         Start time of the run, in milliseconds.
+     * @param metrics       Measures of the run, in JSON.
+     * @param maxRuns       Number of runs to keep.
+     */
+    public void saveSyncRun(String account, long start, String metrics, int maxRuns) {
+        ContentValues cv = new ContentValues();
+        cv.put("account", account);
+        cv.put("start", start);
+        cv.put("metrics", metrics);
+        mDB.insert(TABLE_SYNC_RUNS, null, cv);
+        mDB.delete(TABLE_SYNC_RUNS, "_id NOT IN (SELECT _id FROM " + TABLE_SYNC_RUNS +
+                " ORDER BY start DESC LIMIT " + maxRuns + ")", null);
+    }
+
+    /**
+     * Gets the measures of the last synchronization runs, the most recent first.
+     *
+     * @param maxRuns       Max number of runs to get.
+     * @return              Cursor with columns account, start and metrics; must be closed by
+     *                      the caller.
+     */
+    public Cursor getSyncRuns(int maxRuns) {
+        return mDB.query(TABLE_SYNC_RUNS, new String[] { "account", "start", "metrics" },
+                null, null, null, null, "start DESC", String.valueOf(maxRuns));
+    }
+
+    public void clearSyncRuns() {
+        mDB.delete(TABLE_SYNC_RUNS, null, null);
+    }
+
+    /**
+     * Gets the progress saved for the chunked upload of a file.
+     *
+     * @param account       Name of the ownCloud account.
+     * @param remotePath    Remote path of the file uploaded.
+     * @return              Cursor with columns transfer_id, chunk_size, file_length,
+     *                      file_timestamp, chunks and created; must be closed by the caller.
+     */
+    public Cursor getChunkedUpload(String account, String remotePath) {
+        return mDB.query(TABLE_CHUNKED_UPLOADS,
+                new String[] { "transfer_id", "chunk_size", "file_length", "file_timestamp",
+                        "chunks", "created" },
+                "account=? AND remote_path=?", new String[] { account, remotePath },
+                null, null, null);
+    }
+
+    /**
+     * Starts saving the progress of a new chunked upload of a file, replacing any previous one,
+     * without chunks uploaded yet.
+     *
+     * @param account       Name of the ownCloud account.
+     * @param remotePath    Remote path of the file uploaded.
+     * @param transferId    Id of the transfer, part of the name of every chunk in the server.
+     * @param chunkSize     Size of the chunks, in bytes.
+     * @param fileLength    Size of the local file, in bytes.
+     * @param fileTimestamp Last modification time of the local file, in milliseconds.
+     * @param created       Time when the upload started, in milliseconds.
+     */
+    public void saveChunkedUpload(String account, String remotePath, long transferId,
+                                  long chunkSize, long fileLength, long fileTimestamp,
+                                  long created) {
+        ContentValues cv = new ContentValues();
+        cv.put("account", account);
+        cv.put("remote_path", remotePath);
+        cv.put("transfer_id", transferId);
+        cv.put("chunk_size", chunkSize);
+        cv.put("file_length", fileLength);
+        cv.put("file_timestamp", fileTimestamp);
+        cv.put("chunks", "");
+        cv.put("created", created);
+        mDB.insertWithOnConflict(TABLE_CHUNKED_UPLOADS, null, cv,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Saves the chunks already received by the server in a chunked upload.
+     *
+     * @param account       Name of the ownCloud account.
+     * @param remotePath    Remote path of the file uploaded.
+     * @param chunks        Indexes of the chunks uploaded, separated by commas.
+     */
+    public void updateChunkedUploadChunks(String account, String remotePath, String chunks) {
+        ContentValues cv = new ContentValues();
+        cv.put("chunks", chunks);
+        mDB.update(TABLE_CHUNKED_UPLOADS, cv, "account=? AND remote_path=?",
+                new String[] { account, remotePath });
+    }
+
+    public void removeChunkedUpload(String account, String remotePath) {
+        mDB.delete(TABLE_CHUNKED_UPLOADS, "account=? AND remote_path=?",
+                new String[] { account, remotePath });
+    }
+
+    /**
+     * Gets the content hashes known for a file.
+     *
+     * @param account       Name of the ownCloud account.
+     * @param remotePath    Remote path of the file.
+     * @return              Cursor with columns synced_hash, local_hash, file_length and
+     *                      file_timestamp; must be closed by the caller.
+     */
+    public Cursor getContentHashes(String account, String remotePath) {
+        return mDB.query(TABLE_CONTENT_HASHES,
+                new String[] { "synced_hash", "local_hash", "file_length", "file_timestamp" },
+                "account=? AND remote_path=?", new String[] { account, remotePath },
+                null, null, null);
+    }
+
+    /**
+     * Saves the hash of the local copy of a file, keeping the hash of the last content
+     * synchronized with the server.
+     *
+     * @param account       Name of the ownCloud account.
+     * @param remotePath    Remote path of the file.
+     * @param localHash     Hash of the local copy.
+     * @param fileLength    Size of the local copy when hashed, in bytes.
+     * @param fileTimestamp Last modification time of the local copy when hashed, in
+     *                      milliseconds.
+     */
+    public void saveLocalContentHash(String account, String remotePath, String localHash,
+                                     long fileLength, long fileTimestamp) {
+        ContentValues cv = new ContentValues();
+        cv.put("local_hash", localHash);
+        cv.put("file_length", fileLength);
+        cv.put("file_timestamp", fileTimestamp);
+        int updated = mDB.update(TABLE_CONTENT_HASHES, cv, "account=? AND remote_path=?",
+                new String[] { account, remotePath });
+        if (updated == 0) {
+            cv.put("account", account);
+            cv.put("remote_path", remotePath);
+            mDB.insert(TABLE_CONTENT_HASHES, null, cv);
+        }
+    }
+
+    /**
+     * Saves the hash of the content of a file just synchronized with the server, which is
+     * also the content of the local copy.
+     *
+     * @param account       Name of the ownCloud account.
+     * @param remotePath    Remote path of the file.
+     * @param hash          Hash of the content.
+     * @param fileLength    Size of the local copy, in bytes.
+     * @param fileTimestamp Last modification time of the local copy, in milliseconds.
+     */
+    public void saveSyncedContentHash(String account, String remotePath, String hash,
+                                      long fileLength, long fileTimestamp) {
+        ContentValues cv = new ContentValues();
+        cv.put("account", account);
+        cv.put("remote_path", remotePath);
+        cv.put("synced_hash", hash);
+        cv.put("local_hash", hash);
+        cv.put("file_length", fileLength);
+        cv.put("file_timestamp", fileTimestamp);
+        mDB.insertWithOnConflict(TABLE_CONTENT_HASHES, null, cv,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    public void removeContentHashes(String account, String remotePath) {
+        mDB.delete(TABLE_CONTENT_HASHES, "account=? AND remote_path=?",
+                new String[] { account, remotePath });
+    }
+
+    /**
+     * Removes the content hashes of all the files in a folder, at any depth.
+     *
+     * @param account       Name of the ownCloud account.
+     * @param folderPath    Remote path of the folder, ending in '/'.
+     */
+    public void removeContentHashesInFolder(String account, String folderPath) {
+        mDB.delete(TABLE_CONTENT_HASHES, "account=? AND substr(remote_path, 1, ?)=?",
+                new String[] { account, String.valueOf(folderPath.length()), folderPath });
+    }
+
+    /**
+     * Saves a transfer just added to the queue of a transfer service. The bytes already
+     * transferred by a previous attempt of the same transfer, if any, are kept.
+     *
+     * @param type          Kind of transfer; upload or download.
+     * @param account       Name of the ownCloud account.
+     * @param remotePath    Remote path of the file transferred.
+     * @param localPath     Local path of the file transferred.
+     * @param mimeType      MIME type of the file; may be null.
+     * @param fileId        Id of the file in the local database, or -1 if not there.
+     * @param flags         Options of the transfer, as defined by the transfer service.
+     * @param localBehaviour    Action to perform with the local file after an upload.
+     * @param total         Size of the file, in bytes; -1 if unknown.
+     * @param status        Status of the transfer.
+     * @param now           Current time, in milliseconds.
+     */
+    public void saveTransfer(int type, String account, String remotePath, String localPath,
+                             String mimeType, long fileId, int flags, int localBehaviour,
+                             long total, int status, long now) {
+        ContentValues cv = new ContentValues();
+        cv.put("local_path", localPath);
+        cv.put("mime_type", mimeType);
+        cv.put("file_id", fileId);
+        cv.put("flags", flags);
+        cv.put("local_behaviour", localBehaviour);
+        cv.put("total", total);
+        cv.put("status", status);
+        cv.put("updated", now);
+        int updated = mDB.update(TABLE_TRANSFER_JOURNAL, cv,
+                "type=? AND account=? AND remote_path=?",
+                new String[] { String.valueOf(type), account, remotePath });
+        if (updated == 0) {
+            cv.put("type", type);
+            cv.put("account", account);
+            cv.put("remote_path", remotePath);
+            cv.put("transferred", 0);
+            cv.put("created", now);
+            mDB.insert(TABLE_TRANSFER_JOURNAL, null, cv);
+        }
+    }
+
+    /**
+     * Updates the status and the bytes transferred of a transfer.
+     *
+     * @param type          Kind of transfer; upload or download.
+     * @param account       Name of the ownCloud account.
+     * @param remotePath    Remote path of the file transferred.
+     * @param status        New status of the transfer; negative to keep the current one.
+     * @param transferred   Bytes transferred; negative to keep the current value.
+     * @param now           Current time, in milliseconds.
+     */
+    public void updateTransfer(int type, String account, String remotePath, int status,
+                               long transferred, long now) {
+        ContentValues cv = new ContentValues();
+        if (status >= 0) {
+            cv.put("status", status);
+        }
+        if (transferred >= 0) {
+            cv.put("transferred", transferred);
+        }
+        cv.put("updated", now);
+        mDB.update(TABLE_TRANSFER_JOURNAL, cv, "type=? AND account=? AND remote_path=?",
+                new String[] { String.valueOf(type), account, remotePath });
+    }
+
+    /**
+     * Gets the transfers of a kind in any of the given status.
+     *
+     * @param type          Kind of transfer; upload or download.
+     * @param status        Status of the transfers to get.
+     * @return              Cursor with all the columns of the journal, in the order the
+     *                      transfers were queued; must be closed by the caller.
+     */
+    public Cursor getTransfers(int type, int... status) {
+        StringBuilder where = new StringBuilder("type=" + type + " AND status IN (");
+        for (int i = 0; i < status.length; i++) {
+            where.append(i > 0 ? "," : "").append(status[i]);
+        }
+        where.append(")");
+        return mDB.query(TABLE_TRANSFER_JOURNAL, null, where.toString(), null, null, null,
+                "_id");
+    }
+
+    /**
+     * Removes the transfers of a file or of all the files in a folder.
+     *
+     * @param type          Kind of transfer; upload or download.
+     * @param account       Name of the ownCloud account.
+     * @param remotePath    Remote path of the file or folder; null to remove all the
+     *                      transfers of the account.
+     */
+    public void removeTransfers(int type, String account, String remotePath) {
+        if (remotePath == null) {
+            mDB.delete(TABLE_TRANSFER_JOURNAL, "type=? AND account=?",
+                    new String[] { String.valueOf(type), account });
+        } else {
+            mDB.delete(TABLE_TRANSFER_JOURNAL,
+                    "type=? AND account=? AND substr(remote_path, 1, ?)=?",
+                    new String[] { String.valueOf(type), account,
+                            String.valueOf(remotePath.length()), remotePath });
+        }
+    }
+
+    public void removeTransfersUpdatedBefore(int status, long time) {
+        mDB.delete(TABLE_TRANSFER_JOURNAL, "status=? AND updated<?",
+                new String[] { String.valueOf(status), String.valueOf(time) });
+    }
+
+    public void beginTransaction() {
+        mDB.beginTransaction();
+    }
+
+    public void setTransactionSuccessful() {
+        mDB.setTransactionSuccessful();
+    }
+
+    public void endTransaction() {
+        mDB.endTransaction();
+    }
+
     private class OpenerHelper extends SQLiteOpenHelper {
         public OpenerHelper(Context context) {
             super(context, mDatabaseName, null, mDatabaseVersion);
@@ -106,6 +443,11 @@ public class DbHandler {
         public void onCreate(SQLiteDatabase db) {
             db.execSQL("CREATE TABLE " + TABLE_INSTANT_UPLOAD + " (" + " _id INTEGER PRIMARY KEY, " + " path TEXT,"
                     + " account TEXT,attempt INTEGER,message TEXT);");
+            createFolderSyncStatsTable(db);
+            createSyncRunsTable(db);
+            createChunkedUploadsTable(db);
+            createContentHashesTable(db);
+            createTransferJournalTable(db);
         }
 
         @Override
@@ -113,7 +455,57 @@ public class DbHandler {
             if (oldVersion < 2) {
                 db.execSQL("ALTER TABLE " + TABLE_INSTANT_UPLOAD + " ADD COLUMN attempt INTEGER;");
             }
-            db.execSQL("ALTER TABLE " + TABLE_INSTANT_UPLOAD + " ADD COLUMN message TEXT;");
+            if (oldVersion < 3) {
+                db.execSQL("ALTER TABLE " + TABLE_INSTANT_UPLOAD + " ADD COLUMN message TEXT;");
+            }
+            if (oldVersion < 4) {
+                createFolderSyncStatsTable(db);
+            }
+            if (oldVersion < 5) {
+                createSyncRunsTable(db);
+            }
+            if (oldVersion < 6) {
+                createChunkedUploadsTable(db);
+            }
+            if (oldVersion < 7) {
+                createContentHashesTable(db);
+            }
+            if (oldVersion < 8) {
+                createTransferJournalTable(db);
+            }
+        }
+
+        private void createFolderSyncStatsTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_FOLDER_SYNC_STATS + " (" + " _id INTEGER PRIMARY KEY, "
+                    + " account TEXT, path TEXT, last_check INTEGER, last_change INTEGER,"
+                    + " interval INTEGER, UNIQUE (account, path));");
+        }
+
+        private void createSyncRunsTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_SYNC_RUNS + " (" + " _id INTEGER PRIMARY KEY, "
+                    + " account TEXT, start INTEGER, metrics TEXT);");
+        }
+
+        private void createChunkedUploadsTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_CHUNKED_UPLOADS + " (" + " _id INTEGER PRIMARY KEY, "
+                    + " account TEXT, remote_path TEXT, transfer_id INTEGER, chunk_size INTEGER,"
+                    + " file_length INTEGER, file_timestamp INTEGER, chunks TEXT, created INTEGER,"
+                    + " UNIQUE (account, remote_path));");
+        }
+
+        private void createContentHashesTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_CONTENT_HASHES + " (" + " _id INTEGER PRIMARY KEY, "
+                    + " account TEXT, remote_path TEXT, synced_hash TEXT, local_hash TEXT,"
+                    + " file_length INTEGER, file_timestamp INTEGER,"
+                    + " UNIQUE (account, remote_path));");
+        }
+
+        private void createTransferJournalTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_TRANSFER_JOURNAL + " (" + " _id INTEGER PRIMARY KEY, "
+                    + " type INTEGER, account TEXT, remote_path TEXT, local_path TEXT,"
+                    + " mime_type TEXT, file_id INTEGER, flags INTEGER, local_behaviour INTEGER,"
+                    + " status INTEGER, transferred INTEGER, total INTEGER, created INTEGER,"
+                    + " updated INTEGER, UNIQUE (type, account, remote_path));");
         }
         
         @Override
@@ -121,6 +513,11 @@ public class DbHandler {
             //downgrading is the exception, so deleting and re-creating is acceptable.
             //otherwise exception will be thrown (cannot downgrade) and oc app will crash.
             db.execSQL("DROP TABLE IF EXISTS " + TABLE_INSTANT_UPLOAD + ";");
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_FOLDER_SYNC_STATS + ";");
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_SYNC_RUNS + ";");
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_CHUNKED_UPLOADS + ";");
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_CONTENT_HASHES + ";");
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_TRANSFER_JOURNAL + ";");
             onCreate(db);
         }
     }
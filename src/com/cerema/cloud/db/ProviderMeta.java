@@ -31,7 +31,7 @@ import com.cerema.cloud.MainApp;
 public class ProviderMeta {
 
     public static final String DB_NAME = "filelist";
-    public static final int DB_VERSION = 13;
+    public static final int DB_VERSION = 14;
 
     private ProviderMeta() {
     }
@@ -126,6 +126,8 @@ public class ProviderMeta {
         public static final String CAPABILITIES_FILES_BIGFILECHUNKING = "files_bigfilechunking";
         public static final String CAPABILITIES_FILES_UNDELETE = "files_undelete";
         public static final String CAPABILITIES_FILES_VERSIONING = "files_versioning";
+        public static final String CAPABILITIES_DAV_SYNC_COLLECTION = "dav_sync_collection";
+        public static final String CAPABILITIES_DAV_SYNC_TOKEN = "dav_sync_token";
 
         public static final String CAPABILITIES_DEFAULT_SORT_ORDER = CAPABILITIES_ACCOUNT_NAME
                 + " collate nocase asc";
@@ -0,0 +1,50 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.events;
+
+import com.cerema.cloud.lib.common.operations.RemoteOperationResult;
+
+/**
+ * Progress of the synchronization of folders, both in full account synchronizations
+ * and in refreshes of single folders.
+ *
+ * Types are the events declared in {@link com.cerema.cloud.syncadapter.FileSyncAdapter} and
+ * {@link com.cerema.cloud.operations.RefreshFolderOperation}.
+ */
+public class FolderSyncEvent extends SyncEvent {
+
+    private final RemoteOperationResult mResult;
+
+    /**
+     * @param type          Event in the process of synchronization.
+     * @param accountName   Name of the ownCloud account being synchronized.
+     * @param folderPath    Remote path of the folder target of the event; may be null.
+     * @param result        Result of the synchronization of the folder, if completed; may be null.
+     */
+    public FolderSyncEvent(String type, String accountName, String folderPath,
+                           RemoteOperationResult result) {
+        super(type, accountName, folderPath);
+        mResult = result;
+    }
+
+    public RemoteOperationResult getResult() {
+        return mResult;
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.events;
+
+import com.cerema.cloud.lib.common.operations.RemoteOperation;
+import com.cerema.cloud.lib.common.operations.RemoteOperationResult;
+
+/**
+ * Changes in the queue of operations of {@link com.cerema.cloud.services.OperationsService}.
+ *
+ * Types are {@link com.cerema.cloud.services.OperationsService#ACTION_OPERATION_ADDED} and
+ * {@link com.cerema.cloud.services.OperationsService#ACTION_OPERATION_FINISHED}.
+ *
+ * Operation events are never coalesced.
+ */
+public class OperationEvent extends SyncEvent {
+
+    private final RemoteOperation mOperation;
+    private final RemoteOperationResult mResult;
+
+    /**
+     * @param type          Event in the queue of operations.
+     * @param accountName   Name of the ownCloud account target of the operation; null when
+     *                      the target is a server URL.
+     * @param operation     Operation added or finished.
+     * @param result        Result of the operation, if finished; may be null.
+     */
+    public OperationEvent(String type, String accountName, RemoteOperation operation,
+                          RemoteOperationResult result) {
+        super(type, accountName, null);
+        mOperation = operation;
+        mResult = result;
+    }
+
+    public RemoteOperation getOperation() {
+        return mOperation;
+    }
+
+    public RemoteOperationResult getResult() {
+        return mResult;
+    }
+
+    @Override
+    public String getCoalescingKey() {
+        return null;
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.events;
+
+/**
+ * Base class for the events delivered through the {@link SyncEventBus}.
+ *
+ * Every event has a type, the name of the ownCloud account it refers to and, optionally,
+ * the remote path of the file or folder it refers to.
+ */
+public abstract class SyncEvent {
+
+    private final String mType;
+    private final String mAccountName;
+    private final String mRemotePath;
+
+    protected SyncEvent(String type, String accountName, String remotePath) {
+        if (type == null) {
+            throw new IllegalArgumentException("Argument type MUST NOT be null");
+        }
+        mType = type;
+        mAccountName = accountName;
+        mRemotePath = remotePath;
+    }
+
+    public String getType() {
+        return mType;
+    }
+
+    public String getAccountName() {
+        return mAccountName;
+    }
+
+    public String getRemotePath() {
+        return mRemotePath;
+    }
+
+    /**
+     * Key used by the {@link SyncEventBus} to coalesce events waiting to be delivered; a pending
+     * event is replaced by a newer one with the same key.
+     *
+     * @return      Coalescing key, or null if the event must never be coalesced.
+     */
+    public String getCoalescingKey() {
+        return getClass().getSimpleName() + ":" + mType + ":" + mAccountName + ":" + mRemotePath;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + mType + ", " + mAccountName +
+                (mRemotePath != null ? mRemotePath : "") + "]";
+    }
+}
@@ -0,0 +1,258 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.events;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.cerema.cloud.lib.common.utils.Log_OC;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-process bus for synchronization, transfer and operation events.
+ *
+ * Replaces the sticky system broadcasts formerly sent for every folder synchronized and every
+ * transfer started or finished; all the senders and receivers of these events live in the
+ * same process, so no IPC is needed.
+ *
+ * Events can be posted from any thread. They are delivered in the main thread, in batches
+ * limited to one per display frame. Pending events with the same coalescing key are replaced
+ * by the newest one, so a burst of updates about the same folder results in a single
+ * delivery.
+ *
+ * Events posted as sticky are also kept, the last one per type, and delivered to the listeners
+ * registered later, the same way sticky broadcasts were.
+ */
+public class SyncEventBus {
+
+    private static final String TAG = SyncEventBus.class.getSimpleName();
+
+    /** Minimum time between consecutive deliveries to listeners; one frame at 60 fps */
+    private static final long FRAME_INTERVAL_MS = 16;
+
+    private static SyncEventBus mInstance = null;
+
+    /**
+     * Interface to implement by objects interested in events of a concrete class.
+     *
+     * @param <E>       Class of the events of interest.
+     */
+    public interface Listener<E extends SyncEvent> {
+        void onEvent(E event);
+    }
+
+    private static class Registration {
+        final Class<? extends SyncEvent> mEventClass;
+        final Listener mListener;
+
+        Registration(Class<? extends SyncEvent> eventClass, Listener listener) {
+            mEventClass = eventClass;
+            mListener = listener;
+        }
+    }
+
+    private final CopyOnWriteArrayList<Registration> mRegistrations =
+            new CopyOnWriteArrayList<Registration>();
+
+    /** Events waiting for delivery, indexed by coalescing key; keeps the posting order */
+    private final LinkedHashMap<Object, SyncEvent> mPendingEvents =
+            new LinkedHashMap<Object, SyncEvent>();
+
+    /** Last sticky event of each type */
+    private final Map<String, SyncEvent> mStickyEvents = new HashMap<String, SyncEvent>();
+
+    private final Handler mMainHandler;
+    private boolean mFlushScheduled = false;
+    private long mLastFlush = 0;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+
+    public static synchronized SyncEventBus getInstance() {
+        if (mInstance == null) {
+            mInstance = new SyncEventBus();
+        }
+        return mInstance;
+    }
+
+
+    private SyncEventBus() {
+        mMainHandler = new Handler(Looper.getMainLooper());
+    }
+
+
+    /**
+     * Registers a listener for events of a given class, or any subclass.
+     *
+     * Sticky events of that class already posted are delivered to the listener in the next
+     * frame.
+     *
+     * @param eventClass    Class of the events of interest.
+     * @param listener      Object to notify, always in the main thread.
+     */
+    public <E extends SyncEvent> void register(Class<E> eventClass, Listener<E> listener) {
+        if (eventClass == null || listener == null) {
+            throw new IllegalArgumentException("Received invalid NULL in parameters");
+        }
+        final Registration registration = new Registration(eventClass, listener);
+        mRegistrations.add(registration);
+
+        final List<SyncEvent> stickies = new ArrayList<SyncEvent>();
+        synchronized (mStickyEvents) {
+            for (SyncEvent sticky : mStickyEvents.values()) {
+                if (eventClass.isInstance(sticky)) {
+                    stickies.add(sticky);
+                }
+            }
+        }
+        if (stickies.size() > 0) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (SyncEvent sticky : stickies) {
+                        deliver(registration, sticky);
+                    }
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Removes all the registrations of a listener.
+     *
+     * @param listener      Object not interested in events anymore.
+     */
+    public void unregister(Listener<?> listener) {
+        for (Registration registration : mRegistrations) {
+            if (registration.mListener == listener) {
+                mRegistrations.remove(registration);
+            }
+        }
+    }
+
+
+    /**
+     * Posts an event to be delivered in the main thread to the registered listeners.
+     *
+     * @param event     Event to deliver.
+     */
+    public void post(SyncEvent event) {
+        Log_OC.v(TAG, "Posting " + event);
+        synchronized (mPendingEvents) {
+            Object key = event.getCoalescingKey();
+            if (key == null) {
+                key = new Object();     // unique, never coalesced
+            } else {
+                mPendingEvents.remove(key); // newest goes to the tail, keeping relative order
+            }
+            mPendingEvents.put(key, event);
+            scheduleFlush();
+        }
+    }
+
+
+    /**
+     * Posts an event and keeps it to deliver also to listeners registered later, until other
+     * sticky event of the same type is posted or it is removed with
+     * {@link #removeStickyEvent(SyncEvent)}.
+     *
+     * @param event     Event to deliver.
+     */
+    public void postSticky(SyncEvent event) {
+        synchronized (mStickyEvents) {
+            mStickyEvents.put(event.getType(), event);
+        }
+        post(event);
+    }
+
+
+    /**
+     * Removes a sticky event, if it is still the last one of its type.
+     *
+     * @param event     Event already processed.
+     */
+    public void removeStickyEvent(SyncEvent event) {
+        synchronized (mStickyEvents) {
+            if (mStickyEvents.get(event.getType()) == event) {
+                mStickyEvents.remove(event.getType());
+            }
+        }
+    }
+
+
+    private void scheduleFlush() {
+        // called with the lock on mPendingEvents
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            long delay = FRAME_INTERVAL_MS - (SystemClock.uptimeMillis() - mLastFlush);
+            if (delay > 0) {
+                mMainHandler.postDelayed(mFlushRunnable, delay);
+            } else {
+                mMainHandler.post(mFlushRunnable);
+            }
+        }
+    }
+
+
+    private void flush() {
+        List<SyncEvent> events;
+        synchronized (mPendingEvents) {
+            events = new ArrayList<SyncEvent>(mPendingEvents.values());
+            mPendingEvents.clear();
+            mFlushScheduled = false;
+            mLastFlush = SystemClock.uptimeMillis();
+        }
+        Iterator<SyncEvent> it = events.iterator();
+        while (it.hasNext()) {
+            SyncEvent event = it.next();
+            for (Registration registration : mRegistrations) {
+                deliver(registration, event);
+            }
+        }
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private void deliver(Registration registration, SyncEvent event) {
+        if (registration.mEventClass.isInstance(event) &&
+                mRegistrations.contains(registration)) {
+            try {
+                registration.mListener.onEvent(event);
+            } catch (RuntimeException e) {
+                Log_OC.e(TAG, "Listener failed processing " + event, e);
+            }
+        }
+    }
+
+}
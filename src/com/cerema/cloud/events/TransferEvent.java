@@ -0,0 +1,134 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.events;
+
+import java.util.List;
+
+/**
+ * Changes in the queues of the {@link com.cerema.cloud.files.services.FileDownloader} and
+ * {@link com.cerema.cloud.files.services.FileUploader} services.
+ *
+ * Types are the messages returned by
+ * {@link com.cerema.cloud.files.services.FileDownloader#getDownloadAddedMessage()},
+ * {@link com.cerema.cloud.files.services.FileDownloader#getDownloadFinishMessage()} and
+ * {@link com.cerema.cloud.files.services.FileUploader#getUploadFinishMessage()}.
+ */
+public class TransferEvent extends SyncEvent {
+
+    private final String mLocalPath;
+    private final String mLinkedToPath;
+    private final boolean mSuccess;
+    private String mOldRemotePath;
+    private String mOldLocalPath;
+    private List<String> mBatchRemotePaths;
+    private List<String> mBatchLocalPaths;
+
+    /**
+     * @param type          Event in the queue of transfers.
+     * @param accountName   Name of the ownCloud account the transfer belongs to.
+     * @param remotePath    Remote path of the transferred file.
+     * @param localPath     Local path of the transferred file.
+     * @param linkedToPath  Path in the transfers tree where the transfer was linked to or
+     *                      unlinked from; may be null.
+     * @param success       'True' when the transfer finished successfully.
+     */
+    public TransferEvent(String type, String accountName, String remotePath, String localPath,
+                         String linkedToPath, boolean success) {
+        super(type, accountName, remotePath);
+        mLocalPath = localPath;
+        mLinkedToPath = linkedToPath;
+        mSuccess = success;
+    }
+
+    /**
+     * Creates an event for a batch of transfers enqueued together, replacing the individual
+     * events of every transfer in the batch.
+     *
+     * @param type          Event in the queue of transfers.
+     * @param accountName   Name of the ownCloud account the transfers belong to.
+     * @param folderPath    Remote path of the deepest folder containing all the transferred files.
+     * @param remotePaths   Remote paths of the transferred files.
+     * @param localPaths    Local paths of the transferred files, in the same order.
+     * @return              New event for the batch.
+     */
+    public static TransferEvent newBatchEvent(String type, String accountName, String folderPath,
+                                              List<String> remotePaths, List<String> localPaths) {
+        TransferEvent event = new TransferEvent(type, accountName, folderPath, null, null, false);
+        event.mBatchRemotePaths = remotePaths;
+        event.mBatchLocalPaths = localPaths;
+        return event;
+    }
+
+    public String getLocalPath() {
+        return mLocalPath;
+    }
+
+    public String getLinkedToPath() {
+        return mLinkedToPath;
+    }
+
+    public boolean isSuccess() {
+        return mSuccess;
+    }
+
+    /**
+     * @return  Remote path of an uploaded file before being automatically renamed, or null.
+     */
+    public String getOldRemotePath() {
+        return mOldRemotePath;
+    }
+
+    public void setOldRemotePath(String oldRemotePath) {
+        mOldRemotePath = oldRemotePath;
+    }
+
+    /**
+     * @return  Local path to the uploaded file before being moved or copied, or null.
+     */
+    public String getOldLocalPath() {
+        return mOldLocalPath;
+    }
+
+    public void setOldLocalPath(String oldLocalPath) {
+        mOldLocalPath = oldLocalPath;
+    }
+
+    /**
+     * @return  'True' if the event refers to a batch of transfers; in that case
+     *          {@link #getRemotePath()} is the deepest folder containing all of them.
+     */
+    public boolean isBatch() {
+        return mBatchRemotePaths != null;
+    }
+
+    public List<String> getBatchRemotePaths() {
+        return mBatchRemotePaths;
+    }
+
+    public List<String> getBatchLocalPaths() {
+        return mBatchLocalPaths;
+    }
+
+    @Override
+    public String getCoalescingKey() {
+        // batches with the same folder may contain different files; never replace them
+        return isBatch() ? null : super.getCoalescingKey();
+    }
+}
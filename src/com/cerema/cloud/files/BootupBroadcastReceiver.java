@@ -23,6 +23,7 @@ package com.cerema.cloud.files;
 
 import com.cerema.cloud.lib.common.utils.Log_OC;
 import com.cerema.cloud.services.observer.FileObserverService;
+import com.cerema.cloud.services.push.PushService;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -40,7 +41,8 @@ public class BootupBroadcastReceiver extends BroadcastReceiver {
     /**
      * Receives broadcast intent reporting that the system was just boot up.
      *
-     * Starts {@link FileObserverService} to enable observation of favourite files.
+     * Starts {@link FileObserverService} to enable observation of favourite files, and
+     * {@link PushService} to receive changes notified by the server.
      * 
      * @param   context     The context where the receiver is running.
      * @param   intent      The intent received.
@@ -54,6 +56,7 @@ public class BootupBroadcastReceiver extends BroadcastReceiver {
         Log_OC.d(TAG, "Starting file observer service...");
         Intent initObservers = FileObserverService.makeInitIntent(context);
         context.startService(initObservers);
+        context.startService(PushService.makeStartIntent(context));
     }
 
 }
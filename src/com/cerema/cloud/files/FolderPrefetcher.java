@@ -0,0 +1,160 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.files;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import com.cerema.cloud.datamodel.FileDataStorageManager;
+import com.cerema.cloud.datamodel.OCFile;
+import com.cerema.cloud.lib.common.operations.RemoteOperationResult;
+import com.cerema.cloud.lib.common.utils.Log_OC;
+import com.cerema.cloud.operations.RefreshFolderOperation;
+import com.cerema.cloud.services.ForegroundWorkMonitor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Refreshes in background the metadata of the immediate subfolders of the folder displayed,
+ * so that browsing one level down doesn't need to wait for the network.
+ *
+ * Every subfolder is checked by its ETag and only fetched if changed, with the lowest priority:
+ * work the user is waiting for goes first, and a new request cancels the subfolders still
+ * pending from the previous one. The number of subfolders is limited, more in unmetered
+ * networks than in metered ones; nothing is prefetched while roaming.
+ */
+public class FolderPrefetcher {
+
+    private static final String TAG = FolderPrefetcher.class.getSimpleName();
+
+    private static final int MAX_SUBFOLDERS_UNMETERED = 10;
+    private static final int MAX_SUBFOLDERS_METERED = 3;
+
+    private static FolderPrefetcher mInstance = null;
+
+    private final Handler mHandler;
+
+
+    public static synchronized FolderPrefetcher getInstance() {
+        if (mInstance == null) {
+            mInstance = new FolderPrefetcher();
+        }
+        return mInstance;
+    }
+
+
+    private FolderPrefetcher() {
+        HandlerThread thread = new HandlerThread("Folder prefetcher",
+                Process.THREAD_PRIORITY_LOWEST);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+
+    /**
+     * Schedules the refresh of the subfolders of a folder, replacing any previous request.
+     *
+     * @param context       Android context.
+     * @param account       ownCloud account where the folder is located.
+     * @param folder        Folder just displayed, already refreshed.
+     */
+    public void prefetchSubfolders(Context context, final Account account, OCFile folder) {
+        mHandler.removeCallbacksAndMessages(null);
+
+        int maxSubfolders = getMaxSubfolders(context);
+        if (maxSubfolders == 0 || folder == null || !folder.isFolder()) {
+            return;
+        }
+
+        final Context appContext = context.getApplicationContext();
+        final FileDataStorageManager storageManager =
+                new FileDataStorageManager(account, appContext.getContentResolver());
+        List<OCFile> subfolders = new ArrayList<OCFile>();
+        for (OCFile child : storageManager.getFolderContent(folder)) {
+            if (child.isFolder()) {
+                subfolders.add(child);
+                if (subfolders.size() >= maxSubfolders) {
+                    break;
+                }
+            }
+        }
+        Log_OC.d(TAG, "Prefetching " + subfolders.size() + " subfolders of " +
+                folder.getRemotePath());
+
+        final long syncTime = System.currentTimeMillis();
+        for (final OCFile subfolder : subfolders) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    ForegroundWorkMonitor.yieldToForeground();
+                    // as part of a 'full sync' to prevent UI events and foreground priority
+                    RefreshFolderOperation operation = new RefreshFolderOperation(
+                            subfolder,
+                            syncTime,
+                            true,
+                            false,
+                            false,
+                            storageManager,
+                            account,
+                            appContext
+                    );
+                    RemoteOperationResult result = operation.execute(account, appContext);
+                    if (!result.isSuccess()) {
+                        Log_OC.d(TAG, "Prefetch of " + subfolder.getRemotePath() + " failed: " +
+                                result.getLogMessage());
+                    }
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Cancels the subfolders pending to prefetch.
+     */
+    public void cancel() {
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+
+    private int getMaxSubfolders(Context context) {
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = cm.getActiveNetworkInfo();
+        if (network == null || !network.isConnected() || network.isRoaming()) {
+            return 0;
+        }
+        boolean metered;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            metered = cm.isActiveNetworkMetered();
+        } else {
+            metered = (network.getType() != ConnectivityManager.TYPE_WIFI);
+        }
+        return metered ? MAX_SUBFOLDERS_METERED : MAX_SUBFOLDERS_UNMETERED;
+    }
+
+}
@@ -211,18 +211,8 @@ public class InstantUploadBroadcastReceiver extends BroadcastReceiver {
             return;
         }
 
-        if (instantPictureUploadViaWiFiOnly(context) && !isConnectedViaWiFi(context)){
-            Account account = AccountUtils.getCurrentOwnCloudAccount(context);
-            if (account == null) {
-                Log_OC.w(TAG, "No account found for instant upload, aborting");
-                return;
-            }
-
-            Intent i = new Intent(context, FileUploader.class);
-            i.putExtra(FileUploader.KEY_ACCOUNT, account);
-            i.putExtra(FileUploader.KEY_CANCEL_ALL, true);
-            context.startService(i);
-        }
+        // uploads in progress are paused by the TransferScheduler of FileUploader when the
+        // network is not allowed anymore, and resumed when it's back
 
         if (!intent.hasExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY)
                 && isOnline(context)
@@ -21,17 +21,25 @@
 package com.cerema.cloud.files.services;
 
 import java.io.File;
-import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Vector;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+import com.cerema.cloud.MainApp;
 import com.cerema.cloud.R;
 import com.cerema.cloud.authentication.AccountUtils;
 import com.cerema.cloud.authentication.AuthenticatorActivity;
 import com.cerema.cloud.datamodel.FileDataStorageManager;
 import com.cerema.cloud.datamodel.OCFile;
+import com.cerema.cloud.events.SyncEventBus;
+import com.cerema.cloud.events.TransferEvent;
 
 import com.cerema.cloud.lib.common.network.OnDatatransferProgressListener;
 import com.cerema.cloud.lib.common.OwnCloudAccount;
@@ -44,11 +52,15 @@ import com.cerema.cloud.lib.common.operations.RemoteOperationResult.ResultCode;
 import com.cerema.cloud.lib.common.utils.Log_OC;
 import com.cerema.cloud.lib.resources.files.FileUtils;
 import com.cerema.cloud.operations.DownloadFileOperation;
+import com.cerema.cloud.operations.ResumableDownloadRemoteFileOperation;
+import com.cerema.cloud.operations.SegmentedDownloadRemoteFileOperation;
+import com.cerema.cloud.services.ForegroundWorkMonitor;
 import com.cerema.cloud.ui.activity.FileActivity;
 import com.cerema.cloud.ui.activity.FileDisplayActivity;
 import com.cerema.cloud.ui.preview.PreviewImageActivity;
 import com.cerema.cloud.ui.preview.PreviewImageFragment;
 import com.cerema.cloud.utils.ErrorMessageAdapter;
+import com.cerema.cloud.utils.FileStorageUtils;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
@@ -57,21 +69,35 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Binder;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
-import android.os.Message;
-import android.os.Process;
+import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
 import android.util.Pair;
 
-public class FileDownloader extends Service
-        implements OnDatatransferProgressListener, OnAccountsUpdateListener {
+/**
+ * Service performing the downloads requested by the rest of the app.
+ *
+ * Downloads are run in parallel by a pool of workers; the number of workers can be set in the
+ * preference {@link #PREF_DOWNLOAD_WORKERS}. The number of simultaneous downloads from the same
+ * account and from the same server are limited, so that a long queue for a single account
+ * doesn't delay the rest nor floods a server with connections.
+ *
+ * Queued downloads are saved in the {@link TransferJournal}; if the process dies, the system
+ * restarts the service and the downloads not completed are queued again, resuming from the
+ * partial data already downloaded.
+ *
+ * Downloads the user is not waiting for are run when the {@link TransferScheduler} allows it,
+ * and in fewer numbers on metered networks. When conditions get worse, the ones in progress
+ * are paused and queued again; they resume from the partial data already downloaded.
+ */
+public class FileDownloader extends Service implements OnAccountsUpdateListener {
 
     public static final String EXTRA_ACCOUNT = "ACCOUNT";
     public static final String EXTRA_FILE = "FILE";
+    public static final String EXTRA_FILE_IDS = "FILE_IDS";
+    public static final String EXTRA_FOREGROUND = "FOREGROUND";
 
     private static final String DOWNLOAD_ADDED_MESSAGE = "DOWNLOAD_ADDED";
     private static final String DOWNLOAD_FINISH_MESSAGE = "DOWNLOAD_FINISH";
@@ -81,21 +107,53 @@ public class FileDownloader extends Service
     public static final String EXTRA_LINKED_TO_PATH = "LINKED_TO";
     public static final String ACCOUNT_NAME = "ACCOUNT_NAME";
 
+    /** Key of the preference with the number of parallel downloads */
+    public static final String PREF_DOWNLOAD_WORKERS = "download_workers";
+
+    /** Key of the preference allowing to download large files in parallel segments */
+    public static final String PREF_SEGMENTED_DOWNLOADS = "segmented_downloads";
+
+    private static final int DEFAULT_WORKERS = 4;
+    private static final int MAX_WORKERS = 8;
+
+    /** Max parallel downloads per account, and connections per server counting the segments
+     *  of segmented downloads; below the connections per host allowed by the connection
+     *  manager of the library */
+    private static final int MAX_PER_ACCOUNT = 3;
+    private static final int MAX_PER_HOST = 4;
+
     private static final String TAG = "FileDownloader";
 
-    private Looper mServiceLooper;
-    private ServiceHandler mServiceHandler;
+    private TransferPool mPool;
+    private TransferScheduler mScheduler;
+    private int mWorkers;
     private IBinder mBinder;
-    private OwnCloudClient mDownloadClient = null;
-    private Account mCurrentAccount = null;
-    private FileDataStorageManager mStorageManager;
+    private volatile int mLastStartId;
+    private boolean mJournalRestored = false;
+    /** 'True' while the downloads in the journal are being restored; the service waits */
+    private volatile boolean mRestoring = false;
 
     private IndexedForest<DownloadFileOperation> mPendingDownloads = new IndexedForest<DownloadFileOperation>();
 
-    private DownloadFileOperation mCurrentDownload = null;
+    /** Keys of downloads the user is waiting for; go ahead of the rest of pending downloads */
+    private ConcurrentLinkedQueue<String> mForegroundDownloads = new ConcurrentLinkedQueue<String>();
+
+    /** Downloads in progress, by key */
+    private ConcurrentHashMap<String, DownloadFileOperation> mCurrentDownloads =
+            new ConcurrentHashMap<String, DownloadFileOperation>();
+
+    /** Keys of the downloads in progress requested in foreground; never paused */
+    private Set<String> mForegroundInProgress =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** Downloads in progress paused by the scheduler, to queue again when finished */
+    private Set<DownloadFileOperation> mPausedDownloads =
+            Collections.newSetFromMap(new ConcurrentHashMap<DownloadFileOperation, Boolean>());
 
     private NotificationManager mNotificationManager;
     private NotificationCompat.Builder mNotificationBuilder;
+    /** Download shown in the progress notification */
+    private DownloadFileOperation mNotifiedDownload = null;
     private int mLastPercent;
 
 
@@ -115,12 +173,36 @@ public class FileDownloader extends Service
         super.onCreate();
         Log_OC.d(TAG, "Creating service");
         mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        HandlerThread thread = new HandlerThread("FileDownloaderThread",
-                Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mServiceLooper = thread.getLooper();
-        mServiceHandler = new ServiceHandler(mServiceLooper, this);
+        int workers;
+        try {
+            workers = Integer.parseInt(PreferenceManager.getDefaultSharedPreferences(
+                    getApplicationContext()).getString(PREF_DOWNLOAD_WORKERS,
+                    String.valueOf(DEFAULT_WORKERS)));
+        } catch (NumberFormatException e) {
+            workers = DEFAULT_WORKERS;
+        }
+        workers = Math.max(1, Math.min(MAX_WORKERS, workers));
+        mWorkers = workers;
+        mPool = new TransferPool("FileDownloaderThread", workers, MAX_PER_ACCOUNT, MAX_PER_HOST,
+                new TransferPool.OnIdleListener() {
+                    @Override
+                    public void onIdle() {
+                        if (!mRestoring) {
+                            Log_OC.d(TAG, "Stopping after command with id " + mLastStartId);
+                            stopSelf(mLastStartId);
+                        }   // else, the end of the restore stops the service if idle
+                    }
+                });
         mBinder = new FileDownloaderBinder();
+        mScheduler = new TransferScheduler(this,
+                new TransferScheduler.OnConditionsChangedListener() {
+                    @Override
+                    public void onConditionsChanged(TransferScheduler scheduler) {
+                        applyConditions();
+                    }
+                });
+        mScheduler.start();
+        applyConditions();
 
         // add AccountsUpdatedListener
         AccountManager am = AccountManager.get(getApplicationContext());
@@ -135,9 +217,9 @@ public class FileDownloader extends Service
     public void onDestroy() {
         Log_OC.v(TAG, "Destroying service");
         mBinder = null;
-        mServiceHandler = null;
-        mServiceLooper.quit();
-        mServiceLooper = null;
+        mScheduler.stop();
+        mPool.shutdown();
+        mPool = null;
         mNotificationManager = null;
 
         // remove AccountsUpdatedListener
@@ -153,48 +235,196 @@ public class FileDownloader extends Service
      *
      * New downloads are added calling to startService(), resulting in a call to this method.
      * This ensures the service will keep on working although the caller activity goes away.
+     *
+     * Several files of the same account can be requested at once passing their ids in
+     * {@link #EXTRA_FILE_IDS}; all of them are queued in a single pass and announced with a
+     * single event.
+     *
+     * Downloads requested with {@link #EXTRA_FOREGROUND} are the ones the user is waiting for,
+     * such as files to preview; they are started before any other pending download, even if
+     * they were already in the queue.
      */
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log_OC.d(TAG, "Starting command with id " + startId);
 
-        if (!intent.hasExtra(EXTRA_ACCOUNT) ||
-                !intent.hasExtra(EXTRA_FILE)
+        if (!mJournalRestored) {
+            mJournalRestored = true;
+            mRestoring = true;
+            TransferJournal.loadUnfinished(getApplicationContext(),
+                    TransferJournal.TYPE_DOWNLOAD,
+                    new TransferJournal.OnUnfinishedLoadedListener() {
+                        @Override
+                        public void onUnfinishedLoaded(List<TransferJournal.Entry> entries) {
+                            sweepPartialDownloads();
+                            restoreDownloads(entries);
+                            mRestoring = false;
+                            stopIfIdle(mLastStartId);
+                        }
+                    });
+        }
+
+        if (intent == null) {
+            // restarted by the system after the death of the process
+            stopIfIdle(startId);
+            return START_STICKY;
+
+        } else if (!intent.hasExtra(EXTRA_ACCOUNT) ||
+                !(intent.hasExtra(EXTRA_FILE) || intent.hasExtra(EXTRA_FILE_IDS))
                 ) {
             Log_OC.e(TAG, "Not enough information provided in intent");
+            stopIfIdle(startId);
             return START_NOT_STICKY;
         } else {
             final Account account = intent.getParcelableExtra(EXTRA_ACCOUNT);
-            final OCFile file = intent.getParcelableExtra(EXTRA_FILE);
-            AbstractList<String> requestedDownloads = new Vector<String>();
+            List<OCFile> files;
+            if (intent.hasExtra(EXTRA_FILE_IDS)) {
+                FileDataStorageManager storageManager =
+                        new FileDataStorageManager(account, getContentResolver());
+                files = storageManager.getFilesByIds(intent.getLongArrayExtra(EXTRA_FILE_IDS));
+            } else {
+                files = new ArrayList<OCFile>(1);
+                files.add((OCFile) intent.getParcelableExtra(EXTRA_FILE));
+            }
+            boolean batch = intent.hasExtra(EXTRA_FILE_IDS);
+            boolean foreground = intent.getBooleanExtra(EXTRA_FOREGROUND, false);
+            String host = getHost(account);
+            boolean segmented = PreferenceManager.getDefaultSharedPreferences(
+                    getApplicationContext()).getBoolean(PREF_SEGMENTED_DOWNLOADS, true);
+
+            List<String> requestedDownloads = new ArrayList<String>();
+            List<String> addedRemotePaths = new ArrayList<String>();
+            List<String> addedLocalPaths = new ArrayList<String>();
+            List<TransferJournal.Entry> journalEntries = new ArrayList<TransferJournal.Entry>();
             try {
-                DownloadFileOperation newDownload = new DownloadFileOperation(account, file);
-                newDownload.addDatatransferProgressListener(this);
-                newDownload.addDatatransferProgressListener((FileDownloaderBinder) mBinder);
-                Pair<String, String> putResult = mPendingDownloads.putIfAbsent(
-                        account, file.getRemotePath(), newDownload
-                );
-                if (putResult != null) {
-                    String downloadKey = putResult.first;
-                    requestedDownloads.add(downloadKey);
-                    sendBroadcastNewDownload(newDownload, putResult.second);
-                }   // else, file already in the queue of downloads; don't repeat the request
+                for (OCFile file : files) {
+                    DownloadFileOperation newDownload = new DownloadFileOperation(account, file);
+                    newDownload.setSegmentedDownloadAllowed(segmented);
+                    addProgressDispatchers(newDownload);
+                    Pair<String, String> putResult = mPendingDownloads.putIfAbsent(
+                            account, file.getRemotePath(), newDownload
+                    );
+                    String downloadKey = mPendingDownloads.buildKey(account, file.getRemotePath());
+                    if (putResult != null) {
+                        requestedDownloads.add(downloadKey);
+                        journalEntries.add(buildJournalEntry(newDownload));
+                        if (batch) {
+                            addedRemotePaths.add(newDownload.getRemotePath());
+                            addedLocalPaths.add(newDownload.getSavePath());
+                        } else {
+                            sendBroadcastNewDownload(newDownload, putResult.second);
+                        }
+                    }   // else, file already in the queue of downloads; don't repeat the request
+                    if (foreground) {
+                        mForegroundDownloads.add(downloadKey);
+                        if (putResult == null && !mCurrentDownloads.containsKey(downloadKey)) {
+                            // already queued; move it ahead
+                            mPool.submit(new DownloadTask(downloadKey, account.name, host), true);
+                        }
+                    }
+                }
 
             } catch (IllegalArgumentException e) {
                 Log_OC.e(TAG, "Not enough information provided in intent: " + e.getMessage());
+                stopIfIdle(startId);
                 return START_NOT_STICKY;
             }
 
             if (requestedDownloads.size() > 0) {
-                Message msg = mServiceHandler.obtainMessage();
-                msg.arg1 = startId;
-                msg.obj = requestedDownloads;
-                mServiceHandler.sendMessage(msg);
+                TransferJournal.queued(getApplicationContext(), journalEntries);
+                if (batch) {
+                    sendBroadcastNewDownloads(account, addedRemotePaths, addedLocalPaths);
+                }
+                for (String downloadKey : requestedDownloads) {
+                    mPool.submit(new DownloadTask(downloadKey, account.name, host), foreground);
+                }
+                // set after queuing, so that the pool doesn't stop the service with this id
+                // before the new downloads are done
+                mLastStartId = startId;
+            } else {
+                stopIfIdle(startId);
+            }
+        }
+
+        return START_STICKY;
+    }
+
+
+    /**
+     * Queues again the downloads saved in the {@link TransferJournal} and not completed,
+     * left by a previous instance of the service.
+     *
+     * The files are read from the local database in a single query per account; no request
+     * is sent to the server. Downloads of files not in the database anymore, or of accounts
+     * removed, are dropped.
+     *
+     * Called in the thread of the journal.
+     *
+     * @param entries       Downloads not completed in the journal.
+     */
+    private void restoreDownloads(List<TransferJournal.Entry> entries) {
+        TransferPool pool = mPool;
+        if (entries.isEmpty() || pool == null) {
+            return;     // nothing to restore, or service destroyed meanwhile
+        }
+        Map<String, List<Long>> idsByAccount = new HashMap<String, List<Long>>();
+        for (TransferJournal.Entry entry : entries) {
+            List<Long> ids = idsByAccount.get(entry.getAccountName());
+            if (ids == null) {
+                ids = new ArrayList<Long>();
+                idsByAccount.put(entry.getAccountName(), ids);
+            }
+            ids.add(entry.getFileId());
+        }
+
+        boolean segmented = PreferenceManager.getDefaultSharedPreferences(
+                getApplicationContext()).getBoolean(PREF_SEGMENTED_DOWNLOADS, true);
+        int restored = 0;
+        for (Map.Entry<String, List<Long>> group : idsByAccount.entrySet()) {
+            Account account = new Account(group.getKey(), MainApp.getAccountType());
+            if (!AccountUtils.exists(account, getApplicationContext())) {
+                TransferJournal.removed(getApplicationContext(), TransferJournal.TYPE_DOWNLOAD,
+                        account.name, null);
+                continue;
+            }
+            long[] ids = new long[group.getValue().size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = group.getValue().get(i);
+            }
+            FileDataStorageManager storageManager =
+                    new FileDataStorageManager(account, getContentResolver());
+            List<OCFile> files = storageManager.getFilesByIds(ids);
+            String host = getHost(account);
+            for (OCFile file : files) {
+                DownloadFileOperation download = new DownloadFileOperation(account, file);
+                download.setSegmentedDownloadAllowed(segmented);
+                addProgressDispatchers(download);
+                if (mPendingDownloads.putIfAbsent(account, file.getRemotePath(), download)
+                        != null) {
+                    pool.submit(new DownloadTask(
+                            mPendingDownloads.buildKey(account, file.getRemotePath()),
+                            account.name, host), false);
+                    restored++;
+                }
             }
-            //}
         }
+        Log_OC.d(TAG, "Restored " + restored + " of " + entries.size() +
+                " downloads from the journal");
+    }
 
-        return START_NOT_STICKY;
+
+    private TransferJournal.Entry buildJournalEntry(DownloadFileOperation download) {
+        return new TransferJournal.Entry(
+                TransferJournal.TYPE_DOWNLOAD,
+                download.getAccount().name,
+                download.getRemotePath(),
+                download.getSavePath(),
+                download.getMimeType(),
+                download.getFile().getFileId(),
+                0,
+                0,
+                download.getSize()
+        );
     }
 
 
@@ -221,10 +451,11 @@ public class FileDownloader extends Service
 
     @Override
     public void onAccountsUpdated(Account[] accounts) {
-         //review the current download and cancel it if its account doesn't exist
-        if (mCurrentDownload != null &&
-                !AccountUtils.exists(mCurrentDownload.getAccount(), getApplicationContext())) {
-            mCurrentDownload.cancel();
+         //review the current downloads and cancel those whose account doesn't exist
+        for (DownloadFileOperation download : mCurrentDownloads.values()) {
+            if (!AccountUtils.exists(download.getAccount(), getApplicationContext())) {
+                download.cancel();
+            }
         }
         // The rest of downloads are cancelled when they try to start
     }
@@ -235,7 +466,7 @@ public class FileDownloader extends Service
      * <p/>
      * It provides by itself the available operations.
      */
-    public class FileDownloaderBinder extends Binder implements OnDatatransferProgressListener {
+    public class FileDownloaderBinder extends Binder {
 
         /**
          * Map of listeners that will be reported about progress of downloads from a
@@ -243,7 +474,7 @@ public class FileDownloader extends Service
          * instance.
          */
         private Map<Long, OnDatatransferProgressListener> mBoundListeners =
-                new HashMap<Long, OnDatatransferProgressListener>();
+                new ConcurrentHashMap<Long, OnDatatransferProgressListener>();
 
 
         /**
@@ -253,15 +484,23 @@ public class FileDownloader extends Service
          * @param file    A file in the queue of pending downloads
          */
         public void cancel(Account account, OCFile file) {
+            TransferJournal.removed(getApplicationContext(), TransferJournal.TYPE_DOWNLOAD,
+                    account.name, file.getRemotePath());
             Pair<DownloadFileOperation, String> removeResult = mPendingDownloads.remove(account, file.getRemotePath());
             DownloadFileOperation download = removeResult.first;
             if (download != null) {
                 download.cancel();
-            } else {
-                if (mCurrentDownload != null && mCurrentAccount != null &&
-                        mCurrentDownload.getRemotePath().startsWith(file.getRemotePath()) &&
-                        account.name.equals(mCurrentAccount.name)) {
-                    mCurrentDownload.cancel();
+                if (!mCurrentDownloads.containsValue(download)) {
+                    // not started; a download in progress discards it when it finishes
+                    ResumableDownloadRemoteFileOperation.discardPartialDownload(
+                            download.getTmpPath());
+                }
+            }
+            // cancel too the downloads in progress of files inside, if file is a folder
+            for (DownloadFileOperation current : mCurrentDownloads.values()) {
+                if (current.getRemotePath().startsWith(file.getRemotePath()) &&
+                        account.name.equals(current.getAccount().name)) {
+                    current.cancel();
                 }
             }
         }
@@ -274,14 +513,19 @@ public class FileDownloader extends Service
         public void cancel(Account account) {
             Log_OC.d(TAG, "Account= " + account.name);
 
-            if (mCurrentDownload != null) {
-                Log_OC.d(TAG, "Current Download Account= " + mCurrentDownload.getAccount().name);
-                if (mCurrentDownload.getAccount().name.equals(account.name)) {
-                    mCurrentDownload.cancel();
+            for (DownloadFileOperation current : mCurrentDownloads.values()) {
+                if (current.getAccount().name.equals(account.name)) {
+                    Log_OC.d(TAG, "Cancelling download of " + current.getRemotePath());
+                    current.cancel();
                 }
             }
             // Cancel pending downloads
             cancelDownloadsForAccount(account);
+
+            if (!AccountUtils.exists(account, getApplicationContext())) {
+                ResumableDownloadRemoteFileOperation.discardAllPartialDownloads(
+                        new File(FileStorageUtils.getTemporalPath(account.name)));
+            }
         }
 
         public void clearListeners() {
@@ -337,11 +581,14 @@ public class FileDownloader extends Service
             }
         }
 
-        @Override
-        public void onTransferProgress(long progressRate, long totalTransferredSoFar,
-                                       long totalToTransfer, String fileName) {
+        /**
+         * Reports the progress of a download to the listener bound for its file, if any.
+         */
+        private void onTransferProgress(DownloadFileOperation download, long progressRate,
+                                        long totalTransferredSoFar, long totalToTransfer,
+                                        String fileName) {
             OnDatatransferProgressListener boundListener =
-                    mBoundListeners.get(mCurrentDownload.getFile().getFileId());
+                    mBoundListeners.get(download.getFile().getFileId());
             if (boundListener != null) {
                 boundListener.onTransferProgress(progressRate, totalTransferredSoFar,
                         totalToTransfer, fileName);
@@ -352,35 +599,104 @@ public class FileDownloader extends Service
 
 
     /**
-     * Download worker. Performs the pending downloads in the order they were requested.
+     * Adds to a download the listeners of its progress: the notification and the listeners
+     * bound for its file, each one through a {@link ProgressDispatcher} at its own rate.
+     */
+    private void addProgressDispatchers(final DownloadFileOperation download) {
+        download.addDatatransferProgressListener(new ProgressDispatcher(
+                ProgressDispatcher.NOTIFICATION_INTERVAL_MS,
+                new OnDatatransferProgressListener() {
+                    @Override
+                    public void onTransferProgress(long progressRate, long totalTransferredSoFar,
+                                                   long totalToTransfer, String fileName) {
+                        updateProgressNotification(download, totalTransferredSoFar,
+                                totalToTransfer, fileName);
+                        TransferJournal.progress(getApplicationContext(),
+                                TransferJournal.TYPE_DOWNLOAD, download.getAccount().name,
+                                download.getRemotePath(), totalTransferredSoFar);
+                    }
+                }));
+        download.addDatatransferProgressListener(new ProgressDispatcher(
+                ProgressDispatcher.UI_INTERVAL_MS,
+                new OnDatatransferProgressListener() {
+                    @Override
+                    public void onTransferProgress(long progressRate, long totalTransferredSoFar,
+                                                   long totalToTransfer, String fileName) {
+                        FileDownloaderBinder binder = (FileDownloaderBinder) mBinder;
+                        if (binder != null) {
+                            binder.onTransferProgress(download, progressRate,
+                                    totalTransferredSoFar, totalToTransfer, fileName);
+                        }
+                    }
+                }));
+    }
 
-     * Created with the Looper of a new thread, started in {@link FileUploader#onCreate()}.
+
+    /**
+     * Download queued in the pool of workers.
      */
-    private static class ServiceHandler extends Handler {
-        // don't make it a final class, and don't remove the static ; lint will warn about a
-        // possible memory leak
-        FileDownloader mService;
+    private class DownloadTask implements TransferPool.Task {
+
+        private final String mDownloadKey;
+        private final String mAccountName;
+        private final String mHost;
+
+        DownloadTask(String downloadKey, String accountName, String host) {
+            mDownloadKey = downloadKey;
+            mAccountName = accountName;
+            mHost = host;
+        }
+
+        @Override
+        public String getKey() {
+            return mDownloadKey;
+        }
+
+        @Override
+        public String getAccountName() {
+            return mAccountName;
+        }
 
-        public ServiceHandler(Looper looper, FileDownloader service) {
-            super(looper);
-            if (service == null)
-                throw new IllegalArgumentException("Received invalid NULL in parameter 'service'");
-            mService = service;
+        @Override
+        public String getHost() {
+            return mHost;
+        }
+
+        @Override
+        public boolean isDeferrable() {
+            return !mForegroundDownloads.contains(mDownloadKey);
         }
 
+        /**
+         * Downloads requested in foreground run while background synchronizations wait;
+         * the rest wait for foreground work to finish before starting.
+         */
         @Override
-        public void handleMessage(Message msg) {
-            @SuppressWarnings("unchecked")
-            AbstractList<String> requestedDownloads = (AbstractList<String>) msg.obj;
-            if (msg.obj != null) {
-                Iterator<String> it = requestedDownloads.iterator();
-                while (it.hasNext()) {
-                    String next = it.next();
-                    mService.downloadFile(next);
+        public void run() {
+            DownloadFileOperation download = mPendingDownloads.get(mDownloadKey);
+            if (download == null || mCurrentDownloads.putIfAbsent(mDownloadKey, download) != null) {
+                return;     // cancelled, or already in progress
+            }
+            boolean foreground = mForegroundDownloads.remove(mDownloadKey);
+            if (foreground) {
+                mForegroundInProgress.add(mDownloadKey);
+                ForegroundWorkMonitor.begin();
+            } else {
+                ForegroundWorkMonitor.yieldToForeground();
+            }
+            boolean paused = false;
+            try {
+                paused = downloadFile(download, mHost);
+            } finally {
+                mCurrentDownloads.remove(mDownloadKey);
+                if (foreground) {
+                    mForegroundInProgress.remove(mDownloadKey);
+                    ForegroundWorkMonitor.end();
                 }
             }
-            Log_OC.d(TAG, "Stopping after command with id " + msg.arg1);
-            mService.stopSelf(msg.arg1);
+            if (paused) {
+                requeuePausedDownload(mDownloadKey, download);
+            }
         }
     }
 
@@ -388,65 +704,153 @@ public class FileDownloader extends Service
     /**
      * Core download method: requests a file to download and stores it.
      *
-     * @param downloadKey Key to access the download to perform, contained in mPendingDownloads
+     * Called from the workers of the pool; everything needed by the download is local to
+     * the call.
+     *
+     * @param download      Download to perform, contained in mPendingDownloads
+     * @param host          Host of the server of the download.
+     * @return              'True' if the download was paused by the scheduler, and has to be
+     *                      queued again.
      */
-    private void downloadFile(String downloadKey) {
+    private boolean downloadFile(DownloadFileOperation download, String host) {
+        Account account = download.getAccount();
+        boolean paused = false;
 
-        mCurrentDownload = mPendingDownloads.get(downloadKey);
+        // Detect if the account exists
+        if (AccountUtils.exists(account, getApplicationContext())) {
+            Log_OC.d(TAG, "Account " + account.name + " exists");
 
-        if (mCurrentDownload != null) {
-            // Detect if the account exists
-            if (AccountUtils.exists(mCurrentDownload.getAccount(), getApplicationContext())) {
-                Log_OC.d(TAG, "Account " + mCurrentDownload.getAccount().name + " exists");
+            notifyDownloadStart(download);
+            TransferJournal.started(getApplicationContext(), TransferJournal.TYPE_DOWNLOAD,
+                    account.name, download.getRemotePath());
+            ProgressDispatcher.startAll(download.getDataTransferListeners(), download.getSize(),
+                    download.getSavePath());
+
+            RemoteOperationResult downloadResult = null;
+            try {
+                /// prepare client object to send the request to the ownCloud server
+                FileDataStorageManager storageManager = new FileDataStorageManager(
+                        account,
+                        getContentResolver()
+                );
 
-                notifyDownloadStart(mCurrentDownload);
+                // always get client from client manager, to get fresh credentials in case
+                // of update
+                OwnCloudAccount ocAccount = new OwnCloudAccount(account, this);
+                OwnCloudClient downloadClient = OwnCloudClientManagerFactory.getDefaultSingleton().
+                        getClientFor(ocAccount, this);
 
-                RemoteOperationResult downloadResult = null;
+
+                /// perform the download; segments beyond the connection of the worker are
+                /// taken from the limit of the host
+                TransferPool pool = mPool;
+                int extraConnections = 0;
+                if (pool != null && download.isSegmentable()) {
+                    extraConnections = pool.acquireExtraConnections(host,
+                            SegmentedDownloadRemoteFileOperation.DEFAULT_SEGMENTS - 1);
+                }
+                download.setMaxSegments(1 + extraConnections);
                 try {
-                    /// prepare client object to send the request to the ownCloud server
-                    if (mCurrentAccount == null ||
-                            !mCurrentAccount.equals(mCurrentDownload.getAccount())) {
-                        mCurrentAccount = mCurrentDownload.getAccount();
-                        mStorageManager = new FileDataStorageManager(
-                                mCurrentAccount,
-                                getContentResolver()
-                        );
-                    }   // else, reuse storage manager from previous operation
-
-                    // always get client from client manager, to get fresh credentials in case
-                    // of update
-                    OwnCloudAccount ocAccount = new OwnCloudAccount(mCurrentAccount, this);
-                    mDownloadClient = OwnCloudClientManagerFactory.getDefaultSingleton().
-                            getClientFor(ocAccount, this);
-
-
-                    /// perform the download
-                    downloadResult = mCurrentDownload.execute(mDownloadClient);
-                    if (downloadResult.isSuccess()) {
-                        saveDownloadedFile();
+                    downloadResult = download.execute(downloadClient);
+                } finally {
+                    if (extraConnections > 0) {
+                        pool.releaseExtraConnections(host, extraConnections);
                     }
+                }
+                if (downloadResult.isSuccess()) {
+                    saveDownloadedFile(download, storageManager);
+                }
 
-                } catch (Exception e) {
-                    Log_OC.e(TAG, "Error downloading", e);
-                    downloadResult = new RemoteOperationResult(e);
+            } catch (Exception e) {
+                Log_OC.e(TAG, "Error downloading", e);
+                downloadResult = new RemoteOperationResult(e);
 
-                } finally {
+            } finally {
+                ProgressDispatcher.finishAll(download.getDataTransferListeners());
+                if (mPausedDownloads.remove(download) && !downloadResult.isSuccess()) {
+                    // the cancelled result only moves the progress notification
+                    notifyDownloadResult(download, downloadResult);
+                    paused = true;
+
+                } else {
                     Pair<DownloadFileOperation, String> removeResult =
-                            mPendingDownloads.removePayload(mCurrentAccount,
-                                    mCurrentDownload.getRemotePath());
+                            mPendingDownloads.removePayload(account, download.getRemotePath());
+
+                    if (downloadResult.isSuccess()) {
+                        TransferJournal.completed(getApplicationContext(),
+                                TransferJournal.TYPE_DOWNLOAD, account.name,
+                                download.getRemotePath(), download.getSize());
+                    } else {
+                        if (downloadResult.getCode() == ResultCode.CANCELLED ||
+                                downloadResult.getCode() == ResultCode.FILE_NOT_FOUND) {
+                            // won't be resumed
+                            ResumableDownloadRemoteFileOperation.discardPartialDownload(
+                                    download.getTmpPath());
+                        }
+                        TransferJournal.removed(getApplicationContext(),
+                                TransferJournal.TYPE_DOWNLOAD, account.name,
+                                download.getRemotePath());
+                    }
 
                     /// notify result
-                    notifyDownloadResult(mCurrentDownload, downloadResult);
+                    notifyDownloadResult(download, downloadResult);
 
-                    sendBroadcastDownloadFinished(mCurrentDownload, downloadResult, removeResult.second);
+                    sendBroadcastDownloadFinished(download, downloadResult, removeResult.second);
                 }
+            }
 
-            } else {
-                // Cancel the transfer
-                Log_OC.d(TAG, "Account " + mCurrentDownload.getAccount().toString() +
-                        " doesn't exist");
-                cancelDownloadsForAccount(mCurrentDownload.getAccount());
+        } else {
+            // Cancel the transfer
+            Log_OC.d(TAG, "Account " + account.toString() + " doesn't exist");
+            cancelDownloadsForAccount(account);
 
+        }
+        return paused;
+    }
+
+
+    /**
+     * Queues again a download paused by the scheduler, with a new operation, unless it was
+     * cancelled meanwhile.
+     *
+     * @param downloadKey   Key of the download in mPendingDownloads.
+     * @param paused        Operation paused.
+     */
+    private void requeuePausedDownload(String downloadKey, DownloadFileOperation paused) {
+        Account account = paused.getAccount();
+        DownloadFileOperation resumed = new DownloadFileOperation(account, paused.getFile());
+        resumed.setSegmentedDownloadAllowed(PreferenceManager.getDefaultSharedPreferences(
+                getApplicationContext()).getBoolean(PREF_SEGMENTED_DOWNLOADS, true));
+        addProgressDispatchers(resumed);
+        TransferPool pool = mPool;
+        if (pool != null && mPendingDownloads.replacePayload(downloadKey, resumed)) {
+            TransferJournal.paused(getApplicationContext(), TransferJournal.TYPE_DOWNLOAD,
+                    account.name, paused.getRemotePath());
+            pool.submit(new DownloadTask(downloadKey, account.name, getHost(account)), false);
+            Log_OC.d(TAG, "Download of " + paused.getRemotePath() + " paused");
+        }
+    }
+
+
+    /**
+     * Applies the conditions of the {@link TransferScheduler} to the downloads the user is not
+     * waiting for: sets how many of them can run in parallel, and pauses the ones in progress
+     * if none is allowed.
+     */
+    private void applyConditions() {
+        TransferPool pool = mPool;
+        if (pool == null) {
+            return;     // service destroyed
+        }
+        int maxParallel = mScheduler.getMaxParallel(mWorkers);
+        pool.setMaxDeferrable(maxParallel);
+        if (maxParallel == 0) {
+            for (Map.Entry<String, DownloadFileOperation> current :
+                    mCurrentDownloads.entrySet()) {
+                if (!mForegroundInProgress.contains(current.getKey()) &&
+                        mPausedDownloads.add(current.getValue())) {
+                    current.getValue().cancel();
+                }
             }
         }
     }
@@ -457,30 +861,39 @@ public class FileDownloader extends Service
      *
      * TODO move to DownloadFileOperation
      */
-    private void saveDownloadedFile() {
-        OCFile file = mStorageManager.getFileById(mCurrentDownload.getFile().getFileId());
+    private void saveDownloadedFile(DownloadFileOperation download,
+                                    FileDataStorageManager storageManager) {
+        OCFile file = storageManager.getFileById(download.getFile().getFileId());
         long syncDate = System.currentTimeMillis();
         file.setLastSyncDateForProperties(syncDate);
         file.setLastSyncDateForData(syncDate);
         file.setNeedsUpdateThumbnail(true);
-        file.setModificationTimestamp(mCurrentDownload.getModificationTimestamp());
-        file.setModificationTimestampAtLastSyncForData(mCurrentDownload.getModificationTimestamp());
-        file.setEtag(mCurrentDownload.getEtag());
-        file.setMimetype(mCurrentDownload.getMimeType());
-        file.setStoragePath(mCurrentDownload.getSavePath());
-        file.setFileLength((new File(mCurrentDownload.getSavePath()).length()));
-        file.setRemoteId(mCurrentDownload.getFile().getRemoteId());
-        mStorageManager.saveFile(file);
-        mStorageManager.triggerMediaScan(file.getStoragePath());
-        mStorageManager.saveConflict(file, null);
+        file.setModificationTimestamp(download.getModificationTimestamp());
+        file.setModificationTimestampAtLastSyncForData(download.getModificationTimestamp());
+        file.setEtag(download.getEtag());
+        file.setMimetype(download.getMimeType());
+        file.setStoragePath(download.getSavePath());
+        file.setFileLength((new File(download.getSavePath()).length()));
+        file.setRemoteId(download.getFile().getRemoteId());
+        storageManager.saveFile(file);
+        storageManager.triggerMediaScan(file.getStoragePath());
+        storageManager.saveConflict(file, null);
     }
 
     /**
      * Creates a status notification to show the download progress
      *
+     * A single notification shows the progress of the downloads in progress, the last one
+     * started.
+     *
      * @param download Download operation starting.
      */
-    private void notifyDownloadStart(DownloadFileOperation download) {
+    private synchronized void notifyDownloadStart(DownloadFileOperation download) {
+        if (mNotificationManager == null) {
+            return;     // service destroyed
+        }
+        mNotifiedDownload = download;
+
         /// create status notification with a progress bar
         mLastPercent = 0;
         mNotificationBuilder =
@@ -516,11 +929,15 @@ public class FileDownloader extends Service
 
 
     /**
-     * Callback method to update the progress bar in the status notification.
+     * Updates the progress bar in the status notification, if it's showing the download.
      */
-    @Override
-    public void onTransferProgress(long progressRate, long totalTransferredSoFar,
-                                   long totalToTransfer, String filePath) {
+    private synchronized void updateProgressNotification(DownloadFileOperation download,
+                                                         long totalTransferredSoFar,
+                                                         long totalToTransfer,
+                                                         String filePath) {
+        if (download != mNotifiedDownload || mNotificationManager == null) {
+            return;
+        }
         int percent = (int) (100.0 * ((double) totalTransferredSoFar) / ((double) totalToTransfer));
         if (percent != mLastPercent) {
             mNotificationBuilder.setProgress(100, percent, totalToTransfer < 0);
@@ -536,12 +953,30 @@ public class FileDownloader extends Service
     /**
      * Updates the status notification with the result of a download operation.
      *
+     * The progress notification moves to another download in progress, if any; otherwise,
+     * it's removed.
+     *
      * @param downloadResult Result of the download operation.
      * @param download       Finished download operation
      */
-    private void notifyDownloadResult(DownloadFileOperation download,
-                                      RemoteOperationResult downloadResult) {
-        mNotificationManager.cancel(R.string.downloader_download_in_progress_ticker);
+    private synchronized void notifyDownloadResult(DownloadFileOperation download,
+                                                   RemoteOperationResult downloadResult) {
+        if (mNotificationManager == null) {
+            return;     // service destroyed
+        }
+        if (download == mNotifiedDownload) {
+            mNotifiedDownload = null;
+            Iterator<DownloadFileOperation> inProgress = mCurrentDownloads.values().iterator();
+            while (inProgress.hasNext() && mNotifiedDownload == null) {
+                DownloadFileOperation other = inProgress.next();
+                if (other != download) {
+                    notifyDownloadStart(other);
+                }
+            }
+            if (mNotifiedDownload == null) {
+                mNotificationManager.cancel(R.string.downloader_download_in_progress_ticker);
+            }
+        }
         if (!downloadResult.isCancelled()) {
             int tickerId = (downloadResult.isSuccess()) ? R.string.downloader_download_succeeded_ticker :
                     R.string.downloader_download_failed_ticker;
@@ -553,7 +988,10 @@ public class FileDownloader extends Service
             tickerId = (needsToUpdateCredentials) ?
                     R.string.downloader_download_failed_credentials_error : tickerId;
 
-            mNotificationBuilder
+            NotificationCompat.Builder resultBuilder =
+                    NotificationBuilderWithProgressBar.newNotificationBuilderWithProgressBar(this);
+            resultBuilder
+                    .setSmallIcon(R.drawable.notification_icon)
                     .setTicker(getString(tickerId))
                     .setContentTitle(getString(tickerId))
                     .setAutoCancel(true)
@@ -573,7 +1011,7 @@ public class FileDownloader extends Service
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
                 updateAccountCredentials.addFlags(Intent.FLAG_FROM_BACKGROUND);
-                mNotificationBuilder
+                resultBuilder
                         .setContentIntent(PendingIntent.getActivity(
                                 this, (int) System.currentTimeMillis(), updateAccountCredentials,
                                 PendingIntent.FLAG_ONE_SHOT));
@@ -581,16 +1019,16 @@ public class FileDownloader extends Service
             } else {
                 // TODO put something smart in showDetailsIntent
                 Intent showDetailsIntent = new Intent();
-                mNotificationBuilder
+                resultBuilder
                         .setContentIntent(PendingIntent.getActivity(
                                 this, (int) System.currentTimeMillis(), showDetailsIntent, 0));
             }
 
-            mNotificationBuilder.setContentText(
+            resultBuilder.setContentText(
                     ErrorMessageAdapter.getErrorCauseMessage(downloadResult, download,
                             getResources())
             );
-            mNotificationManager.notify(tickerId, mNotificationBuilder.build());
+            mNotificationManager.notify(tickerId, resultBuilder.build());
 
             // Remove success notification
             if (downloadResult.isSuccess()) {
@@ -606,7 +1044,7 @@ public class FileDownloader extends Service
 
 
     /**
-     * Sends a broadcast when a download finishes in order to the interested activities can
+     * Posts an event when a download finishes in order to the interested activities can
      * update their view
      *
      * @param download               Finished download operation
@@ -618,32 +1056,51 @@ public class FileDownloader extends Service
             RemoteOperationResult downloadResult,
             String unlinkedFromRemotePath) {
 
-        Intent end = new Intent(getDownloadFinishMessage());
-        end.putExtra(EXTRA_DOWNLOAD_RESULT, downloadResult.isSuccess());
-        end.putExtra(ACCOUNT_NAME, download.getAccount().name);
-        end.putExtra(EXTRA_REMOTE_PATH, download.getRemotePath());
-        end.putExtra(EXTRA_FILE_PATH, download.getSavePath());
-        if (unlinkedFromRemotePath != null) {
-            end.putExtra(EXTRA_LINKED_TO_PATH, unlinkedFromRemotePath);
-        }
-        sendStickyBroadcast(end);
+        SyncEventBus.getInstance().postSticky(new TransferEvent(
+                getDownloadFinishMessage(),
+                download.getAccount().name,
+                download.getRemotePath(),
+                download.getSavePath(),
+                unlinkedFromRemotePath,
+                downloadResult.isSuccess()
+        ));
     }
 
 
     /**
-     * Sends a broadcast when a new download is added to the queue.
+     * Posts an event when a new download is added to the queue.
      *
      * @param download           Added download operation
      * @param linkedToRemotePath Path in the downloads tree where the download was linked to
      */
     private void sendBroadcastNewDownload(DownloadFileOperation download,
                                           String linkedToRemotePath) {
-        Intent added = new Intent(getDownloadAddedMessage());
-        added.putExtra(ACCOUNT_NAME, download.getAccount().name);
-        added.putExtra(EXTRA_REMOTE_PATH, download.getRemotePath());
-        added.putExtra(EXTRA_FILE_PATH, download.getSavePath());
-        added.putExtra(EXTRA_LINKED_TO_PATH, linkedToRemotePath);
-        sendStickyBroadcast(added);
+        SyncEventBus.getInstance().postSticky(new TransferEvent(
+                getDownloadAddedMessage(),
+                download.getAccount().name,
+                download.getRemotePath(),
+                download.getSavePath(),
+                linkedToRemotePath,
+                false
+        ));
+    }
+
+    /**
+     * Posts a single event when a batch of new downloads is added to the queue.
+     *
+     * @param account       ownCloud account of the added downloads
+     * @param remotePaths   Remote paths of the added downloads
+     * @param localPaths    Local paths where the added downloads will be saved
+     */
+    private void sendBroadcastNewDownloads(Account account, List<String> remotePaths,
+                                           List<String> localPaths) {
+        SyncEventBus.getInstance().postSticky(TransferEvent.newBatchEvent(
+                getDownloadAddedMessage(),
+                account.name,
+                FileStorageUtils.getCommonFolder(remotePaths),
+                remotePaths,
+                localPaths
+        ));
     }
 
     /**
@@ -653,6 +1110,71 @@ public class FileDownloader extends Service
      */
     private void cancelDownloadsForAccount(Account account) {
         // Cancel pending downloads
+        TransferJournal.removed(getApplicationContext(), TransferJournal.TYPE_DOWNLOAD,
+                account.name, null);
         mPendingDownloads.remove(account);
+        TransferPool pool = mPool;
+        if (pool != null) {
+            pool.removeQueued(account.name);
+        }
+    }
+
+
+    /**
+     * Removes the partial downloads of accounts not existing anymore, and the ones not resumed
+     * for long.
+     *
+     * Called in the thread of the {@link TransferJournal}, before restoring the downloads.
+     */
+    private void sweepPartialDownloads() {
+        Set<String> accountFolders = new HashSet<String>();
+        Account[] accounts = AccountManager.get(this).getAccountsByType(MainApp.getAccountType());
+        for (Account account : accounts) {
+            accountFolders.add(new File(FileStorageUtils.getTemporalPath(account.name)).getName());
+        }
+        File[] folders = new File(FileStorageUtils.getTemporalPath("")).listFiles();
+        if (folders == null) {
+            return;
+        }
+        for (File folder : folders) {
+            if (!folder.isDirectory()) {
+                continue;
+            }
+            if (accountFolders.contains(folder.getName())) {
+                ResumableDownloadRemoteFileOperation.discardStalePartialDownloads(folder);
+            } else {
+                Log_OC.d(TAG, "Removing partial downloads of removed account " + folder.getName());
+                ResumableDownloadRemoteFileOperation.discardAllPartialDownloads(folder);
+            }
+        }
+    }
+
+
+    /**
+     * Stops the service after a command that didn't queue new downloads, unless there are
+     * downloads in progress or pending; the pool will stop it when done.
+     *
+     * @param startId       Id of the command.
+     */
+    private void stopIfIdle(int startId) {
+        mLastStartId = startId;
+        TransferPool pool = mPool;
+        if (!mRestoring && pool != null && pool.isIdle()) {
+            Log_OC.d(TAG, "Stopping after command with id " + startId);
+            stopSelf(startId);
+        }
+    }
+
+
+    /**
+     * @param account       ownCloud account.
+     * @return              Host of the server of the account, used to limit the parallel
+     *                      downloads from the same server.
+     */
+    private String getHost(Account account) {
+        String baseUrl = AccountManager.get(getApplicationContext()).getUserData(
+                account, AccountUtils.Constants.KEY_OC_BASE_URL);
+        String host = (baseUrl != null) ? Uri.parse(baseUrl).getHost() : null;
+        return (host != null) ? host : account.name;
     }
 }
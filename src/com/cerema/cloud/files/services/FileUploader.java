@@ -22,11 +22,20 @@ package com.cerema.cloud.files.services;
 
 import java.io.File;
 import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.Vector;
 
+import org.apache.commons.httpclient.HttpStatus;
+
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.accounts.OnAccountsUpdateListener;
@@ -34,6 +43,7 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -45,12 +55,17 @@ import android.support.v4.app.NotificationCompat;
 import android.util.Pair;
 import android.webkit.MimeTypeMap;
 
+import com.cerema.cloud.MainApp;
 import com.cerema.cloud.R;
 import com.cerema.cloud.authentication.AccountUtils;
 import com.cerema.cloud.authentication.AuthenticatorActivity;
 import com.cerema.cloud.datamodel.FileDataStorageManager;
+import com.cerema.cloud.datamodel.KnownRemoteFolders;
 import com.cerema.cloud.datamodel.OCFile;
 import com.cerema.cloud.db.DbHandler;
+import com.cerema.cloud.events.SyncEventBus;
+import com.cerema.cloud.events.TransferEvent;
+import com.cerema.cloud.files.InstantUploadBroadcastReceiver;
 import com.cerema.cloud.lib.common.OwnCloudAccount;
 import com.cerema.cloud.lib.common.OwnCloudClient;
 import com.cerema.cloud.lib.common.OwnCloudClientManagerFactory;
@@ -67,6 +82,7 @@ import com.cerema.cloud.lib.resources.status.OwnCloudVersion;
 import com.cerema.cloud.notifications.NotificationBuilderWithProgressBar;
 import com.cerema.cloud.notifications.NotificationDelayer;
 import com.cerema.cloud.operations.CreateFolderOperation;
+import com.cerema.cloud.operations.RemoteFolderCache;
 import com.cerema.cloud.operations.UploadFileOperation;
 import com.cerema.cloud.operations.common.SyncOperation;
 import com.cerema.cloud.ui.activity.FileActivity;
@@ -87,6 +103,7 @@ public class FileUploader extends Service
     public static final String ACCOUNT_NAME = "ACCOUNT_NAME";
 
     public static final String KEY_FILE = "FILE";
+    public static final String KEY_FILE_IDS = "FILE_IDS";
     public static final String KEY_LOCAL_FILE = "LOCAL_FILE";
     public static final String KEY_REMOTE_FILE = "REMOTE_FILE";
     public static final String KEY_MIME_TYPE = "MIME_TYPE";
@@ -97,6 +114,7 @@ public class FileUploader extends Service
     public static final String KEY_FORCE_OVERWRITE = "KEY_FORCE_OVERWRITE";
     public static final String KEY_INSTANT_UPLOAD = "INSTANT_UPLOAD";
     public static final String KEY_LOCAL_BEHAVIOUR = "BEHAVIOUR";
+    public static final String KEY_FOREGROUND = "FOREGROUND";
 
     public static final String KEY_CANCEL_ALL = "CANCEL_ALL";
 
@@ -107,6 +125,11 @@ public class FileUploader extends Service
     public static final int UPLOAD_SINGLE_FILE = 0;
     public static final int UPLOAD_MULTIPLE_FILES = 1;
 
+    /** Options of uploads saved in the {@link TransferJournal} */
+    private static final int JOURNAL_FLAG_FORCE_OVERWRITE = 1;
+    private static final int JOURNAL_FLAG_INSTANT = 2;
+    private static final int JOURNAL_FLAG_DEFERRABLE = 4;
+
     private static final String TAG = FileUploader.class.getSimpleName();
 
     private Looper mServiceLooper;
@@ -117,7 +140,28 @@ public class FileUploader extends Service
     private FileDataStorageManager mStorageManager;
 
     private IndexedForest<UploadFileOperation> mPendingUploads = new IndexedForest<UploadFileOperation>();
+
+    /** Listings of remote folders shared by the uploads requested while the service is busy */
+    private final RemoteFolderCache mRemoteFolderCache = new RemoteFolderCache();
     private UploadFileOperation mCurrentUpload = null;
+    /** Remote path the current upload was queued with, its key in the journal */
+    private String mCurrentUploadJournalPath = null;
+    private boolean mJournalRestored = false;
+
+    private TransferScheduler mScheduler;
+    /** Keys of the uploads that can wait for the conditions allowed by the scheduler */
+    private Set<String> mDeferrableUploads =
+            Collections.synchronizedSet(new HashSet<String>());
+    /** Keys of the uploads that can wait skipped by the worker until the scheduler allows
+     *  them, in the order they were skipped */
+    private final Set<String> mWaitingUploads =
+            Collections.synchronizedSet(new LinkedHashSet<String>());
+    private volatile String mCurrentUploadKey = null;
+    /** Upload in progress paused by the scheduler, to run again when conditions allow it */
+    private volatile UploadFileOperation mPausedUpload = null;
+    private volatile int mLastStartId = 0;
+    /** 'True' while the uploads in the journal are being restored; the service waits */
+    private volatile boolean mRestoring = false;
 
     private NotificationManager mNotificationManager;
     private NotificationCompat.Builder mNotificationBuilder;
@@ -159,6 +203,15 @@ public class FileUploader extends Service
         mServiceLooper = thread.getLooper();
         mServiceHandler = new ServiceHandler(mServiceLooper, this);
         mBinder = new FileUploaderBinder();
+        mScheduler = new TransferScheduler(this,
+                new TransferScheduler.OnConditionsChangedListener() {
+                    @Override
+                    public void onConditionsChanged(TransferScheduler scheduler) {
+                        pauseCurrentUploadIfNotAllowed();
+                        resumeWaitingUploads();
+                    }
+                });
+        mScheduler.start();
 
         // add AccountsUpdatedListener
         AccountManager am = AccountManager.get(getApplicationContext());
@@ -171,6 +224,7 @@ public class FileUploader extends Service
     @Override
     public void onDestroy() {
         Log_OC.v(TAG, "Destroying service" );
+        mScheduler.stop();
         mBinder = null;
         mServiceHandler = null;
         mServiceLooper.quit();
@@ -191,10 +245,47 @@ public class FileUploader extends Service
      * New uploads are added calling to startService(), resulting in a call to
      * this method. This ensures the service will keep on working although the
      * caller activity goes away.
+     *
+     * Files already in the local database can be requested in bulk passing their
+     * ids in {@link #KEY_FILE_IDS} with {@link #UPLOAD_MULTIPLE_FILES}.
+     *
+     * Queued uploads are saved in the {@link TransferJournal}; if the process dies, the
+     * system restarts the service and the uploads not completed are queued again.
+     *
+     * Instant uploads and uploads of files already in the local database, requested by
+     * synchronizations, wait for the conditions allowed by the {@link TransferScheduler}; if
+     * the conditions get worse, the one in progress is paused and run again later. Uploads
+     * of new files picked by the user start right away, also when others are waiting.
      */
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log_OC.d(TAG, "Starting command with id " + startId);
+        mLastStartId = startId;
+
+        if (!mJournalRestored) {
+            mJournalRestored = true;
+            mRestoring = true;
+            TransferJournal.loadUnfinished(getApplicationContext(), TransferJournal.TYPE_UPLOAD,
+                    new TransferJournal.OnUnfinishedLoadedListener() {
+                        @Override
+                        public void onUnfinishedLoaded(List<TransferJournal.Entry> entries) {
+                            AbstractList<String> restoredUploads = restoreUploads(entries);
+                            mRestoring = false;
+                            ServiceHandler handler = mServiceHandler;
+                            if (handler != null) {
+                                // sent even if empty, to stop the service when idle
+                                Message msg = handler.obtainMessage();
+                                msg.arg1 = mLastStartId;
+                                msg.obj = restoredUploads;
+                                handler.sendMessage(msg);
+                            }
+                        }
+                    });
+        }
+        if (intent == null) {
+            // restarted by the system after the death of the process
+            return Service.START_STICKY;
+        }
 
         if (intent.hasExtra(KEY_CANCEL_ALL) && intent.hasExtra(KEY_ACCOUNT)){
             Account account = intent.getParcelableExtra(KEY_ACCOUNT);
@@ -207,7 +298,8 @@ public class FileUploader extends Service
         }
 
         if (!intent.hasExtra(KEY_ACCOUNT) || !intent.hasExtra(KEY_UPLOAD_TYPE)
-                || !(intent.hasExtra(KEY_LOCAL_FILE) || intent.hasExtra(KEY_FILE))) {
+                || !(intent.hasExtra(KEY_LOCAL_FILE) || intent.hasExtra(KEY_FILE) ||
+                    intent.hasExtra(KEY_FILE_IDS))) {
             Log_OC.e(TAG, "Not enough information provided in intent");
             return Service.START_NOT_STICKY;
         }
@@ -221,9 +313,17 @@ public class FileUploader extends Service
             return Service.START_NOT_STICKY;
         }
 
+        FileDataStorageManager storageManager = new FileDataStorageManager(account,
+                getContentResolver());
+
         String[] localPaths = null, remotePaths = null, mimeTypes = null;
         OCFile[] files = null;
-        if (uploadType == UPLOAD_SINGLE_FILE) {
+        if (intent.hasExtra(KEY_FILE_IDS)) {
+            List<OCFile> storedFiles =
+                    storageManager.getFilesByIds(intent.getLongArrayExtra(KEY_FILE_IDS));
+            files = storedFiles.toArray(new OCFile[storedFiles.size()]);
+
+        } else if (uploadType == UPLOAD_SINGLE_FILE) {
 
             if (intent.hasExtra(KEY_FILE)) {
                 files = new OCFile[] { intent.getParcelableExtra(KEY_FILE) };
@@ -251,18 +351,18 @@ public class FileUploader extends Service
             }
         }
 
-        FileDataStorageManager storageManager = new FileDataStorageManager(account,
-                getContentResolver());
-
         boolean forceOverwrite = intent.getBooleanExtra(KEY_FORCE_OVERWRITE, false);
         boolean isInstant = intent.getBooleanExtra(KEY_INSTANT_UPLOAD, false);
         int localAction = intent.getIntExtra(KEY_LOCAL_BEHAVIOUR, LOCAL_BEHAVIOUR_FORGET);
+        // uploads requested by the user don't wait for the conditions of the scheduler
+        boolean deferrable = !intent.getBooleanExtra(KEY_FOREGROUND, false) &&
+                (isInstant || intent.hasExtra(KEY_FILE) || intent.hasExtra(KEY_FILE_IDS));
 
-        if (intent.hasExtra(KEY_FILE) && files == null) {
+        if ((intent.hasExtra(KEY_FILE) || intent.hasExtra(KEY_FILE_IDS)) && files == null) {
             Log_OC.e(TAG, "Incorrect array for OCFiles provided in upload intent");
             return Service.START_NOT_STICKY;
 
-        } else if (!intent.hasExtra(KEY_FILE)) {
+        } else if (!intent.hasExtra(KEY_FILE) && !intent.hasExtra(KEY_FILE_IDS)) {
             if (localPaths == null) {
                 Log_OC.e(TAG, "Incorrect array for local paths provided in upload intent");
                 return Service.START_NOT_STICKY;
@@ -291,28 +391,12 @@ public class FileUploader extends Service
 
         boolean chunked = FileUploader.chunkedUploadIsSupported(ocv);
         AbstractList<String> requestedUploads = new Vector<String>();
-        String uploadKey = null;
-        UploadFileOperation newUpload = null;
+        List<TransferJournal.Entry> journalEntries = new ArrayList<TransferJournal.Entry>();
         try {
             for (int i = 0; i < files.length; i++) {
-                newUpload = new UploadFileOperation(
-                        account,
-                        files[i],
-                        chunked,
-                        isInstant,
-                        forceOverwrite, localAction,
-                        getApplicationContext()
-                );
-                if (isInstant) {
-                    newUpload.setRemoteFolderToBeCreated();
-                }
-                newUpload.addDatatransferProgressListener(this);
-                newUpload.addDatatransferProgressListener((FileUploaderBinder) mBinder);
-                Pair<String, String> putResult = mPendingUploads.putIfAbsent(
-                        account, files[i].getRemotePath(), newUpload
-                );
-                if (putResult != null) {
-                    uploadKey = putResult.first;
+                String uploadKey = enqueueUpload(account, files[i], chunked, isInstant,
+                        forceOverwrite, localAction, deferrable, journalEntries);
+                if (uploadKey != null) {
                     requestedUploads.add(uploadKey);
                 }   // else, file already in the queue of uploads; don't repeat the request
             }
@@ -330,6 +414,7 @@ public class FileUploader extends Service
             return START_NOT_STICKY;
 
         }
+        TransferJournal.queued(getApplicationContext(), journalEntries);
 
         if (requestedUploads.size() > 0) {
             Message msg = mServiceHandler.obtainMessage();
@@ -337,7 +422,155 @@ public class FileUploader extends Service
             msg.obj = requestedUploads;
             mServiceHandler.sendMessage(msg);
         }
-        return Service.START_NOT_STICKY;
+        return Service.START_STICKY;
+    }
+
+
+    /**
+     * Adds an upload to the queue.
+     *
+     * @param account           ownCloud account where the file will be uploaded.
+     * @param file              File to upload.
+     * @param chunked           'True' if the server supports chunked uploads.
+     * @param isInstant         'True' for instant uploads.
+     * @param forceOverwrite    'True' to overwrite the file in the server.
+     * @param localAction       Action to perform with the local file after the upload.
+     * @param deferrable        'True' if the upload can wait for the conditions allowed by
+     *                          the {@link TransferScheduler}.
+     * @param journalEntries    List where the entry for the {@link TransferJournal} is added,
+     *                          if the upload was queued.
+     * @return                  Key of the upload, or null if it was already queued.
+     */
+    private String enqueueUpload(Account account, OCFile file, boolean chunked,
+                                 boolean isInstant, boolean forceOverwrite, int localAction,
+                                 boolean deferrable,
+                                 List<TransferJournal.Entry> journalEntries) {
+        UploadFileOperation newUpload = newUploadOperation(account, file, chunked, isInstant,
+                forceOverwrite, localAction);
+        Pair<String, String> putResult = mPendingUploads.putIfAbsent(
+                account, file.getRemotePath(), newUpload
+        );
+        if (putResult == null) {
+            return null;
+        }
+        if (deferrable) {
+            mDeferrableUploads.add(putResult.first);
+        }
+        int journalFlags = (forceOverwrite ? JOURNAL_FLAG_FORCE_OVERWRITE : 0) |
+                (isInstant ? JOURNAL_FLAG_INSTANT : 0) |
+                (deferrable ? JOURNAL_FLAG_DEFERRABLE : 0);
+        journalEntries.add(new TransferJournal.Entry(
+                TransferJournal.TYPE_UPLOAD,
+                account.name,
+                file.getRemotePath(),
+                file.getStoragePath(),
+                file.getMimetype(),
+                file.getFileId(),
+                journalFlags,
+                localAction,
+                file.getFileLength()
+        ));
+        return putResult.first;
+    }
+
+
+    private UploadFileOperation newUploadOperation(Account account, OCFile file,
+                                                   boolean chunked, boolean isInstant,
+                                                   boolean forceOverwrite, int localAction) {
+        UploadFileOperation newUpload = new UploadFileOperation(
+                account,
+                file,
+                chunked,
+                isInstant,
+                forceOverwrite, localAction,
+                getApplicationContext()
+        );
+        if (isInstant) {
+            newUpload.setRemoteFolderToBeCreated();
+        }
+        newUpload.setRemoteFolderCache(mRemoteFolderCache);
+        // progress is forwarded to the notification and to bound views at their own rates
+        newUpload.addDatatransferProgressListener(
+                new ProgressDispatcher(ProgressDispatcher.NOTIFICATION_INTERVAL_MS, this));
+        newUpload.addDatatransferProgressListener(
+                new ProgressDispatcher(ProgressDispatcher.UI_INTERVAL_MS,
+                        (FileUploaderBinder) mBinder));
+        return newUpload;
+    }
+
+
+    /**
+     * Queues again the uploads saved in the {@link TransferJournal} and not completed, left by
+     * a previous instance of the service.
+     *
+     * No request is sent to the server; files in the local database are taken from it, with
+     * the data needed to detect conflicts. Uploads of accounts removed or of local files
+     * not available anymore are dropped.
+     *
+     * @param entries   Unfinished uploads loaded from the journal.
+     * @return          Keys of the uploads queued.
+     */
+    private AbstractList<String> restoreUploads(List<TransferJournal.Entry> entries) {
+        AbstractList<String> restoredUploads = new Vector<String>();
+        Map<String, FileDataStorageManager> storageManagers =
+                new HashMap<String, FileDataStorageManager>();
+        List<TransferJournal.Entry> unused = new ArrayList<TransferJournal.Entry>();
+        for (TransferJournal.Entry entry : entries) {
+            Account account = new Account(entry.getAccountName(), MainApp.getAccountType());
+            FileDataStorageManager storageManager = storageManagers.get(account.name);
+            if (storageManager == null) {
+                if (!AccountUtils.exists(account, getApplicationContext())) {
+                    TransferJournal.removed(getApplicationContext(),
+                            TransferJournal.TYPE_UPLOAD, account.name, null);
+                    continue;
+                }
+                storageManager = new FileDataStorageManager(account, getContentResolver());
+                storageManagers.put(account.name, storageManager);
+            }
+
+            OCFile file = storageManager.getFileByPath(entry.getRemotePath());
+            if (file == null || entry.getLocalPath() == null ||
+                    !entry.getLocalPath().equals(file.getStoragePath())) {
+                file = obtainNewOCFileToUpload(entry.getRemotePath(), entry.getLocalPath(),
+                        entry.getMimeType());
+            }
+            boolean isFromProvider = (entry.getLocalPath() != null &&
+                    entry.getLocalPath().startsWith(UriUtils.URI_CONTENT_SCHEME));
+            // content shared without a persistable permission can't be read anymore
+            if (file == null || entry.getLocalPath() == null ||
+                    (!isFromProvider && !new File(entry.getLocalPath()).exists()) ||
+                    (isFromProvider && !UriUtils.hasPersistedReadPermission(
+                            getApplicationContext(), Uri.parse(entry.getLocalPath())))) {
+                TransferJournal.removed(getApplicationContext(), TransferJournal.TYPE_UPLOAD,
+                        entry.getAccountName(), entry.getRemotePath());
+                continue;
+            }
+
+            try {
+                String uploadKey = enqueueUpload(
+                        account,
+                        file,
+                        chunkedUploadIsSupported(AccountUtils.getServerVersion(account)),
+                        (entry.getFlags() & JOURNAL_FLAG_INSTANT) != 0,
+                        (entry.getFlags() & JOURNAL_FLAG_FORCE_OVERWRITE) != 0,
+                        entry.getLocalBehaviour(),
+                        (entry.getFlags() & JOURNAL_FLAG_DEFERRABLE) != 0,
+                        unused
+                );
+                if (uploadKey != null) {
+                    restoredUploads.add(uploadKey);
+                }
+            } catch (RuntimeException e) {
+                Log_OC.e(TAG, "Could not restore upload of " + entry.getRemotePath(), e);
+                TransferJournal.removed(getApplicationContext(), TransferJournal.TYPE_UPLOAD,
+                        entry.getAccountName(), entry.getRemotePath());
+            }
+        }
+        if (entries.size() > 0) {
+            Log_OC.d(TAG, "Restored " + restoredUploads.size() + " of " + entries.size() +
+                    " uploads from the journal");
+        }
+        return restoredUploads;
     }
 
     /**
@@ -393,10 +626,13 @@ public class FileUploader extends Service
          * @param file      A file in the queue of pending uploads
          */
         public void cancel(Account account, OCFile file) {
+            TransferJournal.removed(getApplicationContext(), TransferJournal.TYPE_UPLOAD,
+                    account.name, file.getRemotePath());
             Pair<UploadFileOperation, String> removeResult = mPendingUploads.remove(account, file.getRemotePath());
             UploadFileOperation upload = removeResult.first;
             if (upload != null) {
                 upload.cancel();
+                releaseReadPermission(upload);
             } else {
                 if (mCurrentUpload != null && mCurrentAccount != null &&
                         mCurrentUpload.getRemotePath().startsWith(file.getRemotePath()) &&
@@ -404,6 +640,7 @@ public class FileUploader extends Service
                     mCurrentUpload.cancel();
                 }
             }
+            resumeWaitingUploads();
         }
 
         /**
@@ -529,31 +766,64 @@ public class FileUploader extends Service
             @SuppressWarnings("unchecked")
             AbstractList<String> requestedUploads = (AbstractList<String>) msg.obj;
             if (msg.obj != null) {
+                mService.createFoldersForBatch(requestedUploads);
                 Iterator<String> it = requestedUploads.iterator();
                 while (it.hasNext()) {
-                    mService.uploadFile(it.next());
+                    String uploadKey = it.next();
+                    while (mService.uploadFile(uploadKey)) {
+                        // paused by the scheduler; run again when conditions allow it
+                    }
                 }
             }
-            Log_OC.d(TAG, "Stopping command after id " + msg.arg1);
-            mService.stopSelf(msg.arg1);
+            if (!hasMessages(msg.what)) {
+                // end of the batch; other clients may change the folders from now on
+                mService.mRemoteFolderCache.clear();
+            }
+            if (mService.mWaitingUploads.isEmpty() && !mService.mRestoring) {
+                Log_OC.d(TAG, "Stopping command after id " + msg.arg1);
+                mService.stopSelf(msg.arg1);
+            }   // else, keep alive until the waiting uploads run or are cancelled
         }
     }
 
     /**
      * Core upload method: sends the file(s) to upload
      *
+     * Uploads that can wait are skipped while the {@link TransferScheduler} doesn't allow
+     * them, so that the worker goes on with the next ones; they are queued again by
+     * {@link #resumeWaitingUploads()}.
+     *
      * @param uploadKey Key to access the upload to perform, contained in mPendingUploads
+     * @return          'True' if the upload was paused by the scheduler, and has to be run
+     *                  again.
      */
-    public void uploadFile(String uploadKey) {
+    public boolean uploadFile(String uploadKey) {
+        boolean paused = false;
+
+        if (mDeferrableUploads.contains(uploadKey)) {
+            UploadFileOperation upload = mPendingUploads.get(uploadKey);
+            if (upload != null && !mScheduler.canRun(requiresUnmeteredNetwork(upload))) {
+                Log_OC.d(TAG, "Upload of " + upload.getRemotePath() + " waiting for conditions");
+                mWaitingUploads.add(uploadKey);
+                return false;
+            }
+        }
 
         mCurrentUpload = mPendingUploads.get(uploadKey);
 
         if (mCurrentUpload != null) {
+            mCurrentUploadKey = uploadKey;
             // Detect if the account exists
             if (AccountUtils.exists(mCurrentUpload.getAccount(), getApplicationContext())) {
                 Log_OC.d(TAG, "Account " + mCurrentUpload.getAccount().name + " exists");
 
                 notifyUploadStart(mCurrentUpload);
+                mCurrentUploadJournalPath = mCurrentUpload.getRemotePath();
+                TransferJournal.started(getApplicationContext(), TransferJournal.TYPE_UPLOAD,
+                        mCurrentUpload.getAccount().name, mCurrentUploadJournalPath);
+                ProgressDispatcher.startAll(mCurrentUpload.getDataTransferListeners(),
+                        mCurrentUpload.getFile().getFileLength(),
+                        mCurrentUpload.getStoragePath());
 
                 RemoteOperationResult uploadResult = null, grantResult;
 
@@ -577,19 +847,30 @@ public class FileUploader extends Service
                     String remoteParentPath = new File(mCurrentUpload.getRemotePath()).getParent();
                     remoteParentPath = remoteParentPath.endsWith(OCFile.PATH_SEPARATOR) ?
                             remoteParentPath : remoteParentPath + OCFile.PATH_SEPARATOR;
-                    grantResult = grantFolderExistence(remoteParentPath);
+                    grantResult = grantFolderExistence(remoteParentPath, true);
 
                     /// perform the upload
                     if (grantResult.isSuccess()) {
-                        OCFile parent = mStorageManager.getFileByPath(remoteParentPath);
-                        mCurrentUpload.getFile().setParentId(parent.getFileId());
-                        uploadResult = mCurrentUpload.execute(mUploadClient);
+                        uploadResult = uploadToFolder(remoteParentPath);
+                        if (isParentFolderMissing(uploadResult)) {
+                            // the folder was known, but removed in the server since then;
+                            // check it for real, creating it if allowed, and try once more
+                            KnownRemoteFolders.invalidate(mCurrentAccount.name,
+                                    remoteParentPath);
+                            grantResult = grantFolderExistence(remoteParentPath, false);
+                            uploadResult = grantResult.isSuccess() ?
+                                    uploadToFolder(remoteParentPath) : grantResult;
+                        }
                         if (uploadResult.isSuccess()) {
                             saveUploadedFile();
 
                         } else if (uploadResult.getCode() == ResultCode.SYNC_CONFLICT) {
                             mStorageManager.saveConflict(mCurrentUpload.getFile(),
                                     mCurrentUpload.getFile().getEtagInConflict());
+
+                        } else if (isParentFolderMissing(uploadResult)) {
+                            KnownRemoteFolders.invalidate(mCurrentAccount.name,
+                                    remoteParentPath);
                         }
                     } else {
                         uploadResult = grantResult;
@@ -600,23 +881,49 @@ public class FileUploader extends Service
                     uploadResult = new RemoteOperationResult(e);
 
                 } finally {
-                    Pair<UploadFileOperation, String> removeResult;
-                    if (mCurrentUpload.wasRenamed()) {
-                        removeResult = mPendingUploads.removePayload(
-                                mCurrentAccount,
-                                mCurrentUpload.getOldFile().getRemotePath()
-                        );
-                    } else {
-                        removeResult = mPendingUploads.removePayload(
-                                mCurrentAccount,
-                                mCurrentUpload.getRemotePath()
-                        );
+                    ProgressDispatcher.finishAll(mCurrentUpload.getDataTransferListeners());
+                    if (mPausedUpload == mCurrentUpload &&
+                            (uploadResult == null || !uploadResult.isSuccess())) {
+                        paused = requeuePausedUpload(uploadKey, mCurrentUpload);
                     }
+                    mPausedUpload = null;
+                    mCurrentUploadKey = null;
+
+                    if (!paused) {
+                        Pair<UploadFileOperation, String> removeResult;
+                        if (mCurrentUpload.wasRenamed()) {
+                            removeResult = mPendingUploads.removePayload(
+                                    mCurrentAccount,
+                                    mCurrentUpload.getOldFile().getRemotePath()
+                            );
+                        } else {
+                            removeResult = mPendingUploads.removePayload(
+                                    mCurrentAccount,
+                                    mCurrentUpload.getRemotePath()
+                            );
+                        }
+
+                        if (uploadResult != null && uploadResult.isSuccess()) {
+                            TransferJournal.completed(getApplicationContext(),
+                                    TransferJournal.TYPE_UPLOAD, mCurrentUpload.getAccount().name,
+                                    mCurrentUploadJournalPath,
+                                    mCurrentUpload.getFile().getFileLength());
+                        } else {
+                            TransferJournal.removed(getApplicationContext(),
+                                    TransferJournal.TYPE_UPLOAD, mCurrentUpload.getAccount().name,
+                                    mCurrentUploadJournalPath);
+                        }
+                        mCurrentUploadJournalPath = null;
+                        releaseReadPermission(mCurrentUpload);
 
-                    /// notify result
-                    notifyUploadResult(mCurrentUpload, uploadResult);
+                        mDeferrableUploads.remove(uploadKey);
 
-                    sendBroadcastUploadFinished(mCurrentUpload, uploadResult, removeResult.second);
+                        /// notify result
+                        notifyUploadResult(mCurrentUpload, uploadResult);
+
+                        sendBroadcastUploadFinished(mCurrentUpload, uploadResult,
+                                removeResult.second);
+                    }
                 }
 
             } else {
@@ -628,6 +935,101 @@ public class FileUploader extends Service
             }
         }
 
+        return paused;
+    }
+
+
+    /**
+     * Replaces an upload paused by the scheduler with a new operation, to run again when
+     * conditions allow it. Chunked uploads resume from the chunks already in the server.
+     *
+     * @param uploadKey     Key of the upload in mPendingUploads.
+     * @param upload        Operation paused.
+     * @return              'True' if the upload was replaced; 'false' if it was cancelled
+     *                      meanwhile.
+     */
+    private boolean requeuePausedUpload(String uploadKey, UploadFileOperation upload) {
+        OCFile file = upload.wasRenamed() ? upload.getOldFile() : upload.getFile();
+        UploadFileOperation resumed = newUploadOperation(upload.getAccount(), file,
+                upload.isChunked(), upload.isInstant(), upload.getForceOverwrite(),
+                upload.getLocalBehaviour());
+        if (!mPendingUploads.replacePayload(uploadKey, resumed)) {
+            return false;
+        }
+        mNotificationManager.cancel(R.string.uploader_upload_in_progress_ticker);
+        TransferJournal.paused(getApplicationContext(), TransferJournal.TYPE_UPLOAD,
+                upload.getAccount().name, mCurrentUploadJournalPath);
+        mCurrentUploadJournalPath = null;
+        Log_OC.d(TAG, "Upload of " + file.getRemotePath() + " paused");
+        return true;
+    }
+
+
+    /**
+     * Pauses the upload in progress if it can wait and the {@link TransferScheduler} doesn't
+     * allow it anymore.
+     *
+     * Called in the main thread when the conditions of the device change.
+     */
+    private void pauseCurrentUploadIfNotAllowed() {
+        UploadFileOperation current = mCurrentUpload;
+        String currentKey = mCurrentUploadKey;
+        if (current != null && currentKey != null && mPausedUpload == null &&
+                mDeferrableUploads.contains(currentKey) &&
+                !mScheduler.canRun(requiresUnmeteredNetwork(current))) {
+            mPausedUpload = current;
+            current.cancel();
+        }
+    }
+
+
+    /**
+     * Queues again the waiting uploads allowed by the {@link TransferScheduler} now, and
+     * forgets those cancelled meanwhile. Lets the service stop if none is left waiting.
+     *
+     * Called when the conditions of the device change, and when uploads are cancelled.
+     */
+    private void resumeWaitingUploads() {
+        ArrayList<String> resumed = new ArrayList<String>();
+        boolean forgotten = false;
+        synchronized (mWaitingUploads) {
+            Iterator<String> it = mWaitingUploads.iterator();
+            while (it.hasNext()) {
+                String uploadKey = it.next();
+                UploadFileOperation upload = mPendingUploads.get(uploadKey);
+                if (upload == null) {
+                    it.remove();    // cancelled
+                    forgotten = true;
+                } else if (mScheduler.canRun(requiresUnmeteredNetwork(upload))) {
+                    it.remove();
+                    resumed.add(uploadKey);
+                }
+            }
+        }
+        ServiceHandler handler = mServiceHandler;
+        if (handler != null && (resumed.size() > 0 || forgotten)) {
+            Message msg = handler.obtainMessage();
+            msg.arg1 = mLastStartId;
+            msg.obj = (resumed.size() > 0) ? resumed : null;
+            handler.sendMessage(msg);
+        }
+    }
+
+
+    /**
+     * @param upload        Upload operation.
+     * @return              'True' if the upload is an instant upload set to be sent only
+     *                      through Wi-Fi.
+     */
+    private boolean requiresUnmeteredNetwork(UploadFileOperation upload) {
+        if (!upload.isInstant()) {
+            return false;
+        }
+        String mimeType = upload.getMimeType();
+        if (mimeType != null && mimeType.startsWith("video/")) {
+            return InstantUploadBroadcastReceiver.instantVideoUploadViaWiFiOnly(this);
+        }
+        return InstantUploadBroadcastReceiver.instantPictureUploadViaWiFiOnly(this);
     }
 
     /**
@@ -638,21 +1040,34 @@ public class FileUploader extends Service
      * create it both remote and locally.
      *
      *  @param  pathToGrant     Full remote path whose existence will be granted.
+     *  @param  trustLocalData  When 'false', the server is asked even if the folder is known
+     *                          to exist from the local database.
      *  @return  An {@link OCFile} instance corresponding to the folder where the file
      *  will be uploaded.
      */
-    private RemoteOperationResult grantFolderExistence(String pathToGrant) {
-        RemoteOperation operation = new ExistenceCheckRemoteOperation(pathToGrant, this, false);
-        RemoteOperationResult result = operation.execute(mUploadClient);
-        if (!result.isSuccess() && result.getCode() == ResultCode.FILE_NOT_FOUND &&
-                mCurrentUpload.isRemoteFolderToBeCreated()) {
-            SyncOperation syncOp = new CreateFolderOperation( pathToGrant, true);
-            result = syncOp.execute(mUploadClient, mStorageManager);
+    private RemoteOperationResult grantFolderExistence(String pathToGrant,
+                                                       boolean trustLocalData) {
+        RemoteOperationResult result;
+        if (trustLocalData && isKnownFolder(mCurrentAccount, mStorageManager, pathToGrant)) {
+            result = new RemoteOperationResult(ResultCode.OK);
+
+        } else {
+            RemoteOperation operation =
+                    new ExistenceCheckRemoteOperation(pathToGrant, this, false);
+            result = operation.execute(mUploadClient);
+            if (!result.isSuccess() && result.getCode() == ResultCode.FILE_NOT_FOUND &&
+                    mCurrentUpload.isRemoteFolderToBeCreated()) {
+                SyncOperation syncOp = new CreateFolderOperation( pathToGrant, true);
+                result = syncOp.execute(mUploadClient, mStorageManager);
+            }
+            if (result.isSuccess()) {
+                KnownRemoteFolders.add(mCurrentAccount.name, pathToGrant);
+            }
         }
         if (result.isSuccess()) {
             OCFile parentDir = mStorageManager.getFileByPath(pathToGrant);
             if (parentDir == null) {
-                parentDir = createLocalFolder(pathToGrant);
+                parentDir = createLocalFolder(mStorageManager, pathToGrant);
             }
             if (parentDir != null) {
                 result = new RemoteOperationResult(ResultCode.OK);
@@ -664,19 +1079,137 @@ public class FileUploader extends Service
     }
 
 
-    private OCFile createLocalFolder(String remotePath) {
+    /**
+     * Uploads the current file into a folder already granted to exist.
+     *
+     * @param remoteParentPath  Remote path of the folder.
+     * @return                  Result of the upload.
+     */
+    private RemoteOperationResult uploadToFolder(String remoteParentPath) {
+        OCFile parent = mStorageManager.getFileByPath(remoteParentPath);
+        mCurrentUpload.getFile().setParentId(parent.getFileId());
+        return mCurrentUpload.execute(mUploadClient);
+    }
+
+
+    /**
+     * @param uploadResult  Result of a failed upload.
+     * @return              'True' if the upload failed because its parent folder is not in
+     *                      the server.
+     */
+    private static boolean isParentFolderMissing(RemoteOperationResult uploadResult) {
+        return !uploadResult.isSuccess() &&
+                (uploadResult.getHttpCode() == HttpStatus.SC_CONFLICT ||
+                        uploadResult.getCode() == ResultCode.FILE_NOT_FOUND);
+    }
+
+
+    /**
+     * Checks if a remote folder is known to exist, without asking the server.
+     *
+     * Folders in the local database with a remote id were found in the server by a previous
+     * synchronization; they are added to {@link KnownRemoteFolders} the first time they are
+     * checked.
+     */
+    private boolean isKnownFolder(Account account, FileDataStorageManager storageManager,
+                                  String folderPath) {
+        if (KnownRemoteFolders.contains(account.name, folderPath)) {
+            return true;
+        }
+        OCFile folder = storageManager.getFileByPath(folderPath);
+        if (folder != null && folder.isFolder() && folder.getRemoteId() != null &&
+                folder.getRemoteId().length() > 0) {
+            KnownRemoteFolders.add(account.name, folderPath);
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Creates the remote folders needed by the uploads of a batch allowed to create them,
+     * before uploading any of them.
+     *
+     * All the folders are created in a single pass, parents before children, with a MKCOL
+     * request for every folder not known to exist, instead of checking and creating the
+     * full path of the parent folder once per upload. Uploads whose folders could not be
+     * created here try again by themselves.
+     *
+     * @param uploadKeys    Keys of the uploads of the batch in mPendingUploads.
+     */
+    private void createFoldersForBatch(List<String> uploadKeys) {
+        Map<Account, TreeSet<String>> foldersPerAccount = new HashMap<Account, TreeSet<String>>();
+        for (String uploadKey : uploadKeys) {
+            UploadFileOperation upload = mPendingUploads.get(uploadKey);
+            if (upload == null || !upload.isRemoteFolderToBeCreated()) {
+                continue;
+            }
+            TreeSet<String> folders = foldersPerAccount.get(upload.getAccount());
+            if (folders == null) {
+                folders = new TreeSet<String>();    // ancestors sort before descendants
+                foldersPerAccount.put(upload.getAccount(), folders);
+            }
+            String path = upload.getRemotePath();
+            int separator;
+            while ((separator = path.lastIndexOf(OCFile.PATH_SEPARATOR, path.length() - 2)) > 0) {
+                path = path.substring(0, separator + 1);
+                folders.add(path);
+            }
+        }
+
+        for (Map.Entry<Account, TreeSet<String>> entry : foldersPerAccount.entrySet()) {
+            Account account = entry.getKey();
+            if (!AccountUtils.exists(account, getApplicationContext())) {
+                continue;
+            }
+            try {
+                OwnCloudClient client = OwnCloudClientManagerFactory.getDefaultSingleton().
+                        getClientFor(new OwnCloudAccount(account, this), this);
+                FileDataStorageManager storageManager =
+                        new FileDataStorageManager(account, getContentResolver());
+                int created = 0;
+                for (String folderPath : entry.getValue()) {
+                    if (!isKnownFolder(account, storageManager, folderPath)) {
+                        SyncOperation createOp = new CreateFolderOperation(folderPath, false);
+                        RemoteOperationResult result = createOp.execute(client, storageManager);
+                        created++;
+                        if (!result.isSuccess() &&
+                                result.getHttpCode() != HttpStatus.SC_METHOD_NOT_ALLOWED) {
+                            // 405 would mean the folder already existed
+                            Log_OC.w(TAG, "Could not create " + folderPath + " for uploads: " +
+                                    result.getLogMessage());
+                            break;  // descendants would fail too
+                        }
+                        KnownRemoteFolders.add(account.name, folderPath);
+                    }
+                    if (storageManager.getFileByPath(folderPath) == null) {
+                        // children are saved in the database under their parent
+                        createLocalFolder(storageManager, folderPath);
+                    }
+                }
+                Log_OC.d(TAG, "Granted " + entry.getValue().size() + " folders for uploads in " +
+                        account.name + " with " + created + " requests");
+
+            } catch (Exception e) {
+                Log_OC.e(TAG, "Could not create folders for uploads in " + account.name, e);
+            }
+        }
+    }
+
+
+    private OCFile createLocalFolder(FileDataStorageManager storageManager, String remotePath) {
         String parentPath = new File(remotePath).getParent();
         parentPath = parentPath.endsWith(OCFile.PATH_SEPARATOR) ?
                 parentPath : parentPath + OCFile.PATH_SEPARATOR;
-        OCFile parent = mStorageManager.getFileByPath(parentPath);
+        OCFile parent = storageManager.getFileByPath(parentPath);
         if (parent == null) {
-            parent = createLocalFolder(parentPath);
+            parent = createLocalFolder(storageManager, parentPath);
         }
         if (parent != null) {
             OCFile createdFolder = new OCFile(remotePath);
             createdFolder.setMimetype("DIR");
             createdFolder.setParentId(parent.getFileId());
-            mStorageManager.saveFile(createdFolder);
+            storageManager.saveFile(createdFolder);
             return createdFolder;
         }
         return null;
@@ -769,7 +1302,11 @@ public class FileUploader extends Service
         newFile.setLastSyncDateForData(0);
 
         // size
-        if (localPath != null && localPath.length() > 0) {
+        if (localPath != null && localPath.startsWith(UriUtils.URI_CONTENT_SCHEME)) {
+            // content streamed from its provider; 0 if the provider doesn't know it
+            newFile.setFileLength(Math.max(0, UriUtils.getContentLength(this,
+                    Uri.parse(localPath))));
+        } else if (localPath != null && localPath.length() > 0) {
             File localFile = new File(localPath);
             newFile.setFileLength(localFile.length());
             newFile.setLastSyncDateForData(localFile.lastModified());
@@ -814,17 +1351,26 @@ public class FileUploader extends Service
     }
 
     /**
-     * Callback method to update the progress bar in the status notification
+     * Callback method to update the progress bar in the status notification; called through
+     * a {@link ProgressDispatcher}, a few times per second.
      */
     @Override
     public void onTransferProgress(long progressRate, long totalTransferredSoFar,
                                    long totalToTransfer, String filePath) {
-        int percent = (int) (100.0 * ((double) totalTransferredSoFar) / ((double) totalToTransfer));
+        // size of content streamed from a provider may be unknown (-1)
+        int percent = (totalToTransfer > 0) ?
+                (int) (100.0 * ((double) totalTransferredSoFar) / ((double) totalToTransfer)) : -1;
+        String journalPath = mCurrentUploadJournalPath;
+        if (journalPath != null) {
+            TransferJournal.progress(getApplicationContext(), TransferJournal.TYPE_UPLOAD,
+                    mCurrentUpload.getAccount().name, journalPath, totalTransferredSoFar);
+        }
         if (percent != mLastPercent) {
-            mNotificationBuilder.setProgress(100, percent, false);
+            mNotificationBuilder.setProgress(100, Math.max(percent, 0), percent < 0);
             String fileName = filePath.substring(
                     filePath.lastIndexOf(FileUtils.PATH_SEPARATOR) + 1);
-            String text = String.format(getString(R.string.uploader_upload_in_progress_content), percent, fileName);
+            String text = String.format(getString(R.string.uploader_upload_in_progress_content),
+                    Math.max(percent, 0), fileName);
             mNotificationBuilder.setContentText(text);
             mNotificationManager.notify(R.string.uploader_upload_in_progress_ticker, mNotificationBuilder.build());
         }
@@ -942,7 +1488,7 @@ public class FileUploader extends Service
     }
 
     /**
-     * Sends a broadcast in order to the interested activities can update their
+     * Posts an event in order to the interested activities can update their
      * view
      *
      * @param upload                    Finished upload operation
@@ -954,23 +1500,20 @@ public class FileUploader extends Service
             RemoteOperationResult uploadResult,
             String unlinkedFromRemotePath) {
 
-        Intent end = new Intent(getUploadFinishMessage());
-        end.putExtra(EXTRA_REMOTE_PATH, upload.getRemotePath()); // real remote
-        // path, after
-        // possible
-        // automatic
-        // renaming
+        TransferEvent end = new TransferEvent(
+                getUploadFinishMessage(),
+                upload.getAccount().name,
+                upload.getRemotePath(), // real remote path, after possible automatic renaming
+                upload.getStoragePath(),
+                unlinkedFromRemotePath,
+                uploadResult.isSuccess()
+        );
         if (upload.wasRenamed()) {
-            end.putExtra(EXTRA_OLD_REMOTE_PATH, upload.getOldFile().getRemotePath());
-        }
-        end.putExtra(EXTRA_OLD_FILE_PATH, upload.getOriginalStoragePath());
-        end.putExtra(ACCOUNT_NAME, upload.getAccount().name);
-        end.putExtra(EXTRA_UPLOAD_RESULT, uploadResult.isSuccess());
-        if (unlinkedFromRemotePath != null) {
-            end.putExtra(EXTRA_LINKED_TO_PATH, unlinkedFromRemotePath);
+            end.setOldRemotePath(upload.getOldFile().getRemotePath());
         }
+        end.setOldLocalPath(upload.getOriginalStoragePath());
 
-        sendStickyBroadcast(end);
+        SyncEventBus.getInstance().postSticky(end);
     }
 
     /**
@@ -996,6 +1539,26 @@ public class FileUploader extends Service
      */
     private void cancelUploadsForAccount(Account account){
         // Cancel pending uploads
-        mPendingUploads.remove(account);
+        TransferJournal.removed(getApplicationContext(), TransferJournal.TYPE_UPLOAD,
+                account.name, null);
+        List<UploadFileOperation> removedUploads = mPendingUploads.remove(account);
+        for (UploadFileOperation upload : removedUploads) {
+            releaseReadPermission(upload);
+        }
+        resumeWaitingUploads();
+    }
+
+
+    /**
+     * Gives back the permission taken to read the content of an upload from a content
+     * provider after a restart, once the upload is not going to be tried again.
+     *
+     * @param upload        Upload completed, failed or cancelled.
+     */
+    private void releaseReadPermission(UploadFileOperation upload) {
+        String localPath = upload.getOriginalStoragePath();
+        if (localPath != null && localPath.startsWith(UriUtils.URI_CONTENT_SCHEME)) {
+            UriUtils.releaseReadPermission(getApplicationContext(), Uri.parse(localPath));
+        }
     }
 }
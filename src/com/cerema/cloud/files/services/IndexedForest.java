@@ -18,230 +18,366 @@
  *
  */
 
+
 package com.cerema.cloud.files.services;
 
 import android.accounts.Account;
 import android.util.Pair;
 
 import com.cerema.cloud.datamodel.OCFile;
-import com.cerema.cloud.lib.common.utils.Log_OC;
 
-import java.io.File;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Set;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 /**
  *  Helper structure to keep the trees of folders containing any file downloading or synchronizing.
  *
- *  A map provides the indexation based in hashing.
+ *  A tree is created per account, as a trie of the names in the remote paths: inserting,
+ *  removing and checking if a folder contains any pending element walk only the path of
+ *  the element, whatever the number of elements in the forest. Elements are indexed by key
+ *  too, to be found by the transfer services with a single lookup.
  *
- *  A tree is created per account.
+ *  Modifications are serialized; queries don't lock, so that views can check the state of
+ *  every file they show without waiting for the services.
  */
 public class IndexedForest<V> {
 
-    private ConcurrentMap<String, Node<V>> mMap = new ConcurrentHashMap<String, Node<V>>();
+    /** Roots of the trees, per account name */
+    private final ConcurrentMap<String, Node<V>> mRoots = new ConcurrentHashMap<String, Node<V>>();
 
-    private class Node<V> {
-        String mKey = null;
-        Node<V> mParent = null;
-        Set<Node<V>> mChildren = new HashSet<Node<V>>();    // TODO be careful with hash()
-        V mPayload = null;
-
-        // payload is optional
-        public Node(String key, V payload) {
-            if (key == null) {
-                throw new IllegalArgumentException("Argument key MUST NOT be null");
-            }
-            mKey = key;
-            mPayload = payload;
-        }
+    /** Nodes with payload, per key */
+    private final ConcurrentMap<String, Node<V>> mIndex = new ConcurrentHashMap<String, Node<V>>();
 
-        public Node<V> getParent() {
-            return mParent;
-        };
+    private static class Node<V> {
+        final Segment mName;
+        final String mPath;
+        final Node<V> mParent;
+        final ConcurrentMap<Segment, Node<V>> mChildren =
+                new ConcurrentHashMap<Segment, Node<V>>(4);
+        volatile V mPayload = null;
+        String mKey = null;
+        volatile boolean mDetached = false;
 
-        public Set<Node<V>> getChildren() {
-            return mChildren;
+        Node(Segment name, String path, Node<V> parent) {
+            mName = name;
+            mPath = path;
+            mParent = parent;
         }
 
-        public String getKey() {
-            return mKey;
+        boolean isEmpty() {
+            return mPayload == null && mChildren.isEmpty();
         }
 
-        public V getPayload() {
-            return mPayload;
+        /**
+         * @return  'True' if the node is still in its tree.
+         */
+        boolean isAttached() {
+            Node<V> node = this;
+            while (node != null) {
+                if (node.mDetached) {
+                    return false;
+                }
+                node = node.mParent;
+            }
+            return true;
         }
+    }
 
-        public void addChild(Node<V> child) {
-            mChildren.add(child);
-            child.setParent(this);
+
+    /**
+     * Name of a node, as a range of characters in a string, so that paths can be walked
+     * without creating a string per name in them. Hashes like the name it represents.
+     */
+    private static final class Segment {
+        private String mSource;
+        private int mStart;
+        private int mEnd;
+        private int mHash;
+
+        Segment(String name) {
+            set(name, 0, name.length());
         }
 
-        private void setParent(Node<V> parent) {
-            mParent = parent;
+        Segment() {
         }
 
-        public boolean hasChildren() {
-            return mChildren.size() > 0;
+        Segment set(String source, int start, int end) {
+            mSource = source;
+            mStart = start;
+            mEnd = end;
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + source.charAt(i);
+            }
+            mHash = hash;
+            return this;
         }
 
-        public void removeChild(Node<V> removed) {
-            mChildren.remove(removed);
+        @Override
+        public int hashCode() {
+            return mHash;
         }
 
-        public void clearPayload() {
-            mPayload = null;
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Segment)) {
+                return false;
+            }
+            Segment other = (Segment) o;
+            int length = mEnd - mStart;
+            return mHash == other.mHash && length == other.mEnd - other.mStart &&
+                    mSource.regionMatches(mStart, other.mSource, other.mStart, length);
         }
     }
 
 
-    public /* synchronized */ Pair<String, String> putIfAbsent(Account account, String remotePath, V value) {
-        String targetKey = buildKey(account, remotePath);
-        Node<V> valuedNode = new Node(targetKey, value);
-        Node<V> previousValue = mMap.putIfAbsent(
-            targetKey,
-            valuedNode
-        );
-        if (previousValue != null) {
-            // remotePath already known; not replaced
-            return null;
+    /**
+     * Adds an element to the tree of an account, with all the folders containing it.
+     *
+     * @param account       ownCloud account.
+     * @param remotePath    Remote path of the element.
+     * @param value         Payload of the element.
+     * @return              Key of the element and remote path of the folder in the tree it was
+     *                      linked to; null if there was already an element with the path.
+     */
+    public synchronized Pair<String, String> putIfAbsent(Account account, String remotePath, V value) {
+        Node<V> root = mRoots.get(account.name);
+        if (root == null) {
+            root = new Node<V>(new Segment(""), OCFile.ROOT_PATH, null);
+            mRoots.put(account.name, root);
+        }
 
-        } else {
-            // value really added
-            String currentPath = remotePath, parentPath = null, parentKey = null;
-            Node<V> currentNode = valuedNode, parentNode = null;
-            boolean linked = false;
-            while (!OCFile.ROOT_PATH.equals(currentPath) && !linked) {
-                parentPath = new File(currentPath).getParent();
-                if (!parentPath.endsWith(OCFile.PATH_SEPARATOR)) {
-                    parentPath += OCFile.PATH_SEPARATOR;
-                }
-                parentKey = buildKey(account, parentPath);
-                parentNode = mMap.get(parentKey);
-                if (parentNode == null) {
-                    parentNode = new Node(parentKey, null);
-                    parentNode.addChild(currentNode);
-                    mMap.put(parentKey, parentNode);
-                } else {
-                    parentNode.addChild(currentNode);
-                    linked = true;
-                }
-                currentPath = parentPath;
-                currentNode = parentNode;
+        Node<V> node = root;
+        Node<V> linkedTo = null;
+        Segment lookup = new Segment();
+        int start = 1;
+        while (start < remotePath.length()) {
+            int end = remotePath.indexOf(OCFile.PATH_SEPARATOR, start);
+            if (end < 0) {
+                end = remotePath.length();
             }
-
-            String linkedTo = OCFile.ROOT_PATH;
-            if (linked) {
-                linkedTo = parentNode.getKey().substring(account.name.length());
+            Node<V> child = node.mChildren.get(lookup.set(remotePath, start, end));
+            if (child == null) {
+                if (linkedTo == null) {
+                    linkedTo = node;
+                }
+                Segment name = new Segment(remotePath.substring(start, end));
+                String path = (end < remotePath.length()) ?
+                        remotePath.substring(0, end + 1) : remotePath;
+                child = new Node<V>(name, path, node);
+                node.mChildren.put(name, child);
             }
+            node = child;
+            start = end + 1;
+        }
 
-            return new Pair<String, String>(targetKey, linkedTo);
+        if (node.mPayload != null) {
+            return null;    // remotePath already known; not replaced
         }
-    };
+        node.mPayload = value;
+        String targetKey = buildKey(account, remotePath);
+        node.mKey = targetKey;
+        mIndex.put(targetKey, node);
+        return new Pair<String, String>(targetKey,
+                (linkedTo != null) ? linkedTo.mPath : node.mPath);
+    }
 
 
-    public Pair<V, String> removePayload(Account account, String remotePath) {
-        String targetKey = buildKey(account, remotePath);
-        Node<V> target = mMap.get(targetKey);
+    /**
+     * Removes the payload of an element, keeping it in the tree while it contains other
+     * elements.
+     *
+     * @param account       ownCloud account.
+     * @param remotePath    Remote path of the element.
+     * @return              Payload removed, and remote path of the folder in the tree the
+     *                      element was unlinked from, if it was removed.
+     */
+    public synchronized Pair<V, String> removePayload(Account account, String remotePath) {
+        Node<V> target = find(account.name, remotePath);
         if (target != null) {
-            target.clearPayload();
-            if (!target.hasChildren()) {
-                return remove(account, remotePath);
+            V payload = target.mPayload;
+            target.mPayload = null;
+            if (target.mKey != null) {
+                mIndex.remove(target.mKey, target);
+                target.mKey = null;
             }
+            if (target.mChildren.isEmpty()) {
+                return new Pair<V, String>(payload, detach(account.name, target));
+            }
+            return new Pair<V, String>(payload, null);
         }
         return new Pair<V, String>(null, null);
     }
 
 
-    public /* synchronized */ Pair<V, String> remove(Account account, String remotePath) {
-        String targetKey = buildKey(account, remotePath);
-        Node<V> firstRemoved = mMap.remove(targetKey);
-        String unlinkedFrom = null;
-
-        if (firstRemoved != null) {
-            /// remove children
-            removeDescendants(firstRemoved);
-
-            /// remove ancestors if only here due to firstRemoved
-            Node<V> removed = firstRemoved;
-            Node<V> parent = removed.getParent();
-            boolean unlinked = false;
-            while (parent != null) {
-                parent.removeChild(removed);
-                if (!parent.hasChildren()) {
-                    removed = mMap.remove(parent.getKey());
-                    parent = removed.getParent();
-                } else {
-                    break;
-                }
-            }
-
-            if (parent != null) {
-                unlinkedFrom = parent.getKey().substring(account.name.length());
-            }
-
-            return new Pair<V, String>(firstRemoved.getPayload(), unlinkedFrom);
+    /**
+     * Removes an element with all the elements it contains.
+     *
+     * @param account       ownCloud account.
+     * @param remotePath    Remote path of the element.
+     * @return              Payload removed, and remote path of the folder in the tree the
+     *                      element was unlinked from.
+     */
+    public synchronized Pair<V, String> remove(Account account, String remotePath) {
+        Node<V> target = find(account.name, remotePath);
+        if (target != null) {
+            V payload = target.mPayload;
+            removeFromIndex(target);
+            return new Pair<V, String>(payload, detach(account.name, target));
         }
-
         return new Pair<V, String>(null, null);
     }
 
-    private void removeDescendants(Node<V> removed) {
-        Iterator<Node<V>> childrenIt = removed.getChildren().iterator();
-        Node<V> child = null;
-        while (childrenIt.hasNext()) {
-            child = childrenIt.next();
-            mMap.remove(child.getKey());
-            removeDescendants(child);
+
+    /**
+     * Replaces the payload of an element, keeping its place in the forest.
+     *
+     * @param key       Key of the element.
+     * @param value     New payload.
+     * @return          'True' if the element was found with a payload, and replaced.
+     */
+    public synchronized boolean replacePayload(String key, V value) {
+        Node<V> node = mIndex.get(key);
+        if (node == null || node.mPayload == null || !node.isAttached()) {
+            return false;
         }
+        node.mPayload = value;
+        return true;
     }
 
+
+    /**
+     * @param account       ownCloud account.
+     * @param remotePath    Remote path of a file or folder.
+     * @return              'True' if there is an element with the path, or if it's a folder
+     *                      containing any element.
+     */
     public boolean contains(Account account, String remotePath) {
-        String targetKey = buildKey(account, remotePath);
-        return mMap.containsKey(targetKey);
+        return find(account.name, remotePath) != null;
     }
 
-    public /* synchronized */ V get(String key) {
-        Node<V> node = mMap.get(key);
-        if (node != null) {
-            return node.getPayload();
-        } else {
+
+    public V get(String key) {
+        Node<V> node = mIndex.get(key);
+        if (node == null) {
             return null;
         }
+        if (!node.isAttached()) {
+            mIndex.remove(key, node);   // left by the removal of its account
+            return null;
+        }
+        return node.mPayload;
     }
 
+
     public V get(Account account, String remotePath) {
-        String key = buildKey(account, remotePath);
-        return get(key);
+        Node<V> node = find(account.name, remotePath);
+        return (node != null) ? node.mPayload : null;
     }
 
 
     /**
-     * Remove the elements that contains account as a part of its key
-     * @param account
+     * Removes all the elements of an account.
+     *
+     * The tree of the account is detached at once; its keys are swept from the index
+     * afterwards, out of the lock, so that other modifications don't wait for it.
+     *
+     * @param account       ownCloud account.
+     * @return              Payloads of the elements removed.
      */
-    public void remove(Account account){
-        Iterator<String> it = mMap.keySet().iterator();
-        while (it.hasNext()) {
-            String key = it.next();
-            Log_OC.d("IndexedForest", "Number of pending downloads= "  + mMap.size());
-            if (key.startsWith(account.name)) {
-                mMap.remove(key);
+    public List<V> remove(Account account){
+        List<V> payloads = new ArrayList<V>();
+        Node<V> root;
+        synchronized (this) {
+            root = mRoots.remove(account.name);
+            if (root == null) {
+                return payloads;
             }
+            root.mDetached = true;
         }
+        removeFromIndex(root, payloads);  // entries of nodes added later are not matched
+        return payloads;
     }
 
+
     /**
      * Builds a key to index files
      *
      * @param account       Account where the file to download is stored
      * @param remotePath    Path of the file in the server
      */
-    private String buildKey(Account account, String remotePath) {
+    String buildKey(Account account, String remotePath) {
         return account.name + remotePath;
     }
 
+
+    /**
+     * Walks the tree of an account down to a path.
+     *
+     * @return  Node of the path, or null if not in the tree.
+     */
+    private Node<V> find(String accountName, String remotePath) {
+        Node<V> node = mRoots.get(accountName);
+        Segment lookup = new Segment();
+        int start = 1;
+        while (node != null && start < remotePath.length()) {
+            int end = remotePath.indexOf(OCFile.PATH_SEPARATOR, start);
+            if (end < 0) {
+                end = remotePath.length();
+            }
+            node = node.mChildren.get(lookup.set(remotePath, start, end));
+            start = end + 1;
+        }
+        return node;
+    }
+
+
+    /**
+     * Unlinks a node from its tree, with the folders above it that don't contain anything
+     * else.
+     *
+     * @return  Remote path of the folder the node was unlinked from, or null if the whole
+     *          tree was emptied.
+     */
+    private String detach(String accountName, Node<V> node) {
+        Node<V> removed = node;
+        Node<V> parent = node.mParent;
+        while (parent != null) {
+            removed.mDetached = true;
+            parent.mChildren.remove(removed.mName, removed);
+            if (!parent.isEmpty()) {
+                return parent.mPath;
+            }
+            removed = parent;
+            parent = parent.mParent;
+        }
+        // the whole tree is empty, or its root was removed
+        removed.mDetached = true;
+        mRoots.remove(accountName, removed);
+        return null;
+    }
+
+
+    private void removeFromIndex(Node<V> node) {
+        removeFromIndex(node, null);
+    }
+
+
+    private void removeFromIndex(Node<V> node, List<V> payloads) {
+        if (node.mKey != null) {
+            mIndex.remove(node.mKey, node);
+        }
+        V payload = node.mPayload;
+        if (payloads != null && payload != null) {
+            payloads.add(payload);
+        }
+        Iterator<Node<V>> children = node.mChildren.values().iterator();
+        while (children.hasNext()) {
+            removeFromIndex(children.next(), payloads);
+        }
+    }
+
 }
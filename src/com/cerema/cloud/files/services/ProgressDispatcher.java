@@ -0,0 +1,190 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.files.services;
+
+import android.os.SystemClock;
+
+import com.cerema.cloud.lib.common.network.OnDatatransferProgressListener;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Forwards the progress of a single transfer to a listener at most once per interval of time,
+ * dropping the updates in between.
+ *
+ * Transfers report progress after every write of a buffer; the listeners of the app, such as
+ * notifications and progress bars, don't need nor stand that rate. The services call
+ * {@link #start(long, String)} and {@link #finish()} around every transfer, so that listeners
+ * always see it start at 0 and end with the last progress received, whatever the result of
+ * the transfer and even when its size is unknown.
+ *
+ * Nothing is allocated per update. Safe to be called from several threads, as segmented
+ * downloads do.
+ */
+public class ProgressDispatcher implements OnDatatransferProgressListener {
+
+    /** Interval between updates of notifications; 4 per second */
+    public static final long NOTIFICATION_INTERVAL_MS = 250;
+
+    /** Interval between updates of views; a frame */
+    public static final long UI_INTERVAL_MS = 16;
+
+    private final long mIntervalMs;
+    private final OnDatatransferProgressListener mTarget;
+
+    private long mLastDispatch = 0;
+    private boolean mStarted = false;
+    private boolean mFinished = false;
+
+    /** Last update received, and if it was dropped */
+    private long mLastRate = 0;
+    private long mLastTransferred = 0;
+    private long mLastTotal = -1;
+    private String mLastFileName = null;
+    private boolean mPending = false;
+
+
+    /**
+     * @param intervalMs    Min time between updates forwarded, in milliseconds.
+     * @param target        Listener to forward the updates to.
+     */
+    public ProgressDispatcher(long intervalMs, OnDatatransferProgressListener target) {
+        if (target == null) {
+            throw new IllegalArgumentException("Received invalid NULL target");
+        }
+        mIntervalMs = intervalMs;
+        mTarget = target;
+    }
+
+
+    /**
+     * Calls {@link #start(long, String)} on the dispatchers in a collection of listeners of
+     * a transfer.
+     *
+     * @param listeners         Listeners of a transfer; others than dispatchers are ignored.
+     * @param totalToTransfer   Size of the transfer, or -1 if unknown.
+     * @param fileName          Path of the file transferred.
+     */
+    public static void startAll(Collection<OnDatatransferProgressListener> listeners,
+                                long totalToTransfer, String fileName) {
+        for (ProgressDispatcher dispatcher : dispatchersIn(listeners)) {
+            dispatcher.start(totalToTransfer, fileName);
+        }
+    }
+
+
+    /**
+     * Calls {@link #finish()} on the dispatchers in a collection of listeners of a transfer.
+     *
+     * @param listeners         Listeners of a transfer; others than dispatchers are ignored.
+     */
+    public static void finishAll(Collection<OnDatatransferProgressListener> listeners) {
+        for (ProgressDispatcher dispatcher : dispatchersIn(listeners)) {
+            dispatcher.finish();
+        }
+    }
+
+
+    /**
+     * Starts a new transfer, forwarding an update with no bytes transferred.
+     *
+     * @param totalToTransfer   Size of the transfer, or -1 if unknown.
+     * @param fileName          Path of the file transferred.
+     */
+    public void start(long totalToTransfer, String fileName) {
+        synchronized (this) {
+            mStarted = true;
+            mFinished = false;
+            mPending = false;
+            mLastDispatch = SystemClock.uptimeMillis();
+        }
+        mTarget.onTransferProgress(0, 0, totalToTransfer, fileName);
+    }
+
+
+    /**
+     * Ends the transfer, forwarding the last update received if it was dropped. Called when
+     * the transfer finishes, fails or is cancelled.
+     */
+    public void finish() {
+        long rate, transferred, total;
+        String fileName;
+        synchronized (this) {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+            if (!mPending) {
+                return;
+            }
+            mPending = false;
+            rate = mLastRate;
+            transferred = mLastTransferred;
+            total = mLastTotal;
+            fileName = mLastFileName;
+        }
+        mTarget.onTransferProgress(rate, transferred, total, fileName);
+    }
+
+
+    @Override
+    public void onTransferProgress(long progressRate, long totalTransferredSoFar,
+                                   long totalToTransfer, String fileName) {
+        boolean last = (totalToTransfer > 0 && totalTransferredSoFar >= totalToTransfer);
+        long now = SystemClock.uptimeMillis();
+        synchronized (this) {
+            if (mFinished) {
+                return;
+            }
+            if (last) {
+                mFinished = true;
+            } else if (mStarted && now - mLastDispatch < mIntervalMs) {
+                mLastRate = progressRate;
+                mLastTransferred = totalTransferredSoFar;
+                mLastTotal = totalToTransfer;
+                mLastFileName = fileName;
+                mPending = true;
+                return;
+            }
+            mStarted = true;
+            mPending = false;
+            mLastDispatch = now;
+        }
+        mTarget.onTransferProgress(progressRate, totalTransferredSoFar, totalToTransfer,
+                fileName);
+    }
+
+
+    private static List<ProgressDispatcher> dispatchersIn(
+            Collection<OnDatatransferProgressListener> listeners) {
+        List<ProgressDispatcher> dispatchers = new ArrayList<ProgressDispatcher>();
+        synchronized (listeners) {
+            for (OnDatatransferProgressListener listener : listeners) {
+                if (listener instanceof ProgressDispatcher) {
+                    dispatchers.add((ProgressDispatcher) listener);
+                }
+            }
+        }
+        return dispatchers;
+    }
+
+}
@@ -0,0 +1,147 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.files.services;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.content.Intent;
+
+import com.cerema.cloud.datamodel.OCFile;
+import com.cerema.cloud.lib.common.utils.Log_OC;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects requests of downloads and uploads of files in the same account to send them
+ * to {@link FileDownloader} and {@link FileUploader} all together, with a single intent
+ * per service, instead of starting the service once per file.
+ *
+ * Only files already stored in the local database can be added; they are referred to by id,
+ * and the services read them again from the database. Changes made in memory to the added
+ * files that the transfers depend on have to be saved before submitting the batch.
+ */
+public class TransferBatch {
+
+    private static final String TAG = TransferBatch.class.getSimpleName();
+
+    private final Account mAccount;
+    private final List<Long> mDownloadIds = new ArrayList<Long>();
+    private final List<Long> mUploadIds = new ArrayList<Long>();
+    private boolean mForeground = false;
+
+
+    /**
+     * @param account       ownCloud account of all the files in the batch.
+     */
+    public TransferBatch(Account account) {
+        if (account == null) {
+            throw new IllegalArgumentException("Received invalid NULL in parameter 'account'");
+        }
+        mAccount = account;
+    }
+
+
+    /**
+     * Adds a download.
+     *
+     * @param file      File to download.
+     * @return          'False' if the file is not stored in the local database, and so it
+     *                  can't be added to the batch.
+     */
+    public synchronized boolean addDownload(OCFile file) {
+        if (file.getFileId() <= 0) {
+            return false;
+        }
+        mDownloadIds.add(file.getFileId());
+        return true;
+    }
+
+
+    /**
+     * Adds an upload overwriting the remote file, as synchronizations do.
+     *
+     * @param file      File to upload.
+     * @return          'False' if the file is not stored in the local database, and so it
+     *                  can't be added to the batch.
+     */
+    public synchronized boolean addUpload(OCFile file) {
+        if (file.getFileId() <= 0) {
+            return false;
+        }
+        mUploadIds.add(file.getFileId());
+        return true;
+    }
+
+
+    /**
+     * Marks the transfers of the batch as requested by the user, so that the transfer
+     * services don't defer them waiting for better network or battery conditions.
+     *
+     * @param foreground    'True' if the transfers were requested by the user.
+     */
+    public synchronized void setForeground(boolean foreground) {
+        mForeground = foreground;
+    }
+
+
+    public synchronized boolean isEmpty() {
+        return mDownloadIds.isEmpty() && mUploadIds.isEmpty();
+    }
+
+
+    /**
+     * Sends the collected requests to the transfer services and empties the batch.
+     *
+     * @param context       Android context used to start the services.
+     */
+    public synchronized void submit(Context context) {
+        if (!mDownloadIds.isEmpty()) {
+            Log_OC.d(TAG, "Requesting " + mDownloadIds.size() + " downloads");
+            Intent i = new Intent(context, FileDownloader.class);
+            i.putExtra(FileDownloader.EXTRA_ACCOUNT, mAccount);
+            i.putExtra(FileDownloader.EXTRA_FILE_IDS, toArray(mDownloadIds));
+            i.putExtra(FileDownloader.EXTRA_FOREGROUND, mForeground);
+            context.startService(i);
+            mDownloadIds.clear();
+        }
+        if (!mUploadIds.isEmpty()) {
+            Log_OC.d(TAG, "Requesting " + mUploadIds.size() + " uploads");
+            Intent i = new Intent(context, FileUploader.class);
+            i.putExtra(FileUploader.KEY_ACCOUNT, mAccount);
+            i.putExtra(FileUploader.KEY_FILE_IDS, toArray(mUploadIds));
+            i.putExtra(FileUploader.KEY_UPLOAD_TYPE, FileUploader.UPLOAD_MULTIPLE_FILES);
+            i.putExtra(FileUploader.KEY_FORCE_OVERWRITE, true);
+            i.putExtra(FileUploader.KEY_FOREGROUND, mForeground);
+            context.startService(i);
+            mUploadIds.clear();
+        }
+    }
+
+
+    private static long[] toArray(List<Long> ids) {
+        long[] array = new long[ids.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = ids.get(i);
+        }
+        return array;
+    }
+
+}
@@ -0,0 +1,368 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.files.services;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.SystemClock;
+
+import com.cerema.cloud.db.DbHandler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Journal of the transfers queued in {@link FileUploader} and {@link FileDownloader}, kept in
+ * the local database so that the queues survive the death of the process.
+ *
+ * Every transfer is saved when queued, marked when started and completed, and removed when it
+ * fails or is cancelled. The bytes transferred are saved while the transfer is in progress,
+ * at most once every {@link #PROGRESS_SAVE_INTERVAL_MS}.
+ *
+ * Writes and reads run in order in a single thread of the journal, through a connection to
+ * the database shared by all of them; callers never wait for the database.
+ *
+ * When a service is created again, it rebuilds its queue with the transfers not completed,
+ * with the data saved here and in the local database, without new requests to the server.
+ * Transfers restarted this way resume from the partial data left by the previous attempt.
+ */
+public class TransferJournal {
+
+    public static final int TYPE_DOWNLOAD = 0;
+    public static final int TYPE_UPLOAD = 1;
+
+    public static final int STATUS_QUEUED = 0;
+    public static final int STATUS_IN_PROGRESS = 1;
+    public static final int STATUS_COMPLETED = 2;
+
+    /** Min time between saves of the progress of a transfer */
+    private static final long PROGRESS_SAVE_INTERVAL_MS = 2000;
+
+    /** Time completed transfers are kept in the journal */
+    private static final long COMPLETED_TTL_MS = 24 * 60 * 60 * 1000;
+
+    /** Time of the last save of progress, per transfer */
+    private static final Map<String, Long> mLastProgressSaves = new HashMap<String, Long>();
+
+    /** Thread running every access to the journal, in the order requested */
+    private static final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    /** Connection to the database, open while the process lives; used only from mExecutor */
+    private static DbHandler mDb = null;
+
+
+    /**
+     * Interface to implement by the services to receive the transfers to restore.
+     */
+    public interface OnUnfinishedLoadedListener {
+
+        /**
+         * Called in the thread of the journal, before any later access to the journal.
+         *
+         * @param entries   Transfers queued or in progress, in the order they were queued.
+         */
+        void onUnfinishedLoaded(List<Entry> entries);
+    }
+
+
+    /**
+     * Transfer saved in the journal.
+     */
+    public static class Entry {
+
+        private final int mType;
+        private final String mAccountName;
+        private final String mRemotePath;
+        private final String mLocalPath;
+        private final String mMimeType;
+        private final long mFileId;
+        private final int mFlags;
+        private final int mLocalBehaviour;
+        private final long mTotal;
+        private long mTransferred = 0;
+
+        /**
+         * @param type              Kind of transfer; {@link #TYPE_UPLOAD} or
+         *                          {@link #TYPE_DOWNLOAD}.
+         * @param accountName       Name of the ownCloud account.
+         * @param remotePath        Remote path of the file transferred.
+         * @param localPath         Local path of the file transferred.
+         * @param mimeType          MIME type of the file; may be null.
+         * @param fileId            Id of the file in the local database, or -1.
+         * @param flags             Options of the transfer, as defined by the service.
+         * @param localBehaviour    Action to perform with the local file after an upload.
+         * @param total             Size of the file, in bytes; -1 if unknown.
+         */
+        public Entry(int type, String accountName, String remotePath, String localPath,
+                     String mimeType, long fileId, int flags, int localBehaviour, long total) {
+            mType = type;
+            mAccountName = accountName;
+            mRemotePath = remotePath;
+            mLocalPath = localPath;
+            mMimeType = mimeType;
+            mFileId = fileId;
+            mFlags = flags;
+            mLocalBehaviour = localBehaviour;
+            mTotal = total;
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        public String getAccountName() {
+            return mAccountName;
+        }
+
+        public String getRemotePath() {
+            return mRemotePath;
+        }
+
+        public String getLocalPath() {
+            return mLocalPath;
+        }
+
+        public String getMimeType() {
+            return mMimeType;
+        }
+
+        public long getFileId() {
+            return mFileId;
+        }
+
+        public int getFlags() {
+            return mFlags;
+        }
+
+        public int getLocalBehaviour() {
+            return mLocalBehaviour;
+        }
+
+        public long getTotal() {
+            return mTotal;
+        }
+
+        public long getTransferred() {
+            return mTransferred;
+        }
+    }
+
+
+    private TransferJournal() {
+        // utility class, not instantiable
+    }
+
+
+    /**
+     * Saves transfers just added to the queue of a service, in a single transaction.
+     *
+     * @param context       Android context.
+     * @param entries       Transfers queued.
+     */
+    public static void queued(final Context context, List<Entry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final List<Entry> queued = new ArrayList<Entry>(entries);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                DbHandler db = getDb(context);
+                db.beginTransaction();
+                try {
+                    for (Entry entry : queued) {
+                        db.saveTransfer(entry.mType, entry.mAccountName, entry.mRemotePath,
+                                entry.mLocalPath, entry.mMimeType, entry.mFileId, entry.mFlags,
+                                entry.mLocalBehaviour, entry.mTotal, STATUS_QUEUED, now);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+    }
+
+
+    public static void started(Context context, int type, String accountName,
+                               String remotePath) {
+        update(context, type, accountName, remotePath, STATUS_IN_PROGRESS, -1);
+    }
+
+
+    /**
+     * Marks as queued again a transfer paused while in progress.
+     */
+    public static void paused(Context context, int type, String accountName,
+                              String remotePath) {
+        update(context, type, accountName, remotePath, STATUS_QUEUED, -1);
+    }
+
+
+    /**
+     * Saves the bytes transferred by a transfer in progress, unless they were saved
+     * recently.
+     *
+     * @param context       Android context.
+     * @param type          Kind of transfer.
+     * @param accountName   Name of the ownCloud account.
+     * @param remotePath    Remote path of the file transferred.
+     * @param transferred   Bytes transferred so far.
+     */
+    public static void progress(Context context, int type, String accountName,
+                                String remotePath, long transferred) {
+        String key = buildKey(type, accountName, remotePath);
+        long now = SystemClock.elapsedRealtime();
+        synchronized (mLastProgressSaves) {
+            Long lastSave = mLastProgressSaves.get(key);
+            if (lastSave != null && now - lastSave < PROGRESS_SAVE_INTERVAL_MS) {
+                return;
+            }
+            mLastProgressSaves.put(key, now);
+        }
+        update(context, type, accountName, remotePath, -1, transferred);
+    }
+
+
+    public static void completed(Context context, int type, String accountName,
+                                 String remotePath, long transferred) {
+        forgetProgress(type, accountName, remotePath);
+        update(context, type, accountName, remotePath, STATUS_COMPLETED, transferred);
+    }
+
+
+    /**
+     * Removes the transfers of a file, or of all the files in a folder, failed or cancelled.
+     *
+     * @param context       Android context.
+     * @param type          Kind of transfer.
+     * @param accountName   Name of the ownCloud account.
+     * @param remotePath    Remote path of the file or folder; null to remove all the
+     *                      transfers of the account.
+     */
+    public static void removed(final Context context, final int type, final String accountName,
+                               final String remotePath) {
+        if (remotePath != null) {
+            forgetProgress(type, accountName, remotePath);
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                getDb(context).removeTransfers(type, accountName, remotePath);
+            }
+        });
+    }
+
+
+    /**
+     * Loads the transfers of a kind not completed yet, and purges the old completed ones, in
+     * the thread of the journal.
+     *
+     * @param context       Android context.
+     * @param type          Kind of transfer.
+     * @param listener      Receiver of the transfers queued or in progress.
+     */
+    public static void loadUnfinished(final Context context, final int type,
+                                      final OnUnfinishedLoadedListener listener) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onUnfinishedLoaded(getUnfinished(context, type));
+            }
+        });
+    }
+
+
+    /**
+     * Gets the transfers of a kind not completed yet, in the order they were queued, and
+     * purges the old completed ones.
+     */
+    private static List<Entry> getUnfinished(Context context, int type) {
+        List<Entry> entries = new ArrayList<Entry>();
+        DbHandler db = getDb(context);
+        db.removeTransfersUpdatedBefore(STATUS_COMPLETED,
+                System.currentTimeMillis() - COMPLETED_TTL_MS);
+        Cursor c = db.getTransfers(type, STATUS_QUEUED, STATUS_IN_PROGRESS);
+        try {
+            while (c.moveToNext()) {
+                Entry entry = new Entry(
+                        type,
+                        c.getString(c.getColumnIndex("account")),
+                        c.getString(c.getColumnIndex("remote_path")),
+                        c.getString(c.getColumnIndex("local_path")),
+                        c.getString(c.getColumnIndex("mime_type")),
+                        c.getLong(c.getColumnIndex("file_id")),
+                        c.getInt(c.getColumnIndex("flags")),
+                        c.getInt(c.getColumnIndex("local_behaviour")),
+                        c.getLong(c.getColumnIndex("total"))
+                );
+                entry.mTransferred = c.getLong(c.getColumnIndex("transferred"));
+                entries.add(entry);
+            }
+        } finally {
+            c.close();
+        }
+        return entries;
+    }
+
+
+    private static void update(final Context context, final int type, final String accountName,
+                               final String remotePath, final int status,
+                               final long transferred) {
+        final long now = System.currentTimeMillis();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                getDb(context).updateTransfer(type, accountName, remotePath, status,
+                        transferred, now);
+            }
+        });
+    }
+
+
+    /**
+     * @return  Connection to the database shared by every access to the journal; called only
+     *          from the thread of the journal.
+     */
+    private static DbHandler getDb(Context context) {
+        if (mDb == null) {
+            mDb = new DbHandler(context.getApplicationContext());
+        }
+        return mDb;
+    }
+
+
+    private static void forgetProgress(int type, String accountName, String remotePath) {
+        synchronized (mLastProgressSaves) {
+            mLastProgressSaves.remove(buildKey(type, accountName, remotePath));
+        }
+    }
+
+
+    private static String buildKey(int type, String accountName, String remotePath) {
+        return type + accountName + remotePath;
+    }
+
+}
@@ -0,0 +1,347 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.files.services;
+
+import android.os.Process;
+
+import com.cerema.cloud.lib.common.utils.Log_OC;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pool of worker threads running transfers in parallel.
+ *
+ * Transfers are started in the order they are submitted, except those submitted with priority,
+ * which go ahead of the rest. A transfer waits while the number of transfers in progress for
+ * its account or its host reaches the limit, letting transfers for other accounts or hosts go
+ * ahead meanwhile. A transfer in progress can take extra connections to its host, see
+ * {@link #acquireExtraConnections(String, int)}; they count against the limit of the host too.
+ *
+ * Transfers that can wait are limited too by {@link #setMaxDeferrable(int)}, so that they are
+ * paused or run in fewer numbers when the conditions of the device are not good for them.
+ */
+public class TransferPool {
+
+    private static final String TAG = TransferPool.class.getSimpleName();
+
+    /**
+     * Transfer to run in the pool.
+     */
+    public interface Task extends Runnable {
+
+        /**
+         * @return  Unique key of the transfer; submitting a task with the key of a task
+         *          already queued doesn't queue it again.
+         */
+        String getKey();
+
+        /**
+         * @return  Name of the account of the transfer.
+         */
+        String getAccountName();
+
+        /**
+         * @return  Host of the server of the transfer.
+         */
+        String getHost();
+
+        /**
+         * @return  'True' if the transfer can wait for better conditions, 'false' if the user
+         *          is waiting for it.
+         */
+        boolean isDeferrable();
+    }
+
+    /**
+     * Interface to implement by those interested in knowing when the pool has nothing to do.
+     */
+    public interface OnIdleListener {
+
+        /**
+         * Called in a worker thread when the last transfer in progress finishes and there are
+         * no more transfers queued.
+         */
+        void onIdle();
+    }
+
+    private final int mMaxPerAccount;
+    private final int mMaxPerHost;
+    private final OnIdleListener mIdleListener;
+
+    private final LinkedList<Task> mQueue = new LinkedList<Task>();
+    private final Map<String, Integer> mActivePerAccount = new HashMap<String, Integer>();
+    private final Map<String, Integer> mActivePerHost = new HashMap<String, Integer>();
+    private final List<Thread> mWorkers = new ArrayList<Thread>();
+    private final Set<Task> mActiveDeferrable = new HashSet<Task>();
+    private int mMaxDeferrable;
+    private int mActive = 0;
+    private boolean mShutdown = false;
+
+
+    /**
+     * @param name              Name for the worker threads.
+     * @param workers           Number of worker threads.
+     * @param maxPerAccount     Max number of transfers in progress for the same account.
+     * @param maxPerHost        Max number of connections to the same host, including the
+     *                          extra ones taken by transfers in progress.
+     * @param idleListener      Listener to notify when the pool has nothing to do; may be
+     *                          null.
+     */
+    public TransferPool(String name, int workers, int maxPerAccount, int maxPerHost,
+                        OnIdleListener idleListener) {
+        if (workers < 1 || maxPerAccount < 1 || maxPerHost < 1) {
+            throw new IllegalArgumentException("Limits of the pool must be at least 1");
+        }
+        mMaxPerAccount = maxPerAccount;
+        mMaxPerHost = maxPerHost;
+        mMaxDeferrable = workers;
+        mIdleListener = idleListener;
+        for (int i = 0; i < workers; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    work();
+                }
+            }, name + " " + i);
+            mWorkers.add(worker);
+            worker.start();
+        }
+    }
+
+
+    /**
+     * Queues a transfer.
+     *
+     * @param task          Transfer to queue.
+     * @param priority      When 'true', the transfer goes ahead of the rest of queued
+     *                      transfers; if it was already queued, it's moved ahead.
+     * @return              'True' if the task was queued, 'false' if it was already in the
+     *                      queue.
+     */
+    public synchronized boolean submit(Task task, boolean priority) {
+        Task queued = find(task.getKey());
+        if (queued != null) {
+            if (priority) {
+                mQueue.remove(queued);
+                mQueue.addFirst(queued);
+            }
+            return false;
+        }
+        if (priority) {
+            mQueue.addFirst(task);
+        } else {
+            mQueue.addLast(task);
+        }
+        notifyAll();
+        return true;
+    }
+
+
+    /**
+     * Removes from the queue the transfers not started yet for an account.
+     *
+     * @param accountName   Name of the account.
+     */
+    public synchronized void removeQueued(String accountName) {
+        Iterator<Task> it = mQueue.iterator();
+        while (it.hasNext()) {
+            if (accountName.equals(it.next().getAccountName())) {
+                it.remove();
+            }
+        }
+    }
+
+
+    /**
+     * Sets the max number of transfers that can wait allowed in progress at the same time.
+     * Transfers already in progress are not affected.
+     *
+     * @param max       Max number of transfers; 0 to start none of them.
+     */
+    public synchronized void setMaxDeferrable(int max) {
+        mMaxDeferrable = Math.max(0, max);
+        notifyAll();
+    }
+
+
+    /**
+     * @return  Number of transfers in progress.
+     */
+    public synchronized int getActiveCount() {
+        return mActive;
+    }
+
+
+    /**
+     * @return  'True' if there are no transfers in progress nor queued.
+     */
+    public synchronized boolean isIdle() {
+        return mActive == 0 && mQueue.isEmpty();
+    }
+
+
+    /**
+     * Stops the worker threads once they finish the transfers in progress; transfers queued
+     * are discarded.
+     */
+    public synchronized void shutdown() {
+        mShutdown = true;
+        mQueue.clear();
+        notifyAll();
+    }
+
+
+    /**
+     * Takes extra connections to a host for a transfer in progress, as many as the limit of the
+     * host allows; queued transfers for the host wait until they are released.
+     *
+     * @param host      Host of the transfer in progress.
+     * @param wanted    Number of extra connections wanted.
+     * @return          Number of extra connections taken, between 0 and wanted; must be given
+     *                  back with {@link #releaseExtraConnections(String, int)}.
+     */
+    public synchronized int acquireExtraConnections(String host, int wanted) {
+        int granted = Math.max(0, Math.min(wanted, mMaxPerHost - count(mActivePerHost, host)));
+        for (int i = 0; i < granted; i++) {
+            acquire(mActivePerHost, host);
+        }
+        return granted;
+    }
+
+
+    /**
+     * Gives back extra connections taken with {@link #acquireExtraConnections(String, int)}.
+     *
+     * @param host      Host of the transfer.
+     * @param count     Number of extra connections to give back.
+     */
+    public synchronized void releaseExtraConnections(String host, int count) {
+        for (int i = 0; i < count; i++) {
+            release(mActivePerHost, host);
+        }
+        notifyAll();    // limits changed; other tasks may start now
+    }
+
+
+    private void work() {
+        while (true) {
+            Task task;
+            synchronized (this) {
+                task = takeNext();
+                while (task == null && !mShutdown) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    task = takeNext();
+                }
+                if (task == null) {
+                    return;     // shut down
+                }
+            }
+
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log_OC.e(TAG, "Unexpected error in transfer " + task.getKey(), e);
+            }
+
+            boolean idle;
+            synchronized (this) {
+                release(mActivePerAccount, task.getAccountName());
+                release(mActivePerHost, task.getHost());
+                mActiveDeferrable.remove(task);
+                mActive--;
+                idle = (mActive == 0 && mQueue.isEmpty() && !mShutdown);
+                notifyAll();    // limits changed; other tasks may start now
+            }
+            if (idle && mIdleListener != null) {
+                mIdleListener.onIdle();
+            }
+        }
+    }
+
+
+    /**
+     * Takes the first queued task within the limits, and accounts it as active.
+     *
+     * Must be called with the lock of the pool held.
+     */
+    private Task takeNext() {
+        Iterator<Task> it = mQueue.iterator();
+        while (it.hasNext()) {
+            Task task = it.next();
+            boolean deferrable = task.isDeferrable();
+            if (deferrable && mActiveDeferrable.size() >= mMaxDeferrable) {
+                continue;
+            }
+            if (count(mActivePerAccount, task.getAccountName()) < mMaxPerAccount &&
+                    count(mActivePerHost, task.getHost()) < mMaxPerHost) {
+                it.remove();
+                if (deferrable) {
+                    mActiveDeferrable.add(task);
+                }
+                acquire(mActivePerAccount, task.getAccountName());
+                acquire(mActivePerHost, task.getHost());
+                mActive++;
+                return task;
+            }
+        }
+        return null;
+    }
+
+
+    private Task find(String key) {
+        for (Task task : mQueue) {
+            if (task.getKey().equals(key)) {
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private static int count(Map<String, Integer> counters, String key) {
+        Integer count = counters.get(key);
+        return count == null ? 0 : count;
+    }
+
+    private static void acquire(Map<String, Integer> counters, String key) {
+        counters.put(key, count(counters, key) + 1);
+    }
+
+    private static void release(Map<String, Integer> counters, String key) {
+        int count = count(counters, key) - 1;
+        if (count > 0) {
+            counters.put(key, count);
+        } else {
+            counters.remove(key);
+        }
+    }
+
+}
@@ -0,0 +1,242 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.files.services;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.preference.PreferenceManager;
+import android.support.v4.net.ConnectivityManagerCompat;
+
+import com.cerema.cloud.lib.common.utils.Log_OC;
+
+/**
+ * Decides when the transfers that can wait, such as synchronizations and instant uploads,
+ * are allowed to run, according to the network and the power of the device.
+ *
+ * Conditions, set in preferences:
+ *
+ * - {@link #PREF_UNMETERED_ONLY}: transfers wait for an unmetered network, such as Wi-Fi.
+ * - {@link #PREF_CHARGING_ONLY}: transfers wait for the device to be charging.
+ * - {@link #PREF_MIN_BATTERY}: when not charging, transfers wait while the battery is below
+ *   this level, in percent; no limit by default.
+ *
+ * Besides, at most {@link #MAX_PARALLEL_METERED} transfers run in parallel on metered
+ * networks.
+ *
+ * While started, the scheduler follows the changes of network and power, and tells its
+ * listener about them so that transfers in progress are paused or resumed.
+ */
+public class TransferScheduler {
+
+    private static final String TAG = TransferScheduler.class.getSimpleName();
+
+    public static final String PREF_UNMETERED_ONLY = "transfers_unmetered_only";
+    public static final String PREF_CHARGING_ONLY = "transfers_charging_only";
+    public static final String PREF_MIN_BATTERY = "transfers_min_battery";
+
+    private static final String DEFAULT_MIN_BATTERY = "0";
+
+    /** Max transfers in parallel on a metered network */
+    public static final int MAX_PARALLEL_METERED = 1;
+
+    /**
+     * Interface to implement by those interested in the changes of conditions.
+     */
+    public interface OnConditionsChangedListener {
+
+        /**
+         * Called in the main thread when the network or the power of the device change.
+         *
+         * @param scheduler     Scheduler reporting the change.
+         */
+        void onConditionsChanged(TransferScheduler scheduler);
+    }
+
+    private final Context mContext;
+    private final OnConditionsChangedListener mListener;
+
+    private boolean mConnected = false;
+    private boolean mMetered = true;
+    private boolean mCharging = false;
+    private int mBatteryLevel = 100;
+    private boolean mStarted = false;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            boolean changed;
+            if (Intent.ACTION_BATTERY_CHANGED.equals(intent.getAction())) {
+                changed = updatePower(intent);
+            } else {
+                changed = updateNetwork();
+            }
+            if (changed && mListener != null) {
+                mListener.onConditionsChanged(TransferScheduler.this);
+            }
+        }
+    };
+
+
+    /**
+     * @param context       Android context.
+     * @param listener      Listener to notify when conditions change; may be null.
+     */
+    public TransferScheduler(Context context, OnConditionsChangedListener listener) {
+        mContext = context.getApplicationContext();
+        mListener = listener;
+    }
+
+
+    /**
+     * Reads the current conditions and starts following their changes.
+     *
+     * Must be called from the main thread.
+     */
+    public void start() {
+        IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+        filter.addAction(Intent.ACTION_BATTERY_CHANGED);
+        Intent battery = mContext.registerReceiver(mReceiver, filter);
+        updateNetwork();
+        if (battery != null) {
+            updatePower(battery);
+        }
+        synchronized (this) {
+            mStarted = true;
+        }
+    }
+
+
+    /**
+     * Stops following the conditions.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (!mStarted) {
+                return;
+            }
+            mStarted = false;
+        }
+        mContext.unregisterReceiver(mReceiver);
+    }
+
+
+    /**
+     * @param requireUnmetered  'True' if the transfers need an unmetered network regardless
+     *                          of the preferences, such as instant uploads set to Wi-Fi only.
+     * @return                  'True' if transfers that can wait are allowed to run now.
+     */
+    public synchronized boolean canRun(boolean requireUnmetered) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        return isAllowed(
+                mConnected, mMetered, mCharging, mBatteryLevel,
+                requireUnmetered || prefs.getBoolean(PREF_UNMETERED_ONLY, false),
+                prefs.getBoolean(PREF_CHARGING_ONLY, false),
+                getMinBatteryLevel(prefs)
+        );
+    }
+
+
+    /**
+     * @param max       Max number of transfers in parallel allowed by the caller.
+     * @return          Max number of transfers that can wait allowed to run in parallel now;
+     *                  0 if they are not allowed to run.
+     */
+    public synchronized int getMaxParallel(int max) {
+        if (!canRun(false)) {
+            return 0;
+        }
+        return mMetered ? Math.min(max, MAX_PARALLEL_METERED) : max;
+    }
+
+
+    /**
+     * Decides if transfers are allowed with the given conditions.
+     *
+     * @param connected         'True' if there is a network connection.
+     * @param metered           'True' if the network is metered.
+     * @param charging          'True' if the device is charging.
+     * @param batteryLevel      Level of the battery, in percent.
+     * @param unmeteredOnly     'True' if transfers need an unmetered network.
+     * @param chargingOnly      'True' if transfers need the device charging.
+     * @param minBatteryLevel   Min level of the battery, in percent, when not charging.
+     * @return                  'True' if transfers are allowed.
+     */
+    public static boolean isAllowed(boolean connected, boolean metered, boolean charging,
+                                    int batteryLevel, boolean unmeteredOnly,
+                                    boolean chargingOnly, int minBatteryLevel) {
+        if (!connected || (unmeteredOnly && metered)) {
+            return false;
+        }
+        if (charging) {
+            return true;
+        }
+        return !chargingOnly && batteryLevel >= minBatteryLevel;
+    }
+
+
+    private static int getMinBatteryLevel(SharedPreferences prefs) {
+        try {
+            return Integer.parseInt(prefs.getString(PREF_MIN_BATTERY, DEFAULT_MIN_BATTERY));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+
+    private boolean updateNetwork() {
+        ConnectivityManager cm =
+                (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = (cm != null) ? cm.getActiveNetworkInfo() : null;
+        boolean connected = (network != null && network.isConnected());
+        boolean metered = (!connected || ConnectivityManagerCompat.isActiveNetworkMetered(cm));
+        synchronized (this) {
+            boolean changed = (connected != mConnected || metered != mMetered);
+            mConnected = connected;
+            mMetered = metered;
+            if (changed) {
+                Log_OC.d(TAG, "Network: connected=" + connected + ", metered=" + metered);
+            }
+            return changed;
+        }
+    }
+
+
+    private boolean updatePower(Intent battery) {
+        int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        boolean charging = (status == BatteryManager.BATTERY_STATUS_CHARGING ||
+                status == BatteryManager.BATTERY_STATUS_FULL);
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        int percent = (level >= 0 && scale > 0) ? (level * 100 / scale) : 100;
+        synchronized (this) {
+            boolean changed = (charging != mCharging || percent != mBatteryLevel);
+            mCharging = charging;
+            mBatteryLevel = percent;
+            return changed;
+        }
+    }
+
+}
@@ -0,0 +1,206 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.operations;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+import com.cerema.cloud.lib.common.utils.Log_OC;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Estimates the size of chunks for chunked uploads that best fits the network in use.
+ *
+ * Every chunk sent updates a moving average of the throughput, and the chunk size moves towards
+ * the amount of data sent in {@link #TARGET_CHUNK_TIME_MS} at that throughput: large chunks in
+ * fast networks, where the overhead of every request dominates, and small chunks in slow ones.
+ * Every failed chunk halves the size, so that lossy networks waste less data on every failure.
+ * The size is kept between configurable bounds.
+ *
+ * An estimator is kept per network, and its chunk size is saved to be used as a starting
+ * point the next time the device is connected to the same network.
+ */
+public class ChunkSizeEstimator {
+
+    private static final String TAG = ChunkSizeEstimator.class.getSimpleName();
+
+    public static final long DEFAULT_MIN_CHUNK_SIZE = 256 * 1024;
+    public static final long DEFAULT_MAX_CHUNK_SIZE = 10 * 1024 * 1024;
+    public static final long DEFAULT_CHUNK_SIZE = 1024 * 1000;
+
+    /** Time to send a chunk aimed by the estimation */
+    public static final long TARGET_CHUNK_TIME_MS = 3000;
+
+    /** Max growth of the chunk size after a successful chunk */
+    private static final double MAX_GROWTH = 1.5;
+
+    /** Weight of the last chunk in the moving average of the throughput */
+    private static final double ALPHA = 0.3;
+
+    /** Chunk sizes are multiples of this */
+    private static final long GRANULARITY = 64 * 1024;
+
+    private static final String PREFERENCES_NAME = "chunk_sizes";
+
+    private static final Map<String, ChunkSizeEstimator> mEstimators =
+            new HashMap<String, ChunkSizeEstimator>();
+
+    private final long mMinChunkSize;
+    private final long mMaxChunkSize;
+    private long mChunkSize;
+    private double mThroughput = -1;     // bytes per second
+    private int mChunksSent = 0;
+    private int mChunksFailed = 0;
+
+
+    /**
+     * @param initialChunkSize  Chunk size to start with, in bytes.
+     * @param minChunkSize      Min chunk size, in bytes.
+     * @param maxChunkSize      Max chunk size, in bytes.
+     */
+    public ChunkSizeEstimator(long initialChunkSize, long minChunkSize, long maxChunkSize) {
+        if (minChunkSize <= 0 || maxChunkSize < minChunkSize) {
+            throw new IllegalArgumentException("Invalid bounds for chunk size: " + minChunkSize +
+                    ", " + maxChunkSize);
+        }
+        mMinChunkSize = minChunkSize;
+        mMaxChunkSize = maxChunkSize;
+        mChunkSize = clamp(initialChunkSize);
+    }
+
+
+    /**
+     * Gets the estimator for the network the device is connected to, starting from the
+     * chunk size saved for it, if any.
+     *
+     * @param context       Android context.
+     * @return              Estimator for the current network.
+     */
+    public static ChunkSizeEstimator forCurrentNetwork(Context context) {
+        String network = getNetworkKey(context);
+        synchronized (mEstimators) {
+            ChunkSizeEstimator estimator = mEstimators.get(network);
+            if (estimator == null) {
+                long saved = getPreferences(context).getLong(network, DEFAULT_CHUNK_SIZE);
+                estimator = new ChunkSizeEstimator(saved, DEFAULT_MIN_CHUNK_SIZE,
+                        DEFAULT_MAX_CHUNK_SIZE);
+                mEstimators.put(network, estimator);
+            }
+            return estimator;
+        }
+    }
+
+
+    /**
+     * Saves the current estimation for the network the device is connected to.
+     *
+     * @param context       Android context.
+     */
+    public void save(Context context) {
+        String network = getNetworkKey(context);
+        long chunkSize = getChunkSize();
+        getPreferences(context).edit().putLong(network, chunkSize).apply();
+        Log_OC.d(TAG, "Chunk size for " + network + ": " + chunkSize + " bytes; " +
+                mChunksSent + " chunks sent, " + mChunksFailed + " failed");
+    }
+
+
+    /**
+     * @return  Chunk size to use for the next upload, in bytes.
+     */
+    public synchronized long getChunkSize() {
+        return mChunkSize;
+    }
+
+    /**
+     * @return  Estimated throughput, in bytes per second, or -1 if unknown yet.
+     */
+    public synchronized double getThroughput() {
+        return mThroughput;
+    }
+
+
+    /**
+     * Updates the estimation with a chunk sent successfully.
+     *
+     * @param bytes         Size of the chunk, in bytes.
+     * @param millis        Time spent sending the chunk and receiving the response.
+     */
+    public synchronized void onChunkSent(long bytes, long millis) {
+        mChunksSent++;
+        double throughput = bytes * 1000.0 / Math.max(1, millis);
+        mThroughput = (mThroughput < 0) ? throughput :
+                ALPHA * throughput + (1 - ALPHA) * mThroughput;
+
+        long target = (long) (mThroughput * TARGET_CHUNK_TIME_MS / 1000);
+        long next = Math.min(target, (long) (mChunkSize * MAX_GROWTH));
+        next = Math.max(next, mChunkSize / 2);  // shrink gently on a slower chunk
+        mChunkSize = clamp(next);
+    }
+
+
+    /**
+     * Updates the estimation with a chunk that failed to be sent.
+     *
+     * @param bytes         Size of the chunk, in bytes.
+     */
+    public synchronized void onChunkFailed(long bytes) {
+        mChunksFailed++;
+        mChunkSize = clamp(Math.min(mChunkSize, bytes) / 2);
+    }
+
+
+    private long clamp(long chunkSize) {
+        long rounded = (chunkSize / GRANULARITY) * GRANULARITY;
+        return Math.max(mMinChunkSize, Math.min(mMaxChunkSize, rounded));
+    }
+
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFERENCES_NAME,
+                Context.MODE_PRIVATE);
+    }
+
+
+    /**
+     * @return  Key identifying the network the device is connected to: the type of network and,
+     *          for Wi-Fi networks, their SSID.
+     */
+    private static String getNetworkKey(Context context) {
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = cm.getActiveNetworkInfo();
+        if (network == null) {
+            return "none";
+        }
+        String key = network.getTypeName();
+        if (network.getType() == ConnectivityManager.TYPE_MOBILE) {
+            key += ":" + network.getSubtypeName();
+        } else if (network.getExtraInfo() != null) {
+            key += ":" + network.getExtraInfo();
+        }
+        return key;
+    }
+
+}
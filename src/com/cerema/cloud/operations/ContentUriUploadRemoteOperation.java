@@ -0,0 +1,257 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.operations;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+
+import org.apache.commons.httpclient.methods.PutMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import com.cerema.cloud.lib.common.OwnCloudClient;
+import com.cerema.cloud.lib.common.network.OnDatatransferProgressListener;
+import com.cerema.cloud.lib.common.network.WebdavUtils;
+import com.cerema.cloud.lib.common.operations.OperationCancelledException;
+import com.cerema.cloud.lib.common.operations.RemoteOperation;
+import com.cerema.cloud.lib.common.operations.RemoteOperationResult;
+import com.cerema.cloud.lib.common.utils.Log_OC;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Remote operation uploading the content referred by a content:// URI, streamed from its
+ * provider, without copying it to a local file first.
+ *
+ * The content is read with {@link ContentResolver#openInputStream(Uri)}. A new stream is opened
+ * for every attempt, so that uploads interrupted by a network error are retried up to
+ * {@link #MAX_ATTEMPTS} times when the provider allows to read the content again. When the
+ * size of the content is unknown, the request is sent with chunked transfer encoding.
+ */
+public class ContentUriUploadRemoteOperation extends RemoteOperation {
+
+    private static final String TAG = ContentUriUploadRemoteOperation.class.getSimpleName();
+
+    public static final int MAX_ATTEMPTS = 3;
+
+    private static final long RETRY_DELAY_MS = 2000;
+
+    private static final String IF_MATCH_HEADER = "If-Match";
+
+    private final ContentResolver mContentResolver;
+    private final Uri mUri;
+    private final long mContentLength;
+    private final String mRemotePath;
+    private final String mMimeType;
+    private final String mRequiredEtag;
+    private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
+    private final Set<OnDatatransferProgressListener> mDataTransferListeners =
+            new HashSet<OnDatatransferProgressListener>();
+    private PutMethod mPutMethod = null;
+
+
+    /**
+     * @param contentResolver   Resolver to read the content.
+     * @param uri               content:// URI of the content to upload.
+     * @param contentLength     Size of the content in bytes, or -1 if unknown.
+     * @param remotePath        Remote path where the content will be uploaded.
+     * @param mimeType          MIME type of the content.
+     * @param requiredEtag      ETag the file in the server must have to be replaced; may be
+     *                          null.
+     */
+    public ContentUriUploadRemoteOperation(ContentResolver contentResolver, Uri uri,
+                                           long contentLength, String remotePath,
+                                           String mimeType, String requiredEtag) {
+        mContentResolver = contentResolver;
+        mUri = uri;
+        mContentLength = contentLength;
+        mRemotePath = remotePath;
+        mMimeType = mimeType;
+        mRequiredEtag = requiredEtag;
+    }
+
+
+    @Override
+    protected RemoteOperationResult run(OwnCloudClient client) {
+        RemoteOperationResult result = null;
+        int attempt = 1;
+        while (result == null) {
+            ContentRequestEntity entity = new ContentRequestEntity();
+            try {
+                result = upload(client, entity);
+
+            } catch (Exception e) {
+                if (mCancellationRequested.get()) {
+                    result = new RemoteOperationResult(new OperationCancelledException());
+
+                } else if (e instanceof IOException && entity.wasOpened() &&
+                        attempt < MAX_ATTEMPTS) {
+                    // the provider gave the content once; read it again from the beginning
+                    Log_OC.w(TAG, "Upload of " + mUri + " to " + mRemotePath + " failed (" +
+                            e.getMessage() + "), retrying");
+                    try {
+                        Thread.sleep(RETRY_DELAY_MS * attempt);
+                    } catch (InterruptedException ie) {
+                        result = new RemoteOperationResult(new OperationCancelledException());
+                    }
+                    attempt++;
+
+                } else {
+                    result = new RemoteOperationResult(e);
+                }
+            }
+        }
+        Log_OC.i(TAG, "Upload of " + mUri + " to " + mRemotePath + " in " + attempt +
+                " attempts: " + result.getLogMessage());
+        return result;
+    }
+
+
+    private RemoteOperationResult upload(OwnCloudClient client, ContentRequestEntity entity)
+            throws Exception {
+        PutMethod put = new PutMethod(client.getWebdavUri() + WebdavUtils.encodePath(mRemotePath));
+        synchronized (mCancellationRequested) {
+            if (mCancellationRequested.get()) {
+                throw new OperationCancelledException();
+            }
+            mPutMethod = put;
+        }
+        try {
+            if (mRequiredEtag != null && mRequiredEtag.length() > 0) {
+                put.addRequestHeader(IF_MATCH_HEADER, "\"" + mRequiredEtag + "\"");
+            }
+            put.setRequestEntity(entity);
+            int status = client.executeMethod(put);
+            client.exhaustResponse(put.getResponseBodyAsStream());
+            return new RemoteOperationResult(status >= 200 && status < 300, status,
+                    put.getResponseHeaders());
+
+        } finally {
+            put.releaseConnection();
+            synchronized (mCancellationRequested) {
+                mPutMethod = null;
+            }
+        }
+    }
+
+
+    public void cancel() {
+        synchronized (mCancellationRequested) {
+            mCancellationRequested.set(true);
+            if (mPutMethod != null) {
+                mPutMethod.abort();
+            }
+        }
+    }
+
+
+    public void addDatatransferProgressListener(OnDatatransferProgressListener listener) {
+        synchronized (mDataTransferListeners) {
+            mDataTransferListeners.add(listener);
+        }
+    }
+
+
+    /**
+     * Request entity reading the content from a new stream every time it's written.
+     */
+    private class ContentRequestEntity implements RequestEntity {
+
+        private static final int BUFFER_SIZE = 4096;
+
+        private boolean mOpened = false;
+
+        boolean wasOpened() {
+            return mOpened;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mContentLength;
+        }
+
+        @Override
+        public String getContentType() {
+            return mMimeType;
+        }
+
+        @Override
+        public void writeRequest(OutputStream out) throws IOException {
+            InputStream in;
+            try {
+                in = mContentResolver.openInputStream(mUri);
+            } catch (SecurityException e) {
+                // permission to read the content was revoked; retrying is pointless
+                throw new FileNotFoundException("No permission to read " + mUri);
+            }
+            if (in == null) {
+                throw new FileNotFoundException("Provider returned no stream for " + mUri);
+            }
+            mOpened = true;
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long transferred = 0;
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    if (mCancellationRequested.get()) {
+                        throw new IOException("Upload of " + mUri + " cancelled");
+                    }
+                    out.write(buffer, 0, read);
+                    transferred += read;
+                    notifyProgress(read, transferred);
+                }
+                if (mContentLength >= 0 && transferred != mContentLength) {
+                    throw new IOException("Read " + transferred + " bytes from " + mUri +
+                            ", expected " + mContentLength);
+                }
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log_OC.d(TAG, "Weird exception while closing stream of " + mUri +
+                            " (ignoring)", e);
+                }
+            }
+        }
+
+        private void notifyProgress(int written, long transferred) {
+            synchronized (mDataTransferListeners) {
+                Iterator<OnDatatransferProgressListener> it = mDataTransferListeners.iterator();
+                while (it.hasNext()) {
+                    // remote path, since the URI doesn't need to end with the file name
+                    it.next().onTransferProgress(written, transferred, mContentLength,
+                            mRemotePath);
+                }
+            }
+        }
+    }
+
+}
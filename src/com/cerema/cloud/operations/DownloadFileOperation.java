@@ -27,6 +27,8 @@ import java.util.Iterator;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import com.cerema.cloud.MainApp;
+import com.cerema.cloud.datamodel.ContentHashStore;
 import com.cerema.cloud.datamodel.OCFile;
 import com.cerema.cloud.lib.common.network.OnDatatransferProgressListener;
 import com.cerema.cloud.lib.common.OwnCloudClient;
@@ -34,7 +36,6 @@ import com.cerema.cloud.lib.common.operations.OperationCancelledException;
 import com.cerema.cloud.lib.common.operations.RemoteOperation;
 import com.cerema.cloud.lib.common.operations.RemoteOperationResult;
 import com.cerema.cloud.lib.common.utils.Log_OC;
-import com.cerema.cloud.lib.resources.files.DownloadRemoteFileOperation;
 import com.cerema.cloud.utils.FileStorageUtils;
 
 import android.accounts.Account;
@@ -47,6 +48,9 @@ public class DownloadFileOperation extends RemoteOperation {
     
     private static final String TAG = DownloadFileOperation.class.getSimpleName();
 
+    /** Min size of files downloaded in parallel segments, when allowed */
+    public static final long SEGMENTED_DOWNLOAD_MIN_SIZE = 32 * 1024 * 1024;
+
     private Account mAccount;
     private OCFile mFile;
     private Set<OnDatatransferProgressListener> mDataTransferListeners = new HashSet<OnDatatransferProgressListener>();
@@ -54,7 +58,10 @@ public class DownloadFileOperation extends RemoteOperation {
     private String mEtag = "";
     private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
     
-    private DownloadRemoteFileOperation mDownloadOperation;
+    private ResumableDownloadRemoteFileOperation mDownloadOperation;
+    private SegmentedDownloadRemoteFileOperation mSegmentedOperation;
+    private boolean mSegmentedDownloadAllowed = false;
+    private int mMaxSegments = SegmentedDownloadRemoteFileOperation.DEFAULT_SEGMENTS;
 
     
     public DownloadFileOperation(Account account, OCFile file) {
@@ -131,40 +138,106 @@ public class DownloadFileOperation extends RemoteOperation {
         return mEtag;
     }
 
+    /**
+     * Allows downloading files of at least {@link #SEGMENTED_DOWNLOAD_MIN_SIZE} bytes with
+     * several parallel connections.
+     *
+     * @param allowed       'True' to allow segmented downloads.
+     */
+    public void setSegmentedDownloadAllowed(boolean allowed) {
+        mSegmentedDownloadAllowed = allowed;
+    }
+
+    /**
+     * Limits the number of parallel connections of a segmented download.
+     *
+     * @param segments      Max number of segments; below 2, the file is downloaded with a
+     *                      single connection.
+     */
+    public void setMaxSegments(int segments) {
+        mMaxSegments = segments;
+    }
+
+    /**
+     * @return      'True' if the download would be done in parallel segments, if connections
+     *              are available for them.
+     */
+    public boolean isSegmentable() {
+        return mSegmentedDownloadAllowed && getSize() >= SEGMENTED_DOWNLOAD_MIN_SIZE &&
+                !ResumableDownloadRemoteFileOperation.hasPartialDownload(getTmpPath());
+    }
+
     @Override
     protected RemoteOperationResult run(OwnCloudClient client) {
-        RemoteOperationResult result;
+        RemoteOperationResult result = null;
         File newFile;
         boolean moved;
+        String contentHash = null;
         
-        /// download will be performed to a temporal file, then moved to the final location
+        /// download will be performed to a temporal file, then moved to the final location;
+        /// a partial temporal file left by a previous attempt is resumed
         File tmpFile = new File(getTmpPath());
         
-        String tmpFolder =  getTmpFolder();
-        
-        /// perform the download
-        synchronized(mCancellationRequested) {
-            if (mCancellationRequested.get()) {
-                return new RemoteOperationResult(new OperationCancelledException());
+        /// perform the download; large files in parallel segments, if allowed and there is
+        /// no partial download to resume
+        if (mMaxSegments > 1 && isSegmentable()) {
+            synchronized(mCancellationRequested) {
+                if (mCancellationRequested.get()) {
+                    return new RemoteOperationResult(new OperationCancelledException());
+                }
+                mSegmentedOperation = new SegmentedDownloadRemoteFileOperation(
+                        mFile.getRemotePath(), getTmpPath(), mMaxSegments);
+            }
+            synchronized (mDataTransferListeners) {
+                for (OnDatatransferProgressListener listener : mDataTransferListeners) {
+                    mSegmentedOperation.addDatatransferProgressListener(listener);
+                }
+            }
+            result = mSegmentedOperation.execute(client);
+            if (result.isSuccess()) {
+                mModificationTimestamp = mSegmentedOperation.getModificationTimestamp();
+                mEtag = mSegmentedOperation.getEtag();
+            } else if (mSegmentedOperation.needsSingleStream()) {
+                result = null;
             }
         }
-        
-        mDownloadOperation = new DownloadRemoteFileOperation(mFile.getRemotePath(), tmpFolder);
-        Iterator<OnDatatransferProgressListener> listener = mDataTransferListeners.iterator();
-        while (listener.hasNext()) {
-            mDownloadOperation.addDatatransferProgressListener(listener.next());
+
+        if (result == null) {
+            synchronized(mCancellationRequested) {
+                if (mCancellationRequested.get()) {
+                    return new RemoteOperationResult(new OperationCancelledException());
+                }
+                mDownloadOperation = new ResumableDownloadRemoteFileOperation(
+                        mFile.getRemotePath(), getTmpPath());
+            }
+            
+            synchronized (mDataTransferListeners) {
+                Iterator<OnDatatransferProgressListener> listener =
+                        mDataTransferListeners.iterator();
+                while (listener.hasNext()) {
+                    mDownloadOperation.addDatatransferProgressListener(listener.next());
+                }
+            }
+            result = mDownloadOperation.execute(client);
+            if (result.isSuccess()) {
+                mModificationTimestamp = mDownloadOperation.getModificationTimestamp();
+                mEtag = mDownloadOperation.getEtag();
+                contentHash = mDownloadOperation.getContentHash();
+            }
         }
-        result = mDownloadOperation.execute(client);
         
         if (result.isSuccess()) {
-            mModificationTimestamp = mDownloadOperation.getModificationTimestamp();
-            mEtag = mDownloadOperation.getEtag();
             newFile = new File(getSavePath());
             newFile.getParentFile().mkdirs();
             moved = tmpFile.renameTo(newFile);
-            if (!moved)
+            if (!moved) {
                 result = new RemoteOperationResult(
                         RemoteOperationResult.ResultCode.LOCAL_STORAGE_NOT_MOVED);
+            } else {
+                // segments are written out of order; hashed later, if needed
+                ContentHashStore.onContentSynced(MainApp.getAppContext(), mAccount.name,
+                        mFile.getRemotePath(), newFile, contentHash);
+            }
         }
         Log_OC.i(TAG, "Download of " + mFile.getRemotePath() + " to " + getSavePath() + ": " +
                 result.getLogMessage());
@@ -173,13 +246,22 @@ public class DownloadFileOperation extends RemoteOperation {
     }
 
     public void cancel() {
-        mCancellationRequested.set(true);   // atomic set; there is no need of synchronizing it
+        synchronized(mCancellationRequested) {
+            mCancellationRequested.set(true);
+        }
+        if (mSegmentedOperation != null) {
+            mSegmentedOperation.cancel();
+        }
         if (mDownloadOperation != null) {
             mDownloadOperation.cancel();
         }
     }
 
 
+    public Set<OnDatatransferProgressListener> getDataTransferListeners() {
+        return mDataTransferListeners;
+    }
+
     public void addDatatransferProgressListener (OnDatatransferProgressListener listener) {
         synchronized (mDataTransferListeners) {
             mDataTransferListeners.add(listener);
@@ -0,0 +1,191 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.operations;
+
+import android.accounts.Account;
+
+import com.cerema.cloud.lib.common.operations.RemoteOperationResult;
+import com.cerema.cloud.lib.common.operations.RemoteOperationResult.ResultCode;
+import com.cerema.cloud.lib.common.utils.Log_OC;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets a single fetch of the contents of a remote folder be in progress at a time, per account
+ * and folder.
+ *
+ * The same folder may be refreshed at the same time by {@link RefreshFolderOperation}, from the
+ * UI or the sync adapter, and by {@link SynchronizeFolderOperation}. The first caller, the
+ * leader, checks the folder in the server and merges its contents into the local database;
+ * callers arriving while the leader is in progress wait for it and receive the same result,
+ * instead of repeating the requests and racing the leader writing the database. Afterwards,
+ * the local database is up to date for all of them.
+ *
+ * A cancelled fetch is not shared; its followers fetch the folder by themselves, as they do
+ * when the leader takes longer than {@link #MAX_WAIT_MS}. Callers forcing a full fetch wait
+ * for the fetch in progress, but never take its result.
+ */
+public class FolderRefreshCoordinator {
+
+    private static final String TAG = FolderRefreshCoordinator.class.getSimpleName();
+
+    /** Max time waiting for the fetch of other caller */
+    private static final long MAX_WAIT_MS = 60 * 1000;
+
+    private static FolderRefreshCoordinator mInstance = null;
+
+    /**
+     * Fetch of a remote folder and merge of its contents into the local database, as done by
+     * every operation refreshing folders.
+     */
+    public interface FolderFetch {
+
+        /**
+         * Checks the remote folder for changes and, if needed, merges its contents into the
+         * local database.
+         *
+         * @return      Result of the fetch.
+         */
+        RemoteOperationResult fetch();
+
+        /**
+         * @return      'True' if the last call to {@link #fetch()} found changes in the remote
+         *              folder.
+         */
+        boolean isRemoteFolderChanged();
+    }
+
+    /**
+     * Result of a fetch, maybe shared with other callers.
+     */
+    public static class Outcome {
+        private final RemoteOperationResult mResult;
+        private final boolean mRemoteFolderChanged;
+        private final boolean mShared;
+
+        private Outcome(RemoteOperationResult result, boolean changed, boolean shared) {
+            mResult = result;
+            mRemoteFolderChanged = changed;
+            mShared = shared;
+        }
+
+        public RemoteOperationResult getResult() {
+            return mResult;
+        }
+
+        public boolean isRemoteFolderChanged() {
+            return mRemoteFolderChanged;
+        }
+
+        /**
+         * @return      'True' if the fetch was done by other caller; the local state of the
+         *              caller, other than the database, was not updated.
+         */
+        public boolean isShared() {
+            return mShared;
+        }
+    }
+
+    private static class Flight {
+        final CountDownLatch mDone = new CountDownLatch(1);
+        volatile Outcome mOutcome = null;
+    }
+
+    private final Map<String, Flight> mFlights = new HashMap<String, Flight>();
+
+
+    public static synchronized FolderRefreshCoordinator getInstance() {
+        if (mInstance == null) {
+            mInstance = new FolderRefreshCoordinator();
+        }
+        return mInstance;
+    }
+
+
+    private FolderRefreshCoordinator() {
+    }
+
+
+    /**
+     * Fetches a remote folder, or waits for the fetch already in progress for it.
+     *
+     * Blocks the calling thread; must never be called from the main thread.
+     *
+     * @param account       ownCloud account where the folder is located.
+     * @param remotePath    Remote path of the folder.
+     * @param forced        'True' if the caller needs its own fetch, ignoring the ETag of the
+     *                      folder; the result of a fetch in progress is not taken.
+     * @param fetch         Fetch to perform if no other is in progress for the same folder.
+     * @return              Result of the fetch.
+     */
+    public Outcome fetch(Account account, String remotePath, boolean forced, FolderFetch fetch) {
+        String key = account.name + remotePath;
+        Flight flight;
+        boolean leader = false;
+        synchronized (mFlights) {
+            flight = mFlights.get(key);
+            if (flight == null) {
+                flight = new Flight();
+                mFlights.put(key, flight);
+                leader = true;
+            }
+        }
+
+        if (!leader) {
+            Log_OC.d(TAG, "Waiting for refresh in progress of " + key);
+            boolean done = false;
+            try {
+                done = flight.mDone.await(MAX_WAIT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Outcome outcome = flight.mOutcome;
+            if (done && outcome != null && !forced) {
+                return new Outcome(outcome.getResult(), outcome.isRemoteFolderChanged(), true);
+            }
+            // else, the leader took too long, was cancelled or failed unexpectedly, or the
+            // caller needs its own fetch
+            if (!done) {
+                Log_OC.w(TAG, "Refresh in progress of " + key + " too slow; fetching again");
+            }
+            RemoteOperationResult result = fetch.fetch();
+            return new Outcome(result, fetch.isRemoteFolderChanged(), false);
+        }
+
+        try {
+            RemoteOperationResult result = fetch.fetch();
+            Outcome outcome = new Outcome(result, fetch.isRemoteFolderChanged(), false);
+            if (result != null && result.getCode() != ResultCode.CANCELLED) {
+                flight.mOutcome = outcome;
+            }   // else, followers must not be cancelled with the leader
+            return outcome;
+
+        } finally {
+            synchronized (mFlights) {
+                mFlights.remove(key);
+            }
+            flight.mDone.countDown();
+        }
+    }
+
+}
@@ -56,8 +56,20 @@ public class GetSharesForFileOperation extends SyncOperation {
         mSubfiles = subfiles;
     }
 
+    /**
+     * Own shares of a single file are read from the index of shares of the account, refreshed
+     * for the whole account only when it's not fresh.
+     *
+     * {@inheritDoc}
+     */
     @Override
     protected RemoteOperationResult run(OwnCloudClient client) {
+        if (!mReshares && !mSubfiles) {
+            Log_OC.d(TAG, "File = " + mPath + " shares read from the index of shares");
+            RefreshSharesIndexOperation indexRefresh = new RefreshSharesIndexOperation();
+            return indexRefresh.execute(client, getStorageManager());
+        }
+
         GetRemoteSharesForFileOperation operation = new GetRemoteSharesForFileOperation(mPath,
                 mReshares, mSubfiles);
         RemoteOperationResult result = operation.execute(client);
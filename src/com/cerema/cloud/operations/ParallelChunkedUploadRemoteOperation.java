@@ -0,0 +1,445 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.operations;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.PutMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import com.cerema.cloud.lib.common.OwnCloudClient;
+import com.cerema.cloud.lib.common.network.OnDatatransferProgressListener;
+import com.cerema.cloud.lib.common.network.WebdavUtils;
+import com.cerema.cloud.lib.common.operations.OperationCancelledException;
+import com.cerema.cloud.lib.common.operations.RemoteOperation;
+import com.cerema.cloud.lib.common.operations.RemoteOperationResult;
+import com.cerema.cloud.lib.common.utils.Log_OC;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Remote operation uploading a file in chunks, several of them at the same time.
+ *
+ * Chunks are sent with the chunking protocol of ownCloud: every chunk is PUT to
+ * '&lt;remote path&gt;-chunking-&lt;transfer id&gt;-&lt;chunk count&gt;-&lt;chunk index&gt;', and the
+ * server assembles the file when it has received all of them, in any order.
+ *
+ * Chunks already received by the server in a previous upload with the same transfer id can be
+ * skipped. Every chunk acknowledged by the server is reported to an
+ * {@link OnChunkUploadedListener}, so that the caller can save the progress and resume it
+ * after a failure.
+ */
+public class ParallelChunkedUploadRemoteOperation extends RemoteOperation {
+
+    private static final String TAG = ParallelChunkedUploadRemoteOperation.class.getSimpleName();
+
+    public static final int DEFAULT_PARALLEL_CHUNKS = 3;
+
+    private static final String OC_CHUNKED_HEADER = "OC-Chunked";
+    private static final String OC_CHUNK_SIZE_HEADER = "OC-Chunk-Size";
+    private static final String OC_TOTAL_LENGTH_HEADER = "OC-Total-Length";
+    private static final String IF_MATCH_HEADER = "If-Match";
+
+    /**
+     * Interface to implement by those interested in the progress of the upload chunk by chunk.
+     */
+    public interface OnChunkUploadedListener {
+
+        /**
+         * Called, from the thread that uploaded it, every time the server acknowledges a chunk.
+         *
+         * @param uploadedChunks    Indexes of all the chunks acknowledged so far, including the
+         *                          skipped ones.
+         */
+        void onChunkUploaded(Set<Integer> uploadedChunks);
+    }
+
+    private final String mLocalPath;
+    private final String mRemotePath;
+    private final String mMimeType;
+    private final String mRequiredEtag;
+    private final long mTransferId;
+    private final long mChunkSize;
+    private final int mParallelChunks;
+    private final Set<Integer> mUploadedChunks = new HashSet<Integer>();
+    private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
+    private final Set<OnDatatransferProgressListener> mDataTransferListeners =
+            new HashSet<OnDatatransferProgressListener>();
+    private final List<PutMethod> mMethods = new ArrayList<PutMethod>();
+    private OnChunkUploadedListener mChunkListener = null;
+    private ChunkSizeEstimator mChunkSizeEstimator = null;
+
+    private long mTotalToTransfer = 0;
+    private long mTransferred = 0;
+    private volatile boolean mAborting = false;
+
+    /** First failed response of a chunk, if any */
+    private PutMethod mFailedMethod = null;
+
+
+    /**
+     * @param localPath         Full local path to the file to upload.
+     * @param remotePath        Remote path where the file will be uploaded.
+     * @param mimeType          MIME type of the file.
+     * @param requiredEtag      ETag the file in the server must have to be replaced; may be
+     *                          null.
+     * @param transferId        Id of the transfer; must be the same used for the chunks to skip.
+     * @param chunkSize         Size of every chunk, except the last one, in bytes.
+     * @param uploadedChunks    Indexes of chunks already received by the server, to skip.
+     * @param parallelChunks    Max number of chunks to upload at the same time.
+     */
+    public ParallelChunkedUploadRemoteOperation(String localPath, String remotePath,
+                                                String mimeType, String requiredEtag,
+                                                long transferId, long chunkSize,
+                                                Set<Integer> uploadedChunks,
+                                                int parallelChunks) {
+        mLocalPath = localPath;
+        mRemotePath = remotePath;
+        mMimeType = mimeType;
+        mRequiredEtag = requiredEtag;
+        mTransferId = transferId;
+        mChunkSize = chunkSize;
+        mParallelChunks = Math.max(1, parallelChunks);
+        if (uploadedChunks != null) {
+            mUploadedChunks.addAll(uploadedChunks);
+        }
+    }
+
+
+    public void setOnChunkUploadedListener(OnChunkUploadedListener listener) {
+        mChunkListener = listener;
+    }
+
+
+    /**
+     * @param estimator     Estimator to update with the time and result of every chunk sent.
+     */
+    public void setChunkSizeEstimator(ChunkSizeEstimator estimator) {
+        mChunkSizeEstimator = estimator;
+    }
+
+
+    @Override
+    protected RemoteOperationResult run(final OwnCloudClient client) {
+        RemoteOperationResult result;
+        File file = new File(mLocalPath);
+        mTotalToTransfer = file.length();
+        final int chunkCount = (int) ((mTotalToTransfer + mChunkSize - 1) / mChunkSize);
+        final String uriPrefix = client.getWebdavUri() + WebdavUtils.encodePath(mRemotePath) +
+                "-chunking-" + mTransferId + "-" + chunkCount + "-";
+
+        final LinkedList<Integer> pendingChunks = new LinkedList<Integer>();
+        for (int i = 0; i < chunkCount; i++) {
+            if (mUploadedChunks.contains(i)) {
+                mTransferred += getChunkLength(i);
+            } else {
+                pendingChunks.add(i);
+            }
+        }
+        int skipped = chunkCount - pendingChunks.size();
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            final FileChannel channel = raf.getChannel();
+
+            final List<Exception> errors = new ArrayList<Exception>();
+            List<Thread> threads = new ArrayList<Thread>();
+            int workers = Math.min(mParallelChunks, pendingChunks.size());
+            for (int i = 0; i < workers; i++) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Integer chunkIndex;
+                            while ((chunkIndex = nextChunk(pendingChunks)) != null) {
+                                if (!uploadChunk(client, channel, uriPrefix, chunkIndex)) {
+                                    mAborting = true;
+                                    abortAll();     // no reason to go on with the rest
+                                    break;
+                                }
+                            }
+                        } catch (Exception e) {
+                            synchronized (errors) {
+                                errors.add(e);
+                            }
+                            mAborting = true;
+                            abortAll();
+                        }
+                    }
+                }, "Chunks of " + file.getName() + " " + i);
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            if (mCancellationRequested.get()) {
+                throw new OperationCancelledException();
+            }
+            synchronized (this) {
+                if (mFailedMethod != null) {
+                    return new RemoteOperationResult(false, mFailedMethod.getStatusCode(),
+                            mFailedMethod.getResponseHeaders());
+                }
+            }
+            if (!errors.isEmpty()) {
+                throw errors.get(0);
+            }
+            result = new RemoteOperationResult(true, HttpStatus.SC_CREATED, null);
+
+        } catch (Exception e) {
+            if (mCancellationRequested.get()) {
+                result = new RemoteOperationResult(new OperationCancelledException());
+            } else {
+                result = new RemoteOperationResult(e);
+            }
+
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    Log_OC.d(TAG, "Weird exception while closing " + mLocalPath + " (ignoring)", e);
+                }
+            }
+        }
+
+        Log_OC.i(TAG, "Chunked upload of " + mLocalPath + " to " + mRemotePath + ", " +
+                chunkCount + " chunks, " + skipped + " skipped: " + result.getLogMessage());
+        return result;
+    }
+
+
+    /**
+     * Uploads a single chunk.
+     *
+     * @param uriPrefix     URI of the chunks, up to the chunk count and its separator
+     *                      included; the index of the chunk completes it.
+     * @return      'True' if the server received the chunk.
+     */
+    private boolean uploadChunk(OwnCloudClient client, FileChannel channel, String uriPrefix,
+                                int chunkIndex) throws Exception {
+        long length = getChunkLength(chunkIndex);
+        PutMethod put = new PutMethod(uriPrefix + chunkIndex);
+        if (mRequiredEtag != null && mRequiredEtag.length() > 0) {
+            put.addRequestHeader(IF_MATCH_HEADER, "\"" + mRequiredEtag + "\"");
+        }
+        put.addRequestHeader(OC_CHUNKED_HEADER, OC_CHUNKED_HEADER);
+        put.addRequestHeader(OC_CHUNK_SIZE_HEADER, String.valueOf(length));
+        put.addRequestHeader(OC_TOTAL_LENGTH_HEADER, String.valueOf(mTotalToTransfer));
+        ChunkRequestEntity entity = new ChunkRequestEntity(channel, chunkIndex * mChunkSize,
+                length);
+        put.setRequestEntity(entity);
+
+        synchronized (mMethods) {
+            if (mCancellationRequested.get()) {
+                throw new OperationCancelledException();
+            }
+            mMethods.add(put);
+        }
+        long start = System.currentTimeMillis();
+        boolean sent = false;
+        try {
+            int status = client.executeMethod(put);
+            client.exhaustResponse(put.getResponseBodyAsStream());
+            if (status < 200 || status >= 300) {
+                synchronized (this) {
+                    if (mFailedMethod == null) {
+                        mFailedMethod = put;
+                    }
+                }
+                return false;
+            }
+            sent = true;
+            if (mChunkSizeEstimator != null) {
+                mChunkSizeEstimator.onChunkSent(length, System.currentTimeMillis() - start);
+            }
+
+            Set<Integer> uploadedChunks;
+            synchronized (mUploadedChunks) {
+                mUploadedChunks.add(chunkIndex);
+                uploadedChunks = new HashSet<Integer>(mUploadedChunks);
+            }
+            if (mChunkListener != null) {
+                mChunkListener.onChunkUploaded(uploadedChunks);
+            }
+            return true;
+
+        } finally {
+            if (!sent && mChunkSizeEstimator != null && !mCancellationRequested.get() &&
+                    !mAborting) {
+                // chunks aborted after the failure of another one don't count
+                mChunkSizeEstimator.onChunkFailed(length);
+            }
+            if (!sent) {
+                // the chunk will be sent again, by this upload or by the one resuming it
+                discountProgress(entity.getWritten());
+            }
+            put.releaseConnection();
+            synchronized (mMethods) {
+                mMethods.remove(put);
+            }
+        }
+    }
+
+
+    private Integer nextChunk(LinkedList<Integer> pendingChunks) {
+        synchronized (pendingChunks) {
+            return (mCancellationRequested.get()) ? null : pendingChunks.poll();
+        }
+    }
+
+
+    private long getChunkLength(int chunkIndex) {
+        return Math.min(mChunkSize, mTotalToTransfer - chunkIndex * mChunkSize);
+    }
+
+
+    private void notifyProgress(int written) {
+        synchronized (mDataTransferListeners) {
+            mTransferred += written;
+            Iterator<OnDatatransferProgressListener> it = mDataTransferListeners.iterator();
+            while (it.hasNext()) {
+                it.next().onTransferProgress(written, mTransferred, mTotalToTransfer,
+                        mLocalPath);
+            }
+        }
+    }
+
+
+    /**
+     * Takes back bytes already notified as transferred that will have to be sent again.
+     *
+     * Listeners are not notified; the next progress notification includes the correction.
+     *
+     * @param written       Bytes to take back.
+     */
+    private void discountProgress(long written) {
+        if (written > 0) {
+            synchronized (mDataTransferListeners) {
+                mTransferred -= written;
+            }
+        }
+    }
+
+
+    private void abortAll() {
+        synchronized (mMethods) {
+            for (PutMethod method : mMethods) {
+                method.abort();
+            }
+        }
+    }
+
+
+    public void cancel() {
+        synchronized (mMethods) {
+            mCancellationRequested.set(true);
+        }
+        abortAll();
+    }
+
+
+    public void addDatatransferProgressListener(OnDatatransferProgressListener listener) {
+        synchronized (mDataTransferListeners) {
+            mDataTransferListeners.add(listener);
+        }
+    }
+
+
+    /**
+     * Request entity sending a range of a file, read with positional reads so that several
+     * entities can share the same channel.
+     */
+    private class ChunkRequestEntity implements RequestEntity {
+
+        private static final int BUFFER_SIZE = 4096;
+
+        private final FileChannel mChannel;
+        private final long mOffset;
+        private final long mLength;
+        private long mWritten = 0;
+
+        ChunkRequestEntity(FileChannel channel, long offset, long length) {
+            mChannel = channel;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mLength;
+        }
+
+        @Override
+        public String getContentType() {
+            return mMimeType;
+        }
+
+        /**
+         * @return      Bytes written in the last attempt to send the chunk.
+         */
+        long getWritten() {
+            return mWritten;
+        }
+
+        @Override
+        public void writeRequest(OutputStream out) throws IOException {
+            // HttpClient writes the entity again when it retries the request
+            discountProgress(mWritten);
+            mWritten = 0;
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long position = mOffset;
+            long end = mOffset + mLength;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(BUFFER_SIZE, end - position));
+                int read = mChannel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of " + mLocalPath + " at byte " +
+                            position);
+                }
+                out.write(buffer.array(), 0, read);
+                position += read;
+                mWritten += read;
+                notifyProgress(read);
+            }
+        }
+    }
+
+}
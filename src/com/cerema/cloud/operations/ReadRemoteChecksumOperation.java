@@ -0,0 +1,188 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.operations;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.jackrabbit.webdav.DavConstants;
+import org.apache.jackrabbit.webdav.MultiStatus;
+import org.apache.jackrabbit.webdav.MultiStatusResponse;
+import org.apache.jackrabbit.webdav.client.methods.PropFindMethod;
+import org.apache.jackrabbit.webdav.property.DavProperty;
+import org.apache.jackrabbit.webdav.property.DavPropertyName;
+import org.apache.jackrabbit.webdav.property.DavPropertyNameSet;
+import org.apache.jackrabbit.webdav.property.DavPropertySet;
+import org.apache.jackrabbit.webdav.xml.Namespace;
+import org.w3c.dom.Node;
+
+import com.cerema.cloud.lib.common.OwnCloudClient;
+import com.cerema.cloud.lib.common.network.WebdavUtils;
+import com.cerema.cloud.lib.common.operations.RemoteOperation;
+import com.cerema.cloud.lib.common.operations.RemoteOperationResult;
+import com.cerema.cloud.lib.common.utils.Log_OC;
+
+import java.util.Collection;
+
+/**
+ * Remote operation reading the ETag, the size and the checksum of the content of a file in
+ * the server, with a single PROPFIND request.
+ *
+ * The checksum is read from the property 'oc:checksums', whose value is a list of checksums
+ * separated by spaces, as in 'SHA1:&lt;hex&gt; MD5:&lt;hex&gt;'. Servers not supporting it
+ * just don't return it; the operation succeeds anyway, without SHA-1 checksum.
+ */
+public class ReadRemoteChecksumOperation extends RemoteOperation {
+
+    private static final String TAG = ReadRemoteChecksumOperation.class.getSimpleName();
+
+    private static final Namespace OC_NAMESPACE =
+            Namespace.getNamespace("oc", "http://owncloud.org/ns");
+    private static final String CHECKSUMS_PROPERTY = "checksums";
+    private static final String SHA1_PREFIX = "SHA1:";
+
+    private final String mRemotePath;
+    private String mEtag = null;
+    private long mLength = -1;
+    private String mSha1 = null;
+
+
+    /**
+     * @param remotePath    Remote path of the file.
+     */
+    public ReadRemoteChecksumOperation(String remotePath) {
+        mRemotePath = remotePath;
+    }
+
+
+    @Override
+    protected RemoteOperationResult run(OwnCloudClient client) {
+        DavPropertyNameSet properties = new DavPropertyNameSet();
+        properties.add(DavPropertyName.GETETAG);
+        properties.add(DavPropertyName.GETCONTENTLENGTH);
+        properties.add(DavPropertyName.create(CHECKSUMS_PROPERTY, OC_NAMESPACE));
+
+        PropFindMethod propfind = null;
+        try {
+            propfind = new PropFindMethod(client.getWebdavUri() +
+                    WebdavUtils.encodePath(mRemotePath), properties, DavConstants.DEPTH_0);
+            int status = client.executeMethod(propfind);
+            if (status != HttpStatus.SC_MULTI_STATUS) {
+                client.exhaustResponse(propfind.getResponseBodyAsStream());
+                return new RemoteOperationResult(false, status, propfind.getResponseHeaders());
+            }
+
+            MultiStatus multiStatus = propfind.getResponseBodyAsMultiStatus();
+            MultiStatusResponse[] responses = multiStatus.getResponses();
+            if (responses.length > 0) {
+                DavPropertySet found = responses[0].getProperties(HttpStatus.SC_OK);
+                DavProperty<?> etag = found.get(DavPropertyName.GETETAG);
+                if (etag != null && etag.getValue() != null) {
+                    mEtag = etag.getValue().toString().replace("\"", "");
+                }
+                DavProperty<?> length = found.get(DavPropertyName.GETCONTENTLENGTH);
+                if (length != null && length.getValue() != null) {
+                    mLength = Long.parseLong(length.getValue().toString());
+                }
+                DavProperty<?> checksums = found.get(CHECKSUMS_PROPERTY, OC_NAMESPACE);
+                if (checksums != null) {
+                    mSha1 = parseSha1(textOf(checksums.getValue()));
+                }
+            }
+            return new RemoteOperationResult(true, status, propfind.getResponseHeaders());
+
+        } catch (Exception e) {
+            Log_OC.w(TAG, "Could not read checksum of " + mRemotePath + ": " + e.getMessage());
+            return new RemoteOperationResult(e);
+
+        } finally {
+            if (propfind != null) {
+                propfind.releaseConnection();
+            }
+        }
+    }
+
+
+    /**
+     * @return      ETag of the file in the server, without quotes; null if not read.
+     */
+    public String getEtag() {
+        return mEtag;
+    }
+
+
+    /**
+     * @return      Size of the file in the server, in bytes; -1 if not read.
+     */
+    public long getLength() {
+        return mLength;
+    }
+
+
+    /**
+     * @return      SHA-1 checksum of the file in the server, in lower case hexadecimal; null
+     *              if the server didn't provide it.
+     */
+    public String getSha1() {
+        return mSha1;
+    }
+
+
+    /**
+     * Gets the SHA-1 checksum from the value of 'oc:checksums'.
+     *
+     * @param checksums     Checksums separated by spaces, as in 'SHA1:&lt;hex&gt; MD5:&lt;hex&gt;'.
+     * @return              SHA-1 checksum in lower case hexadecimal, or null if not found.
+     */
+    static String parseSha1(String checksums) {
+        if (checksums == null) {
+            return null;
+        }
+        for (String checksum : checksums.trim().split("\\s+")) {
+            if (checksum.regionMatches(true, 0, SHA1_PREFIX, 0, SHA1_PREFIX.length()) &&
+                    checksum.length() > SHA1_PREFIX.length()) {
+                return checksum.substring(SHA1_PREFIX.length()).toLowerCase();
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * The value of 'oc:checksums' is nested in 'oc:checksum' elements, so the parser may
+     * return it as a String, a DOM node or a collection of them.
+     */
+    private static String textOf(Object value) {
+        if (value == null) {
+            return null;
+        } else if (value instanceof Node) {
+            return ((Node) value).getTextContent();
+        } else if (value instanceof Collection) {
+            StringBuilder text = new StringBuilder();
+            for (Object item : (Collection<?>) value) {
+                String itemText = textOf(item);
+                if (itemText != null) {
+                    text.append(itemText).append(' ');
+                }
+            }
+            return text.toString();
+        }
+        return value.toString();
+    }
+
+}
@@ -28,24 +28,25 @@ import java.util.Vector;
 
 import android.accounts.Account;
 import android.content.Context;
-import android.content.Intent;
 import android.util.Log;
 
 import com.cerema.cloud.datamodel.FileDataStorageManager;
 import com.cerema.cloud.datamodel.OCFile;
+import com.cerema.cloud.events.FolderSyncEvent;
+import com.cerema.cloud.events.SyncEventBus;
+import com.cerema.cloud.files.services.TransferBatch;
 
 import com.cerema.cloud.lib.common.OwnCloudClient;
-import com.cerema.cloud.lib.resources.shares.OCShare;
 import com.cerema.cloud.lib.common.operations.RemoteOperation;
 import com.cerema.cloud.lib.common.operations.RemoteOperationResult;
 import com.cerema.cloud.lib.common.operations.RemoteOperationResult.ResultCode;
 import com.cerema.cloud.lib.common.utils.Log_OC;
-import com.cerema.cloud.lib.resources.shares.GetRemoteSharesForFileOperation;
 import com.cerema.cloud.lib.resources.files.ReadRemoteFileOperation;
 import com.cerema.cloud.lib.resources.files.ReadRemoteFolderOperation;
 import com.cerema.cloud.lib.resources.files.RemoteFile;
 
-import com.cerema.cloud.syncadapter.FileSyncAdapter;
+import com.cerema.cloud.services.ForegroundWorkMonitor;
+import com.cerema.cloud.syncadapter.SyncRunMetrics;
 import com.cerema.cloud.utils.FileStorageUtils;
 
 
@@ -110,6 +111,9 @@ public class RefreshFolderOperation extends RemoteOperation {
     /** 'True' means that Etag will be ignored */
     private boolean mIgnoreETag;
 
+    /** Measures of the requests and database merge of the refresh */
+    private SyncRunMetrics.FolderMetrics mMetrics = null;
+
     private List<SynchronizeFileOperation> mFilesToSyncContents;
     // this will be used for every file when 'folder synchronization' replaces 'folder download'
 
@@ -172,14 +176,46 @@ public class RefreshFolderOperation extends RemoteOperation {
     public List<OCFile> getChildren() {
         return mChildren;
     }
-    
+
+    /**
+     * @return  'True' if the ETag of the remote folder changed since the previous
+     *          synchronization, if called after synchronization is complete.
+     */
+    public boolean isRemoteFolderChanged() {
+        return mRemoteFolderChanged;
+    }
+
+    /**
+     * @return  Measures of the refresh, if called after synchronization is complete; null if
+     *          the folder was refreshed by other operation at the same time.
+     */
+    public SyncRunMetrics.FolderMetrics getMetrics() {
+        return mMetrics;
+    }
+
     /**
      * Performs the synchronization.
+     *
+     * Refreshes of single folders are requested by the user, who is waiting for them;
+     * background synchronizations step aside while they are in progress.
      * 
      * {@inheritDoc}
      */
     @Override
     protected RemoteOperationResult run(OwnCloudClient client) {
+        if (mSyncFullAccount) {
+            return synchronize(client);
+        }
+        ForegroundWorkMonitor.begin();
+        try {
+            return synchronize(client);
+        } finally {
+            ForegroundWorkMonitor.end();
+        }
+    }
+
+
+    private RemoteOperationResult synchronize(final OwnCloudClient client) {
         RemoteOperationResult result = null;
         mFailsInFavouritesFound = 0;
         mConflictsFound = 0;
@@ -189,21 +225,41 @@ public class RefreshFolderOperation extends RemoteOperation {
             updateOCVersion(client);
 
         }
-        
-        result = checkForChanges(client);
-        
-        if (result.isSuccess()) {
-            if (mRemoteFolderChanged) {
-                result = fetchAndSyncRemoteFolder(client);
-            } else {
-                fetchFavoritesToSyncFromLocalData();
-                mChildren = mStorageManager.getFolderContent(mLocalFolder/*, false*/);
-            }
 
+        // join any refresh of the same folder already in progress
+        FolderRefreshCoordinator.Outcome outcome = FolderRefreshCoordinator.getInstance().fetch(
+                mAccount,
+                mLocalFolder.getRemotePath(),
+                mIgnoreETag,
+                new FolderRefreshCoordinator.FolderFetch() {
+                    @Override
+                    public RemoteOperationResult fetch() {
+                        return checkAndFetch(client);
+                    }
+
+                    @Override
+                    public boolean isRemoteFolderChanged() {
+                        return mRemoteFolderChanged;
+                    }
+                }
+        );
+        result = outcome.getResult();
+
+        if (outcome.isShared()) {
+            // other operation refreshed the folder, and took care of KEPT-IN-SYNC file contents;
+            // only fresh data from the database are needed
+            mRemoteFolderChanged = outcome.isRemoteFolderChanged();
             if (result.isSuccess()) {
-                // request for the synchronization of KEPT-IN-SYNC file contents
-                startContentSynchronizations(mFilesToSyncContents, client);
+                OCFile freshFolder = mStorageManager.getFileByPath(mLocalFolder.getRemotePath());
+                if (freshFolder != null) {
+                    mLocalFolder = freshFolder;
+                }
+                mChildren = mStorageManager.getFolderContent(mLocalFolder/*, false*/);
             }
+
+        } else if (result.isSuccess()) {
+            // request for the synchronization of KEPT-IN-SYNC file contents
+            startContentSynchronizations(mFilesToSyncContents, client);
         }
         
         if (!mSyncFullAccount) {            
@@ -227,6 +283,28 @@ public class RefreshFolderOperation extends RemoteOperation {
     }
 
 
+    /**
+     * Checks the remote folder for changes and, if any, merges its contents into the local
+     * database.
+     *
+     * @param client    Interface to the remote ownCloud server.
+     * @return          Result of the check or the fetch of the remote folder.
+     */
+    private RemoteOperationResult checkAndFetch(OwnCloudClient client) {
+        mMetrics = new SyncRunMetrics.FolderMetrics(mLocalFolder.getRemotePath());
+        RemoteOperationResult result = checkForChanges(client);
+        if (result.isSuccess()) {
+            if (mRemoteFolderChanged) {
+                result = fetchAndSyncRemoteFolder(client);
+            } else {
+                fetchFavoritesToSyncFromLocalData();
+                mChildren = mStorageManager.getFolderContent(mLocalFolder/*, false*/);
+            }
+        }
+        return result;
+    }
+
+
     private void updateOCVersion(OwnCloudClient client) {
         UpdateOCVersionOperation update = new UpdateOCVersionOperation(mAccount, mContext);
         RemoteOperationResult result = update.execute(client);
@@ -259,7 +337,9 @@ public class RefreshFolderOperation extends RemoteOperation {
         
         // remote request 
         ReadRemoteFileOperation operation = new ReadRemoteFileOperation(remotePath);
+        mMetrics.startRequest();
         result = operation.execute(client);
+        mMetrics.endCheck();
         if (result.isSuccess()){
             OCFile remoteFolder = FileStorageUtils.fillOCFile((RemoteFile) result.getData().get(0));
 
@@ -301,11 +381,15 @@ public class RefreshFolderOperation extends RemoteOperation {
     private RemoteOperationResult fetchAndSyncRemoteFolder(OwnCloudClient client) {
         String remotePath = mLocalFolder.getRemotePath();
         ReadRemoteFolderOperation operation = new ReadRemoteFolderOperation(remotePath);
+        mMetrics.startRequest();
         RemoteOperationResult result = operation.execute(client);
+        mMetrics.endFetch(result.isSuccess() ? result.getData().size() : 0);
         Log_OC.d(TAG, "Synchronizing " + mAccount.name + remotePath);
         
         if (result.isSuccess()) {
+            mMetrics.startMerge();
             synchronizeData(result.getData(), client);
+            mMetrics.endMerge();
             if (mConflictsFound > 0  || mFailsInFavouritesFound > 0) { 
                 result = new RemoteOperationResult(ResultCode.SYNC_CONFLICT);   
                     // should be a different result code, but will do the job
@@ -451,8 +535,12 @@ public class RefreshFolderOperation extends RemoteOperation {
     private void startContentSynchronizations(
             List<SynchronizeFileOperation> filesToSyncContents, OwnCloudClient client
         ) {
+        // verify all the favorites together, and request their transfers together
+        SynchronizeFilesPreparer.prepare(filesToSyncContents, client);
+        TransferBatch transfers = new TransferBatch(mAccount);
         RemoteOperationResult contentsResult = null;
         for (SynchronizeFileOperation op: filesToSyncContents) {
+            op.setTransferBatch(transfers);
             contentsResult = op.execute(mStorageManager, mContext);   // async
             if (!contentsResult.isSuccess()) {
                 if (contentsResult.getCode() == ResultCode.SYNC_CONFLICT) {
@@ -469,33 +557,27 @@ public class RefreshFolderOperation extends RemoteOperation {
                 }
             }   // won't let these fails break the synchronization process
         }
+        transfers.submit(mContext);
     }
 
 
     /**
-     * Syncs the Share resources for the files contained in the folder refreshed (children, not deeper descendants).
+     * Syncs the Share resources for the files contained in the folder refreshed.
+     *
+     * Shares are read from the index of shares of the account, refreshed with a single
+     * request for the whole account when it's not fresh, instead of requesting the shares of
+     * every folder refreshed.
      *
      * @param client    Handler of a session with an OC server.
-     * @return          The result of the remote operation retrieving the Share resources in the folder refreshed by
-     *                  the operation.
+     * @return          The result of the refresh of the index of shares.
      */
     private RemoteOperationResult refreshSharesForFolder(OwnCloudClient client) {
-        RemoteOperationResult result = null;
-        
-        // remote request 
-        GetRemoteSharesForFileOperation operation = 
-                new GetRemoteSharesForFileOperation(mLocalFolder.getRemotePath(), true, true);
-        result = operation.execute(client);
-        
-        if (result.isSuccess()) {
-            // update local database
-            ArrayList<OCShare> shares = new ArrayList<OCShare>();
-            for(Object obj: result.getData()) {
-                shares.add((OCShare) obj);
-            }
-            mStorageManager.saveSharesInFolder(shares, mLocalFolder);
+        RefreshSharesIndexOperation operation = new RefreshSharesIndexOperation();
+        RemoteOperationResult result = operation.execute(client, mStorageManager);
+        if (result.isSuccess() && mRemoteFolderChanged) {
+            // files new in the folder may have shares already in the index
+            mStorageManager.updateShareFlagsInFolder(mLocalFolder);
         }
-
         return result;
     }
     
@@ -512,15 +594,10 @@ public class RefreshFolderOperation extends RemoteOperation {
     private void sendLocalBroadcast(
             String event, String dirRemotePath, RemoteOperationResult result
         ) {
-        Log_OC.d(TAG, "Send broadcast " + event);
-        Intent intent = new Intent(event);
-        intent.putExtra(FileSyncAdapter.EXTRA_ACCOUNT_NAME, mAccount.name);
-        if (dirRemotePath != null) {
-            intent.putExtra(FileSyncAdapter.EXTRA_FOLDER_PATH, dirRemotePath);
-        }
-        intent.putExtra(FileSyncAdapter.EXTRA_RESULT, result);
-        mContext.sendStickyBroadcast(intent);
-        //LocalBroadcastManager.getInstance(mContext).sendBroadcast(intent);
+        Log_OC.d(TAG, "Send event " + event);
+        SyncEventBus.getInstance().postSticky(
+                new FolderSyncEvent(event, mAccount.name, dirRemotePath, result)
+        );
     }
 
 
@@ -0,0 +1,104 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.operations;
+
+import android.accounts.Account;
+import android.os.SystemClock;
+
+import com.cerema.cloud.lib.common.OwnCloudClient;
+import com.cerema.cloud.lib.common.operations.RemoteOperationResult;
+import com.cerema.cloud.lib.common.operations.RemoteOperationResult.ResultCode;
+import com.cerema.cloud.lib.common.utils.Log_OC;
+import com.cerema.cloud.lib.resources.shares.GetRemoteSharesOperation;
+import com.cerema.cloud.lib.resources.shares.OCShare;
+import com.cerema.cloud.operations.common.SyncOperation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Refreshes the index of shares of an account, kept in the local database, with a single
+ * request for all the shares in the account.
+ *
+ * The index is considered fresh during {@link #TTL_MS} after a successful refresh; meanwhile,
+ * folder views and file details read the shares from the local database without any request
+ * to the server. Shares created, updated or removed from the app are written to the index
+ * by the operations doing it, so it's kept up to date without new refreshes.
+ *
+ * The index holds the shares of the user only, not the reshares of the user's files by other
+ * users; those are not listed for the whole account by the server. Like the details of a
+ * file, which request its shares without reshares too, the sharing flags of the files show
+ * only what the user shared.
+ */
+public class RefreshSharesIndexOperation extends SyncOperation {
+
+    private static final String TAG = RefreshSharesIndexOperation.class.getSimpleName();
+
+    /** Time while a refreshed index is considered up to date */
+    private static final long TTL_MS = 5 * 60 * 1000;
+
+    /** Time of the last successful refresh per account name */
+    private static final Map<String, Long> mLastRefreshes = new HashMap<String, Long>();
+
+
+    /**
+     * @param account   ownCloud account.
+     * @return          'True' if the index of shares of the account was refreshed recently.
+     */
+    private static boolean isFresh(Account account) {
+        synchronized (mLastRefreshes) {
+            Long lastRefresh = mLastRefreshes.get(account.name);
+            return (lastRefresh != null &&
+                    SystemClock.elapsedRealtime() - lastRefresh < TTL_MS);
+        }
+    }
+
+
+    @Override
+    protected RemoteOperationResult run(OwnCloudClient client) {
+        Account account = getStorageManager().getAccount();
+        if (isFresh(account)) {
+            return new RemoteOperationResult(ResultCode.OK);
+        }
+
+        GetRemoteSharesOperation operation = new GetRemoteSharesOperation();
+        RemoteOperationResult result = operation.execute(client);
+
+        ArrayList<OCShare> shares = new ArrayList<OCShare>();
+        if (result.isSuccess()) {
+            for (Object obj : result.getData()) {
+                shares.add((OCShare) obj);
+            }
+        } else if (result.getCode() != ResultCode.SHARE_NOT_FOUND) {
+            return result;
+        }   // else, no share in the account
+
+        int changedFiles = getStorageManager().applyAllShares(shares);
+        synchronized (mLastRefreshes) {
+            mLastRefreshes.put(account.name, SystemClock.elapsedRealtime());
+        }
+        Log_OC.d(TAG, "Index of " + shares.size() + " shares refreshed for " + account.name +
+                "; changes in " + changedFiles + " files");
+
+        return new RemoteOperationResult(ResultCode.OK);
+    }
+
+}
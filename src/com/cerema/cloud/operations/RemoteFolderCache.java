@@ -0,0 +1,93 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.operations;
+
+import com.cerema.cloud.datamodel.OCFile;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Names of the files in remote folders, read once and shared by a batch of uploads.
+ *
+ * Lets several uploads to the same folder resolve name collisions without asking the server
+ * about every candidate name. Names taken by the uploads of the batch are added as they are
+ * chosen, so that the cache keeps up with the changes done by the batch itself.
+ *
+ * The owner of the batch is responsible of clearing the cache when the batch finishes, since
+ * changes done by other clients are not seen.
+ */
+public class RemoteFolderCache {
+
+    /** Names of files per account name and remote folder path */
+    private final Map<String, Set<String>> mNames = new HashMap<String, Set<String>>();
+
+
+    /**
+     * @param accountName   Name of the ownCloud account.
+     * @param folderPath    Remote path of the folder, ending in '/'.
+     * @return              Copy of the names of the files in the folder, or null if the
+     *                      folder was not listed yet.
+     */
+    public synchronized Set<String> getNames(String accountName, String folderPath) {
+        Set<String> names = mNames.get(buildKey(accountName, folderPath));
+        return (names != null) ? new HashSet<String>(names) : null;
+    }
+
+
+    /**
+     * @param accountName   Name of the ownCloud account.
+     * @param folderPath    Remote path of the folder, ending in '/'.
+     * @param names         Names of all the files in the folder.
+     */
+    public synchronized void putNames(String accountName, String folderPath, Set<String> names) {
+        mNames.put(buildKey(accountName, folderPath), new HashSet<String>(names));
+    }
+
+
+    /**
+     * Takes note of a new file in a listed folder. Nothing is done if the folder was not
+     * listed.
+     *
+     * @param accountName   Name of the ownCloud account.
+     * @param remotePath    Remote path of the new file.
+     */
+    public synchronized void addFile(String accountName, String remotePath) {
+        int separator = remotePath.lastIndexOf(OCFile.PATH_SEPARATOR);
+        Set<String> names = mNames.get(buildKey(accountName,
+                remotePath.substring(0, separator + 1)));
+        if (names != null) {
+            names.add(remotePath.substring(separator + 1));
+        }
+    }
+
+
+    public synchronized void clear() {
+        mNames.clear();
+    }
+
+
+    private static String buildKey(String accountName, String folderPath) {
+        return accountName + folderPath;
+    }
+
+}
@@ -28,6 +28,9 @@ import com.cerema.cloud.lib.common.operations.RemoteOperationResult;
 import com.cerema.cloud.lib.common.operations.RemoteOperationResult.ResultCode;
 import com.cerema.cloud.lib.resources.files.RemoveRemoteFileOperation;
 import com.cerema.cloud.operations.common.SyncOperation;
+import com.cerema.cloud.utils.FileStorageUtils;
+
+import java.io.File;
 
 
 /**
@@ -82,6 +85,7 @@ public class RemoveFileOperation extends SyncOperation {
             result = operation.execute(client);
             if (result.isSuccess() || result.getCode() == ResultCode.FILE_NOT_FOUND) {
                 localRemovalFailed = !(getStorageManager().removeFile(mFileToRemove, true, true));
+                discardPartialDownloads();
             }
             
         } else {
@@ -97,5 +101,19 @@ public class RemoveFileOperation extends SyncOperation {
         
         return result;
     }
+
+    /**
+     * Removes the partial downloads kept for the removed file, or for the files in the
+     * removed folder; they will never be resumed.
+     */
+    private void discardPartialDownloads() {
+        String tmpPath = FileStorageUtils.getTemporalPath(getStorageManager().getAccount().name) +
+                mRemotePath;
+        if (mFileToRemove != null && mFileToRemove.isFolder()) {
+            ResumableDownloadRemoteFileOperation.discardAllPartialDownloads(new File(tmpPath));
+        } else {
+            ResumableDownloadRemoteFileOperation.discardPartialDownload(tmpPath);
+        }
+    }
     
 }
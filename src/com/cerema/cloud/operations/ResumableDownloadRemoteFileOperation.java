@@ -0,0 +1,451 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.operations;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.GetMethod;
+
+import com.cerema.cloud.datamodel.ContentHashStore;
+import com.cerema.cloud.lib.common.OwnCloudClient;
+import com.cerema.cloud.lib.common.network.OnDatatransferProgressListener;
+import com.cerema.cloud.lib.common.network.WebdavUtils;
+import com.cerema.cloud.lib.common.operations.OperationCancelledException;
+import com.cerema.cloud.lib.common.operations.RemoteOperation;
+import com.cerema.cloud.lib.common.operations.RemoteOperationResult;
+import com.cerema.cloud.lib.common.utils.Log_OC;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Remote operation downloading a file to a temporal location, resuming a previous download
+ * interrupted before finishing.
+ *
+ * The partial temporal file of a failed or cancelled download is kept, together with the ETag
+ * of the file it's part of, in a file next to it. The next download of the same file requests
+ * only the missing bytes with a Range request conditional to that ETag (If-Range); if the
+ * file changed in the server meanwhile, the server answers with the full new file, and the
+ * partial one is discarded.
+ *
+ * Partial downloads not resumed during {@link #PARTIAL_DOWNLOAD_TTL_MS} are removed by
+ * {@link #discardStalePartialDownloads(File)}.
+ */
+public class ResumableDownloadRemoteFileOperation extends RemoteOperation {
+
+    private static final String TAG = ResumableDownloadRemoteFileOperation.class.getSimpleName();
+
+    /** Time a partial download is kept without being resumed */
+    public static final long PARTIAL_DOWNLOAD_TTL_MS = 7L * 24 * 60 * 60 * 1000;
+
+    private static final String ETAG_FILE_SUFFIX = ".etag";
+    private static final int BUFFER_SIZE = 4096;
+
+    private final String mRemotePath;
+    private final String mTmpPath;
+    private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
+    private final Set<OnDatatransferProgressListener> mDataTransferListeners =
+            new HashSet<OnDatatransferProgressListener>();
+
+    private GetMethod mGet;
+    private long mModificationTimestamp = 0;
+    private String mEtag = "";
+    private long mResumedFrom = 0;
+    private String mContentHash = null;
+
+
+    /**
+     * @param remotePath    Remote path of the file to download.
+     * @param tmpPath       Full local path to the temporal file to download to.
+     */
+    public ResumableDownloadRemoteFileOperation(String remotePath, String tmpPath) {
+        mRemotePath = remotePath;
+        mTmpPath = tmpPath;
+    }
+
+
+    public long getModificationTimestamp() {
+        return mModificationTimestamp;
+    }
+
+    public String getEtag() {
+        return mEtag;
+    }
+
+    /**
+     * @return  Bytes of a previous download reused by the last execution; 0 if it was
+     *          downloaded from the beginning.
+     */
+    public long getResumedFrom() {
+        return mResumedFrom;
+    }
+
+
+    /**
+     * @return  Hash of the content downloaded by the last successful execution, computed
+     *          while it was written, as kept by {@link ContentHashStore}; null if not known.
+     */
+    public String getContentHash() {
+        return mContentHash;
+    }
+
+
+    /**
+     * Removes the partial download of a file kept for a later resumption, if any.
+     *
+     * @param tmpPath       Full local path to the temporal file.
+     */
+    public static void discardPartialDownload(String tmpPath) {
+        File tmpFile = new File(tmpPath);
+        tmpFile.delete();
+        getEtagFile(tmpFile).delete();
+    }
+
+
+    /**
+     * Removes the partial downloads in a temporal folder and its subfolders not resumed during
+     * {@link #PARTIAL_DOWNLOAD_TTL_MS}, such as those of files removed in the server or never
+     * requested again.
+     *
+     * @param tmpFolder     Temporal folder where downloads are done.
+     */
+    public static void discardStalePartialDownloads(File tmpFolder) {
+        long modifiedBefore = System.currentTimeMillis() - PARTIAL_DOWNLOAD_TTL_MS;
+        File[] files = tmpFolder.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                discardStalePartialDownloads(file);
+
+            } else if (file.getName().endsWith(ETAG_FILE_SUFFIX)) {
+                String etagPath = file.getPath();
+                File tmpFile = new File(etagPath.substring(0,
+                        etagPath.length() - ETAG_FILE_SUFFIX.length()));
+                if (Math.max(file.lastModified(), tmpFile.lastModified()) < modifiedBefore) {
+                    tmpFile.delete();
+                    file.delete();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Removes a temporal folder with all the partial downloads in it.
+     *
+     * @param tmpFolder     Temporal folder to remove, such as the one of a removed account or of
+     *                      a removed folder.
+     */
+    public static void discardAllPartialDownloads(File tmpFolder) {
+        File[] files = tmpFolder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    discardAllPartialDownloads(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        tmpFolder.delete();
+    }
+
+
+    /**
+     * Keeps the first bytes of a temporal file as the partial download of a version of a file,
+     * to be resumed later; the rest of the temporal file is dropped.
+     *
+     * @param tmpPath       Full local path to the temporal file.
+     * @param etag          ETag of the file the bytes are part of.
+     * @param length        Number of bytes to keep.
+     */
+    static void keepPartialDownload(String tmpPath, String etag, long length) {
+        File tmpFile = new File(tmpPath);
+        try {
+            RandomAccessFile file = new RandomAccessFile(tmpFile, "rw");
+            try {
+                file.setLength(length);
+            } finally {
+                file.close();
+            }
+            writeEtag(getEtagFile(tmpFile), etag);
+
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Could not keep partial download " + tmpPath);
+            discardPartialDownload(tmpPath);
+        }
+    }
+
+
+    /**
+     * @param tmpPath       Full local path to the temporal file.
+     * @return              'True' if there is a partial download of a file that can be
+     *                      resumed.
+     */
+    public static boolean hasPartialDownload(String tmpPath) {
+        File tmpFile = new File(tmpPath);
+        return tmpFile.exists() && getEtagFile(tmpFile).exists();
+    }
+
+
+    @Override
+    protected RemoteOperationResult run(OwnCloudClient client) {
+        RemoteOperationResult result;
+        File tmpFile = new File(mTmpPath);
+        File etagFile = getEtagFile(tmpFile);
+        tmpFile.getParentFile().mkdirs();
+
+        String partialEtag = readEtag(etagFile);
+        long offset = 0;
+        if (partialEtag != null && tmpFile.exists()) {
+            offset = tmpFile.length();
+        } else {
+            // leftovers of a download that can't be resumed
+            discardPartialDownload(mTmpPath);
+        }
+
+        try {
+            result = download(client, tmpFile, etagFile, offset, partialEtag);
+            if (result.isSuccess()) {
+                etagFile.delete();
+            }
+
+        } catch (Exception e) {
+            if (mCancellationRequested.get()) {
+                result = new RemoteOperationResult(new OperationCancelledException());
+            } else {
+                result = new RemoteOperationResult(e);
+            }
+        }
+
+        Log_OC.i(TAG, "Download of " + mRemotePath + " to " + mTmpPath +
+                (mResumedFrom > 0 ? " resumed from byte " + mResumedFrom : "") + ": " +
+                result.getLogMessage());
+        return result;
+    }
+
+
+    private RemoteOperationResult download(OwnCloudClient client, File tmpFile, File etagFile,
+                                           long offset, String partialEtag) throws Exception {
+        synchronized (mCancellationRequested) {
+            if (mCancellationRequested.get()) {
+                throw new OperationCancelledException();
+            }
+            mGet = new GetMethod(client.getWebdavUri() + WebdavUtils.encodePath(mRemotePath));
+        }
+        if (offset > 0) {
+            mGet.setRequestHeader("Range", "bytes=" + offset + "-");
+            mGet.setRequestHeader("If-Range", "\"" + partialEtag + "\"");
+        }
+
+        try {
+            int status = client.executeMethod(mGet);
+            boolean append;
+            if (status == HttpStatus.SC_PARTIAL_CONTENT && offset > 0 &&
+                    getContentRangeStart(mGet) == offset) {
+                append = true;
+
+            } else if (status == HttpStatus.SC_OK) {
+                // first download, or file changed in the server since the partial download
+                append = false;
+
+            } else if ((status == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE ||
+                    status == HttpStatus.SC_PARTIAL_CONTENT) && offset > 0) {
+                // partial download not valid anymore, or range not matching it; start over
+                mGet.abort();
+                mGet.releaseConnection();
+                discardPartialDownload(mTmpPath);
+                return download(client, tmpFile, etagFile, 0, null);
+
+            } else {
+                client.exhaustResponse(mGet.getResponseBodyAsStream());
+                return new RemoteOperationResult(false, status, mGet.getResponseHeaders());
+            }
+
+            mEtag = WebdavUtils.getEtagFromResponse(mGet);
+            Header modificationTime = mGet.getResponseHeader("Last-Modified");
+            if (modificationTime != null) {
+                Date date = WebdavUtils.parseResponseDate(modificationTime.getValue());
+                mModificationTimestamp = (date != null) ? date.getTime() : 0;
+            }
+            if (!append) {
+                offset = 0;
+                if (mEtag != null && mEtag.length() > 0) {
+                    writeEtag(etagFile, mEtag);     // to resume if interrupted
+                } else {
+                    etagFile.delete();              // can't be resumed safely
+                }
+            }
+            mResumedFrom = offset;
+
+            long contentLength = -1;
+            Header contentLengthHeader = mGet.getResponseHeader("Content-Length");
+            if (contentLengthHeader != null) {
+                contentLength = Long.parseLong(contentLengthHeader.getValue());
+            }
+            long totalToTransfer = (contentLength >= 0) ? offset + contentLength : -1;
+
+            long transferred = offset;
+            MessageDigest digest = ContentHashStore.newDigest();
+            if (append) {
+                ContentHashStore.updateDigest(digest, tmpFile);     // only the partial part
+            }
+            InputStream in = mGet.getResponseBodyAsStream();
+            FileOutputStream out = new FileOutputStream(tmpFile, append);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    if (mCancellationRequested.get()) {
+                        mGet.abort();
+                        throw new OperationCancelledException();
+                    }
+                    out.write(buffer, 0, read);
+                    digest.update(buffer, 0, read);
+                    transferred += read;
+                    synchronized (mDataTransferListeners) {
+                        Iterator<OnDatatransferProgressListener> it =
+                                mDataTransferListeners.iterator();
+                        while (it.hasNext()) {
+                            it.next().onTransferProgress(read, transferred, totalToTransfer,
+                                    tmpFile.getName());
+                        }
+                    }
+                }
+            } finally {
+                out.close();
+            }
+
+            if (totalToTransfer >= 0 && transferred != totalToTransfer) {
+                // connection closed before the end; the partial file is kept to resume
+                throw new IOException("Download of " + mRemotePath + " interrupted at byte " +
+                        transferred + " of " + totalToTransfer);
+            }
+            mContentHash = ContentHashStore.toHash(digest);
+            return new RemoteOperationResult(true, status, mGet.getResponseHeaders());
+
+        } finally {
+            mGet.releaseConnection();
+        }
+    }
+
+
+    public void cancel() {
+        synchronized (mCancellationRequested) {
+            mCancellationRequested.set(true);
+            if (mGet != null) {
+                mGet.abort();
+            }
+        }
+    }
+
+
+    public void addDatatransferProgressListener(OnDatatransferProgressListener listener) {
+        synchronized (mDataTransferListeners) {
+            mDataTransferListeners.add(listener);
+        }
+    }
+
+
+    /**
+     * @return  First byte of the range in the Content-Range header of a 206 response, or -1
+     *          if not found.
+     */
+    static long getContentRangeStart(GetMethod get) {
+        Header contentRange = get.getResponseHeader("Content-Range");
+        if (contentRange == null) {
+            return -1;
+        }
+        // bytes <first>-<last>/<total>
+        String value = contentRange.getValue().trim();
+        int start = value.indexOf(' ') + 1;
+        int end = value.indexOf('-', start);
+        if (start <= 0 || end < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.substring(start, end).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+
+    private static File getEtagFile(File tmpFile) {
+        return new File(tmpFile.getPath() + ETAG_FILE_SUFFIX);
+    }
+
+    private static String readEtag(File etagFile) {
+        if (!etagFile.exists()) {
+            return null;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(etagFile));
+            String etag = reader.readLine();
+            return (etag != null && etag.length() > 0) ? etag : null;
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Could not read ETag of partial download " + etagFile.getPath());
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    private static void writeEtag(File etagFile, String etag) {
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(etagFile);
+            writer.write(etag);
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Could not save ETag of partial download " + etagFile.getPath());
+            etagFile.delete();
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+}
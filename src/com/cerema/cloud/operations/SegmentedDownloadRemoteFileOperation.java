@@ -0,0 +1,398 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.operations;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.HeadMethod;
+
+import com.cerema.cloud.lib.common.OwnCloudClient;
+import com.cerema.cloud.lib.common.network.OnDatatransferProgressListener;
+import com.cerema.cloud.lib.common.network.WebdavUtils;
+import com.cerema.cloud.lib.common.operations.OperationCancelledException;
+import com.cerema.cloud.lib.common.operations.RemoteOperation;
+import com.cerema.cloud.lib.common.operations.RemoteOperationResult;
+import com.cerema.cloud.lib.common.utils.Log_OC;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Remote operation downloading a large file to a temporal location with several parallel
+ * connections, each one requesting a segment of the file with a Range request.
+ *
+ * The size and ETag of the file are read first with a HEAD request; the temporal file is
+ * preallocated with that size, and every segment is written at its position as it's received.
+ * Segments are requested only if the file still has the same ETag (If-Match), so that a file
+ * changed in the middle of the download is never assembled from different versions.
+ *
+ * When the server doesn't support ranges, or the file changes during the download,
+ * {@link #needsSingleStream()} returns 'true' after the execution: the file must be
+ * downloaded with a single connection instead.
+ *
+ * If the download fails or is cancelled, the bytes received from the beginning of the file
+ * without gaps are kept as a partial download, resumed later by
+ * {@link ResumableDownloadRemoteFileOperation}.
+ */
+public class SegmentedDownloadRemoteFileOperation extends RemoteOperation {
+
+    private static final String TAG = SegmentedDownloadRemoteFileOperation.class.getSimpleName();
+
+    public static final int DEFAULT_SEGMENTS = 4;
+
+    /** Segments smaller than this are not worth a connection of their own */
+    private static final long MIN_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String mRemotePath;
+    private final String mTmpPath;
+    private final int mSegments;
+    private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
+    private final Set<OnDatatransferProgressListener> mDataTransferListeners =
+            new HashSet<OnDatatransferProgressListener>();
+    private final List<HttpMethodBase> mMethods = new ArrayList<HttpMethodBase>();
+
+    private long mModificationTimestamp = 0;
+    private String mEtag = "";
+    private long mTotalToTransfer = 0;
+    private long mTransferred = 0;
+    private boolean mSingleStreamNeeded = false;
+
+    /** First byte of every segment, and next byte to write in it */
+    private long[] mSegmentStarts = null;
+    private AtomicLongArray mSegmentPositions = null;
+
+    /** First failed response of a segment, if any */
+    private HttpMethodBase mFailedMethod = null;
+
+
+    /**
+     * @param remotePath    Remote path of the file to download.
+     * @param tmpPath       Full local path to the temporal file to download to.
+     * @param segments      Max number of segments to download in parallel.
+     */
+    public SegmentedDownloadRemoteFileOperation(String remotePath, String tmpPath,
+                                                int segments) {
+        mRemotePath = remotePath;
+        mTmpPath = tmpPath;
+        mSegments = Math.max(1, segments);
+    }
+
+
+    public long getModificationTimestamp() {
+        return mModificationTimestamp;
+    }
+
+    public String getEtag() {
+        return mEtag;
+    }
+
+    /**
+     * @return  'True' if the file couldn't be downloaded in segments and must be downloaded
+     *          with a single connection.
+     */
+    public boolean needsSingleStream() {
+        return mSingleStreamNeeded;
+    }
+
+
+    @Override
+    protected RemoteOperationResult run(OwnCloudClient client) {
+        RemoteOperationResult result;
+        File tmpFile = new File(mTmpPath);
+        tmpFile.getParentFile().mkdirs();
+        String uri = client.getWebdavUri() + WebdavUtils.encodePath(mRemotePath);
+
+        try {
+            result = readFileInfo(client, uri);
+            if (result == null) {
+                result = downloadSegments(client, uri, tmpFile);
+            }
+
+        } catch (Exception e) {
+            if (mCancellationRequested.get()) {
+                result = new RemoteOperationResult(new OperationCancelledException());
+            } else {
+                result = new RemoteOperationResult(e);
+            }
+        }
+
+        if (!result.isSuccess()) {
+            long kept = getContiguousLength();
+            if (kept > 0) {
+                ResumableDownloadRemoteFileOperation.keepPartialDownload(mTmpPath, mEtag, kept);
+            } else {
+                tmpFile.delete();
+            }
+        }
+        Log_OC.i(TAG, "Segmented download of " + mRemotePath + " to " + mTmpPath + ": " +
+                (mSingleStreamNeeded ? "single stream needed" : result.getLogMessage()));
+        return result;
+    }
+
+
+    /**
+     * Reads size, ETag and support of ranges for the file.
+     *
+     * @return      Result to finish the operation with, or null if the file can be downloaded
+     *              in segments.
+     */
+    private RemoteOperationResult readFileInfo(OwnCloudClient client, String uri)
+            throws Exception {
+        HeadMethod head = new HeadMethod(uri);
+        register(head);
+        try {
+            int status = client.executeMethod(head);
+            if (status != HttpStatus.SC_OK) {
+                return new RemoteOperationResult(false, status, head.getResponseHeaders());
+            }
+            mEtag = WebdavUtils.getEtagFromResponse(head);
+            Header modificationTime = head.getResponseHeader("Last-Modified");
+            if (modificationTime != null) {
+                Date date = WebdavUtils.parseResponseDate(modificationTime.getValue());
+                mModificationTimestamp = (date != null) ? date.getTime() : 0;
+            }
+            Header contentLength = head.getResponseHeader("Content-Length");
+            Header acceptRanges = head.getResponseHeader("Accept-Ranges");
+            mTotalToTransfer = (contentLength != null) ?
+                    Long.parseLong(contentLength.getValue()) : -1;
+
+            if (mEtag == null || mEtag.length() == 0 || acceptRanges == null ||
+                    !acceptRanges.getValue().contains("bytes") ||
+                    mTotalToTransfer < 2 * MIN_SEGMENT_SIZE) {
+                mSingleStreamNeeded = true;
+                return new RemoteOperationResult(false, status, head.getResponseHeaders());
+            }
+            return null;
+
+        } finally {
+            head.releaseConnection();
+        }
+    }
+
+
+    private RemoteOperationResult downloadSegments(final OwnCloudClient client, final String uri,
+                                                   File tmpFile) throws Exception {
+        int segments = (int) Math.min(mSegments, mTotalToTransfer / MIN_SEGMENT_SIZE);
+        long segmentSize = (mTotalToTransfer + segments - 1) / segments;
+        mSegmentStarts = new long[segments];
+        mSegmentPositions = new AtomicLongArray(segments);
+        for (int i = 0; i < segments; i++) {
+            mSegmentStarts[i] = i * segmentSize;
+            mSegmentPositions.set(i, mSegmentStarts[i]);
+        }
+
+        RandomAccessFile file = new RandomAccessFile(tmpFile, "rw");
+        try {
+            file.setLength(mTotalToTransfer);   // preallocated; segments are written in place
+            final FileChannel channel = file.getChannel();
+
+            final List<Exception> errors = new ArrayList<Exception>();
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < segments; i++) {
+                final int segment = i;
+                final long start = mSegmentStarts[i];
+                final long end = Math.min(mTotalToTransfer, start + segmentSize) - 1;
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            downloadSegment(client, uri, channel, segment, start, end);
+                        } catch (Exception e) {
+                            synchronized (errors) {
+                                errors.add(e);
+                            }
+                            abortAll();     // no reason to go on with the rest
+                        }
+                    }
+                }, "Segment " + i + " of " + tmpFile.getName());
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            if (mCancellationRequested.get()) {
+                throw new OperationCancelledException();
+            }
+            synchronized (this) {
+                if (mFailedMethod != null) {
+                    if (mFailedMethod.getStatusCode() == HttpStatus.SC_PRECONDITION_FAILED) {
+                        // file changed during the download; nothing received is valid
+                        mSegmentPositions = null;
+                        mSingleStreamNeeded = true;
+                    } else if (mFailedMethod.getStatusCode() == HttpStatus.SC_OK) {
+                        // ranges ignored
+                        mSingleStreamNeeded = true;
+                    }
+                    return new RemoteOperationResult(false, mFailedMethod.getStatusCode(),
+                            mFailedMethod.getResponseHeaders());
+                }
+            }
+            if (!errors.isEmpty()) {
+                throw errors.get(0);
+            }
+            if (mTransferred != mTotalToTransfer) {
+                throw new IOException("Segmented download of " + mRemotePath + " incomplete: " +
+                        mTransferred + " of " + mTotalToTransfer + " bytes");
+            }
+            channel.force(false);
+            return new RemoteOperationResult(true, HttpStatus.SC_OK, null);
+
+        } finally {
+            file.close();
+        }
+    }
+
+
+    private void downloadSegment(OwnCloudClient client, String uri, FileChannel channel,
+                                 int segment, long start, long end) throws Exception {
+        GetMethod get = new GetMethod(uri);
+        get.setRequestHeader("Range", "bytes=" + start + "-" + end);
+        get.setRequestHeader("If-Match", "\"" + mEtag + "\"");
+        register(get);
+        boolean complete = false;
+        try {
+            int status = client.executeMethod(get);
+            if (status != HttpStatus.SC_PARTIAL_CONTENT ||
+                    ResumableDownloadRemoteFileOperation.getContentRangeStart(get) != start) {
+                synchronized (this) {
+                    if (mFailedMethod == null) {
+                        mFailedMethod = get;
+                    }
+                }
+                throw new IOException("Unexpected response for segment " + start + "-" + end +
+                        ": " + status);
+            }
+
+            InputStream in = get.getResponseBodyAsStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = start;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (mCancellationRequested.get()) {
+                    throw new OperationCancelledException();
+                }
+                if (position + read > end + 1) {
+                    throw new IOException("Segment " + start + "-" + end + " too long");
+                }
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+                while (data.hasRemaining()) {
+                    position += channel.write(data, position);
+                }
+                mSegmentPositions.set(segment, position);
+                notifyProgress(read);
+            }
+            if (position != end + 1) {
+                throw new IOException("Segment " + start + "-" + end + " interrupted at byte " +
+                        position);
+            }
+            complete = true;
+
+        } finally {
+            if (!complete) {
+                get.abort();    // connection not reusable after an unfinished response
+            }
+            get.releaseConnection();
+        }
+    }
+
+
+    /**
+     * @return  Number of bytes received from the beginning of the file without gaps.
+     */
+    private long getContiguousLength() {
+        AtomicLongArray positions = mSegmentPositions;
+        if (positions == null || mEtag == null || mEtag.length() == 0) {
+            return 0;
+        }
+        long length = 0;
+        for (int i = 0; i < positions.length(); i++) {
+            length = positions.get(i);
+            if (i + 1 < positions.length() && length < mSegmentStarts[i + 1]) {
+                break;  // gap before the next segment
+            }
+        }
+        return length;
+    }
+
+
+    private void notifyProgress(int read) {
+        synchronized (mDataTransferListeners) {
+            mTransferred += read;
+            Iterator<OnDatatransferProgressListener> it = mDataTransferListeners.iterator();
+            while (it.hasNext()) {
+                it.next().onTransferProgress(read, mTransferred, mTotalToTransfer,
+                        new File(mTmpPath).getName());
+            }
+        }
+    }
+
+
+    private void register(HttpMethodBase method) throws OperationCancelledException {
+        synchronized (mMethods) {
+            if (mCancellationRequested.get()) {
+                throw new OperationCancelledException();
+            }
+            mMethods.add(method);
+        }
+    }
+
+
+    private void abortAll() {
+        synchronized (mMethods) {
+            for (HttpMethodBase method : mMethods) {
+                method.abort();
+            }
+        }
+    }
+
+
+    public void cancel() {
+        synchronized (mMethods) {
+            mCancellationRequested.set(true);
+        }
+        abortAll();
+    }
+
+
+    public void addDatatransferProgressListener(OnDatatransferProgressListener listener) {
+        synchronized (mDataTransferListeners) {
+            mDataTransferListeners.add(listener);
+        }
+    }
+
+}
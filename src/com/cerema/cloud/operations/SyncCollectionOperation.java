@@ -0,0 +1,342 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.operations;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.os.SystemClock;
+
+import com.cerema.cloud.datamodel.FileDataStorageManager;
+import com.cerema.cloud.datamodel.OCFile;
+import com.cerema.cloud.files.services.TransferBatch;
+import com.cerema.cloud.lib.common.OwnCloudClient;
+import com.cerema.cloud.lib.common.operations.RemoteOperationResult;
+import com.cerema.cloud.lib.common.operations.RemoteOperationResult.ResultCode;
+import com.cerema.cloud.lib.common.utils.Log_OC;
+import com.cerema.cloud.lib.resources.files.RemoteFile;
+import com.cerema.cloud.lib.resources.status.CapabilityBooleanType;
+import com.cerema.cloud.operations.common.SyncOperation;
+import com.cerema.cloud.utils.FileStorageUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Updates the local database of an account with the changes in the server since the last
+ * synchronization, read with sync-collection reports instead of walking the tree of folders.
+ *
+ * The operation only applies changes when the server supports sync-collection reports and
+ * there is a sync-token from a previous synchronization; otherwise, {@link #isDeltaApplied()}
+ * returns false and the caller has to walk the tree checking ETags, as usual. In that case,
+ * {@link #getBaselineSyncToken()} may provide a sync-token to store once the walk completes
+ * successfully, so that the next synchronization can use the reports.
+ *
+ * Changes are merged into the local database like {@link RefreshFolderOperation} does: local
+ * state is kept, and ETags are not updated until contents are synchronized. Favorite files
+ * changed are synchronized too.
+ */
+public class SyncCollectionOperation extends SyncOperation {
+
+    private static final String TAG = SyncCollectionOperation.class.getSimpleName();
+
+    /** Max number of reports in a synchronization, if the server truncates the results */
+    private static final int MAX_REPORTS = 10;
+
+    /** Time before checking again a server found without sync-collection reports */
+    private static final long UNSUPPORTED_TTL_MS = 24 * 60 * 60 * 1000;
+
+    /** Time of the last check finding no support of sync-collection reports, per account name */
+    private static final Map<String, Long> mLastUnsupportedChecks = new HashMap<String, Long>();
+
+    private final long mCurrentSyncTime;
+    private final Account mAccount;
+    private final Context mContext;
+
+    private boolean mDeltaApplied = false;
+    private String mBaselineSyncToken = null;
+    private final Set<String> mChangedFolders = new HashSet<String>();
+    private int mConflictsFound = 0;
+    private int mFailsInFavouritesFound = 0;
+
+
+    /**
+     * @param currentSyncTime   Time stamp of the current synchronization.
+     * @param account           ownCloud account to synchronize.
+     * @param context           Android context.
+     */
+    public SyncCollectionOperation(long currentSyncTime, Account account, Context context) {
+        mCurrentSyncTime = currentSyncTime;
+        mAccount = account;
+        mContext = context;
+    }
+
+
+    /**
+     * @return  'True' if the local database was updated with the changes read from the server.
+     */
+    public boolean isDeltaApplied() {
+        return mDeltaApplied;
+    }
+
+    /**
+     * @return  Sync-token to store with {@link FileDataStorageManager#saveSyncCollectionState}
+     *          after a complete and successful walk of the tree of folders, or null.
+     */
+    public String getBaselineSyncToken() {
+        return mBaselineSyncToken;
+    }
+
+    /**
+     * @return  Remote paths of the folders whose contents changed.
+     */
+    public Set<String> getChangedFolders() {
+        return mChangedFolders;
+    }
+
+    public int getConflictsFound() {
+        return mConflictsFound;
+    }
+
+    public int getFailsInFavouritesFound() {
+        return mFailsInFavouritesFound;
+    }
+
+
+    @Override
+    protected RemoteOperationResult run(OwnCloudClient client) {
+        FileDataStorageManager storageManager = getStorageManager();
+        if (storageManager.getSyncCollectionSupport() == CapabilityBooleanType.FALSE &&
+                isUnsupportedCheckFresh()) {
+            return new RemoteOperationResult(ResultCode.OK);
+        }
+
+        String syncToken = storageManager.getSyncToken();
+        if (syncToken == null) {
+            return readBaseline(client);
+        }
+
+        List<SynchronizeFileOperation> favoritesToSync = new ArrayList<SynchronizeFileOperation>();
+        RemoteOperationResult result = null;
+        for (int i = 0; i < MAX_REPORTS; i++) {
+            SyncCollectionRemoteOperation operation = new SyncCollectionRemoteOperation(syncToken);
+            result = operation.execute(client);
+            if (!result.isSuccess()) {
+                if (operation.isSyncTokenInvalid()) {
+                    // expired in the server; start again from a full walk
+                    storageManager.saveSyncCollectionState(CapabilityBooleanType.TRUE, null);
+                    return readBaseline(client);
+                } else if (operation.getSupport() == CapabilityBooleanType.FALSE) {
+                    saveUnsupported();
+                }
+                return result;
+            }
+
+            if (!applyChanges(operation, favoritesToSync)) {
+                // the walk brings the database up to the point of the new sync-token
+                mBaselineSyncToken = operation.getNewSyncToken();
+                return result;
+            }
+            syncToken = operation.getNewSyncToken();
+            storageManager.saveSyncCollectionState(CapabilityBooleanType.TRUE, syncToken);
+            if (!operation.isTruncated()) {
+                mDeltaApplied = true;
+                break;
+            }
+        }
+
+        if (!mDeltaApplied) {
+            Log_OC.w(TAG, "Too many changes to read them with sync-collection reports");
+            mBaselineSyncToken = syncToken;
+            return result;
+        }
+
+        startContentSynchronizations(favoritesToSync, client);
+        return result;
+    }
+
+
+    /**
+     * Reads the current sync-token of the server, to use it as starting point after a walk.
+     */
+    private RemoteOperationResult readBaseline(OwnCloudClient client) {
+        SyncCollectionRemoteOperation operation = new SyncCollectionRemoteOperation(null);
+        RemoteOperationResult result = operation.execute(client);
+        if (result.isSuccess()) {
+            mBaselineSyncToken = operation.getNewSyncToken();
+        } else if (operation.getSupport() == CapabilityBooleanType.FALSE) {
+            saveUnsupported();
+        }
+        return result;
+    }
+
+
+    /**
+     * Stores that the server doesn't support sync-collection reports, and when it was checked.
+     */
+    private void saveUnsupported() {
+        getStorageManager().saveSyncCollectionState(CapabilityBooleanType.FALSE, null);
+        synchronized (mLastUnsupportedChecks) {
+            mLastUnsupportedChecks.put(mAccount.name, SystemClock.elapsedRealtime());
+        }
+    }
+
+
+    /**
+     * Servers can be updated, so a lack of support stored is checked again after
+     * {@link #UNSUPPORTED_TTL_MS}, or once after the app is started.
+     *
+     * @return  'True' if the server of the account was found without support of
+     *          sync-collection reports recently.
+     */
+    private boolean isUnsupportedCheckFresh() {
+        synchronized (mLastUnsupportedChecks) {
+            Long lastCheck = mLastUnsupportedChecks.get(mAccount.name);
+            return (lastCheck != null &&
+                    SystemClock.elapsedRealtime() - lastCheck < UNSUPPORTED_TTL_MS);
+        }
+    }
+
+
+    /**
+     * Merges the changes read from the server into the local database.
+     *
+     * @return  'False' if some change could not be applied, because its parent folder is not
+     *          known locally.
+     */
+    private boolean applyChanges(SyncCollectionRemoteOperation operation,
+                                 List<SynchronizeFileOperation> favoritesToSync) {
+        FileDataStorageManager storageManager = getStorageManager();
+        boolean complete = true;
+
+        for (String removedPath : operation.getRemovedPaths()) {
+            OCFile localFile = storageManager.getFileByPath(removedPath);
+            if (localFile == null && !removedPath.endsWith(OCFile.PATH_SEPARATOR)) {
+                localFile = storageManager.getFileByPath(removedPath + OCFile.PATH_SEPARATOR);
+            }
+            if (localFile != null) {
+                if (localFile.isFolder()) {
+                    storageManager.removeFolder(localFile, true, true);
+                } else {
+                    storageManager.removeFile(localFile, true, true);
+                }
+                mChangedFolders.add(parentPath(localFile.getRemotePath()));
+            }
+        }
+
+        // parents first, so that new folders are known before their contents
+        List<RemoteFile> changedFiles = new ArrayList<RemoteFile>(operation.getChangedFiles());
+        Collections.sort(changedFiles, new Comparator<RemoteFile>() {
+            @Override
+            public int compare(RemoteFile lhs, RemoteFile rhs) {
+                return lhs.getRemotePath().length() - rhs.getRemotePath().length();
+            }
+        });
+
+        for (RemoteFile remote : changedFiles) {
+            OCFile parent = storageManager.getFileByPath(parentPath(remote.getRemotePath()));
+            if (parent == null) {
+                Log_OC.d(TAG, "Unknown parent folder for " + remote.getRemotePath());
+                complete = false;
+                continue;
+            }
+            OCFile remoteFile = FileStorageUtils.fillOCFile(remote);
+            OCFile updatedFile = FileStorageUtils.fillOCFile(remote);
+            updatedFile.setParentId(parent.getFileId());
+            updatedFile.setLastSyncDateForProperties(mCurrentSyncTime);
+
+            OCFile localFile = storageManager.getFileByPath(remote.getRemotePath());
+            if (localFile != null) {
+                updatedFile.setFileId(localFile.getFileId());
+                updatedFile.setFavorite(localFile.isFavorite());
+                updatedFile.setLastSyncDateForData(localFile.getLastSyncDateForData());
+                updatedFile.setModificationTimestampAtLastSyncForData(
+                        localFile.getModificationTimestampAtLastSyncForData()
+                );
+                updatedFile.setStoragePath(localFile.getStoragePath());
+                // eTag will not be updated unless file CONTENTS are synchronized
+                updatedFile.setEtag(localFile.getEtag());
+                if (updatedFile.isFolder()) {
+                    updatedFile.setFileLength(localFile.getFileLength());
+                } else if (remoteFile.isImage() && remoteFile.getModificationTimestamp() !=
+                        localFile.getModificationTimestamp()) {
+                    updatedFile.setNeedsUpdateThumbnail(true);
+                }
+                updatedFile.setPublicLink(localFile.getPublicLink());
+                updatedFile.setShareViaLink(localFile.isSharedViaLink());
+                updatedFile.setShareWithSharee(localFile.isSharedWithSharee());
+                updatedFile.setEtagInConflict(localFile.getEtagInConflict());
+            } else {
+                // remote eTag will not be updated unless file CONTENTS are synchronized
+                updatedFile.setEtag("");
+            }
+            FileStorageUtils.searchForLocalFileInDefaultPath(updatedFile, mAccount);
+            storageManager.saveFile(updatedFile);
+            mChangedFolders.add(parent.getRemotePath());
+
+            if (updatedFile.isFavorite() && !updatedFile.isFolder()) {
+                favoritesToSync.add(new SynchronizeFileOperation(
+                        localFile, remoteFile, mAccount, true, mContext));
+            }
+        }
+        return complete;
+    }
+
+
+    /**
+     * Synchronizes the contents of the favorite files changed, like
+     * {@link RefreshFolderOperation} does for the files in a folder.
+     */
+    private void startContentSynchronizations(List<SynchronizeFileOperation> filesToSyncContents,
+                                              OwnCloudClient client) {
+        if (filesToSyncContents.isEmpty()) {
+            return;
+        }
+        SynchronizeFilesPreparer.prepare(filesToSyncContents, client);
+        TransferBatch transfers = new TransferBatch(mAccount);
+        for (SynchronizeFileOperation op : filesToSyncContents) {
+            op.setTransferBatch(transfers);
+            RemoteOperationResult contentsResult = op.execute(getStorageManager(), mContext);
+            if (!contentsResult.isSuccess()) {
+                if (contentsResult.getCode() == ResultCode.SYNC_CONFLICT) {
+                    mConflictsFound++;
+                } else {
+                    mFailsInFavouritesFound++;
+                    Log_OC.e(TAG, "Error while synchronizing favourites : " +
+                            contentsResult.getLogMessage());
+                }
+            }
+        }
+        transfers.submit(mContext);
+    }
+
+
+    private static String parentPath(String remotePath) {
+        String path = remotePath.endsWith(OCFile.PATH_SEPARATOR) ?
+                remotePath.substring(0, remotePath.length() - 1) : remotePath;
+        return path.substring(0, path.lastIndexOf(OCFile.PATH_SEPARATOR) + 1);
+    }
+
+}
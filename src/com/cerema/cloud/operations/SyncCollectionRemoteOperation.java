@@ -0,0 +1,413 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.operations;
+
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Xml;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import com.cerema.cloud.lib.common.OwnCloudClient;
+import com.cerema.cloud.lib.common.operations.RemoteOperation;
+import com.cerema.cloud.lib.common.operations.RemoteOperationResult;
+import com.cerema.cloud.lib.common.operations.RemoteOperationResult.ResultCode;
+import com.cerema.cloud.lib.common.utils.Log_OC;
+import com.cerema.cloud.lib.resources.files.RemoteFile;
+import com.cerema.cloud.lib.resources.status.CapabilityBooleanType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Remote operation reading the changes in the whole account of a server since a given moment,
+ * identified by a sync-token, with a single WebDAV sync-collection REPORT (RFC 6578).
+ *
+ * Without sync-token, only the current sync-token of the server is read, with a PROPFIND
+ * of the property DAV:sync-token on the root folder; servers not supporting sync-collection
+ * reports don't return it.
+ *
+ * After execution, {@link #getSupport()} tells if the server proved to support the reports,
+ * and {@link #isSyncTokenInvalid()} if the server rejected the sync-token received, that
+ * should be discarded.
+ */
+public class SyncCollectionRemoteOperation extends RemoteOperation {
+
+    private static final String TAG = SyncCollectionRemoteOperation.class.getSimpleName();
+
+    private static final String NS_DAV = "DAV:";
+    private static final String NS_OC = "http://owncloud.org/ns";
+
+    private static final String MIME_DIR = "DIR";
+    private static final String PATH_SEPARATOR = "/";
+
+    private static final int SC_MULTI_STATUS = 207;
+    private static final int SC_INSUFFICIENT_STORAGE = 507;
+
+    private static final String PROPS =
+            "<d:prop>" +
+            "<d:getetag/><d:getlastmodified/><d:getcontentlength/><d:getcontenttype/>" +
+            "<d:resourcetype/><oc:id/><oc:permissions/><oc:size/>" +
+            "</d:prop>";
+
+    private final String mSyncToken;
+
+    private CapabilityBooleanType mSupport = CapabilityBooleanType.UNKNOWN;
+    private boolean mSyncTokenInvalid = false;
+    private boolean mTruncated = false;
+    private String mNewSyncToken = null;
+    private List<RemoteFile> mChangedFiles = new ArrayList<RemoteFile>();
+    private List<String> mRemovedPaths = new ArrayList<String>();
+
+
+    /**
+     * @param syncToken     Sync-token returned by a previous report, or null to read only the
+     *                      current sync-token of the server.
+     */
+    public SyncCollectionRemoteOperation(String syncToken) {
+        mSyncToken = syncToken;
+    }
+
+
+    @Override
+    protected RemoteOperationResult run(OwnCloudClient client) {
+        String webdavPath = client.getWebdavUri().getPath();
+        RemoteOperationResult result = null;
+        DavMethod method = null;
+        try {
+            String uri = client.getWebdavUri() + PATH_SEPARATOR;
+            String body;
+            if (mSyncToken == null) {
+                method = new DavMethod("PROPFIND", uri);
+                method.setRequestHeader("Depth", "0");
+                body = "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+                        "<d:propfind xmlns:d=\"DAV:\"><d:prop><d:sync-token/></d:prop>" +
+                        "</d:propfind>";
+            } else {
+                method = new DavMethod("REPORT", uri);
+                body = "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+                        "<d:sync-collection xmlns:d=\"DAV:\" xmlns:oc=\"" + NS_OC + "\">" +
+                        "<d:sync-token>" + TextUtils.htmlEncode(mSyncToken) + "</d:sync-token>" +
+                        "<d:sync-level>infinite</d:sync-level>" +
+                        PROPS +
+                        "</d:sync-collection>";
+            }
+            method.setRequestEntity(new StringRequestEntity(body, "application/xml", "UTF-8"));
+
+            int status = client.executeMethod(method);
+            if (status == SC_MULTI_STATUS) {
+                parse(method.getResponseBodyAsStream(), webdavPath);
+                if (mNewSyncToken != null) {
+                    mSupport = CapabilityBooleanType.TRUE;
+                    result = new RemoteOperationResult(ResultCode.OK);
+                } else {
+                    // a plain PROPFIND response without the property
+                    mSupport = CapabilityBooleanType.FALSE;
+                    result = new RemoteOperationResult(false, status, method.getResponseHeaders());
+                }
+
+            } else {
+                String response = method.getResponseBodyAsString();
+                if ((status == HttpStatus.SC_FORBIDDEN || status == HttpStatus.SC_CONFLICT) &&
+                        response != null && response.contains("valid-sync-token")) {
+                    mSupport = CapabilityBooleanType.TRUE;
+                    mSyncTokenInvalid = true;
+
+                } else if (status == HttpStatus.SC_BAD_REQUEST ||
+                        status == HttpStatus.SC_METHOD_NOT_ALLOWED ||
+                        status == HttpStatus.SC_NOT_IMPLEMENTED ||
+                        status == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE) {
+                    mSupport = CapabilityBooleanType.FALSE;
+                }   // else, unknown; may be a temporary failure
+                result = new RemoteOperationResult(false, status, method.getResponseHeaders());
+            }
+
+        } catch (Exception e) {
+            result = new RemoteOperationResult(e);
+
+        } finally {
+            if (method != null) {
+                method.releaseConnection();
+            }
+        }
+
+        if (result.isSuccess()) {
+            Log_OC.d(TAG, "Sync-collection from " + mSyncToken + " to " + mNewSyncToken + ": " +
+                    mChangedFiles.size() + " changed, " + mRemovedPaths.size() + " removed" +
+                    (mTruncated ? ", truncated" : ""));
+        } else {
+            Log_OC.w(TAG, "Sync-collection from " + mSyncToken + " failed: " +
+                    result.getLogMessage());
+        }
+        return result;
+    }
+
+
+    /**
+     * @return  Support of sync-collection reports in the server, as found out in the request.
+     */
+    public CapabilityBooleanType getSupport() {
+        return mSupport;
+    }
+
+    /**
+     * @return  'True' if the server rejected the sync-token; a new one has to be got.
+     */
+    public boolean isSyncTokenInvalid() {
+        return mSyncTokenInvalid;
+    }
+
+    /**
+     * @return  'True' if the server didn't return all the changes; a new report with the
+     *          new sync-token will return the rest.
+     */
+    public boolean isTruncated() {
+        return mTruncated;
+    }
+
+    /**
+     * @return  Sync-token to get the changes after the ones read.
+     */
+    public String getNewSyncToken() {
+        return mNewSyncToken;
+    }
+
+    /**
+     * @return  Files and folders created or modified, in no particular order.
+     */
+    public List<RemoteFile> getChangedFiles() {
+        return mChangedFiles;
+    }
+
+    /**
+     * @return  Remote paths of files and folders removed; paths of folders end with '/'.
+     */
+    public List<String> getRemovedPaths() {
+        return mRemovedPaths;
+    }
+
+
+    /**
+     * Parses a multistatus response, keeping the sync-token in it and every response entry.
+     */
+    private void parse(InputStream in, String webdavPath)
+            throws XmlPullParserException, IOException {
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(in, "UTF-8");
+
+        SimpleDateFormat dateFormat =
+                new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        StringBuilder text = new StringBuilder();
+        Entry entry = null;
+        Entry props = null;     // properties in the current propstat
+        String propstatStatus = null;
+
+        int event = parser.getEventType();
+        while (event != XmlPullParser.END_DOCUMENT) {
+            if (event == XmlPullParser.START_TAG) {
+                text.setLength(0);
+                String name = parser.getName();
+                if (NS_DAV.equals(parser.getNamespace())) {
+                    if ("response".equals(name)) {
+                        entry = new Entry();
+                    } else if ("propstat".equals(name)) {
+                        props = new Entry();
+                        propstatStatus = null;
+                    } else if ("collection".equals(name) && props != null) {
+                        props.mCollection = true;
+                    }
+                }
+
+            } else if (event == XmlPullParser.TEXT) {
+                text.append(parser.getText());
+
+            } else if (event == XmlPullParser.END_TAG) {
+                String name = parser.getName();
+                String value = text.toString().trim();
+                text.setLength(0);
+                if (NS_DAV.equals(parser.getNamespace())) {
+                    if ("sync-token".equals(name)) {
+                        if (value.length() > 0) {
+                            mNewSyncToken = value;
+                        }
+                    } else if ("href".equals(name) && entry != null && entry.mHref == null) {
+                        entry.mHref = value;
+                    } else if ("status".equals(name)) {
+                        if (props != null) {
+                            propstatStatus = value;
+                        } else if (entry != null) {
+                            entry.mStatus = value;
+                        }
+                    } else if (props != null && "getetag".equals(name)) {
+                        props.mEtag = value.replace("\"", "");
+                    } else if (props != null && "getlastmodified".equals(name)) {
+                        props.mModified = parseDate(dateFormat, value);
+                    } else if (props != null && "getcontentlength".equals(name)) {
+                        props.mLength = parseLong(value);
+                    } else if (props != null && "getcontenttype".equals(name)) {
+                        props.mContentType = value;
+                    } else if ("propstat".equals(name)) {
+                        if (entry != null && props != null && isOk(propstatStatus)) {
+                            entry.merge(props);
+                        }
+                        props = null;
+                    } else if ("response".equals(name)) {
+                        if (entry != null) {
+                            addEntry(entry, webdavPath);
+                        }
+                        entry = null;
+                    }
+
+                } else if (NS_OC.equals(parser.getNamespace()) && props != null) {
+                    if ("id".equals(name)) {
+                        props.mRemoteId = value;
+                    } else if ("permissions".equals(name)) {
+                        props.mPermissions = value;
+                    } else if ("size".equals(name)) {
+                        props.mSize = parseLong(value);
+                    }
+                }
+            }
+            event = parser.next();
+        }
+    }
+
+
+    private void addEntry(Entry entry, String webdavPath) {
+        if (entry.mHref == null) {
+            return;
+        }
+        String path = Uri.decode(entry.mHref);
+        if (path.startsWith("http://") || path.startsWith("https://")) {
+            path = Uri.parse(entry.mHref).getPath();
+        }
+        if (path.startsWith(webdavPath)) {
+            path = path.substring(webdavPath.length());
+        }
+        if (!path.startsWith(PATH_SEPARATOR)) {
+            path = PATH_SEPARATOR + path;
+        }
+
+        if (PATH_SEPARATOR.equals(path)) {
+            // the collection itself; 507 marks a truncated result
+            mTruncated = (entry.mStatus != null &&
+                    entry.mStatus.contains(" " + SC_INSUFFICIENT_STORAGE));
+            return;
+        }
+
+        if (entry.mStatus != null && entry.mStatus.contains(" " + HttpStatus.SC_NOT_FOUND)) {
+            mRemovedPaths.add(path);
+            return;
+        }
+
+        if (entry.mCollection && !path.endsWith(PATH_SEPARATOR)) {
+            path += PATH_SEPARATOR;
+        }
+        RemoteFile file = new RemoteFile(path);
+        file.setMimeType(entry.mCollection ? MIME_DIR : entry.mContentType);
+        file.setLength(entry.mCollection ? entry.mSize : entry.mLength);
+        file.setModifiedTimestamp(entry.mModified);
+        file.setEtag(entry.mEtag);
+        file.setPermissions(entry.mPermissions);
+        file.setRemoteId(entry.mRemoteId);
+        mChangedFiles.add(file);
+    }
+
+
+    private static boolean isOk(String status) {
+        return status == null || status.contains(" " + HttpStatus.SC_OK);
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static long parseDate(SimpleDateFormat format, String value) {
+        try {
+            Date date = format.parse(value);
+            return date.getTime();
+        } catch (ParseException e) {
+            return 0;
+        }
+    }
+
+
+    /**
+     * Properties of a single response entry.
+     */
+    private static class Entry {
+        String mHref = null;
+        String mStatus = null;
+        String mEtag = null;
+        long mModified = 0;
+        long mLength = 0;
+        long mSize = 0;
+        String mContentType = null;
+        boolean mCollection = false;
+        String mRemoteId = null;
+        String mPermissions = null;
+
+        void merge(Entry props) {
+            mEtag = props.mEtag != null ? props.mEtag : mEtag;
+            mModified = props.mModified != 0 ? props.mModified : mModified;
+            mLength = props.mLength != 0 ? props.mLength : mLength;
+            mSize = props.mSize != 0 ? props.mSize : mSize;
+            mContentType = props.mContentType != null ? props.mContentType : mContentType;
+            mCollection |= props.mCollection;
+            mRemoteId = props.mRemoteId != null ? props.mRemoteId : mRemoteId;
+            mPermissions = props.mPermissions != null ? props.mPermissions : mPermissions;
+        }
+    }
+
+
+    /**
+     * WebDAV method with a request body not provided by the HTTP client library.
+     */
+    private static class DavMethod extends EntityEnclosingMethod {
+
+        private final String mName;
+
+        DavMethod(String name, String uri) {
+            super(uri);
+            mName = name;
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+    }
+
+}
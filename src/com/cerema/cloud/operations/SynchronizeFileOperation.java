@@ -22,9 +22,11 @@
 
 package com.cerema.cloud.operations;
 
+import com.cerema.cloud.datamodel.ContentHashStore;
 import com.cerema.cloud.datamodel.OCFile;
 import com.cerema.cloud.files.services.FileDownloader;
 import com.cerema.cloud.files.services.FileUploader;
+import com.cerema.cloud.files.services.TransferBatch;
 import com.cerema.cloud.lib.common.OwnCloudClient;
 import com.cerema.cloud.lib.resources.files.RemoteFile;
 import com.cerema.cloud.lib.common.operations.RemoteOperationResult;
@@ -38,6 +40,8 @@ import android.accounts.Account;
 import android.content.Context;
 import android.content.Intent;
 
+import java.io.File;
+
 /**
  * Remote operation performing the read of remote file in the ownCloud server.
  */
@@ -55,6 +59,15 @@ public class SynchronizeFileOperation extends SyncOperation {
     
     private boolean mTransferWasRequested = false;
 
+    /** When not null, transfers are added here instead of being requested one by one */
+    private TransferBatch mTransferBatch = null;
+
+    /** 'True' when the synchronization was requested by the user */
+    private boolean mForeground = false;
+
+    /** Last modification of the local copy, when already known; negative if unknown */
+    private long mLocalModificationTimestamp = -1;
+
     /** 
      * When 'false', uploads to the server are not done; only downloads or conflict detection.  
      * This is a temporal field. 
@@ -175,6 +188,69 @@ public class SynchronizeFileOperation extends SyncOperation {
     }
     
 
+    /**
+     * Makes the operation add the transfers it needs to a batch, instead of requesting them
+     * to the transfer services right away. The caller is responsible of submitting the batch.
+     *
+     * @param batch     Batch of transfers for the account of the file; null to request
+     *                  the transfer right away.
+     */
+    public void setTransferBatch(TransferBatch batch) {
+        mTransferBatch = batch;
+    }
+
+
+    /**
+     * Marks the synchronization as requested by the user, so that the transfers it needs are
+     * not deferred by the transfer services.
+     *
+     * @param foreground    'True' if the synchronization was requested by the user.
+     */
+    public void setForeground(boolean foreground) {
+        mForeground = foreground;
+    }
+
+
+    /**
+     * Provides the data of the file in the server, read with other files in a single request,
+     * so that the operation doesn't need to read them by itself.
+     *
+     * @param serverFile    Data of file (just) retrieved from the remote server.
+     */
+    public void setServerFile(OCFile serverFile) {
+        if (serverFile != null && !serverFile.getRemotePath().equals(mRemotePath)) {
+            throw new IllegalArgumentException("serverFile does not correspond to " + mRemotePath);
+        }
+        mServerFile = serverFile;
+    }
+
+
+    /**
+     * Provides the last modification time of the local copy of the file, read before
+     * executing the operation, so that it doesn't need to read it by itself.
+     *
+     * @param timestamp     Last modification of the local copy, in milliseconds; 0 if there is
+     *                      no local copy.
+     */
+    public void setLocalModificationTimestamp(long timestamp) {
+        mLocalModificationTimestamp = timestamp;
+    }
+
+
+    /**
+     * @return      'True' if the data of the file in the server will be needed to decide the
+     *              action to perform, and were not provided yet.
+     */
+    public boolean needsServerFile() {
+        return (mServerFile == null && (mLocalFile == null || mLocalFile.isDown()));
+    }
+
+
+    public String getRemotePath() {
+        return mRemotePath;
+    }
+
+
     @Override
     protected RemoteOperationResult run(OwnCloudClient client) {
 
@@ -214,9 +290,25 @@ public class SynchronizeFileOperation extends SyncOperation {
                 } else {
                     serverChanged = (!mServerFile.getEtag().equals(mLocalFile.getEtag()));
                 }
+                long localModificationTimestamp = (mLocalModificationTimestamp >= 0) ?
+                        mLocalModificationTimestamp : mLocalFile.getLocalModificationTimestamp();
                 boolean localChanged = (
-                    mLocalFile.getLocalModificationTimestamp() > mLocalFile.getLastSyncDateForData()
+                    localModificationTimestamp > mLocalFile.getLastSyncDateForData()
                 );
+                if (localChanged && hasContentInServer(client, serverChanged)) {
+                    // touched, but with the same content than in the server; just take note
+                    localChanged = false;
+                    serverChanged = false;
+                    mLocalFile.setLastSyncDateForData(localModificationTimestamp);
+                    mLocalFile.setEtag(mServerFile.getEtag());
+                    mLocalFile.setModificationTimestampAtLastSyncForData(
+                            mServerFile.getModificationTimestamp());
+                    getStorageManager().saveFile(mLocalFile);
+                    File localFile = new File(mLocalFile.getStoragePath());
+                    ContentHashStore.onContentSynced(mContext, mAccount.name, mRemotePath,
+                            localFile, ContentHashStore.getLocalHash(mContext, mAccount.name,
+                                    mRemotePath, localFile));
+                }
 
                 /// decide action to perform depending upon changes
                 //if (!mLocalFile.getEtag().isEmpty() && localChanged && serverChanged) {
@@ -242,6 +334,9 @@ public class SynchronizeFileOperation extends SyncOperation {
                     mLocalFile.setRemoteId(mServerFile.getRemoteId());
                     
                     if (mSyncFileContents) {
+                        if (mTransferBatch != null) {
+                            saveRemoteId();
+                        }
                         requestForDownload(mLocalFile); // local, not server; we won't to keep
                         // the value of favorite!
                         // the update of local data will be done later by the FileUploader
@@ -277,13 +372,70 @@ public class SynchronizeFileOperation extends SyncOperation {
         return result;
     }
 
+
+    /**
+     * Checks if the content of the local copy, modified according to its timestamp, is the
+     * same than the content in the server.
+     *
+     * The hash of the local copy is compared to the hash of the content last synchronized,
+     * if the file didn't change in the server, or to the checksum provided by the server.
+     *
+     * @param client            Client to the ownCloud server.
+     * @param serverChanged     'True' if the file changed in the server since the last
+     *                          synchronization.
+     * @return                  'True' if the local copy doesn't need to be uploaded.
+     */
+    private boolean hasContentInServer(OwnCloudClient client, boolean serverChanged) {
+        File localFile = new File(mLocalFile.getStoragePath());
+        if (localFile.length() != mServerFile.getFileLength()) {
+            return false;   // no need to read anything
+        }
+        String localHash = ContentHashStore.getLocalHash(mContext, mAccount.name, mRemotePath,
+                localFile);
+        if (localHash == null) {
+            return false;
+        }
+        if (!serverChanged && localHash.equals(
+                ContentHashStore.getSyncedHash(mContext, mAccount.name, mRemotePath,
+                        localFile))) {
+            return true;
+        }
+        ReadRemoteChecksumOperation operation = new ReadRemoteChecksumOperation(mRemotePath);
+        RemoteOperationResult result = operation.execute(client);
+        return (result.isSuccess() && localHash.equals(operation.getSha1()));
+    }
+
     
+    /**
+     * Saves the remote id of the file in the local database, so that the transfer services
+     * get it when they read the file by id to process a {@link TransferBatch}.
+     *
+     * Only the remote id is saved; the stored file may be fresher than mLocalFile in other
+     * properties, updated by the synchronization of the parent folder.
+     */
+    private void saveRemoteId() {
+        if (mLocalFile.getFileId() <= 0) {
+            return;     // not stored; the transfer will be requested with the file itself
+        }
+        OCFile storedFile = getStorageManager().getFileById(mLocalFile.getFileId());
+        if (storedFile != null && mLocalFile.getRemoteId() != null &&
+                !mLocalFile.getRemoteId().equals(storedFile.getRemoteId())) {
+            storedFile.setRemoteId(mLocalFile.getRemoteId());
+            getStorageManager().saveFile(storedFile);
+        }
+    }
+
+
     /**
      * Requests for an upload to the FileUploader service
      * 
      * @param file     OCFile object representing the file to upload
      */
     private void requestForUpload(OCFile file) {
+        mTransferWasRequested = true;
+        if (mTransferBatch != null && mTransferBatch.addUpload(file)) {
+            return;
+        }
         Intent i = new Intent(mContext, FileUploader.class);
         i.putExtra(FileUploader.KEY_ACCOUNT, mAccount);
         i.putExtra(FileUploader.KEY_FILE, file);
@@ -293,8 +445,8 @@ public class SynchronizeFileOperation extends SyncOperation {
         i.putExtra(FileUploader.KEY_LOCAL_FILE, localFile.getStoragePath());*/
         i.putExtra(FileUploader.KEY_UPLOAD_TYPE, FileUploader.UPLOAD_SINGLE_FILE);
         i.putExtra(FileUploader.KEY_FORCE_OVERWRITE, true);
+        i.putExtra(FileUploader.KEY_FOREGROUND, mForeground);
         mContext.startService(i);
-        mTransferWasRequested = true;
     }
 
 
@@ -304,11 +456,15 @@ public class SynchronizeFileOperation extends SyncOperation {
      * @param file     OCFile object representing the file to download
      */
     private void requestForDownload(OCFile file) {
+        mTransferWasRequested = true;
+        if (mTransferBatch != null && mTransferBatch.addDownload(file)) {
+            return;
+        }
         Intent i = new Intent(mContext, FileDownloader.class);
         i.putExtra(FileDownloader.EXTRA_ACCOUNT, mAccount);
         i.putExtra(FileDownloader.EXTRA_FILE, file);
+        i.putExtra(FileDownloader.EXTRA_FOREGROUND, mForeground);
         mContext.startService(i);
-        mTransferWasRequested = true;
     }
 
 
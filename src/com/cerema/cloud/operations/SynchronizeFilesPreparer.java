@@ -0,0 +1,149 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.operations;
+
+import com.cerema.cloud.datamodel.OCFile;
+import com.cerema.cloud.lib.common.OwnCloudClient;
+import com.cerema.cloud.lib.common.operations.RemoteOperationResult;
+import com.cerema.cloud.lib.common.utils.Log_OC;
+import com.cerema.cloud.lib.resources.files.ReadRemoteFolderOperation;
+import com.cerema.cloud.lib.resources.files.RemoteFile;
+import com.cerema.cloud.operations.common.SyncOperation;
+import com.cerema.cloud.utils.FileStorageUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gathers in batches the data needed by a group of {@link SynchronizeFileOperation}s
+ * before executing them.
+ *
+ * Operations without data about the file in the server are grouped by parent folder, and
+ * every folder is read with a single depth-1 request, instead of reading every file with its
+ * own request. The last modification times of the local copies are read here too, stating
+ * only the files of the operations.
+ *
+ * Operations whose server data couldn't be read this way are left as they are; they will
+ * read their data by themselves when executed.
+ */
+public class SynchronizeFilesPreparer {
+
+    private static final String TAG = SynchronizeFilesPreparer.class.getSimpleName();
+
+
+    private SynchronizeFilesPreparer() {
+        // utility class, not instantiable
+    }
+
+
+    /**
+     * Provides server data and local modification times to the {@link SynchronizeFileOperation}s
+     * in a list.
+     *
+     * @param operations    Operations to prepare; others than {@link SynchronizeFileOperation}
+     *                      are ignored.
+     * @param client        Interface to the remote ownCloud server.
+     */
+    public static void prepare(List<? extends SyncOperation> operations, OwnCloudClient client) {
+        Map<String, List<SynchronizeFileOperation>> needingServerData =
+                new HashMap<String, List<SynchronizeFileOperation>>();
+
+        for (SyncOperation op : operations) {
+            if (!(op instanceof SynchronizeFileOperation)) {
+                continue;
+            }
+            SynchronizeFileOperation syncOp = (SynchronizeFileOperation) op;
+            OCFile localFile = syncOp.getLocalFile();
+            if (syncOp.needsServerFile()) {
+                String parentPath = parentRemotePath(syncOp.getRemotePath());
+                addToGroup(needingServerData, parentPath, syncOp);
+            }
+            if (localFile != null && localFile.getStoragePath() != null &&
+                    localFile.getStoragePath().length() > 0) {
+                // a missing file reads as 0, same as when the operation reads it by itself
+                syncOp.setLocalModificationTimestamp(
+                        new File(localFile.getStoragePath()).lastModified());
+            }
+        }
+
+        for (Map.Entry<String, List<SynchronizeFileOperation>> group :
+                needingServerData.entrySet()) {
+            readServerFiles(group.getKey(), group.getValue(), client);
+        }
+    }
+
+
+    /**
+     * Reads the contents of a remote folder with a single request, and provides them to the
+     * operations on files in it.
+     */
+    private static void readServerFiles(String remoteFolderPath,
+                                        List<SynchronizeFileOperation> operations,
+                                        OwnCloudClient client) {
+        if (operations.size() == 1) {
+            return;     // let the operation read only its file
+        }
+        ReadRemoteFolderOperation operation = new ReadRemoteFolderOperation(remoteFolderPath);
+        RemoteOperationResult result = operation.execute(client);
+        if (!result.isSuccess()) {
+            Log_OC.w(TAG, "Could not read " + remoteFolderPath + " to synchronize " +
+                    operations.size() + " files: " + result.getLogMessage());
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        Map<String, OCFile> serverFiles = new HashMap<String, OCFile>();
+        ArrayList<Object> data = result.getData();
+        for (int i = 1; i < data.size(); i++) {     // first one is the folder itself
+            OCFile serverFile = FileStorageUtils.fillOCFile((RemoteFile) data.get(i));
+            serverFile.setLastSyncDateForProperties(now);
+            serverFiles.put(serverFile.getRemotePath(), serverFile);
+        }
+        for (SynchronizeFileOperation syncOp : operations) {
+            OCFile serverFile = serverFiles.get(syncOp.getRemotePath());
+            if (serverFile != null) {
+                syncOp.setServerFile(serverFile);
+            }   // else, removed in the server; let the operation find it out by itself
+        }
+        Log_OC.d(TAG, "Read " + remoteFolderPath + " once for " + operations.size() + " files");
+    }
+
+
+    private static String parentRemotePath(String remotePath) {
+        String path = remotePath.endsWith(OCFile.PATH_SEPARATOR) ?
+                remotePath.substring(0, remotePath.length() - 1) : remotePath;
+        return path.substring(0, path.lastIndexOf(OCFile.PATH_SEPARATOR) + 1);
+    }
+
+
+    private static void addToGroup(Map<String, List<SynchronizeFileOperation>> groups,
+                                   String key, SynchronizeFileOperation operation) {
+        List<SynchronizeFileOperation> group = groups.get(key);
+        if (group == null) {
+            group = new ArrayList<SynchronizeFileOperation>();
+            groups.put(key, group);
+        }
+        group.add(operation);
+    }
+
+}
@@ -36,6 +36,7 @@ import android.util.Log;
 import com.cerema.cloud.datamodel.FileDataStorageManager;
 import com.cerema.cloud.datamodel.OCFile;
 import com.cerema.cloud.files.services.FileDownloader;
+import com.cerema.cloud.files.services.TransferBatch;
 import com.cerema.cloud.lib.common.OwnCloudClient;
 import com.cerema.cloud.lib.common.operations.OperationCancelledException;
 import com.cerema.cloud.lib.common.operations.RemoteOperationResult;
@@ -100,8 +101,13 @@ public class SynchronizeFolderOperation extends SyncOperation {
     private List<SyncOperation> mFilesToSyncContents;
         // this will be used for every file when 'folder synchronization' replaces 'folder download' 
 
+    private List<OCFile> mFoldersToSync;
+
     private final AtomicBoolean mCancellationRequested;
 
+    /** 'True' when the synchronization was requested by the user */
+    private boolean mForeground = false;
+
     /**
      * Creates a new instance of {@link SynchronizeFolderOperation}.
      *
@@ -119,10 +125,23 @@ public class SynchronizeFolderOperation extends SyncOperation {
         mRemoteFolderChanged = false;
         mFilesForDirectDownload = new Vector<OCFile>();
         mFilesToSyncContents = new Vector<SyncOperation>();
+        mFoldersToSync = new Vector<OCFile>();
         mCancellationRequested = new AtomicBoolean(false);
     }
 
 
+    /**
+     * Marks the synchronization as requested by the user, so that the transfers it needs are
+     * not deferred by the transfer services, and its child folders are synchronized before
+     * background synchronizations.
+     *
+     * @param foreground    'True' if the synchronization was requested by the user.
+     */
+    public void setForeground(boolean foreground) {
+        mForeground = foreground;
+    }
+
+
     public int getConflictsFound() {
         return mConflictsFound;
     }
@@ -137,7 +156,7 @@ public class SynchronizeFolderOperation extends SyncOperation {
      * {@inheritDoc}
      */
     @Override
-    protected RemoteOperationResult run(OwnCloudClient client) {
+    protected RemoteOperationResult run(final OwnCloudClient client) {
         RemoteOperationResult result = null;
         mFailsInFileSyncsFound = 0;
         mConflictsFound = 0;
@@ -145,21 +164,44 @@ public class SynchronizeFolderOperation extends SyncOperation {
         try {
             // get locally cached information about folder 
             mLocalFolder = getStorageManager().getFileByPath(mRemotePath);   
-            
-            result = checkForChanges(client);
-    
-            if (result.isSuccess()) {
-                if (mRemoteFolderChanged) {
-                    result = fetchAndSyncRemoteFolder(client);
-                    
-                } else {
-                    prepareOpsFromLocalKnowledge();
-                }
-                
+
+            // join any refresh of the same folder already in progress
+            FolderRefreshCoordinator.Outcome outcome = FolderRefreshCoordinator.getInstance().fetch(
+                    mAccount,
+                    mRemotePath,
+                    false,
+                    new FolderRefreshCoordinator.FolderFetch() {
+                        @Override
+                        public RemoteOperationResult fetch() {
+                            try {
+                                return checkAndFetch(client);
+                            } catch (OperationCancelledException e) {
+                                return new RemoteOperationResult(e);
+                            }
+                        }
+
+                        @Override
+                        public boolean isRemoteFolderChanged() {
+                            return mRemoteFolderChanged;
+                        }
+                    }
+            );
+            result = outcome.getResult();
+
+            if (outcome.isShared()) {
+                mRemoteFolderChanged = outcome.isRemoteFolderChanged();
                 if (result.isSuccess()) {
-                    syncContents(client);
+                    // other operation merged the folder; go on with the fresh local data
+                    mLocalFolder = getStorageManager().getFileByPath(mRemotePath);
+                    if (mLocalFolder != null) {
+                        prepareOpsFromLocalKnowledge();
+                    }
                 }
-
+            }
+    
+            if (result.isSuccess() && mLocalFolder != null) {
+                startSyncFolderOperations();
+                syncContents(client);
             }
             
             if (mCancellationRequested.get()) {
@@ -174,6 +216,28 @@ public class SynchronizeFolderOperation extends SyncOperation {
 
     }
 
+    /**
+     * Checks the remote folder for changes and, if any, merges its contents into the local
+     * database. Prepares the synchronization of the contents in any case.
+     *
+     * @param client    Interface to the remote ownCloud server.
+     * @return          Result of the check or the fetch of the remote folder.
+     */
+    private RemoteOperationResult checkAndFetch(OwnCloudClient client)
+            throws OperationCancelledException {
+        RemoteOperationResult result = checkForChanges(client);
+        if (result.isSuccess()) {
+            if (mRemoteFolderChanged) {
+                result = fetchAndSyncRemoteFolder(client);
+
+            } else {
+                prepareOpsFromLocalKnowledge();
+            }
+        }
+        return result;
+    }
+
+
     private RemoteOperationResult checkForChanges(OwnCloudClient client)
             throws OperationCancelledException {
         Log_OC.d(TAG, "Checking changes in " + mAccount.name + mRemotePath);
@@ -288,6 +352,7 @@ public class SynchronizeFolderOperation extends SyncOperation {
         List<OCFile> updatedFiles = new Vector<OCFile>(folderAndFiles.size() - 1);
         mFilesForDirectDownload.clear();
         mFilesToSyncContents.clear();
+        mFoldersToSync.clear();
 
         if (mCancellationRequested.get()) {
             throw new OperationCancelledException();
@@ -352,13 +417,8 @@ public class SynchronizeFolderOperation extends SyncOperation {
             
             /// classify file to sync/download contents later
             if (remoteFile.isFolder()) {
-                /// to download children files recursively
-                synchronized (mCancellationRequested) {
-                    if (mCancellationRequested.get()) {
-                        throw new OperationCancelledException();
-                    }
-                    startSyncFolderOperation(remoteFile.getRemotePath());
-                }
+                /// to download children files recursively, once saved and with a known id
+                mFoldersToSync.add(updatedFile);
 
             } else {
                 /// prepare content synchronization for files (any file, not just favorites)
@@ -389,12 +449,7 @@ public class SynchronizeFolderOperation extends SyncOperation {
             /// classify file to sync/download contents later
             if (child.isFolder()) {
                 /// to download children files recursively
-                synchronized(mCancellationRequested) {
-                    if (mCancellationRequested.get()) {
-                        throw new OperationCancelledException();
-                    }
-                    startSyncFolderOperation(child.getRemotePath());
-                }
+                mFoldersToSync.add(child);
 
             } else {
                 /// synchronization for regular files
@@ -419,21 +474,37 @@ public class SynchronizeFolderOperation extends SyncOperation {
     }
 
 
+    /**
+     * Requests all the transfers needed for the files in the folder with a single
+     * {@link TransferBatch}, instead of starting the transfer services once per file.
+     *
+     * @param client                    Interface to the remote ownCloud server.
+     */
     private void syncContents(OwnCloudClient client) throws OperationCancelledException {
-        startDirectDownloads();
-        startContentSynchronizations(mFilesToSyncContents, client);
+        TransferBatch transfers = new TransferBatch(mAccount);
+        transfers.setForeground(mForeground);
+        startDirectDownloads(transfers);
+        startContentSynchronizations(mFilesToSyncContents, client, transfers);
+        synchronized(mCancellationRequested) {
+            if (mCancellationRequested.get()) {
+                throw new OperationCancelledException();
+            }
+            transfers.submit(mContext);
+        }
     }
 
     
-    private void startDirectDownloads() throws OperationCancelledException {
+    private void startDirectDownloads(TransferBatch transfers)
+            throws OperationCancelledException {
         for (OCFile file : mFilesForDirectDownload) {
-            synchronized(mCancellationRequested) {
-                if (mCancellationRequested.get()) {
-                    throw new OperationCancelledException();
-                }
+            if (mCancellationRequested.get()) {
+                throw new OperationCancelledException();
+            }
+            if (!transfers.addDownload(file)) {
                 Intent i = new Intent(mContext, FileDownloader.class);
                 i.putExtra(FileDownloader.EXTRA_ACCOUNT, mAccount);
                 i.putExtra(FileDownloader.EXTRA_FILE, file);
+                i.putExtra(FileDownloader.EXTRA_FOREGROUND, mForeground);
                 mContext.startService(i);
             }
         }
@@ -448,17 +519,25 @@ public class SynchronizeFolderOperation extends SyncOperation {
      *
      * @param filesToSyncContents       Synchronization operations to execute.
      * @param client                    Interface to the remote ownCloud server.
+     * @param transfers                 Batch where the needed transfers are collected.
      */
     private void startContentSynchronizations(List<SyncOperation> filesToSyncContents,
-                                              OwnCloudClient client)
+                                              OwnCloudClient client,
+                                              TransferBatch transfers)
             throws OperationCancelledException {
 
         Log_OC.v(TAG, "Starting content synchronization... ");
+        // one request for the folder instead of one per file
+        SynchronizeFilesPreparer.prepare(filesToSyncContents, client);
         RemoteOperationResult contentsResult = null;
         for (SyncOperation op: filesToSyncContents) {
             if (mCancellationRequested.get()) {
                 throw new OperationCancelledException();
             }
+            if (op instanceof SynchronizeFileOperation) {
+                ((SynchronizeFileOperation) op).setTransferBatch(transfers);
+                ((SynchronizeFileOperation) op).setForeground(mForeground);
+            }
             contentsResult = op.execute(getStorageManager(), mContext);
             if (!contentsResult.isSuccess()) {
                 if (contentsResult.getCode() == ResultCode.SYNC_CONFLICT) {
@@ -512,12 +591,30 @@ public class SynchronizeFolderOperation extends SyncOperation {
         return FileStorageUtils.getDefaultSavePathFor(mAccount.name, mLocalFolder);
     }
 
-    private void startSyncFolderOperation(String path){
-        Intent intent = new Intent(mContext, OperationsService.class);
-        intent.setAction(OperationsService.ACTION_SYNC_FOLDER);
-        intent.putExtra(OperationsService.EXTRA_ACCOUNT, mAccount);
-        intent.putExtra(OperationsService.EXTRA_REMOTE_PATH, path);
-        mContext.startService(intent);
+    /**
+     * Requests the synchronization of all the child folders with a single intent to
+     * {@link OperationsService}.
+     */
+    private void startSyncFolderOperations() throws OperationCancelledException {
+        if (mFoldersToSync.isEmpty()) {
+            return;
+        }
+        long[] folderIds = new long[mFoldersToSync.size()];
+        int i = 0;
+        for (OCFile folder : mFoldersToSync) {
+            folderIds[i++] = folder.getFileId();
+        }
+        synchronized(mCancellationRequested) {
+            if (mCancellationRequested.get()) {
+                throw new OperationCancelledException();
+            }
+            Intent intent = new Intent(mContext, OperationsService.class);
+            intent.setAction(OperationsService.ACTION_SYNC_FOLDER);
+            intent.putExtra(OperationsService.EXTRA_ACCOUNT, mAccount);
+            intent.putExtra(OperationsService.EXTRA_FILE_IDS, folderIds);
+            intent.putExtra(OperationsService.EXTRA_FOREGROUND, mForeground);
+            mContext.startService(intent);
+        }
     }
 
     public String getRemotePath() {
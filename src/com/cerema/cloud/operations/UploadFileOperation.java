@@ -21,14 +21,13 @@
 package com.cerema.cloud.operations;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -37,10 +36,12 @@ import org.apache.commons.httpclient.methods.RequestEntity;
 
 import android.accounts.Account;
 import android.content.Context;
+import android.database.Cursor;
 import android.net.Uri;
 
-import com.cerema.cloud.MainApp;
+import com.cerema.cloud.datamodel.ContentHashStore;
 import com.cerema.cloud.datamodel.FileDataStorageManager;
+import com.cerema.cloud.db.DbHandler;
 import com.cerema.cloud.datamodel.OCFile;
 import com.cerema.cloud.files.services.FileUploader;
 import com.cerema.cloud.lib.common.OwnCloudClient;
@@ -51,8 +52,9 @@ import com.cerema.cloud.lib.common.operations.RemoteOperation;
 import com.cerema.cloud.lib.common.operations.RemoteOperationResult;
 import com.cerema.cloud.lib.common.operations.RemoteOperationResult.ResultCode;
 import com.cerema.cloud.lib.common.utils.Log_OC;
-import com.cerema.cloud.lib.resources.files.ChunkedUploadRemoteFileOperation;
 import com.cerema.cloud.lib.resources.files.ExistenceCheckRemoteOperation;
+import com.cerema.cloud.lib.resources.files.ReadRemoteFolderOperation;
+import com.cerema.cloud.lib.resources.files.RemoteFile;
 import com.cerema.cloud.lib.resources.files.UploadRemoteFileOperation;
 import com.cerema.cloud.utils.FileStorageUtils;
 import com.cerema.cloud.utils.UriUtils;
@@ -65,6 +67,14 @@ public class UploadFileOperation extends RemoteOperation {
 
     private static final String TAG = UploadFileOperation.class.getSimpleName();
 
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /** Min size of files whose content is compared with the server before uploading them */
+    private static final long SKIP_IF_IDENTICAL_MIN_SIZE = 256 * 1024;
+
+    /** Time the chunks of an interrupted upload are expected to be kept in the server */
+    private static final long CHUNKS_KEPT_IN_SERVER_MS = 24 * 60 * 60 * 1000;
+
     private Account mAccount;
     private OCFile mFile;
     private OCFile mOldFile;
@@ -78,10 +88,13 @@ public class UploadFileOperation extends RemoteOperation {
     private String mOriginalFileName = null;
     private String mOriginalStoragePath = null;
     private Set<OnDatatransferProgressListener> mDataTransferListeners = new HashSet<OnDatatransferProgressListener>();
-    private AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
+    private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
     private Context mContext;
     
     private UploadRemoteFileOperation mUploadOperation;
+    private ParallelChunkedUploadRemoteOperation mChunkedUploadOperation;
+    private ContentUriUploadRemoteOperation mProviderUploadOperation;
+    private RemoteFolderCache mRemoteFolderCache = null;
 
     protected RequestEntity mEntity = null;
 
@@ -160,10 +173,26 @@ public class UploadFileOperation extends RemoteOperation {
         mRemoteFolderToBeCreated = true;
     }
 
+    /**
+     * @param cache     Names of remote files shared with other uploads in the same batch, to
+     *                  resolve name collisions with a single listing per folder.
+     */
+    public void setRemoteFolderCache(RemoteFolderCache cache) {
+        mRemoteFolderCache = cache;
+    }
+
     public boolean getForceOverwrite() {
         return mForceOverwrite;
     }
 
+    public int getLocalBehaviour() {
+        return mLocalBehaviour;
+    }
+
+    public boolean isChunked() {
+        return mChunked;
+    }
+
     public boolean wasRenamed() {
         return mWasRenamed;
     }
@@ -194,7 +223,7 @@ public class UploadFileOperation extends RemoteOperation {
     protected RemoteOperationResult run(OwnCloudClient client) {
         RemoteOperationResult result = null;
         boolean localCopyPassed = false, nameCheckPassed = false;
-        File temporalFile = null, originalFile = new File(mOriginalStoragePath), expectedFile = null;
+        File originalFile = new File(mOriginalStoragePath), expectedFile = null;
         try {
             // / rename the file to upload, if necessary
             if (!mForceOverwrite) {
@@ -203,6 +232,10 @@ public class UploadFileOperation extends RemoteOperation {
                 if (mWasRenamed) {
                     createNewOCFile(remotePath);
                 }
+                if (mRemoteFolderCache != null) {
+                    // taken for the rest of uploads in the batch
+                    mRemoteFolderCache.addFile(mAccount.name, remotePath);
+                }
             }
             nameCheckPassed = true;
 
@@ -213,174 +246,90 @@ public class UploadFileOperation extends RemoteOperation {
                                                                                                 // !!!
             expectedFile = new File(expectedPath);
 
-            // check location of local file; if not the expected, copy to a
-            // temporal file before upload (if COPY is the expected behaviour)
+            // check location of local file; if not the expected, and COPY is the expected
+            // behaviour, the copy is done after the upload, so that the file is not read
+            // twice before the first byte goes out; content from a provider is streamed
+            // from it, and can't be moved, so it's copied after the upload too
+            boolean fromProvider = mOriginalStoragePath.startsWith(UriUtils.URI_CONTENT_SCHEME);
             if (!mOriginalStoragePath.equals(expectedPath) &&
-                    mLocalBehaviour == FileUploader.LOCAL_BEHAVIOUR_COPY) {
-
-                if (FileStorageUtils.getUsableSpace(mAccount.name) < originalFile.length()) {
-                    result = new RemoteOperationResult(ResultCode.LOCAL_STORAGE_FULL);
-                    return result; // error condition when the file should be
-                                   // copied
-
-                } else {
-
-                    String temporalPath = FileStorageUtils.getTemporalPath(mAccount.name) +
-                            mFile.getRemotePath();
-                    mFile.setStoragePath(temporalPath);
-                    temporalFile = new File(temporalPath);
-
-                    File temporalParent = temporalFile.getParentFile();
-                    temporalParent.mkdirs();
-                    if (!temporalParent.isDirectory()) {
-                        throw new IOException("Unexpected error: parent directory could not be created");
-                    }
-                    temporalFile.createNewFile();
-                    if (!temporalFile.isFile()) {
-                        throw new IOException("Unexpected error: target file could not be created");
-                    }
-
-                    InputStream in = null;
-                    OutputStream out = null;
-
-                    try {
-
-                        // In case document provider schema as 'content://'
-                        if (mOriginalStoragePath.startsWith(UriUtils.URI_CONTENT_SCHEME)) {
-
-                            Uri uri = Uri.parse(mOriginalStoragePath);
-
-                            in = MainApp.getAppContext().getContentResolver().openInputStream(uri);
-                            out = new FileOutputStream(temporalFile);
-
-                            int nRead;
-                            byte[] data = new byte[16384];
-
-                            while (!mCancellationRequested.get() &&
-                                    (nRead = in.read(data, 0, data.length)) != -1) {
-                                out.write(data, 0, nRead);
-                            }
-                            out.flush();
-
-                        } else {
-                            if (!mOriginalStoragePath.equals(temporalPath)) { // preventing
-                                                                          // weird
-                                                                          // but
-                                                                          // possible
-                                                                          // situation
-
-                                in = new FileInputStream(originalFile);
-                                out = new FileOutputStream(temporalFile);
-                                byte[] buf = new byte[1024];
-                                int len;
-                                while (!mCancellationRequested.get() && (len = in.read(buf)) > 0) {
-                                    out.write(buf, 0, len);
-                                }
-                            }
-                        }
-
-                        if (mCancellationRequested.get()) {
-                            result = new RemoteOperationResult(new OperationCancelledException());
-                        }
+                    (mLocalBehaviour == FileUploader.LOCAL_BEHAVIOUR_COPY || fromProvider) &&
+                    FileStorageUtils.getUsableSpace(mAccount.name) < (fromProvider ?
+                            mFile.getFileLength() : originalFile.length())) {
+                result = new RemoteOperationResult(ResultCode.LOCAL_STORAGE_FULL);
+                return result; // error condition when the file should be copied
+            }
+            localCopyPassed = true;
 
+            /// perform the upload
+            File fileToUpload = new File(mFile.getStoragePath());
+            if (fromProvider) {
+                result = uploadFromProvider(client, Uri.parse(mOriginalStoragePath));
 
-                    } catch (Exception e) {
-                        result = new RemoteOperationResult(ResultCode.LOCAL_STORAGE_NOT_COPIED);
-                        return result;
+            } else if (mForceOverwrite &&
+                    originalFile.length() >= SKIP_IF_IDENTICAL_MIN_SIZE &&
+                    isContentInServer(client, originalFile)) {
+                Log_OC.d(TAG, "Content of " + mOriginalStoragePath + " already in " +
+                        mRemotePath + "; upload skipped");
+                result = new RemoteOperationResult(ResultCode.OK);
 
-                    } finally {
-                        try {
-                            if (in != null)
-                                in.close();
-                        } catch (Exception e) {
-                            Log_OC.d(TAG, "Weird exception while closing input stream for " +
-                                    mOriginalStoragePath + " (ignoring)", e);
-                        }
-                        try {
-                            if (out != null)
-                                out.close();
-                        } catch (Exception e) {
-                            Log_OC.d(TAG, "Weird exception while closing output stream for " +
-                                    expectedPath + " (ignoring)", e);
-                        }
-                    }
-                }
-            }
-            localCopyPassed = (result == null);
+            } else if ( mChunked &&
+                    fileToUpload.length() > getChunkSizeInUse(fileToUpload, originalFile) ) {
+                result = uploadChunks(client, fileToUpload, originalFile, true);
 
-            /// perform the upload
-            if ( mChunked &&
-                    (new File(mFile.getStoragePath())).length() >
-                            ChunkedUploadRemoteFileOperation.CHUNK_SIZE ) {
-                mUploadOperation = new ChunkedUploadRemoteFileOperation(mFile.getStoragePath(),
-                        mFile.getRemotePath(), mFile.getMimetype(), mFile.getEtagInConflict());
             } else {
                 mUploadOperation = new UploadRemoteFileOperation(mFile.getStoragePath(),
                         mFile.getRemotePath(), mFile.getMimetype(), mFile.getEtagInConflict());
-            }
-            Iterator <OnDatatransferProgressListener> listener = mDataTransferListeners.iterator();
-            while (listener.hasNext()) {
-                mUploadOperation.addDatatransferProgressListener(listener.next());
-            }
-            if (mCancellationRequested.get()) {
-                throw new OperationCancelledException();
-            }
+                Iterator <OnDatatransferProgressListener> listener = mDataTransferListeners.iterator();
+                while (listener.hasNext()) {
+                    mUploadOperation.addDatatransferProgressListener(listener.next());
+                }
+                if (mCancellationRequested.get()) {
+                    throw new OperationCancelledException();
+                }
 
-            result = mUploadOperation.execute(client);
+                result = mUploadOperation.execute(client);
+            }
 
-            /// move local temporal file or original file to its corresponding
-            // location in the ownCloud local folder
+            /// place the uploaded file in its corresponding location in the ownCloud local
+            // folder
             if (result.isSuccess()) {
                 if (mLocalBehaviour == FileUploader.LOCAL_BEHAVIOUR_FORGET) {
                     mFile.setStoragePath("");
                 } else {
                     mFile.setStoragePath(expectedPath);
-                    File fileToMove = null;
-                    if (temporalFile != null) { // FileUploader.LOCAL_BEHAVIOUR_COPY
-                        // ; see where temporalFile was
-                        // set
-                        fileToMove = temporalFile;
-                    } else { // FileUploader.LOCAL_BEHAVIOUR_MOVE
-                        fileToMove = originalFile;
-                    }
-                    if (!expectedFile.equals(fileToMove)) {
+                    if (!expectedFile.equals(originalFile)) {
                         File expectedFolder = expectedFile.getParentFile();
                         expectedFolder.mkdirs();
 
-                        if (expectedFolder.isDirectory()){
-                            if (!fileToMove.renameTo(expectedFile)){
-                                // try to copy and then delete
-                                expectedFile.createNewFile();
-                                FileChannel inChannel = new FileInputStream(fileToMove).getChannel();
-                                FileChannel outChannel = new FileOutputStream(expectedFile).getChannel();
-
-                                try {
-                                    inChannel.transferTo(0, inChannel.size(), outChannel);
-                                    fileToMove.delete();
-                                } catch (Exception e){
-                                    mFile.setStoragePath(null); // forget the local file
-                                    // by now, treat this as a success; the file was
-                                    // uploaded; the user won't like that the local file
-                                    // is not linked, but this should be a very rare
-                                    // fail;
-                                    // the best option could be show a warning message
-                                    // (but not a fail)
-                                    // result = new
-                                    // RemoteOperationResult(ResultCode.LOCAL_STORAGE_NOT_MOVED);
-                                    // return result;
-                                }
-                                finally {
-                                    if (inChannel != null) inChannel.close();
-                                    if (outChannel != null) outChannel.close();
-                                }
+                        boolean placed = false;
+                        if (expectedFolder.isDirectory()) {
+                            if (fromProvider) {
+                                placed = copyFromProvider(Uri.parse(mOriginalStoragePath),
+                                        expectedFile);
+                            } else if (mLocalBehaviour == FileUploader.LOCAL_BEHAVIOUR_MOVE) {
+                                placed = FileStorageUtils.moveFile(originalFile, expectedFile);
+                            } else {
+                                // FileUploader.LOCAL_BEHAVIOUR_COPY of a file uploaded
+                                // straight from its original location
+                                placed = FileStorageUtils.linkOrCopyFile(originalFile,
+                                        expectedFile);
                             }
-
-                        } else {
+                        }
+                        if (!placed) {
+                            // forget the local file; by now, treat this as a success; the
+                            // file was uploaded; the user won't like that the local file is
+                            // not linked, but this should be a very rare fail
                             mFile.setStoragePath(null);
                         }
                     }
                 }
-                FileDataStorageManager.triggerMediaScan(originalFile.getAbsolutePath());
+                if (mFile.getStoragePath() != null && mFile.getStoragePath().length() > 0) {
+                    ContentHashStore.onContentSynced(mContext, mAccount.name,
+                            mFile.getRemotePath(), expectedFile, null);
+                }
+                if (!fromProvider) {
+                    FileDataStorageManager.triggerMediaScan(originalFile.getAbsolutePath());
+                }
                 FileDataStorageManager.triggerMediaScan(expectedFile.getAbsolutePath());
             } else if (result.getHttpCode() == HttpStatus.SC_PRECONDITION_FAILED ) {
                 result = new RemoteOperationResult(ResultCode.SYNC_CONFLICT);
@@ -390,9 +339,6 @@ public class UploadFileOperation extends RemoteOperation {
             result = new RemoteOperationResult(e);
 
         } finally {
-            if (temporalFile != null && !originalFile.equals(temporalFile)) {
-                temporalFile.delete();
-            }
             if (result == null){
                 result = new RemoteOperationResult(ResultCode.UNKNOWN_ERROR);
             }
@@ -421,6 +367,275 @@ public class UploadFileOperation extends RemoteOperation {
         return result;
     }
 
+    /**
+     * Checks if the server already has the content of a local file in the remote path, so
+     * that replacing it is pointless.
+     *
+     * The hash of the local file is compared to the checksum provided by the server or, if
+     * the file didn't change in the server since the last synchronization, to the hash of the
+     * content synchronized then.
+     *
+     * @param client            Client to the ownCloud server.
+     * @param localFile         Local file to upload.
+     * @return                  'True' if the server has the same content.
+     */
+    private boolean isContentInServer(OwnCloudClient client, File localFile) {
+        ReadRemoteChecksumOperation operation =
+                new ReadRemoteChecksumOperation(mFile.getRemotePath());
+        RemoteOperationResult result = operation.execute(client);
+        if (!result.isSuccess() || operation.getLength() != localFile.length()) {
+            return false;
+        }
+        String reference = operation.getSha1();
+        if (reference == null && mFile.getEtag() != null && mFile.getEtag().length() > 0 &&
+                mFile.getEtag().equals(operation.getEtag())) {
+            reference = ContentHashStore.getSyncedHash(mContext, mAccount.name,
+                    mFile.getRemotePath(), localFile);
+        }
+        return (reference != null && reference.equals(
+                ContentHashStore.getLocalHash(mContext, mAccount.name, mFile.getRemotePath(),
+                        localFile)));
+    }
+
+    /**
+     * Uploads content streamed from its provider, without copying it to a local file first.
+     *
+     * @param client            Client to the ownCloud server.
+     * @param uri               content:// URI of the content to upload.
+     * @return                  Result of the upload.
+     */
+    private RemoteOperationResult uploadFromProvider(OwnCloudClient client, Uri uri)
+            throws OperationCancelledException {
+        long length = UriUtils.getContentLength(mContext, uri);
+        synchronized (mCancellationRequested) {
+            if (mCancellationRequested.get()) {
+                throw new OperationCancelledException();
+            }
+            mProviderUploadOperation = new ContentUriUploadRemoteOperation(
+                    mContext.getContentResolver(), uri, length, mFile.getRemotePath(),
+                    mFile.getMimetype(), mFile.getEtagInConflict());
+        }
+        synchronized (mDataTransferListeners) {
+            for (OnDatatransferProgressListener listener : mDataTransferListeners) {
+                mProviderUploadOperation.addDatatransferProgressListener(listener);
+            }
+        }
+        return mProviderUploadOperation.execute(client);
+    }
+
+    /**
+     * Copies content from its provider to a local file.
+     *
+     * @param uri               content:// URI of the content to copy.
+     * @param targetFile        Local file where the content will be copied.
+     * @return                  'True' if the content was completely copied.
+     */
+    private boolean copyFromProvider(Uri uri, File targetFile) {
+        InputStream in = null;
+        OutputStream out = null;
+        boolean copied = false;
+        try {
+            in = mContext.getContentResolver().openInputStream(uri);
+            if (in != null) {
+                out = new FileOutputStream(targetFile);
+                byte[] data = new byte[COPY_BUFFER_SIZE];
+                int nRead;
+                while ((nRead = in.read(data, 0, data.length)) != -1) {
+                    out.write(data, 0, nRead);
+                }
+                out.flush();
+                copied = true;
+            }
+
+        } catch (Exception e) {
+            Log_OC.w(TAG, "Could not copy " + uri + " to " + targetFile + " after upload: " +
+                    e.getMessage());
+
+        } finally {
+            try {
+                if (in != null)
+                    in.close();
+            } catch (Exception e) {
+                Log_OC.d(TAG, "Weird exception while closing input stream for " + uri +
+                        " (ignoring)", e);
+            }
+            try {
+                if (out != null)
+                    out.close();
+            } catch (Exception e) {
+                Log_OC.d(TAG, "Weird exception while closing output stream for " +
+                        targetFile + " (ignoring)", e);
+                copied = false;
+            }
+        }
+        if (!copied) {
+            targetFile.delete();
+        }
+        return copied;
+    }
+
+    /**
+     * Gets the size of the chunks that {@link #uploadChunks(OwnCloudClient, File, File, boolean)}
+     * would use to upload a file.
+     *
+     * @param fileToUpload      Local file to upload.
+     * @param originalFile      File the upload was requested for.
+     * @return                  Size of the chunks of a previous upload of the file that can be
+     *                          resumed, or the one estimated for the current network.
+     */
+    private long getChunkSizeInUse(File fileToUpload, File originalFile) {
+        DbHandler db = new DbHandler(mContext);
+        try {
+            Cursor c = db.getChunkedUpload(mAccount.name, mFile.getRemotePath());
+            try {
+                if (isResumable(c, fileToUpload.length(), originalFile.lastModified(),
+                        System.currentTimeMillis())) {
+                    return c.getLong(c.getColumnIndex("chunk_size"));
+                }
+            } finally {
+                c.close();
+            }
+        } finally {
+            db.close();
+        }
+        return ChunkSizeEstimator.forCurrentNetwork(mContext).getChunkSize();
+    }
+
+
+    /**
+     * @param c                 Cursor on the chunked upload saved for the remote path, if any.
+     * @return                  'True' if the saved upload was for the same version of the file,
+     *                          and its chunks are still kept by the server.
+     */
+    private static boolean isResumable(Cursor c, long fileLength, long fileTimestamp, long now) {
+        return (c.moveToFirst() &&
+                c.getLong(c.getColumnIndex("file_length")) == fileLength &&
+                c.getLong(c.getColumnIndex("file_timestamp")) == fileTimestamp &&
+                now - c.getLong(c.getColumnIndex("created")) < CHUNKS_KEPT_IN_SERVER_MS);
+    }
+
+
+    /**
+     * Uploads a file in chunks, several at the same time, resuming a previous upload of the
+     * same file if the server still has its chunks.
+     *
+     * The chunks acknowledged by the server are saved in the database as soon as they are
+     * received, so that a new attempt after a failure or a crash of the app only sends the
+     * missing ones.
+     *
+     * @param client            Client to the ownCloud server.
+     * @param fileToUpload      Local file to upload.
+     * @param originalFile      File the upload was requested for; differs from fileToUpload
+     *                          when this is a temporal copy.
+     * @param mayRestart        When 'true', a resumed upload that didn't result in the
+     *                          expected file in the server is restarted from the first chunk.
+     * @return                  Result of the upload.
+     */
+    private RemoteOperationResult uploadChunks(OwnCloudClient client, File fileToUpload,
+                                               File originalFile, boolean mayRestart)
+            throws OperationCancelledException {
+        final String remotePath = mFile.getRemotePath();
+        long fileLength = fileToUpload.length();
+        long fileTimestamp = originalFile.lastModified();
+        long now = System.currentTimeMillis();
+
+        ChunkSizeEstimator estimator = ChunkSizeEstimator.forCurrentNetwork(mContext);
+        long transferId = -1;
+        long chunkSize = estimator.getChunkSize();
+        Set<Integer> uploadedChunks = new HashSet<Integer>();
+
+        final DbHandler db = new DbHandler(mContext);
+        try {
+            Cursor c = db.getChunkedUpload(mAccount.name, remotePath);
+            try {
+                if (isResumable(c, fileLength, fileTimestamp, now)) {
+                    transferId = c.getLong(c.getColumnIndex("transfer_id"));
+                    chunkSize = c.getLong(c.getColumnIndex("chunk_size"));
+                    String chunks = c.getString(c.getColumnIndex("chunks"));
+                    if (chunks != null && chunks.length() > 0) {
+                        for (String chunk : chunks.split(",")) {
+                            uploadedChunks.add(Integer.valueOf(chunk));
+                        }
+                    }
+                }
+            } finally {
+                c.close();
+            }
+            if (transferId < 0) {
+                transferId = new Random().nextInt(Integer.MAX_VALUE);
+                db.saveChunkedUpload(mAccount.name, remotePath, transferId, chunkSize,
+                        fileLength, fileTimestamp, now);
+            } else {
+                Log_OC.d(TAG, "Resuming upload of " + remotePath + " with " +
+                        uploadedChunks.size() + " chunks already uploaded");
+            }
+
+            ParallelChunkedUploadRemoteOperation chunkedOperation =
+                    new ParallelChunkedUploadRemoteOperation(fileToUpload.getAbsolutePath(),
+                            remotePath, mFile.getMimetype(), mFile.getEtagInConflict(),
+                            transferId, chunkSize, uploadedChunks,
+                            ParallelChunkedUploadRemoteOperation.DEFAULT_PARALLEL_CHUNKS);
+            chunkedOperation.setChunkSizeEstimator(estimator);
+            chunkedOperation.setOnChunkUploadedListener(
+                    new ParallelChunkedUploadRemoteOperation.OnChunkUploadedListener() {
+                        @Override
+                        public void onChunkUploaded(Set<Integer> chunks) {
+                            StringBuilder value = new StringBuilder();
+                            for (Integer chunk : chunks) {
+                                if (value.length() > 0) {
+                                    value.append(',');
+                                }
+                                value.append(chunk);
+                            }
+                            synchronized (db) {
+                                db.updateChunkedUploadChunks(mAccount.name, remotePath,
+                                        value.toString());
+                            }
+                        }
+                    });
+            synchronized (mDataTransferListeners) {
+                for (OnDatatransferProgressListener listener : mDataTransferListeners) {
+                    chunkedOperation.addDatatransferProgressListener(listener);
+                }
+            }
+            synchronized (mCancellationRequested) {
+                if (mCancellationRequested.get()) {
+                    throw new OperationCancelledException();
+                }
+                mChunkedUploadOperation = chunkedOperation;
+            }
+
+            RemoteOperationResult result = chunkedOperation.execute(client);
+            estimator.save(mContext);
+
+            if (result.isSuccess() && !uploadedChunks.isEmpty() &&
+                    !existsFile(client, remotePath)) {
+                // the server discarded the chunks of the previous attempt; start over
+                Log_OC.w(TAG, "Chunks of previous upload of " + remotePath + " lost in server");
+                synchronized (db) {
+                    db.removeChunkedUpload(mAccount.name, remotePath);
+                }
+                if (mayRestart) {
+                    return uploadChunks(client, fileToUpload, originalFile, false);
+                }
+                result = new RemoteOperationResult(ResultCode.UNKNOWN_ERROR);
+
+            } else if (result.isSuccess() ||
+                    result.getHttpCode() == HttpStatus.SC_PRECONDITION_FAILED) {
+                // nothing to resume
+                synchronized (db) {
+                    db.removeChunkedUpload(mAccount.name, remotePath);
+                }
+            }
+            return result;
+
+        } finally {
+            synchronized (db) {
+                db.close();
+            }
+        }
+    }
+
     private void createNewOCFile(String newRemotePath) {
         // a new OCFile instance must be created for a new remote path
         OCFile newFile = new OCFile(newRemotePath);
@@ -441,42 +656,100 @@ public class UploadFileOperation extends RemoteOperation {
     }
 
     /**
-     * Checks if remotePath does not exist in the server and returns it, or adds
-     * a suffix to it in order to avoid the server file is overwritten.
-     * 
-     * @param wc
-     * @param remotePath
-     * @return
+     * Checks if remotePath does not exist in the server and returns it, or adds a suffix to it
+     * in order to avoid the server file is overwritten.
+     *
+     * When the name is taken, the free suffix is chosen from a single listing of the parent
+     * folder, shared with the other uploads of the batch through the {@link RemoteFolderCache},
+     * so that the number of requests doesn't grow with the number of collisions. The listing
+     * may be older than the last changes in the folder, so the chosen name is confirmed with an
+     * existence check before returning it.
+     *
+     * @param wc            Client to the ownCloud server.
+     * @param remotePath    Remote path wanted for the upload.
+     * @return              remotePath, or a free path with a suffix ' (N)' in the name.
      */
     private String getAvailableRemotePath(OwnCloudClient wc, String remotePath) throws Exception {
-        boolean check = existsFile(wc, remotePath);
-        if (!check) {
+        int separator = remotePath.lastIndexOf(OCFile.PATH_SEPARATOR);
+        String folderPath = remotePath.substring(0, separator + 1);
+        String fileName = remotePath.substring(separator + 1);
+
+        Set<String> names = (mRemoteFolderCache != null) ?
+                mRemoteFolderCache.getNames(mAccount.name, folderPath) : null;
+        if ((names == null || !names.contains(fileName)) && !existsFile(wc, remotePath)) {
             return remotePath;
         }
-
-        int pos = remotePath.lastIndexOf(".");
-        String suffix = "";
-        String extension = "";
-        if (pos >= 0) {
-            extension = remotePath.substring(pos + 1);
-            remotePath = remotePath.substring(0, pos);
+        if (names == null) {
+            names = readNames(wc, folderPath);
+            if (names == null) {
+                return probeAvailableRemotePath(wc, folderPath, fileName);
+            }
+            if (mRemoteFolderCache != null) {
+                mRemoteFolderCache.putNames(mAccount.name, folderPath, names);
+            }
         }
+        names.add(fileName);    // even if the listing is older than the existence check
+
         int count = 2;
-        do {
-            suffix = " (" + count + ")";
-            if (pos >= 0) {
-                check = existsFile(wc, remotePath + suffix + "." + extension);
+        String candidate;
+        while (true) {
+            do {
+                candidate = buildSuffixedName(fileName, count++);
+            } while (names.contains(candidate));
+            // the listing may be stale; confirm the candidate in the server
+            if (!existsFile(wc, folderPath + candidate)) {
+                return folderPath + candidate;
             }
-            else {
-                check = existsFile(wc, remotePath + suffix);
+            names.add(candidate);
+        }
+    }
+
+    /**
+     * Reads the names of the files in a remote folder.
+     *
+     * @return      Names of the files in the folder, or null if it could not be read.
+     */
+    private Set<String> readNames(OwnCloudClient client, String folderPath) {
+        ReadRemoteFolderOperation operation = new ReadRemoteFolderOperation(folderPath);
+        RemoteOperationResult result = operation.execute(client);
+        if (!result.isSuccess()) {
+            Log_OC.w(TAG, "Could not list " + folderPath + " to find a free name: " +
+                    result.getLogMessage());
+            return null;
+        }
+        Set<String> names = new HashSet<String>();
+        ArrayList<Object> data = result.getData();
+        for (int i = 1; i < data.size(); i++) {     // first one is the folder itself
+            String path = ((RemoteFile) data.get(i)).getRemotePath();
+            if (path.endsWith(OCFile.PATH_SEPARATOR)) {
+                path = path.substring(0, path.length() - 1);
             }
-            count++;
-        } while (check);
+            names.add(path.substring(path.lastIndexOf(OCFile.PATH_SEPARATOR) + 1));
+        }
+        return names;
+    }
+
+    /**
+     * Finds a free name checking the existence of every candidate in the server; only used
+     * when the parent folder can't be listed.
+     */
+    private String probeAvailableRemotePath(OwnCloudClient wc, String folderPath,
+                                            String fileName) {
+        int count = 2;
+        String candidate;
+        do {
+            candidate = folderPath + buildSuffixedName(fileName, count++);
+        } while (existsFile(wc, candidate));
+        return candidate;
+    }
 
+    private static String buildSuffixedName(String fileName, int count) {
+        String suffix = " (" + count + ")";
+        int pos = fileName.lastIndexOf(".");
         if (pos >= 0) {
-            return remotePath + suffix + "." + extension;
+            return fileName.substring(0, pos) + suffix + fileName.substring(pos);
         } else {
-            return remotePath + suffix;
+            return fileName + suffix;
         }
     }
 
@@ -488,9 +761,17 @@ public class UploadFileOperation extends RemoteOperation {
     }
     
     public void cancel() {
-        mCancellationRequested = new AtomicBoolean(true);
+        synchronized (mCancellationRequested) {
+            mCancellationRequested.set(true);
+        }
         if (mUploadOperation != null) {
             mUploadOperation.cancel();
         }
+        if (mChunkedUploadOperation != null) {
+            mChunkedUploadOperation.cancel();
+        }
+        if (mProviderUploadOperation != null) {
+            mProviderUploadOperation.cancel();
+        }
     }
 }
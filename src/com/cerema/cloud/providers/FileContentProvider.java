@@ -764,6 +764,27 @@ public class FileContentProvider extends ContentProvider {
                 Log_OC.i("SQL", "OUT of the ADD in onUpgrade; oldVersion == " + oldVersion +
                         ", newVersion == " + newVersion);
 
+            // capabilities tables created in #13 upgrade already include the new columns
+            if (oldVersion == 13 && newVersion >= 14) {
+                Log_OC.i("SQL", "Entering in the #14 ADD in onUpgrade");
+                db.beginTransaction();
+                try {
+                    db.execSQL("ALTER TABLE " + ProviderTableMeta.CAPABILITIES_TABLE_NAME +
+                            " ADD COLUMN " + ProviderTableMeta.CAPABILITIES_DAV_SYNC_COLLECTION +
+                            " INTEGER DEFAULT -1");
+                    db.execSQL("ALTER TABLE " + ProviderTableMeta.CAPABILITIES_TABLE_NAME +
+                            " ADD COLUMN " + ProviderTableMeta.CAPABILITIES_DAV_SYNC_TOKEN +
+                            " TEXT DEFAULT NULL");
+                    upgraded = true;
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            if (!upgraded)
+                Log_OC.i("SQL", "OUT of the ADD in onUpgrade; oldVersion == " + oldVersion +
+                        ", newVersion == " + newVersion);
+
         }
     }
 
@@ -792,7 +813,9 @@ public class FileContentProvider extends ContentProvider {
                 + ProviderTableMeta.CAPABILITIES_SHARING_FEDERATION_INCOMING + " INTEGER, "     // boolean
                 + ProviderTableMeta.CAPABILITIES_FILES_BIGFILECHUNKING + " INTEGER, "   // boolean
                 + ProviderTableMeta.CAPABILITIES_FILES_UNDELETE + " INTEGER, "  // boolean
-                + ProviderTableMeta.CAPABILITIES_FILES_VERSIONING + " INTEGER );" );   // boolean
+                + ProviderTableMeta.CAPABILITIES_FILES_VERSIONING + " INTEGER, "   // boolean
+                + ProviderTableMeta.CAPABILITIES_DAV_SYNC_COLLECTION + " INTEGER DEFAULT -1, " // boolean
+                + ProviderTableMeta.CAPABILITIES_DAV_SYNC_TOKEN + " TEXT );" );
     }
 
     /**
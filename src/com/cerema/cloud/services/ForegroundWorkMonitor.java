@@ -0,0 +1,107 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.services;
+
+import com.cerema.cloud.lib.common.utils.Log_OC;
+
+/**
+ * Keeps count of the work the user is waiting for right now, such as the refresh of the
+ * folder in the screen or the download of a file to preview, so that background
+ * synchronizations can step aside while it's in progress.
+ *
+ * Foreground work must be enclosed between {@link #begin()} and {@link #end()}. Background
+ * workers call {@link #yieldToForeground()} between units of work, and wait there while any
+ * foreground work is in progress, up to a maximum time to avoid starvation.
+ */
+public class ForegroundWorkMonitor {
+
+    private static final String TAG = ForegroundWorkMonitor.class.getSimpleName();
+
+    /** Maximum time a background worker waits for foreground work in a single call */
+    private static final long MAX_YIELD_MS = 30 * 1000;
+
+    private static final Object mLock = new Object();
+    private static int mForegroundCount = 0;
+
+
+    private ForegroundWorkMonitor() {
+        // utility class, not instantiable
+    }
+
+
+    /**
+     * Signals the start of work the user is waiting for.
+     */
+    public static void begin() {
+        synchronized (mLock) {
+            mForegroundCount++;
+        }
+    }
+
+
+    /**
+     * Signals the end of work started with {@link #begin()}.
+     */
+    public static void end() {
+        synchronized (mLock) {
+            if (mForegroundCount > 0) {
+                mForegroundCount--;
+            }
+            if (mForegroundCount == 0) {
+                mLock.notifyAll();
+            }
+        }
+    }
+
+
+    public static boolean isForegroundWorkInProgress() {
+        synchronized (mLock) {
+            return mForegroundCount > 0;
+        }
+    }
+
+
+    /**
+     * Blocks the calling background worker while there is foreground work in progress, for
+     * {@link #MAX_YIELD_MS} at most.
+     *
+     * Must never be called from the main thread.
+     */
+    public static void yieldToForeground() {
+        synchronized (mLock) {
+            if (mForegroundCount == 0) {
+                return;
+            }
+            Log_OC.d(TAG, "Background work paused while foreground work is in progress");
+            long deadline = System.currentTimeMillis() + MAX_YIELD_MS;
+            long remaining = MAX_YIELD_MS;
+            while (mForegroundCount > 0 && remaining > 0) {
+                try {
+                    mLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+    }
+
+}
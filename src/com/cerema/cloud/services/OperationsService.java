@@ -39,6 +39,8 @@ import com.cerema.cloud.MainApp;
 import com.cerema.cloud.R;
 import com.cerema.cloud.datamodel.FileDataStorageManager;
 import com.cerema.cloud.datamodel.OCFile;
+import com.cerema.cloud.events.OperationEvent;
+import com.cerema.cloud.events.SyncEventBus;
 import com.cerema.cloud.lib.common.OwnCloudAccount;
 import com.cerema.cloud.lib.common.OwnCloudClient;
 import com.cerema.cloud.lib.common.OwnCloudClientManagerFactory;
@@ -69,7 +71,9 @@ import com.cerema.cloud.operations.UpdateShareViaLinkOperation;
 import com.cerema.cloud.operations.common.SyncOperation;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
@@ -90,6 +94,8 @@ public class OperationsService extends Service {
     public static final String EXTRA_RESULT = "RESULT";
     public static final String EXTRA_NEW_PARENT_PATH = "NEW_PARENT_PATH";
     public static final String EXTRA_FILE = "FILE";
+    public static final String EXTRA_FILE_IDS = "FILE_IDS";
+    public static final String EXTRA_FOREGROUND = "FOREGROUND";
     public static final String EXTRA_SHARE_PASSWORD = "SHARE_PASSWORD";
     public static final String EXTRA_SHARE_TYPE = "SHARE_TYPE";
     public static final String EXTRA_SHARE_WITH = "SHARE_WITH";
@@ -169,6 +175,12 @@ public class OperationsService extends Service {
      * <p/>
      * New operations are added calling to startService(), resulting in a call to this method.
      * This ensures the service will keep on working although the caller activity goes away.
+     *
+     * Several folders of the same account can be synchronized with a single
+     * {@link #ACTION_SYNC_FOLDER} request passing their ids in {@link #EXTRA_FILE_IDS}.
+     *
+     * Synchronizations of folders requested by the user should set {@link #EXTRA_FOREGROUND}
+     * to be performed before those started by other synchronizations.
      */
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
@@ -178,24 +190,49 @@ public class OperationsService extends Service {
         // the rest of the operations are requested through the Binder
         if (ACTION_SYNC_FOLDER.equals(intent.getAction())) {
 
-            if (!intent.hasExtra(EXTRA_ACCOUNT) || !intent.hasExtra(EXTRA_REMOTE_PATH)) {
+            if (!intent.hasExtra(EXTRA_ACCOUNT) ||
+                    !(intent.hasExtra(EXTRA_REMOTE_PATH) || intent.hasExtra(EXTRA_FILE_IDS))) {
                 Log_OC.e(TAG, "Not enough information provided in intent");
                 return START_NOT_STICKY;
             }
             Account account = intent.getParcelableExtra(EXTRA_ACCOUNT);
-            String remotePath = intent.getStringExtra(EXTRA_REMOTE_PATH);
 
-            Pair<Account, String> itemSyncKey =  new Pair<Account , String>(account, remotePath);
+            List<SynchronizeFolderOperation> syncOperations;
+            if (intent.hasExtra(EXTRA_FILE_IDS)) {
+                FileDataStorageManager storageManager =
+                        new FileDataStorageManager(account, getContentResolver());
+                List<OCFile> folders =
+                        storageManager.getFilesByIds(intent.getLongArrayExtra(EXTRA_FILE_IDS));
+                syncOperations = new ArrayList<SynchronizeFolderOperation>(folders.size());
+                long syncTime = System.currentTimeMillis();
+                for (OCFile folder : folders) {
+                    syncOperations.add(new SynchronizeFolderOperation(
+                            this, folder.getRemotePath(), account, syncTime
+                    ));
+                }
 
-            Pair<Target, RemoteOperation> itemToQueue = newOperation(intent);
-            if (itemToQueue != null) {
-                mSyncFolderHandler.add(account, remotePath,
-                        (SynchronizeFolderOperation)itemToQueue.second);
-                Message msg = mSyncFolderHandler.obtainMessage();
-                msg.arg1 = startId;
-                msg.obj = itemSyncKey;
-                mSyncFolderHandler.sendMessage(msg);
+            } else {
+                syncOperations = new ArrayList<SynchronizeFolderOperation>(1);
+                Pair<Target, RemoteOperation> itemToQueue = newOperation(intent);
+                if (itemToQueue != null) {
+                    syncOperations.add((SynchronizeFolderOperation) itemToQueue.second);
+                }
+            }
+
+            boolean foreground = intent.getBooleanExtra(EXTRA_FOREGROUND, false);
+            for (SynchronizeFolderOperation syncOperation : syncOperations) {
+                syncOperation.setForeground(foreground);
             }
+            List<String> addedPaths = mSyncFolderHandler.add(
+                    account,
+                    syncOperations,
+                    foreground
+            );
+            // message sent even if nothing was added, so that the service is stopped in order
+            Message msg = mSyncFolderHandler.obtainMessage();
+            msg.arg1 = startId;
+            msg.obj = new Pair<Account, List<String>>(account, addedPaths);
+            mSyncFolderHandler.sendMessage(msg);
 
         } else {
             Message msg = mOperationsHandler.obtainMessage();
@@ -419,7 +456,14 @@ public class OperationsService extends Service {
 
         @Override
         public void handleMessage(Message msg) {
-            nextOperation();
+            // operations in this queue are requested by the user through the binder;
+            // background synchronizations wait for them
+            ForegroundWorkMonitor.begin();
+            try {
+                nextOperation();
+            } finally {
+                ForegroundWorkMonitor.end();
+            }
             Log_OC.d(TAG, "Stopping after command with id " + msg.arg1);
             mService.stopSelf(msg.arg1);
         }
@@ -668,9 +712,12 @@ public class OperationsService extends Service {
                     String remotePath = operationIntent.getStringExtra(EXTRA_REMOTE_PATH);
                     boolean syncFileContents =
                             operationIntent.getBooleanExtra(EXTRA_SYNC_FILE_CONTENTS, true);
-                    operation = new SynchronizeFileOperation(
+                    SynchronizeFileOperation syncFileOperation = new SynchronizeFileOperation(
                             remotePath, account, syncFileContents, getApplicationContext()
                     );
+                    // only requested by the user
+                    syncFileOperation.setForeground(true);
+                    operation = syncFileOperation;
                     
                 } else if (action.equals(ACTION_SYNC_FOLDER)) {
                     // Sync folder (all its descendant files are sync'ed)
@@ -710,34 +757,26 @@ public class OperationsService extends Service {
 
 
     /**
-     * Sends a broadcast when a new operation is added to the queue.
+     * Posts an event when a new operation is added to the queue.
      *
-     * Local broadcasts are only delivered to activities in the same process, but can't be
-     * done sticky :\
-     * 
      * @param target            Account or URL pointing to an OC server.
      * @param operation         Added operation.
      */
     private void sendBroadcastNewOperation(Target target, RemoteOperation operation) {
-        Intent intent = new Intent(ACTION_OPERATION_ADDED);
-        if (target.mAccount != null) {
-            intent.putExtra(EXTRA_ACCOUNT, target.mAccount);
-        } else {
-            intent.putExtra(EXTRA_SERVER_URL, target.mServerUrl);
-        }
-        //LocalBroadcastManager lbm = LocalBroadcastManager.getInstance(this);
-        //lbm.sendBroadcast(intent);
-        sendStickyBroadcast(intent);
+        SyncEventBus.getInstance().post(new OperationEvent(
+                ACTION_OPERATION_ADDED,
+                (target.mAccount != null) ? target.mAccount.name : null,
+                operation,
+                null
+        ));
     }
 
 
     // TODO - maybe add a notification for real start of operations
 
     /**
-     * Sends a LOCAL broadcast when an operations finishes in order to the interested activities c
-     * an update their view
-     * 
-     * Local broadcasts are only delivered to activities in the same process.
+     * Posts an event when an operations finishes in order to the interested activities can
+     * update their view
      *
      * @param target    Account or URL pointing to an OC server.
      * @param operation Finished operation.
@@ -745,16 +784,12 @@ public class OperationsService extends Service {
      */
     private void sendBroadcastOperationFinished(Target target, RemoteOperation operation,
                                                 RemoteOperationResult result) {
-        Intent intent = new Intent(ACTION_OPERATION_FINISHED);
-        intent.putExtra(EXTRA_RESULT, result);
-        if (target.mAccount != null) {
-            intent.putExtra(EXTRA_ACCOUNT, target.mAccount);
-        } else {
-            intent.putExtra(EXTRA_SERVER_URL, target.mServerUrl);
-        }
-        //LocalBroadcastManager lbm = LocalBroadcastManager.getInstance(this);
-        //lbm.sendBroadcast(intent);
-        sendStickyBroadcast(intent);
+        SyncEventBus.getInstance().post(new OperationEvent(
+                ACTION_OPERATION_FINISHED,
+                (target.mAccount != null) ? target.mAccount.name : null,
+                operation,
+                result
+        ));
     }
 
 
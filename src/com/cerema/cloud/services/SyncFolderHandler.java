@@ -21,7 +21,6 @@ package com.cerema.cloud.services;
 
 import android.accounts.Account;
 import android.accounts.AccountsException;
-import android.content.Intent;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
@@ -30,6 +29,8 @@ import android.util.Pair;
 import com.cerema.cloud.MainApp;
 import com.cerema.cloud.datamodel.FileDataStorageManager;
 import com.cerema.cloud.datamodel.OCFile;
+import com.cerema.cloud.events.SyncEventBus;
+import com.cerema.cloud.events.TransferEvent;
 import com.cerema.cloud.files.services.FileDownloader;
 import com.cerema.cloud.files.services.IndexedForest;
 import com.cerema.cloud.lib.common.OwnCloudAccount;
@@ -41,6 +42,9 @@ import com.cerema.cloud.operations.SynchronizeFolderOperation;
 import com.cerema.cloud.utils.FileStorageUtils;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * SyncFolder worker. Performs the pending operations in the order they were requested.
@@ -58,6 +62,10 @@ class SyncFolderHandler extends Handler {
     private IndexedForest<SynchronizeFolderOperation> mPendingOperations =
             new IndexedForest<SynchronizeFolderOperation>();
 
+    /** Synchronizations requested by the user; go ahead of the rest of pending ones */
+    private ConcurrentLinkedQueue<Pair<Account, String>> mForegroundOperations =
+            new ConcurrentLinkedQueue<Pair<Account, String>>();
+
     private OwnCloudClient mOwnCloudClient = null;
     private Account mCurrentAccount = null;
     private FileDataStorageManager mStorageManager;
@@ -88,13 +96,35 @@ class SyncFolderHandler extends Handler {
 
     @Override
     public void handleMessage(Message msg) {
-        Pair<Account, String> itemSyncKey = (Pair<Account, String>) msg.obj;
-        doOperation(itemSyncKey.first, itemSyncKey.second);
+        Pair<Account, List<String>> itemSyncKeys = (Pair<Account, List<String>>) msg.obj;
+        for (String remotePath : itemSyncKeys.second) {
+            doForegroundOperations();
+            ForegroundWorkMonitor.yieldToForeground();
+            doOperation(itemSyncKeys.first, remotePath);
+        }
+        doForegroundOperations();
         Log_OC.d(TAG, "Stopping after command with id " + msg.arg1);
         mService.stopSelf(msg.arg1);
     }
 
 
+    /**
+     * Performs the synchronizations requested by the user, if any, before going on with the
+     * rest of the queue.
+     */
+    private void doForegroundOperations() {
+        Pair<Account, String> next;
+        while ((next = mForegroundOperations.poll()) != null) {
+            ForegroundWorkMonitor.begin();
+            try {
+                doOperation(next.first, next.second);
+            } finally {
+                ForegroundWorkMonitor.end();
+            }
+        }
+    }
+
+
     /**
      * Performs the next operation in the queue
      */
@@ -136,13 +166,39 @@ class SyncFolderHandler extends Handler {
         }
     }
 
-    public void add(Account account, String remotePath,
-                    SynchronizeFolderOperation syncFolderOperation){
-        Pair<String, String> putResult =
-                mPendingOperations.putIfAbsent(account, remotePath, syncFolderOperation);
-        if (putResult != null) {
-            sendBroadcastNewSyncFolder(account, remotePath);    // TODO upgrade!
+    /**
+     * Adds several synchronizations of folders to the queue in a single pass, posting a
+     * single event for all of them.
+     *
+     * @param account               ownCloud account where the remote folders are stored.
+     * @param syncFolderOperations  Synchronizations to add.
+     * @param foreground            When 'true', the synchronizations were requested by the user
+     *                              and are performed before the rest of pending ones, even if
+     *                              they were already in the queue.
+     * @return                      Remote paths of the folders really added; those already
+     *                              in the queue are not added again.
+     */
+    public List<String> add(Account account,
+                            List<SynchronizeFolderOperation> syncFolderOperations,
+                            boolean foreground) {
+        List<String> addedPaths = new ArrayList<String>(syncFolderOperations.size());
+        for (SynchronizeFolderOperation syncFolderOperation : syncFolderOperations) {
+            String remotePath = syncFolderOperation.getRemotePath();
+            Pair<String, String> putResult =
+                    mPendingOperations.putIfAbsent(account, remotePath, syncFolderOperation);
+            if (putResult != null) {
+                addedPaths.add(remotePath);
+            }
+            if (foreground) {
+                mForegroundOperations.add(new Pair<Account, String>(account, remotePath));
+            }
+        }
+        if (addedPaths.size() == 1) {
+            sendBroadcastNewSyncFolder(account, addedPaths.get(0));    // TODO upgrade!
+        } else if (addedPaths.size() > 1) {
+            sendBroadcastNewSyncFolders(account, addedPaths);
         }
+        return addedPaths;
     }
 
 
@@ -179,12 +235,32 @@ class SyncFolderHandler extends Handler {
      * this is a fast and ugly patch.
      */
     private void sendBroadcastNewSyncFolder(Account account, String remotePath) {
-        Intent added = new Intent(FileDownloader.getDownloadAddedMessage());
-        added.putExtra(FileDownloader.ACCOUNT_NAME, account.name);
-        added.putExtra(FileDownloader.EXTRA_REMOTE_PATH, remotePath);
-        added.putExtra(FileDownloader.EXTRA_FILE_PATH, FileStorageUtils.getSavePath(account.name)
-                + remotePath);
-        mService.sendStickyBroadcast(added);
+        SyncEventBus.getInstance().postSticky(new TransferEvent(
+                FileDownloader.getDownloadAddedMessage(),
+                account.name,
+                remotePath,
+                FileStorageUtils.getSavePath(account.name) + remotePath,
+                null,
+                false
+        ));
+    }
+
+    /**
+     * Posts a single event for several synchronizations of folders added to the queue.
+     */
+    private void sendBroadcastNewSyncFolders(Account account, List<String> remotePaths) {
+        List<String> localPaths = new ArrayList<String>(remotePaths.size());
+        String savePath = FileStorageUtils.getSavePath(account.name);
+        for (String remotePath : remotePaths) {
+            localPaths.add(savePath + remotePath);
+        }
+        SyncEventBus.getInstance().postSticky(TransferEvent.newBatchEvent(
+                FileDownloader.getDownloadAddedMessage(),
+                account.name,
+                FileStorageUtils.getCommonFolder(remotePaths),
+                remotePaths,
+                localPaths
+        ));
     }
 
     /**
@@ -193,13 +269,14 @@ class SyncFolderHandler extends Handler {
      */
     private void sendBroadcastFinishedSyncFolder(Account account, String remotePath,
                                                  boolean success) {
-        Intent finished = new Intent(FileDownloader.getDownloadFinishMessage());
-        finished.putExtra(FileDownloader.ACCOUNT_NAME, account.name);
-        finished.putExtra(FileDownloader.EXTRA_REMOTE_PATH, remotePath);
-        finished.putExtra(FileDownloader.EXTRA_FILE_PATH,
-                FileStorageUtils.getSavePath(account.name) + remotePath);
-        finished.putExtra(FileDownloader.EXTRA_DOWNLOAD_RESULT, success);
-        mService.sendStickyBroadcast(finished);
+        SyncEventBus.getInstance().postSticky(new TransferEvent(
+                FileDownloader.getDownloadFinishMessage(),
+                account.name,
+                remotePath,
+                FileStorageUtils.getSavePath(account.name) + remotePath,
+                null,
+                success
+        ));
     }
 
 
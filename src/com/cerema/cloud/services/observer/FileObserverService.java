@@ -28,10 +28,8 @@ import java.util.Map;
 
 import android.accounts.Account;
 import android.app.Service;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.database.Cursor;
 import android.os.IBinder;
 
@@ -39,6 +37,8 @@ import com.cerema.cloud.MainApp;
 import com.cerema.cloud.authentication.AccountUtils;
 import com.cerema.cloud.datamodel.OCFile;
 import com.cerema.cloud.db.ProviderMeta.ProviderTableMeta;
+import com.cerema.cloud.events.SyncEventBus;
+import com.cerema.cloud.events.TransferEvent;
 import com.cerema.cloud.files.services.FileDownloader;
 import com.cerema.cloud.lib.common.utils.Log_OC;
 import com.cerema.cloud.operations.SynchronizeFileOperation;
@@ -116,10 +116,7 @@ public class FileObserverService extends Service {
         super.onCreate();
 
         mDownloadReceiver = new DownloadCompletedReceiver();
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(FileDownloader.getDownloadAddedMessage());
-        filter.addAction(FileDownloader.getDownloadFinishMessage());
-        registerReceiver(mDownloadReceiver, filter);
+        SyncEventBus.getInstance().register(TransferEvent.class, mDownloadReceiver);
 
         mFolderObserversMap = new HashMap<String, FolderObserver>();
     }
@@ -131,7 +128,7 @@ public class FileObserverService extends Service {
     public void onDestroy() {
         Log_OC.d(TAG, "onDestroy - finishing observation of favorite files");
 
-        unregisterReceiver(mDownloadReceiver);
+        SyncEventBus.getInstance().unregister(mDownloadReceiver);
 
         Iterator<FolderObserver> itOCFolder = mFolderObserversMap.values().iterator();
         while (itOCFolder.hasNext()) {
@@ -340,29 +337,43 @@ public class FileObserverService extends Service {
 
     
     /**
-     * Private receiver listening to events broadcasted by the {@link FileDownloader} service.
+     * Private listener of the events posted by the {@link FileDownloader} service.
      * 
      * Pauses and resumes the observance on registered files while being download,
      * in order to avoid to unnecessary synchronizations.
      */
-    private class DownloadCompletedReceiver extends BroadcastReceiver {
+    private class DownloadCompletedReceiver implements SyncEventBus.Listener<TransferEvent> {
 
         @Override
-        public void onReceive(Context context, Intent intent) {
-            Log_OC.d(TAG, "Received broadcast intent " + intent);
+        public void onEvent(TransferEvent event) {
+            if (!FileDownloader.getDownloadAddedMessage().equals(event.getType()) &&
+                    !FileDownloader.getDownloadFinishMessage().equals(event.getType())) {
+                return;
+            }
+            Log_OC.d(TAG, "Received event " + event);
+
+            if (event.isBatch()) {
+                for (String localPath : event.getBatchLocalPaths()) {
+                    updateObservance(event.getType(), localPath);
+                }
+            } else {
+                updateObservance(event.getType(), event.getLocalPath());
+            }
+        }
 
-            File downloadedFile = new File(intent.getStringExtra(FileDownloader.EXTRA_FILE_PATH));
+        private void updateObservance(String eventType, String localPath) {
+            File downloadedFile = new File(localPath);
             String parentPath = downloadedFile.getParent();
             FolderObserver observer = mFolderObserversMap.get(parentPath);
             if (observer != null) {
-                if (intent.getAction().equals(FileDownloader.getDownloadFinishMessage())
+                if (eventType.equals(FileDownloader.getDownloadFinishMessage())
                         && downloadedFile.exists()) {
                     // no matter if the download was successful or not; the
                     // file could be down anyway due to a former download or upload
                     observer.startWatching(downloadedFile.getName());
                     Log_OC.d(TAG, "Resuming observance of " + downloadedFile.getAbsolutePath());
 
-                } else if (intent.getAction().equals(FileDownloader.getDownloadAddedMessage())) {
+                } else if (eventType.equals(FileDownloader.getDownloadAddedMessage())) {
                     observer.stopWatching(downloadedFile.getName());
                     Log_OC.d(TAG, "Pausing observance of " + downloadedFile.getAbsolutePath());
                 }
@@ -0,0 +1,252 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.services.push;
+
+import com.cerema.cloud.lib.common.OwnCloudClient;
+import com.cerema.cloud.lib.common.utils.Log_OC;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.GetMethod;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URLEncoder;
+import java.util.Random;
+
+/**
+ * Long-poll client receiving notifications about changes in the server.
+ *
+ * Sends GET requests to a notify endpoint; the server holds every request until there are
+ * changes or a timeout expires. Protocol:
+ *
+ * - Response 204, or 200 with an empty body: no change, poll again.
+ * - Response 200: one line per change, with the remote path of the changed file or folder.
+ *   Folders end with '/'. Lines starting with '#cursor ' carry a cursor that is sent back in
+ *   the parameter 'cursor' of the next request, so that no change is lost between requests.
+ *
+ * Failed requests are retried with exponential backoff, with random jitter, up to
+ * {@link #MAX_BACKOFF_MS}. The backoff is reset after every successful request.
+ *
+ * Requests are sent with the {@link OwnCloudClient} of the account, so they are authorized
+ * with its credentials and go through the same SSL setup as the rest of the requests to the
+ * server, including the certificates accepted by the user.
+ */
+public class PushChannel {
+
+    private static final String TAG = PushChannel.class.getSimpleName();
+
+    public static final long MIN_BACKOFF_MS = 1000;
+    public static final long MAX_BACKOFF_MS = 5 * 60 * 1000;
+
+    private static final int CONNECT_TIMEOUT_MS = 30 * 1000;
+    private static final int READ_TIMEOUT_MS = 120 * 1000;
+
+    private static final String CURSOR_PREFIX = "#cursor ";
+    private static final String PARAM_CURSOR = "cursor";
+
+    /**
+     * Interface to implement by the receiver of notifications.
+     */
+    public interface Listener {
+
+        /**
+         * Called in the thread of the channel for every change notified by the server.
+         *
+         * @param remotePath    Remote path of the file or folder changed.
+         */
+        void onPathChanged(String remotePath);
+    }
+
+    private final String mEndpoint;
+    private final OwnCloudClient mClient;
+    private final Listener mListener;
+    private final Random mRandom = new Random();
+
+    private volatile boolean mRunning = false;
+    private Thread mThread = null;
+    private GetMethod mRequest = null;
+    private String mCursor = null;
+    private int mFailures = 0;
+
+
+    /**
+     * @param endpoint          URL of the notify endpoint.
+     * @param client            Client to the server of the account, sending the requests.
+     * @param listener          Receiver of the notifications.
+     */
+    public PushChannel(String endpoint, OwnCloudClient client, Listener listener) {
+        if (endpoint == null || client == null || listener == null) {
+            throw new IllegalArgumentException("Received invalid NULL in parameters");
+        }
+        mEndpoint = endpoint;
+        mClient = client;
+        mListener = listener;
+    }
+
+
+    /**
+     * Starts polling in a new thread.
+     */
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "Push channel");
+        mThread.start();
+    }
+
+
+    /**
+     * Stops polling, cancelling the request in progress, if any.
+     */
+    public synchronized void stop() {
+        mRunning = false;
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+        if (mRequest != null) {
+            mRequest.abort();
+        }
+    }
+
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+
+    /**
+     * Computes the time to wait before a new request after consecutive failures.
+     *
+     * @param failures      Number of consecutive failed requests; at least 1.
+     * @param jitter        Random value in [0, 1) to spread retries of many clients.
+     * @return              Time to wait, in milliseconds, between half and the full value of
+     *                      the exponential backoff.
+     */
+    public static long computeBackoff(int failures, double jitter) {
+        long backoff = MAX_BACKOFF_MS;
+        if (failures < 20) {
+            backoff = Math.min(MAX_BACKOFF_MS, MIN_BACKOFF_MS << Math.max(0, failures - 1));
+        }
+        return backoff / 2 + (long) (backoff / 2 * jitter);
+    }
+
+
+    private void loop() {
+        while (mRunning) {
+            try {
+                long start = System.currentTimeMillis();
+                int changes = poll();
+                mFailures = 0;
+                if (changes == 0 && System.currentTimeMillis() - start < MIN_BACKOFF_MS) {
+                    // server not holding requests; don't turn this into busy polling
+                    Thread.sleep(MIN_BACKOFF_MS);
+                }
+
+            } catch (InterruptedException e) {
+                break;
+
+            } catch (IOException e) {
+                if (!mRunning) {
+                    break;
+                }
+                mFailures++;
+                long backoff = computeBackoff(mFailures, mRandom.nextDouble());
+                Log_OC.w(TAG, "Poll failed (" + e.getMessage() + "), retrying in " +
+                        backoff + " ms");
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+        Log_OC.d(TAG, "Push channel to " + mEndpoint + " stopped");
+    }
+
+
+    /**
+     * Sends a request and waits for its response.
+     *
+     * @return      Number of changes received.
+     */
+    private int poll() throws IOException {
+        String url = mEndpoint;
+        if (mCursor != null) {
+            url += (url.contains("?") ? "&" : "?") + PARAM_CURSOR + "=" +
+                    URLEncoder.encode(mCursor, "UTF-8");
+        }
+        GetMethod get = new GetMethod(url);
+        synchronized (this) {
+            if (!mRunning) {
+                return 0;
+            }
+            mRequest = get;
+        }
+        try {
+            int status = mClient.executeMethod(get, READ_TIMEOUT_MS, CONNECT_TIMEOUT_MS);
+            if (status == HttpStatus.SC_NO_CONTENT) {
+                return 0;
+            }
+            if (status != HttpStatus.SC_OK) {
+                mClient.exhaustResponse(get.getResponseBodyAsStream());
+                throw new IOException("Unexpected status " + status);
+            }
+
+            InputStream body = get.getResponseBodyAsStream();
+            if (body == null) {
+                return 0;
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(body, "UTF-8"));
+            int changes = 0;
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.startsWith(CURSOR_PREFIX)) {
+                        mCursor = line.substring(CURSOR_PREFIX.length()).trim();
+                    } else if (line.length() > 0 && !line.startsWith("#")) {
+                        mListener.onPathChanged(line);
+                        changes++;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            return changes;
+
+        } finally {
+            get.releaseConnection();
+            synchronized (this) {
+                mRequest = null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,131 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.services.push;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Groups the changes notified by a {@link PushChannel} in a short time window, so that a burst
+ * of changes, like the upload of many files to the same folder, results in a single refresh
+ * per affected folder.
+ *
+ * Every changed path is reduced to the folder to refresh: folders (paths ending in '/') refresh
+ * themselves, files refresh their parent folder. The first change received starts the window;
+ * when it expires, the set of folders is delivered at once in the thread of the coalescer.
+ */
+public class PushEventCoalescer implements PushChannel.Listener {
+
+    public static final long DEFAULT_WINDOW_MS = 2000;
+
+    private static final String PATH_SEPARATOR = "/";
+
+    /**
+     * Interface to implement by the receiver of grouped changes.
+     */
+    public interface Listener {
+
+        /**
+         * Called in the thread of the coalescer when a window of changes expires.
+         *
+         * @param remoteFolderPaths     Remote paths of the folders with changes, ending in '/'.
+         */
+        void onFoldersChanged(Set<String> remoteFolderPaths);
+    }
+
+    private final Listener mListener;
+    private final long mWindowMs;
+    private final ScheduledExecutorService mExecutor;
+
+    private Set<String> mPending = new HashSet<String>();
+    private boolean mScheduled = false;
+
+
+    /**
+     * @param listener      Receiver of the grouped changes.
+     * @param windowMs      Time to wait for more changes after the first one, in milliseconds.
+     */
+    public PushEventCoalescer(Listener listener, long windowMs) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Received invalid NULL in parameters");
+        }
+        mListener = listener;
+        mWindowMs = windowMs;
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+
+    @Override
+    public void onPathChanged(String remotePath) {
+        String folderPath = getFolderToRefresh(remotePath);
+        synchronized (this) {
+            mPending.add(folderPath);
+            if (!mScheduled) {
+                mScheduled = true;
+                mExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, mWindowMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+
+    /**
+     * Releases the thread of the coalescer; changes not delivered yet are dropped.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+
+    /**
+     * @param remotePath    Remote path of a changed file or folder.
+     * @return              Remote path of the folder to refresh to get the change, ending in '/'.
+     */
+    public static String getFolderToRefresh(String remotePath) {
+        if (!remotePath.startsWith(PATH_SEPARATOR)) {
+            remotePath = PATH_SEPARATOR + remotePath;
+        }
+        if (remotePath.endsWith(PATH_SEPARATOR)) {
+            return remotePath;
+        }
+        return remotePath.substring(0, remotePath.lastIndexOf(PATH_SEPARATOR) + 1);
+    }
+
+
+    private void flush() {
+        Set<String> folders;
+        synchronized (this) {
+            folders = mPending;
+            mPending = new HashSet<String>();
+            mScheduled = false;
+        }
+        if (!folders.isEmpty()) {
+            mListener.onFoldersChanged(folders);
+        }
+    }
+
+}
@@ -0,0 +1,271 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.services.push;
+
+import android.accounts.Account;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Process;
+import android.preference.PreferenceManager;
+
+import com.cerema.cloud.authentication.AccountUtils;
+import com.cerema.cloud.datamodel.FileDataStorageManager;
+import com.cerema.cloud.datamodel.OCFile;
+import com.cerema.cloud.lib.common.OwnCloudAccount;
+import com.cerema.cloud.lib.common.OwnCloudClient;
+import com.cerema.cloud.lib.common.OwnCloudClientManagerFactory;
+import com.cerema.cloud.lib.common.operations.RemoteOperationResult;
+import com.cerema.cloud.lib.common.utils.Log_OC;
+import com.cerema.cloud.operations.RefreshFolderOperation;
+
+import java.util.Set;
+
+/**
+ * Service keeping a {@link PushChannel} open with the server of the current account, and
+ * refreshing only the folders with changes notified through it.
+ *
+ * The channel is enabled by setting the URL of the notify endpoint of the server in the
+ * preference {@link #PREF_PUSH_ENDPOINT}; without it, the service stops and the app keeps
+ * depending on the periodic synchronizations. The credentials of the account are only sent
+ * to HTTPS endpoints in the host of its server, see {@link #isTrustedEndpoint(String, Uri)}.
+ *
+ * Changes are grouped by {@link PushEventCoalescer}, and every folder changed is refreshed
+ * with a {@link RefreshFolderOperation}, checking its ETag first. Changes in folders not known
+ * yet refresh their closest known ancestor.
+ *
+ * Like {@link com.cerema.cloud.services.observer.FileObserverService}, the service tries to
+ * be alive as long as possible while the channel is open, and returns
+ * {@link Service#START_STICKY}.
+ */
+public class PushService extends Service {
+
+    private static final String TAG = PushService.class.getSimpleName();
+
+    public static final String MY_NAME = PushService.class.getCanonicalName();
+    public static final String ACTION_START_PUSH = MY_NAME + ".action.START_PUSH";
+
+    public static final String PREF_PUSH_ENDPOINT = "push_endpoint_url";
+
+    private Handler mHandler;
+    private PushChannel mChannel = null;
+    private PushEventCoalescer mCoalescer = null;
+    private Account mAccount = null;
+    private String mEndpoint = null;
+
+
+    /**
+     * Factory method to create intents that start or restart the push channel.
+     *
+     * @param context   Android context of the caller component.
+     * @return          Intent that starts a command ACTION_START_PUSH when
+     *                  {@link Context#startService(Intent)} is called.
+     */
+    public static Intent makeStartIntent(Context context) {
+        Intent intent = new Intent(context, PushService.class);
+        intent.setAction(ACTION_START_PUSH);
+        return intent;
+    }
+
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        HandlerThread thread = new HandlerThread("PushService",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, final int startId) {
+        // intent is null when the service is restarted by the system
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!startChannel()) {
+                    // nothing to keep alive; started again when the preference is set
+                    Log_OC.d(TAG, "Stopping command after id " + startId);
+                    stopSelf(startId);
+                }
+            }
+        });
+        return Service.START_STICKY;
+    }
+
+
+    @Override
+    public void onDestroy() {
+        Log_OC.d(TAG, "onDestroy - closing push channel");
+        stopChannel();
+        mHandler.getLooper().quit();
+        super.onDestroy();
+    }
+
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+
+    /**
+     * Opens a channel for the current account, if enabled; a channel already open for the
+     * same account and endpoint is kept.
+     *
+     * @return      'True' if a channel is open after the call.
+     */
+    private boolean startChannel() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        String endpoint = prefs.getString(PREF_PUSH_ENDPOINT, null);
+        Account account = AccountUtils.getCurrentOwnCloudAccount(this);
+
+        if (mChannel != null && mChannel.isRunning() && account != null &&
+                account.equals(mAccount) && endpoint != null && endpoint.equals(mEndpoint)) {
+            return true;     // nothing changed
+        }
+        stopChannel();
+
+        if (account == null || endpoint == null || endpoint.length() == 0) {
+            Log_OC.d(TAG, "Push channel not enabled");
+            return false;
+        }
+
+        OwnCloudAccount ocAccount;
+        OwnCloudClient client;
+        try {
+            ocAccount = new OwnCloudAccount(account, this);
+            if (!isTrustedEndpoint(endpoint, ocAccount.getBaseUri())) {
+                Log_OC.w(TAG, "Push endpoint refused, not HTTPS in the host of the server of " +
+                        account.name);
+                return false;
+            }
+            client = OwnCloudClientManagerFactory.getDefaultSingleton().
+                    getClientFor(ocAccount, this);
+        } catch (Exception e) {
+            Log_OC.e(TAG, "Could not get a client to the server of " + account.name, e);
+            return false;
+        }
+
+        final Account channelAccount = account;
+        mCoalescer = new PushEventCoalescer(new PushEventCoalescer.Listener() {
+            @Override
+            public void onFoldersChanged(Set<String> remoteFolderPaths) {
+                refreshFolders(channelAccount, remoteFolderPaths);
+            }
+        }, PushEventCoalescer.DEFAULT_WINDOW_MS);
+        mChannel = new PushChannel(endpoint, client, mCoalescer);
+        mAccount = account;
+        mEndpoint = endpoint;
+        mChannel.start();
+        Log_OC.d(TAG, "Push channel open for " + account.name);
+        return true;
+    }
+
+
+    /**
+     * Checks if an endpoint can receive the credentials of an account: it must be an HTTPS
+     * URL in the same host and port as the server of the account.
+     *
+     * @param endpoint      URL of the notify endpoint.
+     * @param serverUri     Base URI of the server of the account.
+     * @return              'True' if the credentials can be sent to the endpoint.
+     */
+    static boolean isTrustedEndpoint(String endpoint, Uri serverUri) {
+        Uri endpointUri = Uri.parse(endpoint);
+        if (!"https".equalsIgnoreCase(endpointUri.getScheme()) || endpointUri.getHost() == null ||
+                serverUri == null || !endpointUri.getHost().equalsIgnoreCase(serverUri.getHost())) {
+            return false;
+        }
+        int endpointPort = (endpointUri.getPort() < 0) ? 443 : endpointUri.getPort();
+        int serverPort = serverUri.getPort();
+        if (serverPort < 0) {
+            serverPort = "https".equalsIgnoreCase(serverUri.getScheme()) ? 443 : 80;
+        }
+        return endpointPort == serverPort || (serverPort == 80 && endpointPort == 443);
+    }
+
+
+    private void stopChannel() {
+        if (mChannel != null) {
+            mChannel.stop();
+            mChannel = null;
+        }
+        if (mCoalescer != null) {
+            mCoalescer.shutdown();
+            mCoalescer = null;
+        }
+        mAccount = null;
+        mEndpoint = null;
+    }
+
+
+    /**
+     * Refreshes the folders notified as changed, or their closest known ancestors.
+     */
+    private void refreshFolders(Account account, Set<String> remoteFolderPaths) {
+        FileDataStorageManager storageManager =
+                new FileDataStorageManager(account, getContentResolver());
+        long syncTime = System.currentTimeMillis();
+        for (String remotePath : remoteFolderPaths) {
+            OCFile folder = findClosestKnownFolder(storageManager, remotePath);
+            if (folder == null) {
+                continue;
+            }
+            RefreshFolderOperation operation = new RefreshFolderOperation(
+                    folder,
+                    syncTime,
+                    false,
+                    false,
+                    false,
+                    storageManager,
+                    account,
+                    getApplicationContext()
+            );
+            RemoteOperationResult result = operation.execute(account, getApplicationContext());
+            Log_OC.d(TAG, "Refresh of " + folder.getRemotePath() + " after push: " +
+                    result.getLogMessage());
+        }
+    }
+
+
+    private OCFile findClosestKnownFolder(FileDataStorageManager storageManager,
+                                          String remotePath) {
+        String path = remotePath;
+        while (path.length() > 0) {
+            OCFile folder = storageManager.getFileByPath(path);
+            if (folder != null && folder.isFolder()) {
+                return folder;
+            }
+            if (OCFile.ROOT_PATH.equals(path)) {
+                break;
+            }
+            path = PushEventCoalescer.getFolderToRefresh(path.substring(0, path.length() - 1));
+        }
+        return null;
+    }
+
+}
@@ -30,15 +30,21 @@ import java.util.Map;
 
 import org.apache.jackrabbit.webdav.DavException;
 
+import com.cerema.cloud.MainApp;
 import com.cerema.cloud.R;
 import com.cerema.cloud.authentication.AuthenticatorActivity;
 import com.cerema.cloud.datamodel.FileDataStorageManager;
 import com.cerema.cloud.datamodel.OCFile;
+import com.cerema.cloud.events.FolderSyncEvent;
+import com.cerema.cloud.events.SyncEventBus;
 import com.cerema.cloud.lib.common.operations.RemoteOperationResult;
+import com.cerema.cloud.lib.resources.status.CapabilityBooleanType;
 import com.cerema.cloud.operations.RefreshFolderOperation;
+import com.cerema.cloud.operations.SyncCollectionOperation;
 import com.cerema.cloud.operations.UpdateOCVersionOperation;
 import com.cerema.cloud.lib.common.operations.RemoteOperationResult.ResultCode;
 import com.cerema.cloud.lib.common.utils.Log_OC;
+import com.cerema.cloud.services.ForegroundWorkMonitor;
 import com.cerema.cloud.ui.activity.ErrorsWhileCopyingHandlerActivity;
 
 import android.accounts.Account;
@@ -115,6 +121,15 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
 
     /** 'True' means that the server supports the share API */
     private boolean mIsShareSupported;
+
+    /** Decides which folders are checked for changes, according to their history */
+    private FolderSyncScheduler mScheduler;
+
+    /** Sync-token to store if the walk through the folders completes successfully */
+    private String mBaselineSyncToken;
+
+    /** Measures of the current synchronization run */
+    private SyncRunMetrics mMetrics;
     
     
     /**
@@ -155,6 +170,8 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
         mSyncResult = syncResult;
         mSyncResult.fullSyncRequested = false;
         mSyncResult.delayUntil = (System.currentTimeMillis()/1000) + 3*60*60; // avoid too many automatic synchronizations
+        mScheduler = new FolderSyncScheduler(getContext(), account, mIsManualSync);
+        mMetrics = new SyncRunMetrics(account.name);
 
         this.setAccount(account);
         this.setContentProviderClient(providerClient);
@@ -184,7 +201,10 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
             updateOCVersion();
             mCurrentSyncTime = System.currentTimeMillis();
             if (!mCancellation) {
-                synchronizeFolder(getStorageManager().getFileByPath(OCFile.ROOT_PATH));
+                if (!synchronizeWithChangeFeed()) {
+                    synchronizeFolder(getStorageManager().getFileByPath(OCFile.ROOT_PATH));
+                    saveBaselineSyncToken();
+                }
                 
             } else {
                 Log_OC.d(TAG, "Leaving synchronization before synchronizing the root folder " +
@@ -211,6 +231,17 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
             if (mForgottenLocalFiles.size() > 0) {
                 notifyForgottenLocalFiles();
             }
+            mMetrics.finish(mFailedResultsCounter);
+            mMetrics.save(getContext());
+
+            // next automatic synchronization when the first folder is due again; the periodic
+            // synchronization is registered again with that delay, since delayUntil can only
+            // postpone the next one
+            mScheduler.save();
+            long nextSyncDelay = mScheduler.getNextSyncDelay();
+            mSyncResult.delayUntil = (System.currentTimeMillis()/1000) + nextSyncDelay;
+            ContentResolver.addPeriodicSync(account, MainApp.getAuthority(), new Bundle(),
+                    nextSyncDelay);
             sendLocalBroadcast(EVENT_FULL_SYNC_END, null, mLastFailedResult);   // message to signal
                                                                                 // the end to the UI
         }
@@ -249,6 +280,52 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
     }
     
     
+    /**
+     * Applies the changes in the server since the last synchronization, read with
+     * sync-collection reports, when the server supports them.
+     *
+     * @return      'True' if the changes were applied, and no walk through the folders is
+     *              needed.
+     */
+    private boolean synchronizeWithChangeFeed() {
+        mBaselineSyncToken = null;
+        SyncCollectionOperation feedOp = new SyncCollectionOperation(
+                mCurrentSyncTime, getAccount(), getContext()
+        );
+        RemoteOperationResult result = feedOp.execute(getClient(), getStorageManager());
+
+        if (feedOp.isDeltaApplied()) {
+            mMetrics.onChangeFeedApplied();
+            mConflictsFound += feedOp.getConflictsFound();
+            mFailsInFavouritesFound += feedOp.getFailsInFavouritesFound();
+            for (String folderPath : feedOp.getChangedFolders()) {
+                sendLocalBroadcast(EVENT_FULL_SYNC_FOLDER_CONTENTS_SYNCED, folderPath, result);
+            }
+            return true;
+        }
+
+        mBaselineSyncToken = feedOp.getBaselineSyncToken();
+        if (mBaselineSyncToken != null) {
+            // the walk has to visit every folder to be a valid starting point for the feed
+            mScheduler = new FolderSyncScheduler(getContext(), getAccount(), true);
+        }
+        return false;
+    }
+
+
+    /**
+     * Stores the sync-token read before walking through the folders, if the walk completed
+     * without failures, as the starting point of the next sync-collection report.
+     */
+    private void saveBaselineSyncToken() {
+        if (mBaselineSyncToken != null && mFailedResultsCounter == 0 && !mCancellation) {
+            getStorageManager().saveSyncCollectionState(
+                    CapabilityBooleanType.TRUE, mBaselineSyncToken
+            );
+        }
+    }
+
+
     /**
      *  Synchronizes the list of files contained in a folder identified with its remote path.
      *  
@@ -264,6 +341,21 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
         
         if (mFailedResultsCounter > MAX_FAILED_RESULTS || isFinisher(mLastFailedResult))
             return;
+
+        // let the refresh of the folder in the screen, if any, go first
+        ForegroundWorkMonitor.yieldToForeground();
+
+        if (!mScheduler.shouldCheck(folder.getRemotePath())) {
+            List<OCFile> children = getStorageManager().getFolderContent(folder);
+            if (!containsKeptInSyncFiles(children)) {
+                // not due yet; walk down through the contents known locally, children may be
+                // due or contain kept-in-sync files
+                mMetrics.onFolderSkipped();
+                syncChildren(children);
+                return;
+            }
+            // else, kept-in-sync files are checked in every synchronization, as usual
+        }
         
         // folder synchronization
         RefreshFolderOperation synchFolderOp = new RefreshFolderOperation( folder,
@@ -276,6 +368,7 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
                                                                                    getContext()
                                                                                   );
         RemoteOperationResult result = synchFolderOp.execute(getClient());
+        mMetrics.addFolder(synchFolderOp.getMetrics());
         
         
         // synchronized folder -> notice to UI - ALWAYS, although !result.isSuccess
@@ -283,6 +376,8 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
         
         // check the result of synchronizing the folder
         if (result.isSuccess() || result.getCode() == ResultCode.SYNC_CONFLICT) {
+
+            mScheduler.onChecked(folder.getRemotePath(), synchFolderOp.isRemoteFolderChanged());
             
             if (result.getCode() == ResultCode.SYNC_CONFLICT) {
                 mConflictsFound += synchFolderOp.getConflictsFound();
@@ -320,6 +415,19 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
             
     }
 
+    /**
+     * @param files         Contents of a folder.
+     * @return              'True' if some of the files is kept in sync.
+     */
+    private boolean containsKeptInSyncFiles(List<OCFile> files) {
+        for (OCFile file : files) {
+            if (!file.isFolder() && file.isFavorite()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Checks if a failed result should terminate the synchronization process immediately,
      * according to OUR OWN POLICY
@@ -366,6 +474,10 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
     /**
      * Sends a message to any application component interested in the progress of the
      * synchronization.
+     *
+     * Full synchronizations can visit thousands of folders; events are posted in the
+     * in-process {@link SyncEventBus}, that coalesces them, instead of sending a sticky
+     * broadcast per folder.
      * 
      * @param event             Event in the process of synchronization to be notified.   
      * @param dirRemotePath     Remote path of the folder target of the event occurred.
@@ -374,17 +486,10 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
      */
     private void sendLocalBroadcast(String event, String dirRemotePath,
                                     RemoteOperationResult result) {
-        Log_OC.d(TAG, "Send broadcast " + event);
-        Intent intent = new Intent(event);
-        intent.putExtra(FileSyncAdapter.EXTRA_ACCOUNT_NAME, getAccount().name);
-        if (dirRemotePath != null) {
-            intent.putExtra(FileSyncAdapter.EXTRA_FOLDER_PATH, dirRemotePath);
-        }
-        if (result != null) {
-            intent.putExtra(FileSyncAdapter.EXTRA_RESULT, result);
-        }
-        getContext().sendStickyBroadcast(intent);
-        //LocalBroadcastManager.getInstance(getContext()).sendBroadcast(intent);
+        Log_OC.d(TAG, "Send event " + event);
+        SyncEventBus.getInstance().postSticky(
+                new FolderSyncEvent(event, getAccount().name, dirRemotePath, result)
+        );
     }
 
     
@@ -0,0 +1,231 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.syncadapter;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.preference.PreferenceManager;
+
+import com.cerema.cloud.db.DbHandler;
+import com.cerema.cloud.lib.common.utils.Log_OC;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which folders of an account are checked for changes in every automatic
+ * synchronization, depending upon how often their ETags changed in the past.
+ *
+ * Every folder has its own interval between checks. It's halved every time a check finds
+ * a change in the folder, and grows by half every time a check finds no change, always
+ * between {@link #MIN_INTERVAL_MS} and {@link #MAX_INTERVAL_MS}. Folders never checked
+ * before are always due.
+ *
+ * Checks are limited by a budget of {@link #MAX_REQUESTS_PER_HOUR} requests per hour and
+ * account, refilled continuously. When the budget is exhausted, the rest of due folders wait
+ * for the next synchronization.
+ *
+ * Manual synchronizations check all the folders, but their history is recorded too. Folders
+ * containing kept-in-sync files are checked in every synchronization by
+ * {@link FileSyncAdapter}, whatever their interval or the budget.
+ *
+ * {@link #getNextSyncDelay()} is used as the period of the automatic synchronizations of the
+ * account, so that folders changing often are really checked more often.
+ */
+public class FolderSyncScheduler {
+
+    private static final String TAG = FolderSyncScheduler.class.getSimpleName();
+
+    private static final long MIN_INTERVAL_MS = 15 * 60 * 1000;
+    private static final long MAX_INTERVAL_MS = 24 * 60 * 60 * 1000;
+    private static final long DEFAULT_INTERVAL_MS = 3 * 60 * 60 * 1000;
+
+    /** Maximum delay until the next automatic synchronization; same as before adaptive sync */
+    private static final long MAX_SYNC_DELAY_MS = 3 * 60 * 60 * 1000;
+
+    private static final int MAX_REQUESTS_PER_HOUR = 360;
+    private static final long HOUR_MS = 60 * 60 * 1000;
+
+    private static final String PREF_BUDGET_PREFIX = "folder_sync_budget_";
+    private static final String PREF_BUDGET_TIME_PREFIX = "folder_sync_budget_time_";
+
+    private static class FolderStats {
+        long mLastCheck;
+        long mLastChange;
+        long mInterval;
+    }
+
+    private final Context mContext;
+    private final Account mAccount;
+    private final boolean mManual;
+    private final Map<String, FolderStats> mStats = new HashMap<String, FolderStats>();
+    private final Set<String> mUpdatedPaths = new HashSet<String>();
+    private float mBudget;
+    private boolean mBudgetExhausted = false;
+
+
+    /**
+     * Loads the history of changes in the folders of an account.
+     *
+     * @param context       Android context.
+     * @param account       ownCloud account to synchronize.
+     * @param manual        'True' if the synchronization was requested by the user.
+     */
+    public FolderSyncScheduler(Context context, Account account, boolean manual) {
+        mContext = context;
+        mAccount = account;
+        mManual = manual;
+
+        DbHandler db = new DbHandler(context);
+        Cursor c = db.getFolderSyncStats(account.name);
+        try {
+            if (c.moveToFirst()) {
+                do {
+                    FolderStats stats = new FolderStats();
+                    stats.mLastCheck = c.getLong(c.getColumnIndex("last_check"));
+                    stats.mLastChange = c.getLong(c.getColumnIndex("last_change"));
+                    stats.mInterval = c.getLong(c.getColumnIndex("interval"));
+                    mStats.put(c.getString(c.getColumnIndex("path")), stats);
+                } while (c.moveToNext());
+            }
+        } finally {
+            c.close();
+            db.close();
+        }
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        long now = System.currentTimeMillis();
+        long lastRefill = prefs.getLong(PREF_BUDGET_TIME_PREFIX + account.name, 0);
+        float budget = prefs.getFloat(PREF_BUDGET_PREFIX + account.name, MAX_REQUESTS_PER_HOUR);
+        budget += (now - lastRefill) * ((float) MAX_REQUESTS_PER_HOUR / HOUR_MS);
+        mBudget = Math.min(budget, MAX_REQUESTS_PER_HOUR);
+    }
+
+
+    /**
+     * Decides if a folder has to be checked for changes in the current synchronization.
+     *
+     * @param remotePath    Remote path of the folder.
+     * @return              'True' if the folder has to be checked.
+     */
+    public boolean shouldCheck(String remotePath) {
+        if (mManual) {
+            return true;
+        }
+        if (mBudget < 1) {
+            mBudgetExhausted = true;
+            return false;
+        }
+        FolderStats stats = mStats.get(remotePath);
+        return (stats == null ||
+                System.currentTimeMillis() - stats.mLastCheck >= stats.mInterval);
+    }
+
+
+    /**
+     * Records the result of checking a folder for changes, and adapts its interval.
+     *
+     * @param remotePath    Remote path of the folder.
+     * @param changed       'True' if the ETag of the folder changed since the previous check.
+     */
+    public void onChecked(String remotePath, boolean changed) {
+        long now = System.currentTimeMillis();
+        FolderStats stats = mStats.get(remotePath);
+        if (stats == null) {
+            stats = new FolderStats();
+            stats.mInterval = DEFAULT_INTERVAL_MS;
+            stats.mLastChange = now;
+            mStats.put(remotePath, stats);
+
+        } else if (changed) {
+            // never slower than the gap between the last two changes
+            long gap = now - stats.mLastChange;
+            stats.mInterval = Math.min(stats.mInterval / 2, gap);
+            stats.mLastChange = now;
+
+        } else {
+            stats.mInterval = stats.mInterval + stats.mInterval / 2;
+        }
+        stats.mInterval = Math.max(MIN_INTERVAL_MS, Math.min(MAX_INTERVAL_MS, stats.mInterval));
+        stats.mLastCheck = now;
+        mUpdatedPaths.add(remotePath);
+        mBudget--;
+    }
+
+
+    /**
+     * @return  'True' if some due folder was not checked because the budget was exhausted.
+     */
+    public boolean isBudgetExhausted() {
+        return mBudgetExhausted;
+    }
+
+
+    /**
+     * Computes the time until the next folder of the account is due.
+     *
+     * @return  Delay for the next automatic synchronization, in seconds.
+     */
+    public long getNextSyncDelay() {
+        long now = System.currentTimeMillis();
+        long delay = MAX_SYNC_DELAY_MS;
+        if (mBudgetExhausted) {
+            delay = MIN_INTERVAL_MS;
+        } else {
+            for (FolderStats stats : mStats.values()) {
+                delay = Math.min(delay, stats.mLastCheck + stats.mInterval - now);
+            }
+        }
+        return Math.max(MIN_INTERVAL_MS, delay) / 1000;
+    }
+
+
+    /**
+     * Stores the history of the folders checked and the remaining budget.
+     */
+    public void save() {
+        DbHandler db = new DbHandler(mContext);
+        db.beginTransaction();
+        try {
+            for (String path : mUpdatedPaths) {
+                FolderStats stats = mStats.get(path);
+                db.saveFolderSyncStats(mAccount.name, path, stats.mLastCheck, stats.mLastChange,
+                        stats.mInterval);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            db.close();
+        }
+        Log_OC.d(TAG, "Saved history of " + mUpdatedPaths.size() + " folders for " +
+                mAccount.name);
+        mUpdatedPaths.clear();
+
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putFloat(PREF_BUDGET_PREFIX + mAccount.name, Math.max(0, mBudget))
+                .putLong(PREF_BUDGET_TIME_PREFIX + mAccount.name, System.currentTimeMillis())
+                .commit();
+    }
+
+}
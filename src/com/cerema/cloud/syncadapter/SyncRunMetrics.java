@@ -0,0 +1,446 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.syncadapter;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.TrafficStats;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.cerema.cloud.db.DbHandler;
+import com.cerema.cloud.lib.common.utils.Log_OC;
+import com.cerema.cloud.utils.FileStorageUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures of a synchronization run of an account: requests, bytes received, entries parsed,
+ * time spent in requests and in database merges, and folders checked, fetched or skipped.
+ *
+ * The measures of the last {@link #MAX_RUNS} runs are kept in the database, to show them in a
+ * debug screen and export them with the logs.
+ */
+public class SyncRunMetrics {
+
+    private static final String TAG = SyncRunMetrics.class.getSimpleName();
+
+    /** Number of runs kept in the database */
+    public static final int MAX_RUNS = 20;
+
+    /** Number of folders kept per run, the slowest ones */
+    private static final int MAX_FOLDERS = 10;
+
+    private static final String EXPORT_FILE_NAME = "sync_metrics.txt";
+
+    /**
+     * Measures of the refresh of a single folder.
+     */
+    public static class FolderMetrics {
+
+        private final String mPath;
+        private long mCheckMs = 0;
+        private long mFetchMs = 0;
+        private long mMergeMs = 0;
+        private long mBytes = 0;
+        private int mEntries = 0;
+        private int mRequests = 0;
+        private boolean mChecked = false;
+        private boolean mFetched = false;
+
+        private long mStart;
+        private long mStartBytes;
+
+        public FolderMetrics(String path) {
+            mPath = path;
+        }
+
+        /**
+         * Starts measuring a request to the server.
+         */
+        public void startRequest() {
+            mStart = SystemClock.elapsedRealtime();
+            mStartBytes = getReceivedBytes();
+        }
+
+        /**
+         * Ends measuring the request checking the ETag of the folder.
+         */
+        public void endCheck() {
+            mCheckMs += SystemClock.elapsedRealtime() - mStart;
+            mBytes += getReceivedBytes() - mStartBytes;
+            mRequests++;
+            mChecked = true;
+        }
+
+        /**
+         * Ends measuring the request listing the contents of the folder.
+         *
+         * @param entries   Number of entries in the response, including the folder.
+         */
+        public void endFetch(int entries) {
+            mFetchMs += SystemClock.elapsedRealtime() - mStart;
+            mBytes += getReceivedBytes() - mStartBytes;
+            mRequests++;
+            mEntries += entries;
+            mFetched = true;
+        }
+
+        /**
+         * Starts measuring the merge of the contents into the database.
+         */
+        public void startMerge() {
+            mStart = SystemClock.elapsedRealtime();
+        }
+
+        public void endMerge() {
+            mMergeMs += SystemClock.elapsedRealtime() - mStart;
+        }
+
+        long getTotalMs() {
+            return mCheckMs + mFetchMs + mMergeMs;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("path", mPath);
+            json.put("check_ms", mCheckMs);
+            json.put("fetch_ms", mFetchMs);
+            json.put("merge_ms", mMergeMs);
+            json.put("bytes", mBytes);
+            json.put("entries", mEntries);
+            return json;
+        }
+
+        static FolderMetrics fromJson(JSONObject json) throws JSONException {
+            FolderMetrics folder = new FolderMetrics(json.getString("path"));
+            folder.mCheckMs = json.optLong("check_ms");
+            folder.mFetchMs = json.optLong("fetch_ms");
+            folder.mMergeMs = json.optLong("merge_ms");
+            folder.mBytes = json.optLong("bytes");
+            folder.mEntries = json.optInt("entries");
+            return folder;
+        }
+    }
+
+
+    private final String mAccountName;
+    private long mStartTime;
+    private long mStartElapsed;
+    private long mDurationMs = 0;
+    private int mFoldersChecked = 0;
+    private int mEtagHits = 0;
+    private int mFoldersFetched = 0;
+    private int mFoldersSkipped = 0;
+    private int mRequests = 0;
+    private long mBytes = 0;
+    private int mEntries = 0;
+    private long mRequestMs = 0;
+    private long mMergeMs = 0;
+    private int mFailures = 0;
+    private boolean mChangeFeed = false;
+    private List<FolderMetrics> mSlowestFolders = new ArrayList<FolderMetrics>();
+
+
+    /**
+     * Starts measuring a synchronization run.
+     *
+     * @param accountName   Name of the account synchronized.
+     */
+    public SyncRunMetrics(String accountName) {
+        mAccountName = accountName;
+        mStartTime = System.currentTimeMillis();
+        mStartElapsed = SystemClock.elapsedRealtime();
+    }
+
+
+    /**
+     * Adds the measures of the refresh of a folder to the run.
+     */
+    public synchronized void addFolder(FolderMetrics folder) {
+        if (folder == null) {
+            return;
+        }
+        if (folder.mChecked) {
+            mFoldersChecked++;
+            if (!folder.mFetched) {
+                mEtagHits++;
+            }
+        }
+        if (folder.mFetched) {
+            mFoldersFetched++;
+        }
+        mRequests += folder.mRequests;
+        mBytes += folder.mBytes;
+        mEntries += folder.mEntries;
+        mRequestMs += folder.mCheckMs + folder.mFetchMs;
+        mMergeMs += folder.mMergeMs;
+
+        mSlowestFolders.add(folder);
+        if (mSlowestFolders.size() > MAX_FOLDERS) {
+            sortSlowestFirst(mSlowestFolders);
+            mSlowestFolders.remove(mSlowestFolders.size() - 1);
+        }
+    }
+
+    /**
+     * Counts a folder not checked in the run, because it was not due.
+     */
+    public synchronized void onFolderSkipped() {
+        mFoldersSkipped++;
+    }
+
+    /**
+     * Records that changes were read from the change feed of the server instead of walking
+     * the folders.
+     */
+    public synchronized void onChangeFeedApplied() {
+        mChangeFeed = true;
+    }
+
+    /**
+     * Ends measuring the run.
+     *
+     * @param failures  Number of failed requests in the run.
+     */
+    public synchronized void finish(int failures) {
+        mDurationMs = SystemClock.elapsedRealtime() - mStartElapsed;
+        mFailures = failures;
+        Log_OC.d(TAG, format());
+    }
+
+
+    /**
+     * Stores the measures of the run, discarding the oldest runs beyond {@link #MAX_RUNS}.
+     *
+     * @param context   Android context.
+     */
+    public void save(Context context) {
+        DbHandler db = new DbHandler(context);
+        try {
+            db.saveSyncRun(mAccountName, mStartTime, toJson().toString(), MAX_RUNS);
+        } catch (JSONException e) {
+            Log_OC.e(TAG, "Could not save metrics of synchronization", e);
+        } finally {
+            db.close();
+        }
+    }
+
+
+    /**
+     * @param context   Android context.
+     * @return          Measures of the last runs stored, the most recent first.
+     */
+    public static List<SyncRunMetrics> loadRecent(Context context) {
+        List<SyncRunMetrics> runs = new ArrayList<SyncRunMetrics>();
+        DbHandler db = new DbHandler(context);
+        Cursor c = db.getSyncRuns(MAX_RUNS);
+        try {
+            if (c.moveToFirst()) {
+                do {
+                    try {
+                        runs.add(fromJson(c.getString(c.getColumnIndex("metrics"))));
+                    } catch (JSONException e) {
+                        Log_OC.w(TAG, "Discarding unreadable metrics of synchronization");
+                    }
+                } while (c.moveToNext());
+            }
+        } finally {
+            c.close();
+            db.close();
+        }
+        return runs;
+    }
+
+
+    /**
+     * Removes all the measures stored.
+     *
+     * @param context   Android context.
+     */
+    public static void clear(Context context) {
+        DbHandler db = new DbHandler(context);
+        db.clearSyncRuns();
+        db.close();
+    }
+
+
+    /**
+     * Writes the measures of the last runs in a text file in the folder of logs, to send it
+     * with them.
+     *
+     * @param context   Android context.
+     * @return          File written, or null if it could not be written.
+     */
+    public static File export(Context context) {
+        String logPath = FileStorageUtils.getLogPath();
+        if (logPath == null) {
+            return null;
+        }
+        File folder = new File(logPath);
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            return null;
+        }
+        File file = new File(folder, EXPORT_FILE_NAME);
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(file);
+            for (SyncRunMetrics run : loadRecent(context)) {
+                writer.write(run.format());
+                writer.write("\n\n");
+            }
+            return file;
+
+        } catch (IOException e) {
+            Log_OC.e(TAG, "Could not export metrics of synchronization", e);
+            return null;
+
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return  Human readable summary of the run.
+     */
+    public synchronized String format() {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        StringBuilder text = new StringBuilder();
+        text.append(dateFormat.format(new Date(mStartTime))).append("  ").append(mAccountName)
+                .append('\n');
+        text.append("  duration ").append(mDurationMs).append(" ms")
+                .append(mChangeFeed ? ", change feed" : "")
+                .append(", failures ").append(mFailures).append('\n');
+        text.append("  folders: checked ").append(mFoldersChecked)
+                .append(", fetched ").append(mFoldersFetched)
+                .append(", skipped ").append(mFoldersSkipped)
+                .append(", ETag hit rate ").append(mFoldersChecked > 0 ?
+                        (100 * mEtagHits / mFoldersChecked) + "%" : "-").append('\n');
+        text.append("  requests ").append(mRequests)
+                .append(" (").append(mRequestMs).append(" ms)")
+                .append(", received ").append(mBytes / 1024).append(" KB")
+                .append(", entries ").append(mEntries)
+                .append(", merges ").append(mMergeMs).append(" ms");
+        List<FolderMetrics> folders = new ArrayList<FolderMetrics>(mSlowestFolders);
+        sortSlowestFirst(folders);
+        for (FolderMetrics folder : folders) {
+            text.append("\n    ").append(folder.mPath)
+                    .append(": check ").append(folder.mCheckMs)
+                    .append(" ms, fetch ").append(folder.mFetchMs)
+                    .append(" ms, merge ").append(folder.mMergeMs)
+                    .append(" ms, ").append(folder.mEntries).append(" entries, ")
+                    .append(folder.mBytes / 1024).append(" KB");
+        }
+        return text.toString();
+    }
+
+
+    private synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("account", mAccountName);
+        json.put("start", mStartTime);
+        json.put("duration_ms", mDurationMs);
+        json.put("folders_checked", mFoldersChecked);
+        json.put("etag_hits", mEtagHits);
+        json.put("folders_fetched", mFoldersFetched);
+        json.put("folders_skipped", mFoldersSkipped);
+        json.put("requests", mRequests);
+        json.put("bytes", mBytes);
+        json.put("entries", mEntries);
+        json.put("request_ms", mRequestMs);
+        json.put("merge_ms", mMergeMs);
+        json.put("failures", mFailures);
+        json.put("change_feed", mChangeFeed);
+        JSONArray folders = new JSONArray();
+        for (FolderMetrics folder : mSlowestFolders) {
+            folders.put(folder.toJson());
+        }
+        json.put("slowest_folders", folders);
+        return json;
+    }
+
+
+    private static SyncRunMetrics fromJson(String text) throws JSONException {
+        JSONObject json = new JSONObject(text);
+        SyncRunMetrics run = new SyncRunMetrics(json.getString("account"));
+        run.mStartTime = json.getLong("start");
+        run.mDurationMs = json.optLong("duration_ms");
+        run.mFoldersChecked = json.optInt("folders_checked");
+        run.mEtagHits = json.optInt("etag_hits");
+        run.mFoldersFetched = json.optInt("folders_fetched");
+        run.mFoldersSkipped = json.optInt("folders_skipped");
+        run.mRequests = json.optInt("requests");
+        run.mBytes = json.optLong("bytes");
+        run.mEntries = json.optInt("entries");
+        run.mRequestMs = json.optLong("request_ms");
+        run.mMergeMs = json.optLong("merge_ms");
+        run.mFailures = json.optInt("failures");
+        run.mChangeFeed = json.optBoolean("change_feed");
+        JSONArray folders = json.optJSONArray("slowest_folders");
+        if (folders != null) {
+            for (int i = 0; i < folders.length(); i++) {
+                run.mSlowestFolders.add(FolderMetrics.fromJson(folders.getJSONObject(i)));
+            }
+        }
+        return run;
+    }
+
+
+    private static void sortSlowestFirst(List<FolderMetrics> folders) {
+        Collections.sort(folders, new Comparator<FolderMetrics>() {
+            @Override
+            public int compare(FolderMetrics lhs, FolderMetrics rhs) {
+                long diff = rhs.getTotalMs() - lhs.getTotalMs();
+                return diff > 0 ? 1 : (diff < 0 ? -1 : 0);
+            }
+        });
+    }
+
+
+    /**
+     * Bytes received by the app; the lib doesn't count the bytes of every response, so the
+     * traffic of the app during a request is used instead.
+     */
+    private static long getReceivedBytes() {
+        long bytes = TrafficStats.getUidRxBytes(Process.myUid());
+        return bytes == TrafficStats.UNSUPPORTED ? 0 : bytes;
+    }
+
+}
@@ -66,6 +66,7 @@ public class ConflictsResolveActivity extends FileActivity implements OnConflict
                 Intent intent = new Intent(this, FileDownloader.class);
                 intent.putExtra(FileDownloader.EXTRA_ACCOUNT, getAccount());
                 intent.putExtra(FileDownloader.EXTRA_FILE, getFile());
+                intent.putExtra(FileDownloader.EXTRA_FOREGROUND, true);
                 startService(intent);
                 finish();
                 return;
@@ -76,6 +77,7 @@ public class ConflictsResolveActivity extends FileActivity implements OnConflict
         i.putExtra(FileUploader.KEY_ACCOUNT, getAccount());
         i.putExtra(FileUploader.KEY_FILE, getFile());
         i.putExtra(FileUploader.KEY_UPLOAD_TYPE, FileUploader.UPLOAD_SINGLE_FILE);
+        i.putExtra(FileUploader.KEY_FOREGROUND, true);
         
         startService(i);
         finish();
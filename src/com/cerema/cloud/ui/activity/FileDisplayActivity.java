@@ -26,13 +26,11 @@ import android.Manifest;
 import android.accounts.Account;
 import android.accounts.AuthenticatorException;
 import android.annotation.TargetApi;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.SyncRequest;
@@ -64,6 +62,10 @@ import com.cerema.cloud.MainApp;
 import com.cerema.cloud.R;
 import com.cerema.cloud.datamodel.FileDataStorageManager;
 import com.cerema.cloud.datamodel.OCFile;
+import com.cerema.cloud.events.FolderSyncEvent;
+import com.cerema.cloud.events.SyncEventBus;
+import com.cerema.cloud.events.TransferEvent;
+import com.cerema.cloud.files.FolderPrefetcher;
 import com.cerema.cloud.files.services.FileDownloader;
 import com.cerema.cloud.files.services.FileDownloader.FileDownloaderBinder;
 import com.cerema.cloud.files.services.FileUploader;
@@ -81,6 +83,7 @@ import com.cerema.cloud.operations.RemoveFileOperation;
 import com.cerema.cloud.operations.RenameFileOperation;
 import com.cerema.cloud.operations.SynchronizeFileOperation;
 import com.cerema.cloud.services.observer.FileObserverService;
+import com.cerema.cloud.services.push.PushService;
 import com.cerema.cloud.syncadapter.FileSyncAdapter;
 import com.cerema.cloud.ui.dialog.ConfirmationDialogFragment;
 import com.cerema.cloud.ui.dialog.CreateFolderDialogFragment;
@@ -158,6 +161,9 @@ public class FileDisplayActivity extends HookActivity
         if (savedInstanceState == null) {
             Intent initObserversIntent = FileObserverService.makeInitIntent(this);
             startService(initObserversIntent);
+
+            /// grant that changes notified by the server, if enabled, are received
+            startService(PushService.makeStartIntent(this));
         }
 
         /// Load of saved instance state
@@ -893,28 +899,19 @@ public class FileDisplayActivity extends HookActivity
         // refresh list of files
         refreshListOfFilesFragment();
 
+        SyncEventBus bus = SyncEventBus.getInstance();
+
         // Listen for sync messages
-        IntentFilter syncIntentFilter = new IntentFilter(FileSyncAdapter.EVENT_FULL_SYNC_START);
-        syncIntentFilter.addAction(FileSyncAdapter.EVENT_FULL_SYNC_END);
-        syncIntentFilter.addAction(FileSyncAdapter.EVENT_FULL_SYNC_FOLDER_CONTENTS_SYNCED);
-        syncIntentFilter.addAction(RefreshFolderOperation.EVENT_SINGLE_FOLDER_CONTENTS_SYNCED);
-        syncIntentFilter.addAction(RefreshFolderOperation.EVENT_SINGLE_FOLDER_SHARES_SYNCED);
         mSyncBroadcastReceiver = new SyncBroadcastReceiver();
-        registerReceiver(mSyncBroadcastReceiver, syncIntentFilter);
-        //LocalBroadcastManager.getInstance(this).registerReceiver(mSyncBroadcastReceiver,
-        // syncIntentFilter);
+        bus.register(FolderSyncEvent.class, mSyncBroadcastReceiver);
 
         // Listen for upload messages
-        IntentFilter uploadIntentFilter = new IntentFilter(FileUploader.getUploadFinishMessage());
         mUploadFinishReceiver = new UploadFinishReceiver();
-        registerReceiver(mUploadFinishReceiver, uploadIntentFilter);
+        bus.register(TransferEvent.class, mUploadFinishReceiver);
 
         // Listen for download messages
-        IntentFilter downloadIntentFilter = new IntentFilter(
-                FileDownloader.getDownloadAddedMessage());
-        downloadIntentFilter.addAction(FileDownloader.getDownloadFinishMessage());
         mDownloadFinishReceiver = new DownloadFinishReceiver();
-        registerReceiver(mDownloadFinishReceiver, downloadIntentFilter);
+        bus.register(TransferEvent.class, mDownloadFinishReceiver);
 
         Log_OC.v(TAG, "onResume() end");
 
@@ -924,19 +921,21 @@ public class FileDisplayActivity extends HookActivity
     @Override
     protected void onPause() {
         Log_OC.v(TAG, "onPause() start");
+        SyncEventBus bus = SyncEventBus.getInstance();
         if (mSyncBroadcastReceiver != null) {
-            unregisterReceiver(mSyncBroadcastReceiver);
-            //LocalBroadcastManager.getInstance(this).unregisterReceiver(mSyncBroadcastReceiver);
+            bus.unregister(mSyncBroadcastReceiver);
             mSyncBroadcastReceiver = null;
         }
         if (mUploadFinishReceiver != null) {
-            unregisterReceiver(mUploadFinishReceiver);
+            bus.unregister(mUploadFinishReceiver);
             mUploadFinishReceiver = null;
         }
         if (mDownloadFinishReceiver != null) {
-            unregisterReceiver(mDownloadFinishReceiver);
+            bus.unregister(mDownloadFinishReceiver);
             mDownloadFinishReceiver = null;
         }
+        // subfolders of the folder shown are not so likely to be visited next
+        FolderPrefetcher.getInstance().cancel();
 
         super.onPause();
         Log_OC.v(TAG, "onPause() end");
@@ -953,22 +952,19 @@ public class FileDisplayActivity extends HookActivity
     }
 
 
-    private class SyncBroadcastReceiver extends BroadcastReceiver {
+    private class SyncBroadcastReceiver implements SyncEventBus.Listener<FolderSyncEvent> {
 
         /**
-         * {@link BroadcastReceiver} to enable syncing feedback in UI
+         * Listener of {@link FolderSyncEvent}s to enable syncing feedback in UI
          */
         @Override
-        public void onReceive(Context context, Intent intent) {
+        public void onEvent(FolderSyncEvent syncEvent) {
             try {
-                String event = intent.getAction();
-                Log_OC.d(TAG, "Received broadcast " + event);
-                String accountName = intent.getStringExtra(FileSyncAdapter.EXTRA_ACCOUNT_NAME);
-                String synchFolderRemotePath =
-                        intent.getStringExtra(FileSyncAdapter.EXTRA_FOLDER_PATH);
-                RemoteOperationResult synchResult =
-                        (RemoteOperationResult) intent.getSerializableExtra(
-                                FileSyncAdapter.EXTRA_RESULT);
+                String event = syncEvent.getType();
+                Log_OC.d(TAG, "Received event " + event);
+                String accountName = syncEvent.getAccountName();
+                String synchFolderRemotePath = syncEvent.getRemotePath();
+                RemoteOperationResult synchResult = syncEvent.getResult();
                 boolean sameAccount = (getAccount() != null &&
                         accountName.equals(getAccount().name) && getStorageManager() != null);
 
@@ -1007,10 +1003,16 @@ public class FileDisplayActivity extends HookActivity
                                     currentDir.getRemotePath().equals(synchFolderRemotePath)) {
                                 OCFileListFragment fileListFragment = getListOfFilesFragment();
                                 if (fileListFragment != null) {
-                                    fileListFragment.listDirectory();
-                                    // TODO Enable when "On Device" is recovered ?
-                                    // fileListFragment.listDirectory(currentDir,
-                                    // MainApp.getOnlyOnDevice());
+                                    // cached contents are already shown; apply only changes
+                                    fileListFragment.revalidateDirectory();
+                                }
+                                if (RefreshFolderOperation.EVENT_SINGLE_FOLDER_CONTENTS_SYNCED.
+                                        equals(event) && synchResult != null &&
+                                        synchResult.isSuccess()) {
+                                    // get ready to browse down without waiting
+                                    FolderPrefetcher.getInstance().prefetchSubfolders(
+                                            FileDisplayActivity.this, getAccount(), currentDir
+                                    );
                                 }
                             }
                             setFile(currentFile);
@@ -1029,12 +1031,12 @@ public class FileDisplayActivity extends HookActivity
                                         (synchResult.isException() && synchResult.getException()
                                                 instanceof AuthenticatorException))) {
 
-                            requestCredentialsUpdate(context);
+                            requestCredentialsUpdate(FileDisplayActivity.this);
 
                         }
 
                     }
-                    removeStickyBroadcast(intent);
+                    SyncEventBus.getInstance().removeStickyEvent(syncEvent);
                     Log_OC.d(TAG, "Setting progress visibility to " + mSyncInProgress);
                     mProgressBar.setIndeterminate(mSyncInProgress);
 
@@ -1049,9 +1051,8 @@ public class FileDisplayActivity extends HookActivity
                     }
                 }
             } catch (RuntimeException e) {
-                // avoid app crashes after changing the serial id of RemoteOperationResult 
-                // in owncloud library with broadcast notifications pending to process
-                removeStickyBroadcast(intent);
+                Log_OC.e(TAG, "Error processing synchronization event " + syncEvent, e);
+                SyncEventBus.getInstance().removeStickyEvent(syncEvent);
             }
         }
     }
@@ -1077,35 +1078,36 @@ public class FileDisplayActivity extends HookActivity
     /**
      * Once the file upload has finished -> update view
      */
-    private class UploadFinishReceiver extends BroadcastReceiver {
+    private class UploadFinishReceiver implements SyncEventBus.Listener<TransferEvent> {
         /**
          * Once the file upload has finished -> update view
          *
          * @author David A. Velasco
-         * {@link BroadcastReceiver} to enable upload feedback in UI
+         * Listener of {@link TransferEvent}s to enable upload feedback in UI
          */
         @Override
-        public void onReceive(Context context, Intent intent) {
+        public void onEvent(TransferEvent event) {
+            if (!FileUploader.getUploadFinishMessage().equals(event.getType())) {
+                return;
+            }
             try {
-                String uploadedRemotePath = intent.getStringExtra(FileUploader.EXTRA_REMOTE_PATH);
-                String accountName = intent.getStringExtra(FileUploader.ACCOUNT_NAME);
+                String uploadedRemotePath = event.getRemotePath();
+                String accountName = event.getAccountName();
                 boolean sameAccount = getAccount() != null && accountName.equals(getAccount().name);
                 OCFile currentDir = getCurrentDir();
                 boolean isDescendant = (currentDir != null) && (uploadedRemotePath != null) &&
                         (uploadedRemotePath.startsWith(currentDir.getRemotePath()));
 
                 if (sameAccount && isDescendant) {
-                    String linkedToRemotePath =
-                            intent.getStringExtra(FileUploader.EXTRA_LINKED_TO_PATH);
+                    String linkedToRemotePath = event.getLinkedToPath();
                     if (linkedToRemotePath == null || isAscendant(linkedToRemotePath)) {
                         refreshListOfFilesFragment();
                     }
                 }
 
-                boolean uploadWasFine = intent.getBooleanExtra(FileUploader.EXTRA_UPLOAD_RESULT,
-                        false);
+                boolean uploadWasFine = event.isSuccess();
                 boolean renamedInUpload = getFile().getRemotePath().
-                        equals(intent.getStringExtra(FileUploader.EXTRA_OLD_REMOTE_PATH));
+                        equals(event.getOldRemotePath());
                 boolean sameFile = getFile().getRemotePath().equals(uploadedRemotePath) ||
                         renamedInUpload;
                 FileFragment details = getSecondFragment();
@@ -1119,7 +1121,7 @@ public class FileDisplayActivity extends HookActivity
                     if (renamedInUpload) {
                         String newName = (new File(uploadedRemotePath)).getName();
                         Toast msg = Toast.makeText(
-                                context,
+                                FileDisplayActivity.this,
                                 String.format(
                                         getString(R.string.filedetails_renamed_in_upload_msg),
                                         newName),
@@ -1145,9 +1147,7 @@ public class FileDisplayActivity extends HookActivity
 
                 mProgressBar.setIndeterminate(false);
             } finally {
-                if (intent != null) {
-                    removeStickyBroadcast(intent);
-                }
+                SyncEventBus.getInstance().removeStickyEvent(event);
             }
 
         }
@@ -1166,31 +1166,33 @@ public class FileDisplayActivity extends HookActivity
 
 
     /**
-     * Class waiting for broadcast events from the {@link FileDownloader} service.
+     * Class waiting for events from the {@link FileDownloader} service.
      *
      * Updates the UI when a download is started or finished, provided that it is relevant for the
      * current folder.
      */
-    private class DownloadFinishReceiver extends BroadcastReceiver {
+    private class DownloadFinishReceiver implements SyncEventBus.Listener<TransferEvent> {
 
         @Override
-        public void onReceive(Context context, Intent intent) {
+        public void onEvent(TransferEvent event) {
+            if (!FileDownloader.getDownloadAddedMessage().equals(event.getType()) &&
+                    !FileDownloader.getDownloadFinishMessage().equals(event.getType())) {
+                return;
+            }
             try {
-                boolean sameAccount = isSameAccount(intent);
-                String downloadedRemotePath =
-                        intent.getStringExtra(FileDownloader.EXTRA_REMOTE_PATH);
+                boolean sameAccount = isSameAccount(event);
+                String downloadedRemotePath = event.getRemotePath();
                 boolean isDescendant = isDescendant(downloadedRemotePath);
 
                 if (sameAccount && isDescendant) {
-                    String linkedToRemotePath =
-                            intent.getStringExtra(FileDownloader.EXTRA_LINKED_TO_PATH);
+                    String linkedToRemotePath = event.getLinkedToPath();
                     if (linkedToRemotePath == null || isAscendant(linkedToRemotePath)) {
                         refreshListOfFilesFragment();
                     }
                     refreshSecondFragment(
-                            intent.getAction(),
+                            event.getType(),
                             downloadedRemotePath,
-                            intent.getBooleanExtra(FileDownloader.EXTRA_DOWNLOAD_RESULT, false)
+                            event.isSuccess()
                     );
                 }
 
@@ -1203,9 +1205,7 @@ public class FileDisplayActivity extends HookActivity
                 }
 
             } finally {
-                if (intent != null) {
-                    removeStickyBroadcast(intent);
-                }
+                SyncEventBus.getInstance().removeStickyEvent(event);
             }
         }
 
@@ -1226,8 +1226,8 @@ public class FileDisplayActivity extends HookActivity
             );
         }
 
-        private boolean isSameAccount(Intent intent) {
-            String accountName = intent.getStringExtra(FileDownloader.ACCOUNT_NAME);
+        private boolean isSameAccount(TransferEvent event) {
+            String accountName = event.getAccountName();
             return (accountName != null && getAccount() != null &&
                     accountName.equals(getAccount().name));
         }
@@ -1623,13 +1623,12 @@ public class FileDisplayActivity extends HookActivity
 
     private void requestForDownload() {
         Account account = getAccount();
-        //if (!mWaitingToPreview.isDownloading()) {
-        if (!mDownloaderBinder.isDownloading(account, mWaitingToPreview)) {
-            Intent i = new Intent(this, FileDownloader.class);
-            i.putExtra(FileDownloader.EXTRA_ACCOUNT, account);
-            i.putExtra(FileDownloader.EXTRA_FILE, mWaitingToPreview);
-            startService(i);
-        }
+        // requested even if already waiting in the queue, to move it ahead of the rest
+        Intent i = new Intent(this, FileDownloader.class);
+        i.putExtra(FileDownloader.EXTRA_ACCOUNT, account);
+        i.putExtra(FileDownloader.EXTRA_FILE, mWaitingToPreview);
+        i.putExtra(FileDownloader.EXTRA_FOREGROUND, true);
+        startService(i);
     }
 
 
@@ -1721,6 +1720,7 @@ public class FileDisplayActivity extends HookActivity
             Intent i = new Intent(this, FileDownloader.class);
             i.putExtra(FileDownloader.EXTRA_ACCOUNT, account);
             i.putExtra(FileDownloader.EXTRA_FILE, file);
+            i.putExtra(FileDownloader.EXTRA_FOREGROUND, true);
             startService(i);
         }
     }
@@ -22,10 +22,7 @@ package com.cerema.cloud.ui.activity;
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.accounts.AuthenticatorException;
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.res.Resources.NotFoundException;
 import android.os.Bundle;
 import android.os.Parcelable;
@@ -44,6 +41,8 @@ import android.widget.Toast;
 
 import com.cerema.cloud.R;
 import com.cerema.cloud.datamodel.OCFile;
+import com.cerema.cloud.events.FolderSyncEvent;
+import com.cerema.cloud.events.SyncEventBus;
 import com.cerema.cloud.lib.common.OwnCloudAccount;
 import com.cerema.cloud.lib.common.OwnCloudClient;
 import com.cerema.cloud.lib.common.OwnCloudClientManagerFactory;
@@ -235,13 +234,8 @@ public class FolderPickerActivity extends FileActivity implements FileFragment.C
         refreshListOfFilesFragment();
 
         // Listen for sync messages
-        IntentFilter syncIntentFilter = new IntentFilter(FileSyncAdapter.EVENT_FULL_SYNC_START);
-        syncIntentFilter.addAction(FileSyncAdapter.EVENT_FULL_SYNC_END);
-        syncIntentFilter.addAction(FileSyncAdapter.EVENT_FULL_SYNC_FOLDER_CONTENTS_SYNCED);
-        syncIntentFilter.addAction(RefreshFolderOperation.EVENT_SINGLE_FOLDER_CONTENTS_SYNCED);
-        syncIntentFilter.addAction(RefreshFolderOperation.EVENT_SINGLE_FOLDER_SHARES_SYNCED);
         mSyncBroadcastReceiver = new SyncBroadcastReceiver();
-        registerReceiver(mSyncBroadcastReceiver, syncIntentFilter);
+        SyncEventBus.getInstance().register(FolderSyncEvent.class, mSyncBroadcastReceiver);
         
         Log_OC.d(TAG, "onResume() end");
     }
@@ -250,8 +244,7 @@ public class FolderPickerActivity extends FileActivity implements FileFragment.C
     protected void onPause() {
         Log_OC.e(TAG, "onPause() start");
         if (mSyncBroadcastReceiver != null) {
-            unregisterReceiver(mSyncBroadcastReceiver);
-            //LocalBroadcastManager.getInstance(this).unregisterReceiver(mSyncBroadcastReceiver);
+            SyncEventBus.getInstance().unregister(mSyncBroadcastReceiver);
             mSyncBroadcastReceiver = null;
         }
         
@@ -423,20 +416,19 @@ public class FolderPickerActivity extends FileActivity implements FileFragment.C
     
     
     
-    private class SyncBroadcastReceiver extends BroadcastReceiver {
+    private class SyncBroadcastReceiver implements SyncEventBus.Listener<FolderSyncEvent> {
 
         /**
-         * {@link BroadcastReceiver} to enable syncing feedback in UI
+         * Listener of {@link FolderSyncEvent}s to enable syncing feedback in UI
          */
         @Override
-        public void onReceive(Context context, Intent intent) {
+        public void onEvent(FolderSyncEvent syncEvent) {
             try {
-                String event = intent.getAction();
-                Log_OC.d(TAG, "Received broadcast " + event);
-                String accountName = intent.getStringExtra(FileSyncAdapter.EXTRA_ACCOUNT_NAME);
-                String synchFolderRemotePath = intent.getStringExtra(FileSyncAdapter.EXTRA_FOLDER_PATH); 
-                RemoteOperationResult synchResult = (RemoteOperationResult)intent.
-                        getSerializableExtra(FileSyncAdapter.EXTRA_RESULT);
+                String event = syncEvent.getType();
+                Log_OC.d(TAG, "Received event " + event);
+                String accountName = syncEvent.getAccountName();
+                String synchFolderRemotePath = syncEvent.getRemotePath();
+                RemoteOperationResult synchResult = syncEvent.getResult();
                 boolean sameAccount = (getAccount() != null && 
                         accountName.equals(getAccount().name) && getStorageManager() != null); 
     
@@ -491,11 +483,11 @@ public class FolderPickerActivity extends FileActivity implements FileFragment.C
                                     (synchResult.isException() && synchResult.getException() 
                                             instanceof AuthenticatorException))) {
 
-                            requestCredentialsUpdate(context);
+                            requestCredentialsUpdate(FolderPickerActivity.this);
 
                         }
                     }
-                    removeStickyBroadcast(intent);
+                    SyncEventBus.getInstance().removeStickyEvent(syncEvent);
                     Log_OC.d(TAG, "Setting progress visibility to " + mSyncInProgress);
 
                     mProgressBar.setIndeterminate(mSyncInProgress);
@@ -504,9 +496,8 @@ public class FolderPickerActivity extends FileActivity implements FileFragment.C
                 }
                 
             } catch (RuntimeException e) {
-                // avoid app crashes after changing the serial id of RemoteOperationResult 
-                // in owncloud library with broadcast notifications pending to process
-                removeStickyBroadcast(intent);
+                Log_OC.e(TAG, "Error processing synchronization event " + syncEvent, e);
+                SyncEventBus.getInstance().removeStickyEvent(syncEvent);
             }
         }
     }
@@ -36,6 +36,7 @@ import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentTransaction;
 import android.support.v7.app.AppCompatActivity;
+import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -45,6 +46,7 @@ import android.widget.Toast;
 
 import com.cerema.cloud.R;
 import com.cerema.cloud.lib.common.utils.Log_OC;
+import com.cerema.cloud.syncadapter.SyncRunMetrics;
 import com.cerema.cloud.ui.dialog.LoadingDialog;
 import com.cerema.cloud.utils.DisplayUtils;
 import com.cerema.cloud.utils.FileStorageUtils;
@@ -113,6 +115,12 @@ public class LogHistoryActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.log_history_menu, menu);
+        return true;
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         super.onOptionsItemSelected(item);
@@ -120,6 +128,9 @@ public class LogHistoryActivity extends AppCompatActivity {
             case android.R.id.home:
                 finish();
                 break;
+            case R.id.action_sync_metrics:
+                startActivity(new Intent(getApplicationContext(), SyncMetricsActivity.class));
+                break;
             default:
                 return false;
         }
@@ -156,6 +167,12 @@ public class LogHistoryActivity extends AppCompatActivity {
             }
         }
 
+        // measures of the last synchronizations go with the logs
+        File metricsFile = SyncRunMetrics.export(getApplicationContext());
+        if (metricsFile != null) {
+            uris.add(Uri.fromFile(metricsFile));
+        }
+
         Intent intent = new Intent(Intent.ACTION_SEND_MULTIPLE);
 
         intent.putExtra(Intent.EXTRA_EMAIL, emailAddress);
@@ -77,6 +77,7 @@ import com.cerema.cloud.files.services.FileDownloader;
 import com.cerema.cloud.files.services.FileUploader;
 import com.cerema.cloud.lib.common.utils.Log_OC;
 import com.cerema.cloud.services.OperationsService;
+import com.cerema.cloud.services.push.PushService;
 import com.cerema.cloud.ui.RadioButtonPreference;
 import com.cerema.cloud.utils.DisplayUtils;
 
@@ -450,6 +451,24 @@ public class Preferences extends PreferenceActivity
                 ((CheckBoxPreference)mPrefInstantVideoUpload).isChecked(),
                 ((CheckBoxPreference)mPrefInstantUpload).isChecked());
 
+        /* Push channel */
+        Preference pPushEndpoint = findPreference(PushService.PREF_PUSH_ENDPOINT);
+        if (pPushEndpoint != null) {
+            pPushEndpoint.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+                @Override
+                public boolean onPreferenceChange(Preference preference, Object newValue) {
+                    // the new value is saved after returning; restart the channel then
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            startService(PushService.makeStartIntent(Preferences.this));
+                        }
+                    });
+                    return true;
+                }
+            });
+        }
+
         /* About App */
        pAboutApp = (Preference) findPreference("about_app");
        if (pAboutApp != null) { 
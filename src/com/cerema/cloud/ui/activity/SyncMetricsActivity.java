@@ -0,0 +1,168 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cerema.cloud.ui.activity;
+
+import android.content.ActivityNotFoundException;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.support.v7.app.AppCompatActivity;
+import android.view.MenuItem;
+import android.view.View;
+import android.view.View.OnClickListener;
+import android.widget.Button;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.cerema.cloud.R;
+import com.cerema.cloud.lib.common.utils.Log_OC;
+import com.cerema.cloud.syncadapter.SyncRunMetrics;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.List;
+
+/**
+ * Debug screen showing the measures of the last synchronization runs, with the options to
+ * delete them or send them.
+ */
+public class SyncMetricsActivity extends AppCompatActivity {
+
+    private static final String TAG = SyncMetricsActivity.class.getSimpleName();
+
+    private static final String MAIL_ATTACHMENT_TYPE = "text/plain";
+
+    private static final String KEY_METRICS_TEXT = "METRICS_TEXT";
+
+    private String mMetricsText;
+
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        setContentView(R.layout.log_send_file);
+        setTitle(getText(R.string.actionbar_sync_metrics));
+        getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+        Button deleteButton = (Button) findViewById(R.id.deleteLogHistoryButton);
+        Button sendButton = (Button) findViewById(R.id.sendLogHistoryButton);
+        TextView metricsTV = (TextView) findViewById(R.id.logTV);
+
+        deleteButton.setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                SyncRunMetrics.clear(getApplicationContext());
+                finish();
+            }
+        });
+
+        sendButton.setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                sendMetrics();
+            }
+        });
+
+        if (savedInstanceState == null) {
+            new LoadingMetricsTask(metricsTV).execute();
+        } else {
+            mMetricsText = savedInstanceState.getString(KEY_METRICS_TEXT);
+            metricsTV.setText(mMetricsText);
+        }
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        super.onOptionsItemSelected(item);
+        switch (item.getItemId()) {
+            case android.R.id.home:
+                finish();
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(KEY_METRICS_TEXT, mMetricsText);
+    }
+
+
+    /**
+     * Exports the measures to a file and sends it.
+     */
+    private void sendMetrics() {
+        File file = SyncRunMetrics.export(getApplicationContext());
+        if (file == null) {
+            Toast.makeText(this, R.string.sync_metrics_export_failed, Toast.LENGTH_LONG).show();
+            return;
+        }
+        Intent intent = new Intent(Intent.ACTION_SEND);
+        String subject = String.format(getString(R.string.log_send_mail_subject),
+                getString(R.string.app_name));
+        intent.putExtra(Intent.EXTRA_SUBJECT, subject);
+        intent.setType(MAIL_ATTACHMENT_TYPE);
+        intent.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(file));
+        try {
+            startActivity(intent);
+        } catch (ActivityNotFoundException e) {
+            Toast.makeText(this, getString(R.string.log_send_no_mail_app),
+                    Toast.LENGTH_LONG).show();
+            Log_OC.i(TAG, "Could not find app for sending metrics of synchronization.");
+        }
+    }
+
+
+    /**
+     * Loads the measures from the database out of the main thread.
+     */
+    private class LoadingMetricsTask extends AsyncTask<Void, Void, String> {
+
+        private final WeakReference<TextView> mTextViewReference;
+
+        public LoadingMetricsTask(TextView metricsTV) {
+            mTextViewReference = new WeakReference<TextView>(metricsTV);
+        }
+
+        @Override
+        protected String doInBackground(Void... args) {
+            List<SyncRunMetrics> runs = SyncRunMetrics.loadRecent(getApplicationContext());
+            StringBuilder text = new StringBuilder();
+            for (SyncRunMetrics run : runs) {
+                text.append(run.format()).append("\n\n");
+            }
+            return text.toString();
+        }
+
+        @Override
+        protected void onPostExecute(String result) {
+            TextView metricsTV = mTextViewReference.get();
+            if (metricsTV != null && result != null) {
+                mMetricsText = result;
+                metricsTV.setText(mMetricsText);
+            }
+        }
+    }
+
+}
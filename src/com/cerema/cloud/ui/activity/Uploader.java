@@ -34,6 +34,8 @@ import com.cerema.cloud.MainApp;
 import com.cerema.cloud.R;
 import com.cerema.cloud.authentication.AccountAuthenticator;
 import com.cerema.cloud.datamodel.OCFile;
+import com.cerema.cloud.events.FolderSyncEvent;
+import com.cerema.cloud.events.SyncEventBus;
 import com.cerema.cloud.files.services.FileUploader;
 import com.cerema.cloud.lib.common.operations.RemoteOperation;
 import com.cerema.cloud.lib.common.operations.RemoteOperationResult;
@@ -44,14 +46,14 @@ import com.cerema.cloud.operations.RefreshFolderOperation;
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.accounts.AuthenticatorException;
+import android.annotation.TargetApi;
 import android.app.AlertDialog;
 import android.app.AlertDialog.Builder;
 import android.app.Dialog;
 import android.app.ProgressDialog;
-import android.content.BroadcastReceiver;
+import android.content.ClipData;
 import android.content.Context;
 import android.content.DialogInterface;
-import android.content.IntentFilter;
 import android.content.DialogInterface.OnCancelListener;
 import android.content.DialogInterface.OnClickListener;
 import android.content.Intent;
@@ -59,15 +61,13 @@ import android.content.SharedPreferences;
 import android.content.res.Resources.NotFoundException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Parcelable;
 import android.preference.PreferenceManager;
 import android.provider.MediaStore.Audio;
 import android.provider.MediaStore.Images;
 import android.provider.MediaStore.Video;
-import android.support.v4.app.Fragment;
-import android.support.v4.app.FragmentManager;
-import android.support.v4.app.FragmentTransaction;
 import android.support.v7.app.ActionBar;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -85,18 +85,16 @@ import com.cerema.cloud.operations.CreateFolderOperation;
 import com.cerema.cloud.syncadapter.FileSyncAdapter;
 import com.cerema.cloud.ui.adapter.UploaderAdapter;
 import com.cerema.cloud.ui.dialog.CreateFolderDialogFragment;
-import com.cerema.cloud.ui.dialog.LoadingDialog;
-import com.cerema.cloud.utils.CopyTmpFileAsyncTask;
 import com.cerema.cloud.utils.DisplayUtils;
 import com.cerema.cloud.utils.ErrorMessageAdapter;
+import com.cerema.cloud.utils.UriUtils;
 
 
 /**
  * This can be used to upload things to an ownCloud instance.
  */
 public class Uploader extends FileActivity
-        implements OnItemClickListener, android.view.View.OnClickListener,
-        CopyTmpFileAsyncTask.OnCopyTmpFileTaskListener {
+        implements OnItemClickListener, android.view.View.OnClickListener {
 
     private static final String TAG = Uploader.class.getSimpleName();
 
@@ -112,9 +110,6 @@ public class Uploader extends FileActivity
     private boolean mAccountSelected;
     private boolean mAccountSelectionShowing;
 
-    private ArrayList<String> mRemoteCacheData;
-    private int mNumCacheFile;
-    
     private final static int DIALOG_NO_ACCOUNT = 0;
     private final static int DIALOG_WAITING = 1;
     private final static int DIALOG_NO_STREAM = 2;
@@ -126,10 +121,6 @@ public class Uploader extends FileActivity
     private final static String KEY_FILE = "FILE";
     private final static String KEY_ACCOUNT_SELECTED = "ACCOUNT_SELECTED";
     private final static String KEY_ACCOUNT_SELECTION_SHOWING = "ACCOUNT_SELECTION_SHOWING";
-    private final static String KEY_NUM_CACHE_FILE = "NUM_CACHE_FILE";
-    private final static String KEY_REMOTE_CACHE_DATA = "REMOTE_CACHE_DATA";
-
-    private static final String DIALOG_WAIT_COPY_FILE = "DIALOG_WAIT_COPY_FILE";
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -139,17 +130,11 @@ public class Uploader extends FileActivity
             mParents = new Stack<String>();
             mAccountSelected = false;
             mAccountSelectionShowing = false;
-            mNumCacheFile = 0;
-
-            // ArrayList for files with path in private storage
-            mRemoteCacheData = new ArrayList<String>();
         } else {
             mParents = (Stack<String>) savedInstanceState.getSerializable(KEY_PARENTS);
             mFile = savedInstanceState.getParcelable(KEY_FILE);
             mAccountSelected = savedInstanceState.getBoolean(KEY_ACCOUNT_SELECTED);
             mAccountSelectionShowing = savedInstanceState.getBoolean(KEY_ACCOUNT_SELECTION_SHOWING);
-            mNumCacheFile = savedInstanceState.getInt(KEY_NUM_CACHE_FILE);
-            mRemoteCacheData = savedInstanceState.getStringArrayList(KEY_REMOTE_CACHE_DATA);
         }
 
         super.onCreate(savedInstanceState);
@@ -159,11 +144,8 @@ public class Uploader extends FileActivity
         }
 
         // Listen for sync messages
-        IntentFilter syncIntentFilter = new IntentFilter(RefreshFolderOperation.
-                EVENT_SINGLE_FOLDER_CONTENTS_SYNCED);
-        syncIntentFilter.addAction(RefreshFolderOperation.EVENT_SINGLE_FOLDER_SHARES_SYNCED);
         mSyncBroadcastReceiver = new SyncBroadcastReceiver();
-        registerReceiver(mSyncBroadcastReceiver, syncIntentFilter);
+        SyncEventBus.getInstance().register(FolderSyncEvent.class, mSyncBroadcastReceiver);
     }
 
     @Override
@@ -207,8 +189,6 @@ public class Uploader extends FileActivity
         outState.putParcelable(KEY_FILE, mFile);
         outState.putBoolean(KEY_ACCOUNT_SELECTED, mAccountSelected);
         outState.putBoolean(KEY_ACCOUNT_SELECTION_SHOWING, mAccountSelectionShowing);
-        outState.putInt(KEY_NUM_CACHE_FILE, mNumCacheFile);
-        outState.putStringArrayList(KEY_REMOTE_CACHE_DATA, mRemoteCacheData);
         outState.putParcelable(FileActivity.EXTRA_ACCOUNT, getAccount());
 
         Log_OC.d(TAG, "onSaveInstanceState() end");
@@ -217,7 +197,7 @@ public class Uploader extends FileActivity
     @Override
     protected void onDestroy(){
         if (mSyncBroadcastReceiver != null) {
-            unregisterReceiver(mSyncBroadcastReceiver);
+            SyncEventBus.getInstance().unregister(mSyncBroadcastReceiver);
         }
         super.onDestroy();
     }
@@ -515,9 +495,11 @@ public class Uploader extends FileActivity
     public void uploadFiles() {
         try {
 
-            // ArrayList for files with path in external storage
+            // ArrayList for files with path in external storage, or content:// URIs of
+            // contents to stream from their providers
             ArrayList<String> local = new ArrayList<String>();
             ArrayList<String> remote = new ArrayList<String>();
+            ArrayList<Uri> streamedUris = new ArrayList<Uri>();
             
             // this checks the mimeType 
             for (Parcelable mStream : mStreamsToUpload) {
@@ -529,52 +511,47 @@ public class Uploader extends FileActivity
                 if (uri != null) {
                     if (uri.getScheme().equals("content")) {
                        String mimeType = getContentResolver().getType(uri);
+                       if (mimeType == null) {
+                           mimeType = "";
+                       }
 
+                       String dataColumn = null, nameColumn = null;
                        if (mimeType.contains("image")) {
-                           String[] CONTENT_PROJECTION = { Images.Media.DATA, Images.Media.DISPLAY_NAME,
-                                                           Images.Media.MIME_TYPE, Images.Media.SIZE};
-                           Cursor c = getContentResolver().query(uri, CONTENT_PROJECTION, null, null, null);
-                           c.moveToFirst();
-                           int index = c.getColumnIndex(Images.Media.DATA);
-                           data = c.getString(index);
-                           local.add(data);
-                           remote.add(mUploadPath + c.getString(c.getColumnIndex(Images.Media.DISPLAY_NAME)));
-
+                           dataColumn = Images.Media.DATA;
+                           nameColumn = Images.Media.DISPLAY_NAME;
                        }
                        else if (mimeType.contains("video")) {
-                           String[] CONTENT_PROJECTION = { Video.Media.DATA, Video.Media.DISPLAY_NAME,
-                                                           Video.Media.MIME_TYPE, Video.Media.SIZE,
-                                                           Video.Media.DATE_MODIFIED };
-                           Cursor c = getContentResolver().query(uri, CONTENT_PROJECTION, null, null, null);
-                           c.moveToFirst();
-                           int index = c.getColumnIndex(Video.Media.DATA);
-                           data = c.getString(index);
-                           local.add(data);
-                           remote.add(mUploadPath + c.getString(c.getColumnIndex(Video.Media.DISPLAY_NAME)));
-
+                           dataColumn = Video.Media.DATA;
+                           nameColumn = Video.Media.DISPLAY_NAME;
                        }
                        else if (mimeType.contains("audio")) {
-                           String[] CONTENT_PROJECTION = { Audio.Media.DATA, Audio.Media.DISPLAY_NAME,
-                                                           Audio.Media.MIME_TYPE, Audio.Media.SIZE };
-                           Cursor c = getContentResolver().query(uri, CONTENT_PROJECTION, null, null, null);
-                           c.moveToFirst();
-                           int index = c.getColumnIndex(Audio.Media.DATA);
-                           data = c.getString(index);
-                           local.add(data);
-                           remote.add(mUploadPath + c.getString(c.getColumnIndex(Audio.Media.DISPLAY_NAME)));
-
+                           dataColumn = Audio.Media.DATA;
+                           nameColumn = Audio.Media.DISPLAY_NAME;
                        }
-                       else {
-                           filePath = Uri.decode(uri.toString()).replace(uri.getScheme() + "://", "");
-                           // cut everything whats before mnt. It occured to me that sometimes apps send
-                           // their name into the URI
-                           if (filePath.contains("mnt")) {
-                              String splitedFilePath[] = filePath.split("/mnt");
-                              filePath = splitedFilePath[1];
+                       if (dataColumn != null) {
+                           String[] CONTENT_PROJECTION = { dataColumn, nameColumn };
+                           Cursor c = getContentResolver().query(uri, CONTENT_PROJECTION, null, null, null);
+                           try {
+                               if (c != null && c.moveToFirst()) {
+                                   data = c.getString(c.getColumnIndex(dataColumn));
+                                   filePath = c.getString(c.getColumnIndex(nameColumn));
+                               }
+                           } catch (RuntimeException e) {
+                               Log_OC.w(TAG, "Could not read media columns of " + uri);
+                           } finally {
+                               if (c != null) {
+                                   c.close();
+                               }
                            }
-                           final File file = new File(filePath);
-                           local.add(file.getAbsolutePath());
-                           remote.add(mUploadPath + file.getName());
+                       }
+                       if (data == null || !new File(data).canRead()) {
+                           // not a readable file; stream the content from its provider
+                           data = uri.toString();
+                           filePath = UriUtils.getDisplayName(this, uri);
+                           takeReadPermission(uri);
+                           streamedUris.add(uri);
+                       } else if (filePath == null) {
+                           filePath = new File(data).getName();
                        }
                     } else if (uri.getScheme().equals("file")) {
                         filePath = Uri.decode(uri.toString()).replace(uri.getScheme() +
@@ -585,41 +562,35 @@ public class Uploader extends FileActivity
                         }
                         final File file = new File(filePath);
                         data = file.getAbsolutePath();
-                        filePath = mUploadPath + file.getName();
+                        filePath = file.getName();
                     }
                     else {
                         throw new SecurityException();
                     }
-                    if (data == null) {
-                        mRemoteCacheData.add(filePath);
-                        CopyTmpFileAsyncTask copyTask = new CopyTmpFileAsyncTask(this);
-                        Object[] params = {uri, filePath, mRemoteCacheData.size() - 1,
-                                getAccount().name, getContentResolver()};
-                        mNumCacheFile++;
-                        showWaitingCopyDialog();
-                        copyTask.execute(params);
-                    }
+                    local.add(data);
+                    remote.add(mUploadPath + filePath);
                 }
                 else {
                     throw new SecurityException();
                 }
+            }
 
-                Intent intent = new Intent(getApplicationContext(), FileUploader.class);
-                intent.putExtra(FileUploader.KEY_UPLOAD_TYPE, FileUploader.UPLOAD_MULTIPLE_FILES);
-                intent.putExtra(FileUploader.KEY_LOCAL_FILE, local.toArray(new String[local.size()]));
-                intent.putExtra(FileUploader.KEY_REMOTE_FILE,
-                        remote.toArray(new String[remote.size()]));
-                intent.putExtra(FileUploader.KEY_ACCOUNT, getAccount());
-                startService(intent);
+            Intent intent = new Intent(getApplicationContext(), FileUploader.class);
+            intent.putExtra(FileUploader.KEY_UPLOAD_TYPE, FileUploader.UPLOAD_MULTIPLE_FILES);
+            intent.putExtra(FileUploader.KEY_LOCAL_FILE, local.toArray(new String[local.size()]));
+            intent.putExtra(FileUploader.KEY_REMOTE_FILE,
+                    remote.toArray(new String[remote.size()]));
+            intent.putExtra(FileUploader.KEY_ACCOUNT, getAccount());
+            grantReadPermission(intent, streamedUris);
+            startService(intent);
 
-                //Save the path to shared preferences
-                SharedPreferences.Editor appPrefs = PreferenceManager
-                        .getDefaultSharedPreferences(getApplicationContext()).edit();
-                appPrefs.putString("last_upload_path", mUploadPath);
-                appPrefs.apply();
+            //Save the path to shared preferences
+            SharedPreferences.Editor appPrefs = PreferenceManager
+                    .getDefaultSharedPreferences(getApplicationContext()).edit();
+            appPrefs.putString("last_upload_path", mUploadPath);
+            appPrefs.apply();
 
-                finish();
-            }
+            finish();
             
         } catch (SecurityException e) {
             String message = String.format(getString(R.string.uploader_error_forbidden_content),
@@ -627,6 +598,45 @@ public class Uploader extends FileActivity
             Toast.makeText(this, message, Toast.LENGTH_LONG).show();            
         }
     }
+
+    /**
+     * Passes the permission to read shared contents to the uploader service, so that it's kept
+     * while the service is running, after this activity is finished.
+     *
+     * @param intent    Intent starting the uploader service.
+     * @param uris      content:// URIs of the shared contents to read from the service.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void grantReadPermission(Intent intent, List<Uri> uris) {
+        if (uris.isEmpty() || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        ClipData clipData = ClipData.newRawUri(null, uris.get(0));
+        for (int i = 1; i < uris.size(); i++) {
+            clipData.addItem(new ClipData.Item(uris.get(i)));
+        }
+        intent.setClipData(clipData);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+    }
+
+    /**
+     * Keeps the permission to read a shared content after the app is restarted, if the
+     * app sharing it allowed that.
+     *
+     * @param uri       content:// URI of the shared content.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private void takeReadPermission(Uri uri) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT &&
+                (getIntent().getFlags() & Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION) != 0) {
+            try {
+                getContentResolver().takePersistableUriPermission(uri,
+                        Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            } catch (SecurityException e) {
+                Log_OC.d(TAG, "No persistable permission granted for " + uri);
+            }
+        }
+    }
     
     @Override
     public void onRemoteOperationFinish(RemoteOperation operation, RemoteOperationResult result) {
@@ -743,22 +753,23 @@ public class Uploader extends FileActivity
         startSyncFolderOperation(root);
     }
     
-    private class SyncBroadcastReceiver extends BroadcastReceiver {
+    private class SyncBroadcastReceiver implements SyncEventBus.Listener<FolderSyncEvent> {
 
         /**
-         * {@link BroadcastReceiver} to enable syncing feedback in UI
+         * Listener of {@link FolderSyncEvent}s to enable syncing feedback in UI
          */
         @Override
-        public void onReceive(Context context, Intent intent) {
+        public void onEvent(FolderSyncEvent syncEvent) {
+            String event = syncEvent.getType();
+            if (!RefreshFolderOperation.EVENT_SINGLE_FOLDER_CONTENTS_SYNCED.equals(event) &&
+                    !RefreshFolderOperation.EVENT_SINGLE_FOLDER_SHARES_SYNCED.equals(event)) {
+                return;
+            }
             try {
-                String event = intent.getAction();
-                Log_OC.d(TAG, "Received broadcast " + event);
-                String accountName = intent.getStringExtra(FileSyncAdapter.EXTRA_ACCOUNT_NAME);
-                String synchFolderRemotePath =
-                        intent.getStringExtra(FileSyncAdapter.EXTRA_FOLDER_PATH);
-                RemoteOperationResult synchResult =
-                        (RemoteOperationResult) intent.getSerializableExtra(
-                                FileSyncAdapter.EXTRA_RESULT);
+                Log_OC.d(TAG, "Received event " + event);
+                String accountName = syncEvent.getAccountName();
+                String synchFolderRemotePath = syncEvent.getRemotePath();
+                RemoteOperationResult synchResult = syncEvent.getResult();
                 boolean sameAccount = (getAccount() != null &&
                         accountName.equals(getAccount().name) && getStorageManager() != null);
 
@@ -775,7 +786,7 @@ public class Uploader extends FileActivity
 
                         if (currentDir == null) {
                             // current folder was removed from the server 
-                            Toast.makeText(context,
+                            Toast.makeText(Uploader.this,
                                     String.format(
                                             getString(R.string.sync_current_folder_was_removed),
                                             getCurrentFolder().getFileName()),
@@ -808,68 +819,17 @@ public class Uploader extends FileActivity
                                         (synchResult.isException() && synchResult.getException()
                                                 instanceof AuthenticatorException))) {
 
-                            requestCredentialsUpdate(context);
+                            requestCredentialsUpdate(Uploader.this);
                         }
                     }
-                    removeStickyBroadcast(intent);
+                    SyncEventBus.getInstance().removeStickyEvent(syncEvent);
                     Log_OC.d(TAG, "Setting progress visibility to " + mSyncInProgress);
 
                 }
             } catch (RuntimeException e) {
-                // avoid app crashes after changing the serial id of RemoteOperationResult 
-                // in owncloud library with broadcast notifications pending to process
-                removeStickyBroadcast(intent);
+                Log_OC.e(TAG, "Error processing synchronization event " + syncEvent, e);
+                SyncEventBus.getInstance().removeStickyEvent(syncEvent);
             }
         }
     }
-    /**
-     * Process the result of CopyTmpFileAsyncTask
-     * @param result
-     * @param index
-     */
-    @Override
-    public void onTmpFileCopied(String result, int index) {
-        if (mNumCacheFile -- == 0) {
-            dismissWaitingCopyDialog();
-        }
-        if (result != null) {
-            Intent intent = new Intent(getApplicationContext(), FileUploader.class);
-            intent.putExtra(FileUploader.KEY_UPLOAD_TYPE, FileUploader.UPLOAD_SINGLE_FILE);
-            intent.putExtra(FileUploader.KEY_LOCAL_FILE, result);
-            intent.putExtra(FileUploader.KEY_REMOTE_FILE, mRemoteCacheData.get(index));
-            intent.putExtra(FileUploader.KEY_ACCOUNT, getAccount());
-            startService(intent);
-
-        } else {
-            String message = String.format(getString(R.string.uploader_error_forbidden_content),
-                    getString(R.string.app_name));
-            Toast.makeText(this, message, Toast.LENGTH_LONG).show();
-            Log_OC.d(TAG, message);
-        }
-    }
-
-    /**
-     * Show waiting for copy dialog
-     */
-    public void showWaitingCopyDialog() {
-        // Construct dialog
-        LoadingDialog loading = new LoadingDialog(
-                getResources().getString(R.string.wait_for_tmp_copy_from_private_storage));
-        FragmentManager fm = getSupportFragmentManager();
-        FragmentTransaction ft = fm.beginTransaction();
-        loading.show(ft, DIALOG_WAIT_COPY_FILE);
-
-    }
-
-
-    /**
-     * Dismiss waiting for copy dialog
-     */
-    public void dismissWaitingCopyDialog(){
-        Fragment frag = getSupportFragmentManager().findFragmentByTag(DIALOG_WAIT_COPY_FILE);
-        if (frag != null) {
-            LoadingDialog loading = (LoadingDialog) frag;
-            loading.dismiss();
-        }
-    }
 }
@@ -132,6 +132,11 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
         return mFiles.get(position).getFileId();
     }
 
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
     @Override
     public int getItemViewType(int position) {
         return 0;
@@ -417,6 +422,77 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
     }
     
 
+    /**
+     * Reloads the contents of the adapted directory from the local database after it was
+     * revalidated against the server, applying only the differences.
+     *
+     * Rows not changed keep their current instances, and views are not refreshed at all if
+     * no row changed, so the list doesn't jump when a refresh brings nothing new.
+     *
+     * @param directory     Fresh data of the adapted directory. If it's not the adapted one,
+     *                      the call is equivalent to {@link #swapDirectory(OCFile,
+     *                      FileDataStorageManager)}.
+     * @return              'True' if any change was applied.
+     */
+    public boolean revalidateDirectory(OCFile directory) {
+        if (mFile == null || directory == null || mStorageManager == null || mFiles == null ||
+                !mFile.getRemotePath().equals(directory.getRemotePath())) {
+            swapDirectory(directory, null);
+            return true;
+        }
+        mFile = directory;
+
+        Vector<OCFile> freshFiles = mStorageManager.getFolderContent(mFile);
+        Vector<OCFile> freshFilesOrig = new Vector<OCFile>(freshFiles);
+        if (mJustFolders) {
+            freshFiles = getFolders(freshFiles);
+        }
+        freshFiles = FileStorageUtils.sortFolder(freshFiles);
+
+        boolean changed = (freshFiles.size() != mFiles.size());
+        for (int i = 0; i < freshFiles.size(); i++) {
+            if (i < mFiles.size() && isSameRow(mFiles.get(i), freshFiles.get(i))) {
+                freshFiles.set(i, mFiles.get(i));
+            } else {
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            mFiles = freshFiles;
+            mFilesOrig.clear();
+            mFilesOrig.addAll(freshFilesOrig);
+            notifyDataSetChanged();
+        }
+        return changed;
+    }
+
+
+    /**
+     * Compares the data shown in a row for two versions of the same file.
+     */
+    private static boolean isSameRow(OCFile oldFile, OCFile newFile) {
+        return (oldFile.getFileId() == newFile.getFileId() &&
+                oldFile.getRemotePath().equals(newFile.getRemotePath()) &&
+                oldFile.getModificationTimestamp() == newFile.getModificationTimestamp() &&
+                oldFile.getFileLength() == newFile.getFileLength() &&
+                oldFile.isDown() == newFile.isDown() &&
+                oldFile.isFavorite() == newFile.isFavorite() &&
+                oldFile.isSharedViaLink() == newFile.isSharedViaLink() &&
+                oldFile.isSharedWithSharee() == newFile.isSharedWithSharee() &&
+                oldFile.needsUpdateThumbnail() == newFile.needsUpdateThumbnail() &&
+                equalsOrBothNull(oldFile.getEtag(), newFile.getEtag()) &&
+                equalsOrBothNull(oldFile.getEtagInConflict(), newFile.getEtagInConflict()) &&
+                equalsOrBothNull(oldFile.getMimetype(), newFile.getMimetype())
+        );
+    }
+
+
+    private static boolean equalsOrBothNull(String a, String b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+    
+
     /**
      * Filter for getting only the folders
      * @param files
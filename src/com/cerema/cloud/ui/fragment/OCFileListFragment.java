@@ -689,6 +689,29 @@ public class OCFileListFragment extends ExtendedListFragment
         }
     }
 
+    /**
+     * Applies to the view the changes in the current directory found by a refresh in
+     * background, keeping the rows not changed as they are.
+     *
+     * The cached contents of a directory are listed as soon as it's browsed, and revalidated
+     * later against the server; see {@link #listDirectory(OCFile)}.
+     */
+    public void revalidateDirectory() {
+        FileDataStorageManager storageManager = mContainerActivity.getStorageManager();
+        if (storageManager == null || mFile == null) {
+            listDirectory();
+            return;
+        }
+        OCFile freshDirectory = storageManager.getFileByPath(mFile.getRemotePath());
+        if (freshDirectory == null) {
+            return;     // removed in the server; the container activity will move away
+        }
+        mFile = freshDirectory;
+        if (mAdapter.revalidateDirectory(freshDirectory)) {
+            updateLayout();
+        }
+    }
+
     private void updateLayout() {
         if (!mJustFolders) {
             int filesCount = 0, foldersCount = 0, imagesCount = 0;
@@ -20,11 +20,9 @@
 package com.cerema.cloud.ui.preview;
 
 import android.annotation.SuppressLint;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Build;
 import android.os.Bundle;
@@ -44,6 +42,8 @@ import com.cerema.cloud.R;
 import com.cerema.cloud.authentication.AccountUtils;
 import com.cerema.cloud.datamodel.FileDataStorageManager;
 import com.cerema.cloud.datamodel.OCFile;
+import com.cerema.cloud.events.SyncEventBus;
+import com.cerema.cloud.events.TransferEvent;
 import com.cerema.cloud.files.services.FileDownloader;
 import com.cerema.cloud.files.services.FileDownloader.FileDownloaderBinder;
 import com.cerema.cloud.files.services.FileUploader;
@@ -324,10 +324,7 @@ public class PreviewImageActivity extends FileActivity implements
         super.onResume();
 
         mDownloadFinishReceiver = new DownloadFinishReceiver();
-        
-        IntentFilter filter = new IntentFilter(FileDownloader.getDownloadFinishMessage());
-        filter.addAction(FileDownloader.getDownloadAddedMessage());
-        registerReceiver(mDownloadFinishReceiver, filter);
+        SyncEventBus.getInstance().register(TransferEvent.class, mDownloadFinishReceiver);
     }
 
     @Override
@@ -338,7 +335,7 @@ public class PreviewImageActivity extends FileActivity implements
     @Override
     public void onPause() {
         if (mDownloadFinishReceiver != null){
-            unregisterReceiver(mDownloadFinishReceiver);
+            SyncEventBus.getInstance().unregister(mDownloadFinishReceiver);
             mDownloadFinishReceiver = null;
         }
         
@@ -367,10 +364,12 @@ public class PreviewImageActivity extends FileActivity implements
         if (mDownloaderBinder == null) {
             Log_OC.d(TAG, "requestForDownload called without binder to download service");
             
-        } else if (!mDownloaderBinder.isDownloading(getAccount(), file)) {
+        } else {
+            // requested even if already waiting in the queue, to move it ahead of the rest
             Intent i = new Intent(this, FileDownloader.class);
             i.putExtra(FileDownloader.EXTRA_ACCOUNT, getAccount());
             i.putExtra(FileDownloader.EXTRA_FILE, file);
+            i.putExtra(FileDownloader.EXTRA_FOREGROUND, true);
             startService(i);
         }
     }
@@ -432,28 +431,31 @@ public class PreviewImageActivity extends FileActivity implements
     
 
     /**
-     * Class waiting for broadcast events from the {@link FileDownloader} service.
+     * Class waiting for events from the {@link FileDownloader} service.
      * 
      * Updates the UI when a download is started or finished, provided that it is relevant for the
      * folder displayed in the gallery.
      */
-    private class DownloadFinishReceiver extends BroadcastReceiver {
+    private class DownloadFinishReceiver implements SyncEventBus.Listener<TransferEvent> {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            String accountName = intent.getStringExtra(FileDownloader.ACCOUNT_NAME);
-            String downloadedRemotePath = intent.getStringExtra(FileDownloader.EXTRA_REMOTE_PATH);
+        public void onEvent(TransferEvent event) {
+            if (!FileDownloader.getDownloadAddedMessage().equals(event.getType()) &&
+                    !FileDownloader.getDownloadFinishMessage().equals(event.getType())) {
+                return;
+            }
+            String accountName = event.getAccountName();
+            String downloadedRemotePath = event.getRemotePath();
             if (getAccount().name.equals(accountName) && 
                     downloadedRemotePath != null) {
 
                 OCFile file = getStorageManager().getFileByPath(downloadedRemotePath);
                 int position = mPreviewImagePagerAdapter.getFilePosition(file);
-                boolean downloadWasFine = intent.getBooleanExtra(
-                        FileDownloader.EXTRA_DOWNLOAD_RESULT, false);
+                boolean downloadWasFine = event.isSuccess();
                 //boolean isOffscreen =  Math.abs((mViewPager.getCurrentItem() - position))
                 // <= mViewPager.getOffscreenPageLimit();
                 
                 if (position >= 0 &&
-                        intent.getAction().equals(FileDownloader.getDownloadFinishMessage())) {
+                        event.getType().equals(FileDownloader.getDownloadFinishMessage())) {
                     if (downloadWasFine) {
                         mPreviewImagePagerAdapter.updateFile(position, file);   
                         
@@ -468,7 +470,7 @@ public class PreviewImageActivity extends FileActivity implements
                 }
                 
             }
-            removeStickyBroadcast(intent);
+            SyncEventBus.getInstance().removeStickyEvent(event);
         }
 
     }
@@ -21,8 +21,13 @@
 package com.cerema.cloud.utils;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Vector;
 
 import third_parties.daveKoeller.AlphanumComparator;
@@ -30,6 +35,7 @@ import third_parties.daveKoeller.AlphanumComparator;
 import com.cerema.cloud.MainApp;
 import com.cerema.cloud.R;
 import com.cerema.cloud.datamodel.OCFile;
+import com.cerema.cloud.lib.common.utils.Log_OC;
 import com.cerema.cloud.lib.resources.files.RemoteFile;
 
 import android.accounts.Account;
@@ -38,8 +44,11 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Environment;
 import android.os.StatFs;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.webkit.MimeTypeMap;
 
 
@@ -114,6 +123,27 @@ public class FileStorageUtils {
         parentPath = parentPath.endsWith(OCFile.PATH_SEPARATOR) ? parentPath : parentPath + OCFile.PATH_SEPARATOR;
         return parentPath;
     }
+
+    /**
+     * Finds the deepest folder containing all the given remote paths.
+     *
+     * @param remotePaths   Remote paths of files or folders; folders end with a separator.
+     * @return              Remote path of the common folder, ending with a separator.
+     */
+    public static String getCommonFolder(List<String> remotePaths) {
+        String common = null;
+        for (String path : remotePaths) {
+            String parent = path.endsWith(OCFile.PATH_SEPARATOR) ? path : getParentPath(path);
+            if (common == null) {
+                common = parent;
+            } else {
+                while (!parent.startsWith(common)) {
+                    common = getParentPath(common);
+                }
+            }
+        }
+        return (common == null) ? OCFile.ROOT_PATH : common;
+    }
     
     /**
      * Creates and populates a new {@link OCFile} object with the data read from the server.
@@ -330,4 +360,94 @@ public class FileStorageUtils {
         }
     }
 
+
+    /**
+     * Copies a file with channel transfers, without buffers in the heap of the app.
+     *
+     * @param source    File to copy.
+     * @param target    Path of the copy; replaced if it exists.
+     * @return          'True' if the file was copied.
+     */
+    public static boolean copyFile(File source, File target) {
+        FileChannel in = null;
+        FileChannel out = null;
+        try {
+            in = new FileInputStream(source).getChannel();
+            out = new FileOutputStream(target).getChannel();
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                // transferTo may transfer less bytes than requested, or none if the source shrank
+                long transferred = in.transferTo(position, size - position, out);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+            }
+            if (position < size) {
+                Log_OC.e("FileStorageUtils", "Copy of " + source + " to " + target +
+                        " incomplete: " + position + " of " + size + " bytes");
+                out.close();
+                out = null;
+                target.delete();
+                return false;
+            }
+            return true;
+
+        } catch (IOException e) {
+            Log_OC.e("FileStorageUtils", "Copy of " + source + " to " + target + " failed", e);
+            target.delete();
+            return false;
+
+        } finally {
+            try {
+                if (in != null) in.close();
+                if (out != null) out.close();
+            } catch (IOException e) {
+                Log_OC.d("FileStorageUtils", "Weird exception while closing " + target +
+                        " (ignoring)", e);
+            }
+        }
+    }
+
+    /**
+     * Moves a file, copying it and removing the source if it can't be renamed.
+     *
+     * @param source    File to move.
+     * @param target    New path for the file.
+     * @return          'True' if the file was moved.
+     */
+    public static boolean moveFile(File source, File target) {
+        if (source.renameTo(target)) {
+            return true;
+        }
+        if (copyFile(source, target)) {
+            source.delete();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Makes a file available in a second path: with a hard link when the file system allows it,
+     * or with a copy otherwise.
+     *
+     * @param source    File to link.
+     * @param target    New path for the file.
+     * @return          'True' if the file is available in target.
+     */
+    @SuppressLint("NewApi")
+    public static boolean linkOrCopyFile(File source, File target) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                target.delete();
+                Os.link(source.getAbsolutePath(), target.getAbsolutePath());
+                return true;
+            } catch (ErrnoException e) {
+                // hard links not supported by the file system (as in emulated storage); copy
+            }
+        }
+        return copyFile(source, target);
+    }
+
 }
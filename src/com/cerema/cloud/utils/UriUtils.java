@@ -22,6 +22,9 @@ package com.cerema.cloud.utils;
 import android.annotation.TargetApi;
 import android.content.ContentUris;
 import android.content.Context;
+import android.content.Intent;
+import android.content.UriPermission;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
@@ -34,6 +37,7 @@ import com.cerema.cloud.MainApp;
 import com.cerema.cloud.lib.common.utils.Log_OC;
 
 import java.io.File;
+import java.io.IOException;
 
 
 /**
@@ -76,6 +80,128 @@ public class UriUtils {
         return null;
     }
 
+    /**
+     * Gets the name of the content referred by a content:// URI, as published by its provider.
+     *
+     * @param context   The context.
+     * @param uri       The Uri to query.
+     * @return          Display name of the content, or the last segment of the URI if the
+     *                  provider doesn't publish it.
+     */
+    public static String getDisplayName(Context context, Uri uri) {
+        String displayName = null;
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(
+                    uri, new String[]{ OpenableColumns.DISPLAY_NAME }, null, null, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                displayName = cursor.getString(
+                        cursor.getColumnIndexOrThrow(OpenableColumns.DISPLAY_NAME));
+            }
+        } catch (Exception e) {
+            Log_OC.w(TAG, "Could not read display name of " + uri + ": " + e.getMessage());
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        if (displayName == null || displayName.length() == 0) {
+            displayName = uri.getLastPathSegment();
+        }
+        if (displayName != null) {
+            displayName = displayName.replace(File.separatorChar, '_');
+        }
+        return displayName;
+    }
+
+    /**
+     * Gets the size of the content referred by a content:// URI, without reading it.
+     *
+     * @param context   The context.
+     * @param uri       The Uri to query.
+     * @return          Size of the content in bytes, or -1 if unknown.
+     */
+    public static long getContentLength(Context context, Uri uri) {
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(
+                    uri, new String[]{ OpenableColumns.SIZE }, null, null, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                int index = cursor.getColumnIndexOrThrow(OpenableColumns.SIZE);
+                if (!cursor.isNull(index)) {
+                    return cursor.getLong(index);
+                }
+            }
+        } catch (Exception e) {
+            Log_OC.w(TAG, "Could not read size of " + uri + ": " + e.getMessage());
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+
+        // providers not publishing the size may still open a file descriptor with a known length
+        AssetFileDescriptor fd = null;
+        try {
+            fd = context.getContentResolver().openAssetFileDescriptor(uri, "r");
+            if (fd != null) {
+                return fd.getLength();  // AssetFileDescriptor.UNKNOWN_LENGTH is -1
+            }
+        } catch (Exception e) {
+            Log_OC.w(TAG, "Could not open descriptor of " + uri + ": " + e.getMessage());
+        } finally {
+            if (fd != null) {
+                try {
+                    fd.close();
+                } catch (IOException e) {
+                    Log_OC.d(TAG, "Weird exception while closing descriptor of " + uri +
+                            " (ignoring)", e);
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Tells if the app keeps the permission to read a content:// URI after being restarted.
+     *
+     * @param context   The context.
+     * @param uri       The Uri to check.
+     * @return          'True' if a persistable read permission was taken on the Uri.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public static boolean hasPersistedReadPermission(Context context, Uri uri) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return false;
+        }
+        for (UriPermission permission :
+                context.getContentResolver().getPersistedUriPermissions()) {
+            if (permission.isReadPermission() && permission.getUri().equals(uri)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gives back the persistable permission to read a content:// URI, if it was taken.
+     *
+     * The system keeps a limited number of them per app, so they have to be released as
+     * soon as the content is not needed anymore.
+     *
+     * @param context   The context.
+     * @param uri       The Uri not needed anymore.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public static void releaseReadPermission(Context context, Uri uri) {
+        if (hasPersistedReadPermission(context, uri)) {
+            try {
+                context.getContentResolver().releasePersistableUriPermission(uri,
+                        Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            } catch (SecurityException e) {
+                Log_OC.d(TAG, "Persistable permission already released for " + uri);
+            }
+        }
+    }
+
     /**
      * @param uri The Uri to check.
      * @return Whether the Uri authority is ExternalStorageProvider.
@@ -0,0 +1,170 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.owncloud.android.test;
+
+import com.cerema.cloud.operations.ChunkSizeEstimator;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Uploads in chunks to a local server simulating different networks, with chunk sizes fixed
+ * and estimated by {@link ChunkSizeEstimator}.
+ */
+public class ChunkSizeEstimatorBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = ChunkSizeEstimatorBenchmarkTest.class.getSimpleName();
+
+    private static final int MAX_ATTEMPTS = 500;
+
+    private TestHttpServer mServer;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mServer != null) {
+            mServer.shutdown();
+        }
+        super.tearDown();
+    }
+
+    public void testChunksGrowInFastNetwork() throws Exception {
+        mServer = new TestHttpServer(new UploadTestHandler(100, 16 * 1024 * 1024, 0, 1));
+        long total = 24 * 1024 * 1024;
+
+        long fixed = upload(total, null, ChunkSizeEstimator.DEFAULT_CHUNK_SIZE);
+        ChunkSizeEstimator estimator = newEstimator();
+        long adaptive = upload(total, estimator, 0);
+
+        Log.i(TAG, "Fast network: " + fixed + " ms with fixed chunks, " + adaptive +
+                " ms with estimated chunks; final chunk size " + estimator.getChunkSize());
+        assertTrue(estimator.getChunkSize() > ChunkSizeEstimator.DEFAULT_CHUNK_SIZE);
+    }
+
+    public void testChunksShrinkInLossyNetwork() throws Exception {
+        mServer = new TestHttpServer(new UploadTestHandler(50, 2 * 1024 * 1024, 0.08, 1));
+        long total = 2 * 1024 * 1024;
+
+        long fixed = upload(total, null, ChunkSizeEstimator.DEFAULT_CHUNK_SIZE);
+        ChunkSizeEstimator estimator = newEstimator();
+        long adaptive = upload(total, estimator, 0);
+
+        Log.i(TAG, "Lossy network: " + fixed + " ms with fixed chunks, " + adaptive +
+                " ms with estimated chunks; final chunk size " + estimator.getChunkSize());
+        assertTrue(estimator.getChunkSize() < ChunkSizeEstimator.DEFAULT_CHUNK_SIZE);
+    }
+
+    public void testChunkSizeStaysInBounds() {
+        ChunkSizeEstimator estimator = new ChunkSizeEstimator(1024 * 1024, 512 * 1024,
+                2 * 1024 * 1024);
+        for (int i = 0; i < 20; i++) {
+            estimator.onChunkSent(estimator.getChunkSize(), 1);     // extremely fast
+        }
+        assertEquals(2 * 1024 * 1024, estimator.getChunkSize());
+        for (int i = 0; i < 20; i++) {
+            estimator.onChunkFailed(estimator.getChunkSize());
+        }
+        assertEquals(512 * 1024, estimator.getChunkSize());
+    }
+
+    public void testChunkSizeFollowsThroughput() {
+        ChunkSizeEstimator estimator = newEstimator();
+        long bytesPerSecond = 1024 * 1024;
+        for (int i = 0; i < 30; i++) {
+            long size = estimator.getChunkSize();
+            estimator.onChunkSent(size, size * 1000 / bytesPerSecond);
+        }
+        long expected = bytesPerSecond * ChunkSizeEstimator.TARGET_CHUNK_TIME_MS / 1000;
+        assertTrue("Chunk size " + estimator.getChunkSize() + " far from " + expected,
+                Math.abs(estimator.getChunkSize() - expected) <= expected / 10);
+    }
+
+
+    private static ChunkSizeEstimator newEstimator() {
+        return new ChunkSizeEstimator(ChunkSizeEstimator.DEFAULT_CHUNK_SIZE,
+                ChunkSizeEstimator.DEFAULT_MIN_CHUNK_SIZE,
+                ChunkSizeEstimator.DEFAULT_MAX_CHUNK_SIZE);
+    }
+
+
+    /**
+     * Uploads 'total' bytes in chunks, retrying failed chunks.
+     *
+     * @param estimator     Estimator of chunk sizes, or null to use a fixed size.
+     * @param fixedSize     Chunk size used when estimator is null.
+     * @return              Time spent, in milliseconds.
+     */
+    private long upload(long total, ChunkSizeEstimator estimator, long fixedSize)
+            throws Exception {
+        long start = System.currentTimeMillis();
+        long sent = 0;
+        int attempts = 0;
+        int index = 0;
+        while (sent < total) {
+            assertTrue("Too many attempts", ++attempts < MAX_ATTEMPTS);
+            long size = Math.min(total - sent,
+                    (estimator != null) ? estimator.getChunkSize() : fixedSize);
+            long chunkStart = System.currentTimeMillis();
+            if (sendChunk(mServer.getUrl("/file-chunking-1-" + index), (int) size)) {
+                if (estimator != null) {
+                    estimator.onChunkSent(size, System.currentTimeMillis() - chunkStart);
+                }
+                sent += size;
+                index++;
+            } else if (estimator != null) {
+                estimator.onChunkFailed(size);
+            }
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+
+    private static boolean sendChunk(String url, int size) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestMethod("PUT");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(size);
+            OutputStream out = connection.getOutputStream();
+            byte[] buffer = new byte[16 * 1024];
+            int written = 0;
+            while (written < size) {
+                int count = Math.min(buffer.length, size - written);
+                out.write(buffer, 0, count);
+                written += count;
+            }
+            out.close();
+            return connection.getResponseCode() == 201;
+
+        } catch (IOException e) {
+            return false;
+
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+}
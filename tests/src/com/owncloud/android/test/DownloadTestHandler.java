@@ -0,0 +1,81 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.owncloud.android.test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handler for a {@link TestHttpServer} standing in for a file server, for tests of transfers.
+ *
+ * Answers every GET with the same body of fixed size after an injected latency. Counts the
+ * requests served at the same time.
+ */
+public class DownloadTestHandler implements TestHttpServer.Handler {
+
+    private final long mLatencyMs;
+    private final byte[] mBody;
+    private final AtomicInteger mInProgress = new AtomicInteger(0);
+    private final AtomicInteger mMaxInProgress = new AtomicInteger(0);
+
+
+    /**
+     * @param latencyMs     Time to wait before answering every request.
+     * @param bodySize      Size of the body of every response, in bytes.
+     */
+    public DownloadTestHandler(long latencyMs, int bodySize) {
+        mLatencyMs = latencyMs;
+        mBody = new byte[bodySize];
+        for (int i = 0; i < bodySize; i++) {
+            mBody[i] = (byte) i;
+        }
+    }
+
+
+    public byte[] getBody() {
+        return mBody;
+    }
+
+    /**
+     * @return  Max number of requests served at the same time so far.
+     */
+    public int getMaxInProgress() {
+        return mMaxInProgress.get();
+    }
+
+
+    @Override
+    public void handle(TestHttpServer.Request request, OutputStream out)
+            throws IOException, InterruptedException {
+        int inProgress = mInProgress.incrementAndGet();
+        try {
+            int max;
+            while (inProgress > (max = mMaxInProgress.get()) &&
+                    !mMaxInProgress.compareAndSet(max, inProgress)) {
+                // retry
+            }
+            Thread.sleep(mLatencyMs);
+            TestHttpServer.respond(out, 200, "OK", "application/octet-stream", mBody);
+        } finally {
+            mInProgress.decrementAndGet();
+        }
+    }
+
+}
@@ -0,0 +1,336 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.owncloud.android.test;
+
+import com.cerema.cloud.files.services.IndexedForest;
+
+import android.accounts.Account;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import android.util.Pair;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Compares {@link IndexedForest} with the previous implementation, a map of string keys, under
+ * a workload mixing the checks done by the list of files for every visible row with the
+ * changes done by the transfer services.
+ */
+public class IndexedForestBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = IndexedForestBenchmarkTest.class.getSimpleName();
+
+    private static final Account ACCOUNT = new Account("user@server.example/cloud", "owncloud");
+    private static final Account OTHER_ACCOUNT = new Account("other@server.example", "owncloud");
+
+    private static final int FOLDERS = 50;
+    private static final int FILES_PER_FOLDER = 40;
+    private static final int DEPTH = 4;
+    private static final int OPERATIONS = 200000;
+    private static final long SEED = 42;
+
+    private List<String> mFolders;
+    private List<String> mFiles;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFolders = new ArrayList<String>();
+        mFiles = new ArrayList<String>();
+        for (int i = 0; i < FOLDERS; i++) {
+            String folder = "/";
+            for (int d = 0; d < DEPTH; d++) {
+                folder += "folder" + i + "-" + d + "/";
+                mFolders.add(folder);
+            }
+            for (int f = 0; f < FILES_PER_FOLDER; f++) {
+                mFiles.add(folder + "file" + f + ".jpg");
+            }
+        }
+    }
+
+    public void testSameResultsAsMapForest() {
+        IndexedForest<String> forest = new IndexedForest<String>();
+        MapForest<String> mapForest = new MapForest<String>();
+        run(new TrieTarget(forest), OPERATIONS / 10);
+        run(new MapTarget(mapForest), OPERATIONS / 10);
+
+        for (String folder : mFolders) {
+            assertEquals(folder, mapForest.contains(ACCOUNT, folder),
+                    forest.contains(ACCOUNT, folder));
+        }
+        for (String file : mFiles) {
+            assertEquals(file, mapForest.contains(ACCOUNT, file), forest.contains(ACCOUNT, file));
+        }
+    }
+
+    public void testMixedWorkload() {
+        // warm up
+        run(new TrieTarget(new IndexedForest<String>()), OPERATIONS / 10);
+        run(new MapTarget(new MapForest<String>()), OPERATIONS / 10);
+
+        MapForest<String> mapForest = new MapForest<String>();
+        IndexedForest<String> forest = new IndexedForest<String>();
+        long map = run(new MapTarget(mapForest), OPERATIONS);
+        long trie = run(new TrieTarget(forest), OPERATIONS);
+        Log.i(TAG, OPERATIONS + " mixed operations: " + map + " ms with the map forest, " +
+                trie + " ms with the trie forest");
+
+        for (String file : mFiles) {
+            assertEquals(file, mapForest.contains(ACCOUNT, file), forest.contains(ACCOUNT, file));
+        }
+    }
+
+    public void testClearAccount() {
+        IndexedForest<String> forest = new IndexedForest<String>();
+        MapForest<String> mapForest = new MapForest<String>();
+        for (String file : mFiles) {
+            forest.putIfAbsent(ACCOUNT, file, file);
+            forest.putIfAbsent(OTHER_ACCOUNT, file, file);
+            mapForest.putIfAbsent(ACCOUNT, file, file);
+            mapForest.putIfAbsent(OTHER_ACCOUNT, file, file);
+        }
+
+        long start = System.nanoTime();
+        mapForest.remove(ACCOUNT);
+        long map = System.nanoTime() - start;
+        start = System.nanoTime();
+        forest.remove(ACCOUNT);
+        long trie = System.nanoTime() - start;
+        Log.i(TAG, "Clear of " + mFiles.size() + " files: " + map / 1000 + " us with the map " +
+                "forest, " + trie / 1000 + " us with the trie forest");
+
+        assertFalse(forest.contains(ACCOUNT, mFiles.get(0)));
+        assertNull(forest.get(ACCOUNT.name + mFiles.get(0)));
+        assertTrue(forest.contains(OTHER_ACCOUNT, mFiles.get(0)));
+        assertEquals(mFiles.get(0), forest.get(OTHER_ACCOUNT.name + mFiles.get(0)));
+    }
+
+    public void testRemoveKeepsFoldersWithOtherElements() {
+        IndexedForest<String> forest = new IndexedForest<String>();
+        Pair<String, String> first = forest.putIfAbsent(ACCOUNT, "/a/b/c.txt", "c");
+        assertEquals("/", first.second);
+        Pair<String, String> second = forest.putIfAbsent(ACCOUNT, "/a/d.txt", "d");
+        assertEquals("/a/", second.second);
+        assertNull(forest.putIfAbsent(ACCOUNT, "/a/d.txt", "d"));
+
+        Pair<String, String> removed = forest.removePayload(ACCOUNT, "/a/b/c.txt");
+        assertEquals("c", removed.first);
+        assertEquals("/a/", removed.second);
+        assertFalse(forest.contains(ACCOUNT, "/a/b/"));
+        assertTrue(forest.contains(ACCOUNT, "/a/"));
+
+        forest.remove(ACCOUNT, "/a/");
+        assertFalse(forest.contains(ACCOUNT, "/a/d.txt"));
+        assertNull(forest.get(ACCOUNT.name + "/a/d.txt"));
+    }
+
+
+    /**
+     * Runs a sequence of operations: 70% checks of folders and files, as the list of files
+     * does, 20% insertions and 10% removals, as the transfer services do.
+     *
+     * @return  Time spent, in milliseconds.
+     */
+    private long run(Target target, int operations) {
+        Random random = new Random(SEED);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < operations; i++) {
+            int op = random.nextInt(10);
+            if (op < 5) {
+                target.contains(mFolders.get(random.nextInt(mFolders.size())));
+            } else if (op < 7) {
+                target.contains(mFiles.get(random.nextInt(mFiles.size())));
+            } else if (op < 9) {
+                target.put(mFiles.get(random.nextInt(mFiles.size())));
+            } else {
+                target.removePayload(mFiles.get(random.nextInt(mFiles.size())));
+            }
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+
+    private interface Target {
+        boolean contains(String remotePath);
+        void put(String remotePath);
+        void removePayload(String remotePath);
+    }
+
+    private static class TrieTarget implements Target {
+        private final IndexedForest<String> mForest;
+
+        TrieTarget(IndexedForest<String> forest) {
+            mForest = forest;
+        }
+
+        public boolean contains(String remotePath) {
+            return mForest.contains(ACCOUNT, remotePath);
+        }
+
+        public void put(String remotePath) {
+            mForest.putIfAbsent(ACCOUNT, remotePath, remotePath);
+        }
+
+        public void removePayload(String remotePath) {
+            mForest.removePayload(ACCOUNT, remotePath);
+        }
+    }
+
+    private static class MapTarget implements Target {
+        private final MapForest<String> mForest;
+
+        MapTarget(MapForest<String> forest) {
+            mForest = forest;
+        }
+
+        public boolean contains(String remotePath) {
+            return mForest.contains(ACCOUNT, remotePath);
+        }
+
+        public void put(String remotePath) {
+            mForest.putIfAbsent(ACCOUNT, remotePath, remotePath);
+        }
+
+        public void removePayload(String remotePath) {
+            mForest.removePayload(ACCOUNT, remotePath);
+        }
+    }
+
+
+    /**
+     * Previous implementation of {@link IndexedForest}: a map of nodes by string key, with
+     * links to parents and children.
+     */
+    private static class MapForest<V> {
+
+        private ConcurrentMap<String, Node<V>> mMap = new ConcurrentHashMap<String, Node<V>>();
+
+        private static class Node<V> {
+            String mKey;
+            Node<V> mParent = null;
+            Set<Node<V>> mChildren = new HashSet<Node<V>>();
+            V mPayload;
+
+            Node(String key, V payload) {
+                mKey = key;
+                mPayload = payload;
+            }
+
+            void addChild(Node<V> child) {
+                mChildren.add(child);
+                child.mParent = this;
+            }
+        }
+
+        synchronized Pair<String, String> putIfAbsent(Account account, String remotePath,
+                                                      V value) {
+            String targetKey = account.name + remotePath;
+            Node<V> valuedNode = new Node<V>(targetKey, value);
+            if (mMap.putIfAbsent(targetKey, valuedNode) != null) {
+                return null;
+            }
+            String currentPath = remotePath;
+            Node<V> currentNode = valuedNode, parentNode = null;
+            boolean linked = false;
+            while (!"/".equals(currentPath) && !linked) {
+                String parentPath = new File(currentPath).getParent();
+                if (!parentPath.endsWith("/")) {
+                    parentPath += "/";
+                }
+                String parentKey = account.name + parentPath;
+                parentNode = mMap.get(parentKey);
+                if (parentNode == null) {
+                    parentNode = new Node<V>(parentKey, null);
+                    parentNode.addChild(currentNode);
+                    mMap.put(parentKey, parentNode);
+                } else {
+                    parentNode.addChild(currentNode);
+                    linked = true;
+                }
+                currentPath = parentPath;
+                currentNode = parentNode;
+            }
+            String linkedTo = linked ?
+                    parentNode.mKey.substring(account.name.length()) : "/";
+            return new Pair<String, String>(targetKey, linkedTo);
+        }
+
+        synchronized Pair<V, String> removePayload(Account account, String remotePath) {
+            Node<V> target = mMap.get(account.name + remotePath);
+            if (target != null) {
+                target.mPayload = null;
+                if (target.mChildren.isEmpty()) {
+                    return remove(account, remotePath);
+                }
+            }
+            return new Pair<V, String>(null, null);
+        }
+
+        synchronized Pair<V, String> remove(Account account, String remotePath) {
+            Node<V> firstRemoved = mMap.remove(account.name + remotePath);
+            if (firstRemoved == null) {
+                return new Pair<V, String>(null, null);
+            }
+            removeDescendants(firstRemoved);
+            Node<V> removed = firstRemoved;
+            Node<V> parent = removed.mParent;
+            while (parent != null) {
+                parent.mChildren.remove(removed);
+                if (!parent.mChildren.isEmpty()) {
+                    break;
+                }
+                removed = mMap.remove(parent.mKey);
+                parent = removed.mParent;
+            }
+            String unlinkedFrom = (parent != null) ?
+                    parent.mKey.substring(account.name.length()) : null;
+            return new Pair<V, String>(firstRemoved.mPayload, unlinkedFrom);
+        }
+
+        private void removeDescendants(Node<V> removed) {
+            for (Node<V> child : removed.mChildren) {
+                mMap.remove(child.mKey);
+                removeDescendants(child);
+            }
+        }
+
+        synchronized boolean contains(Account account, String remotePath) {
+            return mMap.containsKey(account.name + remotePath);
+        }
+
+        synchronized void remove(Account account) {
+            Iterator<String> it = mMap.keySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().startsWith(account.name)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,208 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.owncloud.android.test;
+
+import com.cerema.cloud.lib.common.OwnCloudClient;
+import com.cerema.cloud.lib.common.OwnCloudClientFactory;
+import com.cerema.cloud.lib.common.operations.RemoteOperationResult;
+import com.cerema.cloud.operations.ParallelChunkedUploadRemoteOperation;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+public class ParallelChunkedUploadRemoteOperationTest extends AndroidTestCase {
+
+    private static final String REMOTE_PATH = "/Videos/movie.mp4";
+    private static final long TRANSFER_ID = 1234;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int FILE_SIZE = 3 * CHUNK_SIZE + 1000;   // 4 chunks, last one short
+
+    private ChunkAssemblingHandler mHandler;
+    private TestHttpServer mServer;
+    private OwnCloudClient mClient;
+    private File mLocalFile;
+    private byte[] mContent;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHandler = new ChunkAssemblingHandler();
+        mServer = new TestHttpServer(mHandler);
+        mClient = OwnCloudClientFactory.createOwnCloudClient(
+                Uri.parse(mServer.getUrl("")), getContext(), true);
+
+        mContent = new byte[FILE_SIZE];
+        new Random(1).nextBytes(mContent);
+        mLocalFile = new File(getContext().getCacheDir(), "movie.mp4");
+        FileOutputStream out = new FileOutputStream(mLocalFile);
+        try {
+            out.write(mContent);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        mLocalFile.delete();
+        super.tearDown();
+    }
+
+    public void testChunksAreNamedAndAssembled() {
+        ParallelChunkedUploadRemoteOperation operation = newOperation(null);
+        RemoteOperationResult result = operation.execute(mClient);
+
+        assertTrue(result.getLogMessage(), result.isSuccess());
+        List<String> names = mHandler.getChunkNames();
+        Collections.sort(names);
+        assertEquals(Arrays.asList(
+                REMOTE_PATH + "-chunking-" + TRANSFER_ID + "-4-0",
+                REMOTE_PATH + "-chunking-" + TRANSFER_ID + "-4-1",
+                REMOTE_PATH + "-chunking-" + TRANSFER_ID + "-4-2",
+                REMOTE_PATH + "-chunking-" + TRANSFER_ID + "-4-3"), names);
+        assertTrue("File not reassembled",
+                Arrays.equals(mContent, mHandler.getAssembledFile(REMOTE_PATH)));
+    }
+
+    public void testUploadedChunksAreSkipped() {
+        Set<Integer> uploaded = new HashSet<Integer>();
+        uploaded.add(1);
+        uploaded.add(3);
+        mHandler.preload(REMOTE_PATH, TRANSFER_ID, 4, 1,
+                Arrays.copyOfRange(mContent, CHUNK_SIZE, 2 * CHUNK_SIZE));
+        mHandler.preload(REMOTE_PATH, TRANSFER_ID, 4, 3,
+                Arrays.copyOfRange(mContent, 3 * CHUNK_SIZE, FILE_SIZE));
+
+        ParallelChunkedUploadRemoteOperation operation = newOperation(uploaded);
+        RemoteOperationResult result = operation.execute(mClient);
+
+        assertTrue(result.getLogMessage(), result.isSuccess());
+        List<String> names = mHandler.getChunkNames();
+        Collections.sort(names);
+        assertEquals(Arrays.asList(
+                REMOTE_PATH + "-chunking-" + TRANSFER_ID + "-4-0",
+                REMOTE_PATH + "-chunking-" + TRANSFER_ID + "-4-2"), names);
+        assertTrue("File not reassembled",
+                Arrays.equals(mContent, mHandler.getAssembledFile(REMOTE_PATH)));
+    }
+
+
+    private ParallelChunkedUploadRemoteOperation newOperation(Set<Integer> uploadedChunks) {
+        return new ParallelChunkedUploadRemoteOperation(mLocalFile.getAbsolutePath(),
+                REMOTE_PATH, "video/mp4", null, TRANSFER_ID, CHUNK_SIZE, uploadedChunks, 3);
+    }
+
+
+    /**
+     * Receives chunks like an ownCloud server does: parses transfer id, chunk count and chunk
+     * index from the name of every chunk, and assembles the file when all of them were received.
+     */
+    private static class ChunkAssemblingHandler implements TestHttpServer.Handler {
+
+        private static final Pattern CHUNK_PATTERN =
+                Pattern.compile("^(.*)-chunking-(\\d+)-(\\d+)-(\\d+)$");
+
+        private final List<String> mChunkNames = new ArrayList<String>();
+        private final Map<String, byte[][]> mChunks = new HashMap<String, byte[][]>();
+        private final Map<String, byte[]> mAssembled = new HashMap<String, byte[]>();
+
+        synchronized List<String> getChunkNames() {
+            return new ArrayList<String>(mChunkNames);
+        }
+
+        synchronized byte[] getAssembledFile(String remotePath) {
+            return mAssembled.get(remotePath);
+        }
+
+        /**
+         * Simulates a chunk received in a previous upload.
+         */
+        synchronized void preload(String remotePath, long transferId, int count, int index,
+                                  byte[] data) {
+            store(remotePath, transferId, count, index, data);
+        }
+
+        @Override
+        public void handle(TestHttpServer.Request request, OutputStream out)
+                throws IOException {
+            byte[] data = request.readBody();
+            String path = Uri.decode(request.getTarget());
+            if (path.startsWith(SyncCollectionTestHandler.WEBDAV_PATH)) {
+                path = path.substring(SyncCollectionTestHandler.WEBDAV_PATH.length());
+            }
+            Matcher matcher = CHUNK_PATTERN.matcher(path);
+            if (!"PUT".equals(request.getMethod()) || !matcher.matches() ||
+                    data.length != request.getContentLength()) {
+                TestHttpServer.respond(out, 400, "Bad Request", null, new byte[0]);
+                return;
+            }
+            int count = Integer.parseInt(matcher.group(3));
+            int index = Integer.parseInt(matcher.group(4));
+            if (index >= count) {
+                TestHttpServer.respond(out, 400, "Bad Request", null, new byte[0]);
+                return;
+            }
+            synchronized (this) {
+                mChunkNames.add(path);
+                store(matcher.group(1), Long.parseLong(matcher.group(2)), count, index, data);
+            }
+            TestHttpServer.respond(out, 201, "Created", null, new byte[0]);
+        }
+
+        private void store(String remotePath, long transferId, int count, int index,
+                           byte[] data) {
+            String key = remotePath + "-" + transferId + "-" + count;
+            byte[][] chunks = mChunks.get(key);
+            if (chunks == null) {
+                chunks = new byte[count][];
+                mChunks.put(key, chunks);
+            }
+            chunks[index] = data;
+            ByteArrayOutputStream file = new ByteArrayOutputStream();
+            for (byte[] chunk : chunks) {
+                if (chunk == null) {
+                    return;     // not complete yet
+                }
+                file.write(chunk, 0, chunk.length);
+            }
+            mAssembled.put(remotePath, file.toByteArray());
+            mChunks.remove(key);
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import com.cerema.cloud.lib.common.OwnCloudClient;
+import com.cerema.cloud.lib.common.OwnCloudClientFactory;
+import com.cerema.cloud.services.push.PushChannel;
+import com.cerema.cloud.services.push.PushEventCoalescer;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+public class PushChannelTest extends AndroidTestCase {
+
+    private static final long WAIT_S = 10;
+
+    private PushTestHandler mHandler;
+    private TestHttpServer mServer;
+    private OwnCloudClient mClient;
+    private PushChannel mChannel;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHandler = new PushTestHandler();
+        mServer = new TestHttpServer(mHandler);
+        mClient = OwnCloudClientFactory.createOwnCloudClient(
+                Uri.parse(mServer.getUrl("")), getContext(), true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mChannel != null) {
+            mChannel.stop();
+        }
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testChangesAreDelivered() throws Exception {
+        final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+        mChannel = new PushChannel(mServer.getUrl(PushTestHandler.PATH), mClient,
+                new PushChannel.Listener() {
+            @Override
+            public void onPathChanged(String remotePath) {
+                received.add(remotePath);
+            }
+        });
+        mChannel.start();
+
+        mHandler.enqueue("/Photos/a.jpg\n/Documents/\n");
+        assertEquals("/Photos/a.jpg", received.poll(WAIT_S, TimeUnit.SECONDS));
+        assertEquals("/Documents/", received.poll(WAIT_S, TimeUnit.SECONDS));
+    }
+
+    public void testCursorIsSentBack() throws Exception {
+        final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+        mChannel = new PushChannel(mServer.getUrl(PushTestHandler.PATH), mClient,
+                new PushChannel.Listener() {
+            @Override
+            public void onPathChanged(String remotePath) {
+                received.add(remotePath);
+            }
+        });
+        mChannel.start();
+
+        mHandler.enqueue("#cursor 42\n/a.txt\n");
+        assertEquals("/a.txt", received.poll(WAIT_S, TimeUnit.SECONDS));
+        mHandler.enqueue("/b.txt\n");
+        assertEquals("/b.txt", received.poll(WAIT_S, TimeUnit.SECONDS));
+
+        boolean cursorSent = false;
+        for (String line : mHandler.getRequestLines()) {
+            cursorSent |= line.contains("cursor=42");
+        }
+        assertTrue(cursorSent);
+    }
+
+    public void testReconnectsAfterFailures() throws Exception {
+        final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+        mHandler.setFailing(true);
+        mChannel = new PushChannel(mServer.getUrl(PushTestHandler.PATH), mClient,
+                new PushChannel.Listener() {
+            @Override
+            public void onPathChanged(String remotePath) {
+                received.add(remotePath);
+            }
+        });
+        mChannel.start();
+        Thread.sleep(500);
+        assertTrue(mChannel.isRunning());
+
+        mHandler.setFailing(false);
+        mHandler.enqueue("/after/failure.txt\n");
+        // first retries wait at most 1 and 2 seconds
+        assertEquals("/after/failure.txt", received.poll(WAIT_S, TimeUnit.SECONDS));
+    }
+
+    public void testCoalescerGroupsChangesByFolder() throws Exception {
+        final List<Set<String>> batches =
+                Collections.synchronizedList(new ArrayList<Set<String>>());
+        PushEventCoalescer coalescer = new PushEventCoalescer(new PushEventCoalescer.Listener() {
+            @Override
+            public void onFoldersChanged(Set<String> remoteFolderPaths) {
+                batches.add(remoteFolderPaths);
+            }
+        }, 200);
+        try {
+            coalescer.onPathChanged("/Photos/a.jpg");
+            coalescer.onPathChanged("/Photos/b.jpg");
+            coalescer.onPathChanged("/Documents/");
+            coalescer.onPathChanged("/c.txt");
+            Thread.sleep(1000);
+
+            assertEquals(1, batches.size());
+            Set<String> expected = new HashSet<String>();
+            expected.add("/Photos/");
+            expected.add("/Documents/");
+            expected.add("/");
+            assertEquals(expected, batches.get(0));
+        } finally {
+            coalescer.shutdown();
+        }
+    }
+
+    public void testBackoffBounds() {
+        for (int failures = 1; failures < 40; failures++) {
+            long low = PushChannel.computeBackoff(failures, 0);
+            long high = PushChannel.computeBackoff(failures, 0.999);
+            assertTrue(low >= PushChannel.MIN_BACKOFF_MS / 2);
+            assertTrue(high <= PushChannel.MAX_BACKOFF_MS);
+            assertTrue(low <= high);
+        }
+        assertEquals(PushChannel.MIN_BACKOFF_MS / 2, PushChannel.computeBackoff(1, 0));
+        assertEquals(PushChannel.MIN_BACKOFF_MS, PushChannel.computeBackoff(2, 0));
+        assertEquals(PushChannel.MAX_BACKOFF_MS / 2, PushChannel.computeBackoff(30, 0));
+    }
+
+}
@@ -0,0 +1,87 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.owncloud.android.test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handler for a {@link TestHttpServer} standing in for the notify endpoint of a server, for
+ * tests of the push channel.
+ *
+ * Holds every request up to a hold time, answering with the next queued response body as
+ * soon as there is one, or with 204 when the hold time expires. Can be set to fail requests
+ * with 500 to test reconnections.
+ */
+public class PushTestHandler implements TestHttpServer.Handler {
+
+    public static final String PATH = "/notify";
+
+    private static final long HOLD_MS = 300;
+
+    private final BlockingQueue<String> mResponses = new LinkedBlockingQueue<String>();
+    private final List<String> mRequestLines =
+            Collections.synchronizedList(new ArrayList<String>());
+    private volatile boolean mFailing = false;
+
+
+    /**
+     * Queues the body of a future response, with one change per line.
+     */
+    public void enqueue(String body) {
+        mResponses.add(body);
+    }
+
+    public void setFailing(boolean failing) {
+        mFailing = failing;
+    }
+
+    /**
+     * @return  Request lines received so far, like 'GET /notify?cursor=5 HTTP/1.1'.
+     */
+    public List<String> getRequestLines() {
+        synchronized (mRequestLines) {
+            return new ArrayList<String>(mRequestLines);
+        }
+    }
+
+
+    @Override
+    public void handle(TestHttpServer.Request request, OutputStream out)
+            throws IOException, InterruptedException {
+        mRequestLines.add(request.getRequestLine());
+        if (mFailing) {
+            TestHttpServer.respond(out, 500, "Internal Server Error", null, new byte[0]);
+            return;
+        }
+        String body = mResponses.poll(HOLD_MS, TimeUnit.MILLISECONDS);
+        if (body == null) {
+            TestHttpServer.respond(out, 204, "No Content", null, new byte[0]);
+        } else {
+            TestHttpServer.respond(out, 200, "OK", "text/plain; charset=utf-8", body);
+        }
+    }
+
+}
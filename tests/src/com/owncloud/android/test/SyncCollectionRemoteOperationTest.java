@@ -0,0 +1,145 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import com.cerema.cloud.lib.common.OwnCloudClient;
+import com.cerema.cloud.lib.common.OwnCloudClientFactory;
+import com.cerema.cloud.lib.common.operations.RemoteOperationResult;
+import com.cerema.cloud.lib.resources.files.RemoteFile;
+import com.cerema.cloud.lib.resources.status.CapabilityBooleanType;
+import com.cerema.cloud.operations.SyncCollectionRemoteOperation;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+public class SyncCollectionRemoteOperationTest extends AndroidTestCase {
+
+    private SyncCollectionTestHandler mHandler;
+    private TestHttpServer mServer;
+    private OwnCloudClient mClient;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHandler = new SyncCollectionTestHandler();
+        mServer = new TestHttpServer(mHandler);
+        mClient = OwnCloudClientFactory.createOwnCloudClient(
+                Uri.parse(mServer.getUrl("")), getContext(), true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testBaselineReadsCurrentToken() {
+        mHandler.change("/a.txt", false);
+        SyncCollectionRemoteOperation operation = new SyncCollectionRemoteOperation(null);
+        RemoteOperationResult result = operation.execute(mClient);
+
+        assertTrue(result.isSuccess());
+        assertEquals(CapabilityBooleanType.TRUE, operation.getSupport());
+        assertEquals(mHandler.getCurrentToken(), operation.getNewSyncToken());
+        assertTrue(operation.getChangedFiles().isEmpty());
+        assertEquals(0, mHandler.getReportsCount());
+    }
+
+    public void testReportReturnsChangesSinceToken() {
+        mHandler.change("/old.txt", false);
+        String token = mHandler.getCurrentToken();
+        mHandler.change("/Photos/", true);
+        mHandler.change("/Photos/a.jpg", false);
+        mHandler.change("/Photos/a.jpg", false);
+        mHandler.remove("/gone.txt");
+
+        SyncCollectionRemoteOperation operation = new SyncCollectionRemoteOperation(token);
+        RemoteOperationResult result = operation.execute(mClient);
+
+        assertTrue(result.isSuccess());
+        assertFalse(operation.isTruncated());
+        assertEquals(mHandler.getCurrentToken(), operation.getNewSyncToken());
+
+        Map<String, RemoteFile> changed = new HashMap<String, RemoteFile>();
+        for (RemoteFile file : operation.getChangedFiles()) {
+            changed.put(file.getRemotePath(), file);
+        }
+        assertEquals(2, changed.size());
+        assertEquals("DIR", changed.get("/Photos/").getMimeType());
+        assertEquals(100, changed.get("/Photos/").getLength());
+        RemoteFile photo = changed.get("/Photos/a.jpg");
+        assertEquals("text/plain", photo.getMimeType());
+        assertEquals(42, photo.getLength());
+        assertFalse(photo.getEtag().contains("\""));
+        assertTrue(photo.getModifiedTimestamp() > 0);
+
+        assertEquals(1, operation.getRemovedPaths().size());
+        assertEquals("/gone.txt", operation.getRemovedPaths().get(0));
+    }
+
+    public void testTruncatedReport() {
+        String token = mHandler.getCurrentToken();
+        mHandler.change("/1.txt", false);
+        mHandler.change("/2.txt", false);
+        mHandler.change("/3.txt", false);
+        mHandler.setMaxResults(2);
+
+        SyncCollectionRemoteOperation first = new SyncCollectionRemoteOperation(token);
+        assertTrue(first.execute(mClient).isSuccess());
+        assertTrue(first.isTruncated());
+        assertEquals(2, first.getChangedFiles().size());
+
+        SyncCollectionRemoteOperation second =
+                new SyncCollectionRemoteOperation(first.getNewSyncToken());
+        assertTrue(second.execute(mClient).isSuccess());
+        assertFalse(second.isTruncated());
+        assertEquals(1, second.getChangedFiles().size());
+        assertEquals("/3.txt", second.getChangedFiles().get(0).getRemotePath());
+    }
+
+    public void testInvalidToken() {
+        String token = mHandler.getCurrentToken();
+        mHandler.expireTokens();
+
+        SyncCollectionRemoteOperation operation = new SyncCollectionRemoteOperation(token);
+        RemoteOperationResult result = operation.execute(mClient);
+
+        assertFalse(result.isSuccess());
+        assertTrue(operation.isSyncTokenInvalid());
+        assertEquals(CapabilityBooleanType.TRUE, operation.getSupport());
+    }
+
+    public void testUnsupportedServer() {
+        mHandler.setSupported(false);
+
+        SyncCollectionRemoteOperation baseline = new SyncCollectionRemoteOperation(null);
+        assertFalse(baseline.execute(mClient).isSuccess());
+        assertEquals(CapabilityBooleanType.FALSE, baseline.getSupport());
+
+        SyncCollectionRemoteOperation report = new SyncCollectionRemoteOperation("any");
+        assertFalse(report.execute(mClient).isSuccess());
+        assertEquals(CapabilityBooleanType.FALSE, report.getSupport());
+    }
+
+}
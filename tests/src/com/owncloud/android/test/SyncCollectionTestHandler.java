@@ -0,0 +1,227 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Handler for a {@link TestHttpServer} faking a WebDAV server that implements sync-collection
+ * REPORTs (RFC 6578) on its root collection, for tests of the change feed.
+ *
+ * Changes are recorded with {@link #change(String, boolean)} and {@link #remove(String)}; every
+ * change increases the sync-token. Can be set as not supporting reports, or as limiting the
+ * number of changes per response to test truncated results.
+ */
+public class SyncCollectionTestHandler implements TestHttpServer.Handler {
+
+    public static final String WEBDAV_PATH = "/remote.php/webdav";
+
+    private static final String TOKEN_PREFIX = "http://example.com/sync/";
+    private static final Pattern TOKEN_PATTERN =
+            Pattern.compile("<d:sync-token>([^<]*)</d:sync-token>");
+
+    private static class Change {
+        String mPath;
+        boolean mFolder;
+        boolean mRemoved;
+        int mSeq;
+    }
+
+    private final List<Change> mChanges = new ArrayList<Change>();
+    private int mSeq = 1;
+    private int mOldestValidSeq = 0;
+    private volatile boolean mSupported = true;
+    private volatile int mMaxResults = Integer.MAX_VALUE;
+    private volatile int mReports = 0;
+
+
+    public synchronized void change(String path, boolean folder) {
+        Change change = new Change();
+        change.mPath = path;
+        change.mFolder = folder;
+        change.mSeq = ++mSeq;
+        mChanges.add(change);
+    }
+
+    public synchronized void remove(String path) {
+        Change change = new Change();
+        change.mPath = path;
+        change.mRemoved = true;
+        change.mSeq = ++mSeq;
+        mChanges.add(change);
+    }
+
+    public synchronized String getCurrentToken() {
+        return TOKEN_PREFIX + mSeq;
+    }
+
+    /**
+     * Makes every sync-token issued so far invalid, like a server cleaning old changes.
+     */
+    public synchronized void expireTokens() {
+        mOldestValidSeq = mSeq + 1;
+        ++mSeq;
+    }
+
+    public void setSupported(boolean supported) {
+        mSupported = supported;
+    }
+
+    public void setMaxResults(int maxResults) {
+        mMaxResults = maxResults;
+    }
+
+    public int getReportsCount() {
+        return mReports;
+    }
+
+
+    @Override
+    public void handle(TestHttpServer.Request request, OutputStream out) throws IOException {
+        String requestBody = new String(request.readBody(), "UTF-8");
+        String method = request.getMethod();
+        String response;
+        if ("PROPFIND".equals(method)) {
+            response = propfind();
+        } else if ("REPORT".equals(method)) {
+            mReports++;
+            response = report(requestBody);
+        } else {
+            response = status(405, "Method Not Allowed", "");
+        }
+        out.write(response.getBytes("UTF-8"));
+        out.flush();
+    }
+
+
+    private synchronized String propfind() {
+        String body = "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+                "<d:multistatus xmlns:d=\"DAV:\"><d:response>" +
+                "<d:href>" + WEBDAV_PATH + "/</d:href>";
+        if (mSupported) {
+            body += "<d:propstat><d:prop><d:sync-token>" + getCurrentToken() +
+                    "</d:sync-token></d:prop><d:status>HTTP/1.1 200 OK</d:status></d:propstat>";
+        } else {
+            body += "<d:propstat><d:prop><d:sync-token/></d:prop>" +
+                    "<d:status>HTTP/1.1 404 Not Found</d:status></d:propstat>";
+        }
+        body += "</d:response></d:multistatus>";
+        return status(207, "Multi-Status", body);
+    }
+
+
+    private synchronized String report(String requestBody) {
+        if (!mSupported) {
+            return status(501, "Not Implemented", "");
+        }
+        Matcher matcher = TOKEN_PATTERN.matcher(requestBody);
+        int fromSeq = -1;
+        if (matcher.find()) {
+            String token = matcher.group(1);
+            if (token.startsWith(TOKEN_PREFIX)) {
+                try {
+                    fromSeq = Integer.parseInt(token.substring(TOKEN_PREFIX.length()));
+                } catch (NumberFormatException e) {
+                    fromSeq = -1;
+                }
+            }
+        }
+        if (fromSeq < mOldestValidSeq || fromSeq > mSeq) {
+            return status(403, "Forbidden", "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+                    "<d:error xmlns:d=\"DAV:\"><d:valid-sync-token/></d:error>");
+        }
+
+        // latest change per path after the token, up to the limit
+        Map<String, Change> latest = new LinkedHashMap<String, Change>();
+        int lastSeq = fromSeq;
+        boolean truncated = false;
+        for (Change change : mChanges) {
+            if (change.mSeq <= fromSeq) {
+                continue;
+            }
+            if (latest.size() >= mMaxResults && !latest.containsKey(change.mPath)) {
+                truncated = true;
+                break;
+            }
+            latest.remove(change.mPath);
+            latest.put(change.mPath, change);
+            lastSeq = change.mSeq;
+        }
+        if (!truncated) {
+            lastSeq = mSeq;
+        }
+
+        StringBuilder body = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+                "<d:multistatus xmlns:d=\"DAV:\" xmlns:oc=\"http://owncloud.org/ns\">");
+        for (Change change : latest.values()) {
+            body.append("<d:response><d:href>").append(WEBDAV_PATH).append(change.mPath)
+                    .append("</d:href>");
+            if (change.mRemoved) {
+                body.append("<d:status>HTTP/1.1 404 Not Found</d:status>");
+            } else {
+                body.append("<d:propstat><d:prop>")
+                        .append("<d:getetag>\"etag").append(change.mSeq).append("\"</d:getetag>")
+                        .append("<d:getlastmodified>Mon, 17 Oct 2016 10:00:00 GMT")
+                        .append("</d:getlastmodified>");
+                if (change.mFolder) {
+                    body.append("<d:resourcetype><d:collection/></d:resourcetype>")
+                            .append("<oc:size>100</oc:size>");
+                } else {
+                    body.append("<d:resourcetype/>")
+                            .append("<d:getcontentlength>42</d:getcontentlength>")
+                            .append("<d:getcontenttype>text/plain</d:getcontenttype>");
+                }
+                body.append("<oc:id>id").append(change.mSeq).append("</oc:id>")
+                        .append("<oc:permissions>RDNVW</oc:permissions>")
+                        .append("</d:prop><d:status>HTTP/1.1 200 OK</d:status></d:propstat>");
+            }
+            body.append("</d:response>");
+        }
+        if (truncated) {
+            body.append("<d:response><d:href>").append(WEBDAV_PATH).append("/</d:href>")
+                    .append("<d:status>HTTP/1.1 507 Insufficient Storage</d:status>")
+                    .append("</d:response>");
+        }
+        body.append("<d:sync-token>").append(TOKEN_PREFIX).append(lastSeq)
+                .append("</d:sync-token></d:multistatus>");
+        return status(207, "Multi-Status", body.toString());
+    }
+
+
+    private static String status(int code, String reason, String body) {
+        int length;
+        try {
+            length = body.getBytes("UTF-8").length;
+        } catch (IOException e) {
+            length = body.length();
+        }
+        return "HTTP/1.1 " + code + " " + reason + "\r\n" +
+                "Content-Type: application/xml; charset=utf-8\r\n" +
+                "Content-Length: " + length + "\r\nConnection: close\r\n\r\n" + body;
+    }
+
+}
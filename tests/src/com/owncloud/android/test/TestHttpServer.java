@@ -0,0 +1,274 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.owncloud.android.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Local HTTP server for tests, delegating every request to a {@link Handler}.
+ *
+ * Listens on a free port of the loopback interface, and serves every connection in its own
+ * thread, one request per connection.
+ */
+public class TestHttpServer {
+
+    /**
+     * Interface to implement by the simulated server logic.
+     */
+    public interface Handler {
+
+        /**
+         * Called in the thread of the connection for every request received.
+         *
+         * @param request       Request line and headers; the body is left to read.
+         * @param out           Stream to write the complete response to.
+         */
+        void handle(Request request, OutputStream out) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Request received, with its body still unread.
+     */
+    public static class Request {
+
+        private final String mRequestLine;
+        private final String mMethod;
+        private final String mTarget;
+        private final Map<String, String> mHeaders;
+        private final InputStream mBody;
+
+        Request(String requestLine, Map<String, String> headers, InputStream body) {
+            mRequestLine = requestLine;
+            String[] parts = requestLine.split(" ");
+            mMethod = parts[0];
+            mTarget = (parts.length > 1) ? parts[1] : "/";
+            mHeaders = headers;
+            mBody = body;
+        }
+
+        /**
+         * @return  Request line, like 'GET /notify?cursor=5 HTTP/1.1'.
+         */
+        public String getRequestLine() {
+            return mRequestLine;
+        }
+
+        public String getMethod() {
+            return mMethod;
+        }
+
+        /**
+         * @return  Path of the request, with the query, if any.
+         */
+        public String getTarget() {
+            return mTarget;
+        }
+
+        /**
+         * @param name  Name of the header, in any case.
+         * @return      Value of the header, or null if not received.
+         */
+        public String getHeader(String name) {
+            return mHeaders.get(name.toLowerCase());
+        }
+
+        public long getContentLength() {
+            String value = getHeader("Content-Length");
+            return (value != null) ? Long.parseLong(value) : 0;
+        }
+
+        /**
+         * @return  Stream with the body of the request, for handlers reading it by themselves.
+         */
+        public InputStream getBody() {
+            return mBody;
+        }
+
+        /**
+         * Reads the whole body of the request.
+         *
+         * @return  Bytes received, fewer than the Content-Length if the client is gone.
+         */
+        public byte[] readBody() throws IOException {
+            long length = getContentLength();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            long read = 0;
+            while (read < length) {
+                int count = mBody.read(buffer, 0, (int) Math.min(buffer.length, length - read));
+                if (count < 0) {
+                    break;
+                }
+                body.write(buffer, 0, count);
+                read += count;
+            }
+            return body.toByteArray();
+        }
+    }
+
+
+    private final ServerSocket mServerSocket;
+    private final Handler mHandler;
+    private volatile boolean mRunning = true;
+
+
+    public TestHttpServer(Handler handler) throws IOException {
+        mHandler = handler;
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "Test HTTP server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * @param path  Path in the server, with leading '/'; may be empty.
+     * @return      Full URL to the path.
+     */
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    public void shutdown() {
+        mRunning = false;
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+
+    /**
+     * Writes a complete response, closing the connection after it.
+     *
+     * @param out           Stream of the connection.
+     * @param code          HTTP status code.
+     * @param reason        HTTP reason phrase.
+     * @param contentType   Value for the Content-Type header; null to skip it.
+     * @param body          Body of the response; may be empty, not null.
+     */
+    public static void respond(OutputStream out, int code, String reason, String contentType,
+                               byte[] body) throws IOException {
+        StringBuilder headers = new StringBuilder("HTTP/1.1 ").append(code).append(' ')
+                .append(reason).append("\r\n");
+        if (contentType != null) {
+            headers.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        if (code != 204) {
+            headers.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        headers.append("Connection: close\r\n\r\n");
+        out.write(headers.toString().getBytes("UTF-8"));
+        out.write(body);
+        out.flush();
+    }
+
+    public static void respond(OutputStream out, int code, String reason, String contentType,
+                               String body) throws IOException {
+        respond(out, code, reason, contentType, body.getBytes("UTF-8"));
+    }
+
+
+    private void acceptLoop() {
+        while (mRunning) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                Thread handler = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(socket);
+                        } catch (IOException e) {
+                            // client gone
+                        } catch (InterruptedException e) {
+                            // server shut down
+                        } finally {
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                // nothing to do
+                            }
+                        }
+                    }
+                });
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                // socket closed; keep serving while running
+            }
+        }
+    }
+
+
+    private void serve(Socket socket) throws IOException, InterruptedException {
+        InputStream in = socket.getInputStream();
+        String requestLine = readLine(in);
+        if (requestLine == null || requestLine.length() == 0) {
+            return;
+        }
+        Map<String, String> headers = new HashMap<String, String>();
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(),
+                        line.substring(colon + 1).trim());
+            }
+        }
+        if (line == null) {
+            return;     // client gone before the end of the headers
+        }
+        mHandler.handle(new Request(requestLine, headers, in), socket.getOutputStream());
+    }
+
+
+    /**
+     * Reads a line of the request head, byte by byte, so that the body is left unread.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return null;
+    }
+
+}
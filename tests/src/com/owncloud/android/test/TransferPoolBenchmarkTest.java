@@ -0,0 +1,289 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.owncloud.android.test;
+
+import com.cerema.cloud.files.services.TransferPool;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput of the pool of transfer workers against a local server with injected latency.
+ */
+public class TransferPoolBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = TransferPoolBenchmarkTest.class.getSimpleName();
+
+    private static final long LATENCY_MS = 200;
+    private static final int FILE_SIZE = 64 * 1024;
+    private static final int FILES = 12;
+    private static final long WAIT_S = 30;
+
+    private DownloadTestHandler mHandler;
+    private TestHttpServer mServer;
+    private TransferPool mPool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHandler = new DownloadTestHandler(LATENCY_MS, FILE_SIZE);
+        mServer = new TestHttpServer(mHandler);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mPool != null) {
+            mPool.shutdown();
+        }
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testParallelDownloads() throws Exception {
+        long serial = downloadAll(1, 4);
+        assertEquals("Serial downloads overlapped", 1, mHandler.getMaxInProgress());
+        long parallel = downloadAll(4, 4);
+        Log.i(TAG, FILES + " files with " + LATENCY_MS + " ms of latency: " + serial +
+                " ms with 1 worker, " + parallel + " ms with 4 workers");
+        assertTrue("Downloads not run in parallel: " + mHandler.getMaxInProgress(),
+                mHandler.getMaxInProgress() > 1);
+        assertTrue("Too many downloads at the same time: " + mHandler.getMaxInProgress(),
+                mHandler.getMaxInProgress() <= 4);
+    }
+
+    public void testHostLimitIsRespected() throws Exception {
+        downloadAll(6, 2);
+        assertTrue("Too many downloads from the same host: " + mHandler.getMaxInProgress(),
+                mHandler.getMaxInProgress() <= 2);
+    }
+
+    public void testAccountLimitIsRespected() throws Exception {
+        mPool = new TransferPool("Test pool", 4, 1, 4, null);
+        final AtomicInteger inProgress = new AtomicInteger(0);
+        final AtomicInteger maxInProgress = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int i = 0; i < 4; i++) {
+            mPool.submit(new TestTask("file" + i, "account", "host") {
+                @Override
+                public void run() {
+                    int current = inProgress.incrementAndGet();
+                    synchronized (maxInProgress) {
+                        maxInProgress.set(Math.max(maxInProgress.get(), current));
+                    }
+                    sleep(50);
+                    inProgress.decrementAndGet();
+                    done.countDown();
+                }
+            }, false);
+        }
+        assertTrue(done.await(WAIT_S, TimeUnit.SECONDS));
+        assertEquals(1, maxInProgress.get());
+    }
+
+    public void testPriorityTasksGoFirst() throws Exception {
+        mPool = new TransferPool("Test pool", 1, 1, 1, null);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(4);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        mPool.submit(new TestTask("blocking", "account", "host") {
+            @Override
+            public void run() {
+                try {
+                    blocker.await(WAIT_S, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // go on
+                }
+                done.countDown();
+            }
+        }, false);
+        for (String key : new String[]{"a", "b", "c"}) {
+            final String name = key;
+            mPool.submit(new TestTask(name, "account", "host") {
+                @Override
+                public void run() {
+                    order.add(name);
+                    done.countDown();
+                }
+            }, false);
+        }
+        assertFalse("Queued task accepted twice",
+                mPool.submit(new TestTask("c", "account", "host"), true));
+        blocker.countDown();
+
+        assertTrue(done.await(WAIT_S, TimeUnit.SECONDS));
+        assertEquals("c", order.get(0));
+        assertEquals("a", order.get(1));
+        assertEquals("b", order.get(2));
+    }
+
+    public void testExtraConnectionsCountAgainstHostLimit() throws Exception {
+        mPool = new TransferPool("Test pool", 2, 2, 4, null);
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        final AtomicInteger extra = new AtomicInteger(-1);
+        final AtomicInteger startedBeforeRelease = new AtomicInteger(0);
+        final AtomicInteger released = new AtomicInteger(0);
+
+        mPool.submit(new TestTask("segmented", "account", "host") {
+            @Override
+            public void run() {
+                extra.set(mPool.acquireExtraConnections("host", 5));
+                acquired.countDown();
+                try {
+                    release.await(WAIT_S, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // go on
+                }
+                released.set(1);
+                mPool.releaseExtraConnections("host", extra.get());
+                done.countDown();
+            }
+        }, false);
+        assertTrue(acquired.await(WAIT_S, TimeUnit.SECONDS));
+        assertEquals("Extra connections beyond the host limit", 3, extra.get());
+        assertEquals(0, mPool.acquireExtraConnections("host", 1));
+
+        mPool.submit(new TestTask("other", "account", "host") {
+            @Override
+            public void run() {
+                if (released.get() == 0) {
+                    startedBeforeRelease.incrementAndGet();
+                }
+                done.countDown();
+            }
+        }, false);
+        release.countDown();
+        assertTrue(done.await(WAIT_S, TimeUnit.SECONDS));
+        assertEquals("Transfer started with the host limit taken by segments", 0,
+                startedBeforeRelease.get());
+    }
+
+
+    /**
+     * Downloads {@link #FILES} files from the test server through a new pool.
+     *
+     * @return      Time spent, in milliseconds.
+     */
+    private long downloadAll(int workers, int maxPerHost) throws Exception {
+        if (mPool != null) {
+            mPool.shutdown();
+        }
+        mPool = new TransferPool("Test pool", workers, FILES, maxPerHost, null);
+        final CountDownLatch done = new CountDownLatch(FILES);
+        final AtomicInteger failures = new AtomicInteger(0);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < FILES; i++) {
+            final String url = mServer.getUrl("/file" + i);
+            mPool.submit(new TestTask(url, "account", "127.0.0.1") {
+                @Override
+                public void run() {
+                    try {
+                        if (download(url) != FILE_SIZE) {
+                            failures.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, false);
+        }
+        assertTrue("Downloads not finished in time", done.await(WAIT_S, TimeUnit.SECONDS));
+        assertEquals(0, failures.get());
+        return System.currentTimeMillis() - start;
+    }
+
+
+    private static int download(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            InputStream in = connection.getInputStream();
+            byte[] buffer = new byte[8192];
+            int total = 0, read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+            }
+            in.close();
+            return total;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            // go on
+        }
+    }
+
+
+    private static class TestTask implements TransferPool.Task {
+
+        private final String mKey;
+        private final String mAccountName;
+        private final String mHost;
+
+        TestTask(String key, String accountName, String host) {
+            mKey = key;
+            mAccountName = accountName;
+            mHost = host;
+        }
+
+        @Override
+        public String getKey() {
+            return mKey;
+        }
+
+        @Override
+        public String getAccountName() {
+            return mAccountName;
+        }
+
+        @Override
+        public String getHost() {
+            return mHost;
+        }
+
+        @Override
+        public boolean isDeferrable() {
+            return false;
+        }
+
+        @Override
+        public void run() {
+        }
+    }
+
+}
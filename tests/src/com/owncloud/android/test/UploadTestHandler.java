@@ -0,0 +1,92 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2016 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.owncloud.android.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Handler for a {@link TestHttpServer} standing in for a server receiving uploads, simulating
+ * the bandwidth and losses of a network.
+ *
+ * Every request waits a fixed latency, reads its body at a limited rate, and may lose the
+ * connection in the middle of the body with a given probability per block of 64 KB. Requests
+ * received completely are answered with 201.
+ */
+public class UploadTestHandler implements TestHttpServer.Handler {
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private final long mLatencyMs;
+    private final long mBytesPerSecond;
+    private final double mLossPerBlock;
+    private final Random mRandom;
+
+
+    /**
+     * @param latencyMs         Time to wait before reading every request.
+     * @param bytesPerSecond    Rate at which bodies are read.
+     * @param lossPerBlock      Probability of losing the connection at every block of 64 KB.
+     * @param seed              Seed of the random losses, to get repeatable runs.
+     */
+    public UploadTestHandler(long latencyMs, long bytesPerSecond, double lossPerBlock,
+                             long seed) {
+        mLatencyMs = latencyMs;
+        mBytesPerSecond = bytesPerSecond;
+        mLossPerBlock = lossPerBlock;
+        mRandom = new Random(seed);
+    }
+
+
+    @Override
+    public void handle(TestHttpServer.Request request, OutputStream out)
+            throws IOException, InterruptedException {
+        InputStream in = request.getBody();
+        long contentLength = request.getContentLength();
+
+        Thread.sleep(mLatencyMs);
+        byte[] block = new byte[BLOCK_SIZE];
+        long received = 0;
+        while (received < contentLength) {
+            boolean lost;
+            synchronized (mRandom) {
+                lost = mRandom.nextDouble() < mLossPerBlock;
+            }
+            if (lost) {
+                return;     // connection dropped
+            }
+            int toRead = (int) Math.min(BLOCK_SIZE, contentLength - received);
+            int read = 0;
+            while (read < toRead) {
+                int count = in.read(block, read, toRead - read);
+                if (count < 0) {
+                    return;
+                }
+                read += count;
+            }
+            received += read;
+            Thread.sleep(read * 1000L / mBytesPerSecond);
+        }
+
+        TestHttpServer.respond(out, 201, "Created", null, new byte[0]);
+    }
+
+}